@@ -27,8 +27,8 @@ import java.util.UUID;
 import java.io.File;
 import java.text.ParseException;
 
+import com.example.bookworm.services.BookImportPipeline;
 import com.example.bookworm.services.BookMetadataReader;
-import com.example.bookworm.services.SupabaseService;
 
 public class AddBookActivity extends AppCompatActivity {
 
@@ -56,7 +56,6 @@ public class AddBookActivity extends AppCompatActivity {
     private Calendar calendar;
     private SimpleDateFormat dateFormat;
     private SimpleDateFormat dbDateFormat;
-    private SupabaseService supabaseService;
     private Context context;
 
     @Override
@@ -66,7 +65,6 @@ public class AddBookActivity extends AppCompatActivity {
         calendar = Calendar.getInstance();
         dateFormat = new SimpleDateFormat("dd.MM.yyyy", Locale.getDefault());
         dbDateFormat = new SimpleDateFormat("yyyy-MM-dd", Locale.getDefault());
-        supabaseService = new SupabaseService(this);
         context = this;
 
         initializeViews();
@@ -360,37 +358,11 @@ public class AddBookActivity extends AppCompatActivity {
         false
         );
 
-        // Используем уже созданный экземпляр supabaseService
-        saveBookToSupabase(book);
-    }
-
-    private void saveBookToSupabase(Book book) {
-        // Показываем индикатор загрузки
-        Toast.makeText(this, "Сохранение книги...", Toast.LENGTH_SHORT).show();
-        
-        supabaseService.saveBook(book, new SupabaseService.BookSaveCallback() {
-            @Override
-            public void onSuccess() {
-                String message = "Книга \"" + book.getTitle() + "\" автора " + book.getAuthor() + " добавлена";
-                Toast.makeText(AddBookActivity.this, message, Toast.LENGTH_SHORT).show();
-                setResult(Activity.RESULT_OK);
-                finish();
-            }
-
-            @Override
-            public void onError(String error) {
-                Log.e(TAG, "Error saving book: " + error);
-                
-                // Проверяем, является ли ошибка дублированием книги
-                if (error.contains("duplicate key value") && error.contains("unique_book_per_user")) {
-                    Toast.makeText(AddBookActivity.this, 
-                            "Книга уже добавлена в вашу библиотеку",
-                            Toast.LENGTH_LONG).show();
-                } else {
-                    Toast.makeText(AddBookActivity.this, "Ошибка при сохранении: " + error, Toast.LENGTH_LONG).show();
-                }
-            }
-        });
+        // Загрузка и подготовка книги идут в фоне, экран добавления сразу закрывается
+        BookImportPipeline.getInstance(this).enqueue(book);
+        Toast.makeText(this, "Книга \"" + book.getTitle() + "\" добавляется в библиотеку", Toast.LENGTH_SHORT).show();
+        setResult(Activity.RESULT_OK);
+        finish();
     }
 
     private String getFileFormatFromUrl(String fileUrl) {
@@ -32,9 +32,6 @@ import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.net.URLEncoder;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.InputStream;
-import java.io.FileOutputStream;
 import org.json.JSONArray;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -45,6 +42,7 @@ import java.util.List;
 import java.util.ArrayList;
 import com.example.bookworm.adapters.ShelfSelectionAdapter;
 import com.example.bookworm.models.Shelf;
+import com.example.bookworm.services.BookDownloadCache;
 import com.example.bookworm.services.SupabaseService;
 import com.example.bookworm.SupabaseAuth;
 
@@ -69,7 +67,7 @@ public class BookActivity extends BaseActivity {
         setContentView(R.layout.activity_book);
 
         // Initialize Supabase service
-        supabaseService = new SupabaseService(this);
+        supabaseService = SupabaseService.getInstance(this);
 
         // Настраиваем toolbar
         androidx.appcompat.widget.Toolbar toolbar = findViewById(R.id.toolbar);
@@ -468,45 +466,22 @@ public class BookActivity extends BaseActivity {
                         final String finalFileUrl = fileUrlFromApi;
                         Log.d(TAG, "Found file URL from API: " + finalFileUrl);
                         
-                        // Download the file from the URL
-                        URL fileDownloadUrl = new URL(finalFileUrl);
-                        connection = (HttpURLConnection) fileDownloadUrl.openConnection();
+                        // Книга берётся из общего кэша загрузок (тот же кэш использует читалка)
+                        // Путь к файлу в Intent не запоминаем: кэш может вытеснить файл,
+                        // а повторное открытие через кэш обходится условным запросом
+                        File bookFile = BookDownloadCache.fetch(this, finalFileUrl);
                         
-                        // Create a temporary file to store the download
-                        File tempDir = new File(getFilesDir(), "books");
-                        if (!tempDir.exists()) {
-                            tempDir.mkdirs();
-                        }
-                        
-                        File tempFile = new File(tempDir, bookId + ".book");
-                        
-                        if (connection.getResponseCode() == HttpURLConnection.HTTP_OK) {
-                            try (InputStream inputStream = connection.getInputStream();
-                                 FileOutputStream outputStream = new FileOutputStream(tempFile)) {
-                                byte[] buffer = new byte[4096];
-                                int bytesRead;
-                                while ((bytesRead = inputStream.read(buffer)) != -1) {
-                                    outputStream.write(buffer, 0, bytesRead);
-                                }
-                            }
-                            
-                            // Update the file path in the intent
-                            getIntent().putExtra("filePath", tempFile.getAbsolutePath());
-                            
-                            // Open the book reader with the downloaded file
-                            runOnUiThread(() -> {
-                                progressBar.setVisibility(ProgressBar.GONE);
-                                Intent intent = new Intent(this, BookReaderActivity.class);
-                                intent.putExtra("title", bookTitle);
-                                intent.putExtra("id", bookId);
-                                intent.putExtra("currentPage", currentPage);
-                                intent.putExtra("fileUri", Uri.fromFile(tempFile));
-                                startActivity(intent);
-                            });
-                            return;
-                        } else {
-                            Log.e(TAG, "Failed to download file, response code: " + connection.getResponseCode());
-                        }
+                        // Open the book reader with the downloaded file
+                        runOnUiThread(() -> {
+                            progressBar.setVisibility(ProgressBar.GONE);
+                            Intent intent = new Intent(this, BookReaderActivity.class);
+                            intent.putExtra("title", bookTitle);
+                            intent.putExtra("id", bookId);
+                            intent.putExtra("currentPage", currentPage);
+                            intent.putExtra("fileUri", Uri.fromFile(bookFile));
+                            startActivity(intent);
+                        });
+                        return;
                     } else {
                         Log.e(TAG, "No file URL found in the API response");
                     }
@@ -1080,7 +1055,7 @@ public class BookActivity extends BaseActivity {
         recyclerViewShelves.setVisibility(View.GONE);
         
         // Get SupabaseService and SupabaseAuth instances
-        SupabaseService supabaseService = new SupabaseService(this);
+        SupabaseService supabaseService = SupabaseService.getInstance(this);
         SupabaseAuth supabaseAuth = new SupabaseAuth(this);
         
         // Get current user ID from Supabase
@@ -1183,12 +1158,4 @@ public class BookActivity extends BaseActivity {
         
         dialog.show();
     }
-
-    @Override
-    protected void onDestroy() {
-        super.onDestroy();
-        if (supabaseService != null) {
-            supabaseService.shutdown();
-        }
-    }
 }
\ No newline at end of file
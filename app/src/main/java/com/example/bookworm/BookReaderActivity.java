@@ -13,11 +13,18 @@ import android.webkit.WebViewClient;
 import android.view.GestureDetector;
 import android.view.MotionEvent;
 import android.view.View;
+import android.view.ViewStub;
+import android.view.ViewTreeObserver;
 import android.widget.SeekBar;
 import android.widget.TextView;
 import android.util.Log;
 import android.widget.Toast;
 import com.example.bookworm.services.BookFileReader;
+import com.example.bookworm.services.EpubResourceServer;
+import com.example.bookworm.services.PageLayout;
+import com.example.bookworm.services.PageStore;
+import com.example.bookworm.services.ReadingProgressSync;
+import com.example.bookworm.services.SearchIndex;
 import com.example.bookworm.services.SupabaseService;
 import com.example.bookworm.Book;
 import java.util.List;
@@ -25,18 +32,21 @@ import android.widget.ImageButton;
 import android.widget.LinearLayout;
 import android.util.DisplayMetrics;
 import android.webkit.WebResourceRequest;
+import android.webkit.WebResourceResponse;
 import android.webkit.WebResourceError;
 import android.os.Handler;
-import android.os.Looper;
+import org.json.JSONObject;
 import java.io.File;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import com.example.bookworm.models.TocItem;
 import com.example.bookworm.adapters.TocAdapter;
 import com.example.bookworm.adapters.QuotesAdapter;
+import com.example.bookworm.adapters.NativePageAdapter;
 import java.util.ArrayList;
 import androidx.recyclerview.widget.RecyclerView;
 import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.PagerSnapHelper;
 import android.view.KeyEvent;
 import android.view.inputmethod.EditorInfo;
 import android.widget.EditText;
@@ -55,6 +65,11 @@ import android.content.Context;
 import android.webkit.JavascriptInterface;
 import android.webkit.ValueCallback;
 import java.util.UUID;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import android.widget.Button;
 import android.widget.FrameLayout;
 import android.os.SystemClock;
@@ -64,7 +79,15 @@ public class BookReaderActivity extends BaseActivity {
     private static final String TAG = "BookReaderActivity";
     private static final String PREFS_NAME = "BookwormPrefs";
     private static final String KEY_THEME = "theme";
-    private WebView contentWebView;
+    private static final String KEY_PREFETCH_DEPTH = "reader_prefetch_depth"; // Сколько соседних страниц готовить заранее
+    private static final int MAX_PREFETCH_DEPTH = 3;
+    private static final int READER_FONT_SIZE = 40; // Размер шрифта страницы в CSS-пикселях
+    private static final int READER_PADDING_DP = 8; // Отступ страницы от краёв экрана
+    private FrameLayout readerContainer;
+    private WebView contentWebView; // Создаётся только для книг, которые показываются через HTML
+    private RecyclerView nativePageView; // Страницы TXT и FB2 без WebView
+    private NativePageAdapter nativePageAdapter;
+    private boolean nativeRendering = false;
     private LinearLayout topPanel;
     private LinearLayout bottomPanel;
     private ProgressBar loadingProgressBar;
@@ -72,8 +95,10 @@ public class BookReaderActivity extends BaseActivity {
     private boolean panelsVisible = false;
     private SeekBar pageProgressBar;
     private TextView pageIndicator;
-    private List<String> pages;
+    private List<String> pages; // PageStore или ленивые страницы TXT, HTML собирается при показе
     private int currentPage = 0;
+    private boolean contentComplete = false; // Все страницы книги получены
+    private boolean initialPageShown = false; // Сохранённая страница уже показана
     private GestureDetector gestureDetector;
     private long lastTouchTime = 0;
     private static final long TOUCH_COOLDOWN = 300; // 300ms cooldown between touches
@@ -83,23 +108,26 @@ public class BookReaderActivity extends BaseActivity {
     private String bookTitle;
     private int savedCurrentPage = 0;
     private SupabaseService supabaseService;
-    
-    // Progress sync debounce
-    private static final long PROGRESS_SYNC_DELAY = 1000; // 1 second delay between Supabase updates
-    private long lastProgressSync = 0;
-    private Runnable pendingProgressSync;
-    private final Handler progressHandler = new Handler(Looper.getMainLooper());
-
-    // New fields
-    private long lastPageTimestamp = 0;
-    private final Object syncLock = new Object();
-    private boolean syncInProgress = false;
+    private ReadingProgressSync progressSync; // Сливает перелистывания в одно обновление current_page
     
     // Table of contents components
     private LinearLayout tocPanel;
     private RecyclerView tocRecyclerView;
     private TocAdapter tocAdapter;
     private List<TocItem> tocItems;
+    // Документ-оболочка страниц загружается один раз, страницы подставляются через JavaScript
+    private boolean readerShellLoaded = false;
+    private int pendingPage = -1; // Страница, показанная до окончания загрузки оболочки
+    // Соседние страницы заранее свёрстаны в скрытых контейнерах оболочки (только главный поток)
+    private int prefetchDepth = 1;
+    private int displayedPage = -1;
+    private boolean displayedPageStale = false; // Подсветка показанной страницы устарела
+    private final Set<Integer> bufferedPages = new HashSet<>();
+    private volatile int prefetchGeneration = 0;
+    private ExecutorService prefetchExecutor;
+    private EpubResourceServer resourceServer; // Изображения и стили EPUB для WebView
+    private PageLayout pageLayout; // Размер страницы, по которому книга разбита на страницы
+    private List<TocItem> streamedTocItems; // Оглавление, полученное вместе со страницами (null, если его нет)
     private ImageButton btnToc;
     private ImageButton btnCloseToc;
     
@@ -113,6 +141,12 @@ public class BookReaderActivity extends BaseActivity {
     private List<Integer> searchResults;
     private int currentSearchIndex = -1;
     private String lastSearchQuery = "";
+    private Uri bookFileUri;
+    private SearchIndex searchIndex; // Строится при первом поиске после загрузки книги
+    private boolean searchIndexLoading = false;
+    private boolean searchIndexUnavailable = false; // Индекс построить не удалось, ищем по страницам
+    private List<SearchIndex.Hit> searchHits = new ArrayList<>();
+    private BookFileReader.SearchHandle activeSearch; // Текущий фоновый поиск
 
     // Quote components
     private LinearLayout quotePanel;
@@ -131,10 +165,12 @@ public class BookReaderActivity extends BaseActivity {
         setContentView(R.layout.activity_book_reader);
 
         // Initialize SupabaseService
-        supabaseService = new SupabaseService(this);
+        supabaseService = SupabaseService.getInstance(this);
+        progressSync = ReadingProgressSync.getInstance(this);
 
         // Initialize components
-        contentWebView = findViewById(R.id.contentWebView);
+        readerContainer = findViewById(R.id.root_container);
+        nativePageView = findViewById(R.id.nativePageView);
         topPanel = findViewById(R.id.topPanel);
         bottomPanel = findViewById(R.id.bottomPanel);
         loadingProgressBar = findViewById(R.id.loadingProgressBar);
@@ -151,7 +187,7 @@ public class BookReaderActivity extends BaseActivity {
         FrameLayout.LayoutParams params = new FrameLayout.LayoutParams(
                 FrameLayout.LayoutParams.MATCH_PARENT,
                 FrameLayout.LayoutParams.MATCH_PARENT);
-        ((FrameLayout) findViewById(R.id.root_container)).addView(touchOverlay, params);
+        readerContainer.addView(touchOverlay, params);
         
         // Set up touch detection on the overlay
         touchOverlay.setOnTouchListener((v, event) -> {
@@ -191,50 +227,8 @@ public class BookReaderActivity extends BaseActivity {
             quotePanel.setVisibility(View.GONE);
         }
 
-        // Configure WebView
-        WebSettings webSettings = contentWebView.getSettings();
-        webSettings.setJavaScriptEnabled(true);
-        webSettings.setDefaultFontSize(20);
-        webSettings.setSupportZoom(true);
-        webSettings.setBuiltInZoomControls(true);
-        webSettings.setDisplayZoomControls(false);
-        
-        // Disable text selection
-        webSettings.setJavaScriptEnabled(true);
-        contentWebView.setWebChromeClient(new android.webkit.WebChromeClient());
-        
-        // DISABLE text selection in WebView by setting this specific CSS
-        webSettings.setTextZoom(100);
-        contentWebView.setFocusable(true);
-        contentWebView.setFocusableInTouchMode(true);
-        
-        // Set scrollbars
-        contentWebView.setVerticalScrollBarEnabled(true);
-        contentWebView.setHorizontalScrollBarEnabled(true);
-
-        // Set up WebView client to handle page loading
-        contentWebView.setWebViewClient(new WebViewClient() {
-            @Override
-            public void onPageFinished(WebView view, String url) {
-                super.onPageFinished(view, url);
-                Log.d(TAG, "Page finished loading");
-
-                // First delay is needed to ensure DOM is fully loaded
-                new Handler().postDelayed(() -> {
-                    // Inject JavaScript to disable text selection
-                    disableTextSelection();
-                    
-                    loadingProgressBar.setVisibility(View.GONE);
-                }, 100);
-            }
-
-            @Override
-            public void onReceivedError(WebView view, WebResourceRequest request, WebResourceError error) {
-                super.onReceivedError(view, request, error);
-                loadingProgressBar.setVisibility(View.GONE);
-                Toast.makeText(BookReaderActivity.this, "Ошибка загрузки страницы: " + error.getDescription(), Toast.LENGTH_SHORT).show();
-            }
-        });
+        prefetchDepth = Math.max(0, Math.min(MAX_PREFETCH_DEPTH,
+                getSharedPreferences(PREFS_NAME, MODE_PRIVATE).getInt(KEY_PREFETCH_DEPTH, 1)));
 
         // Setup progress bar listener
         pageProgressBar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
@@ -274,7 +268,7 @@ public class BookReaderActivity extends BaseActivity {
                 
                 // Проверяем, было ли нажатие на левую или правую часть экрана
                 float x = e.getX();
-                int width = contentWebView.getWidth();
+                int width = readerContainer.getWidth();
                 
                 if (x < width * 0.2) {
                     // Нажатие на левый край - предыдущая страница
@@ -417,6 +411,11 @@ public class BookReaderActivity extends BaseActivity {
         bookId = intent.getStringExtra("id");
         bookTitle = intent.getStringExtra("title");
         savedCurrentPage = intent.getIntExtra("currentPage", 0);
+        // Страница, ещё не отправленная в базу, новее той, что пришла с экрана книги
+        Integer unsentPage = progressSync.getPendingPage(bookId);
+        if (unsentPage != null) {
+            savedCurrentPage = unsentPage;
+        }
         
         if (bookTitle != null) {
             titleText.setText(bookTitle);
@@ -454,46 +453,129 @@ public class BookReaderActivity extends BaseActivity {
     }
     
     /**
-     * Загружает содержимое книги
+     * Загружает содержимое книги.
+     * Страницы приходят порциями: сохранённая страница показывается, как только
+     * её глава разобрана, остальные главы продолжают загружаться в фоне.
      */
     private void loadBookContent(Uri fileUri) {
-        BookFileReader.readBookContent(this, fileUri, new BookFileReader.BookContentCallback() {
+        if (readerContainer.getWidth() == 0 || readerContainer.getHeight() == 0) {
+            // Объём страницы зависит от размера области чтения, поэтому ждём первой разметки
+            readerContainer.getViewTreeObserver().addOnGlobalLayoutListener(new ViewTreeObserver.OnGlobalLayoutListener() {
+                @Override
+                public void onGlobalLayout() {
+                    if (readerContainer.getWidth() == 0 || readerContainer.getHeight() == 0) {
+                        return;
+                    }
+                    readerContainer.getViewTreeObserver().removeOnGlobalLayoutListener(this);
+                    loadBookContent(fileUri);
+                }
+            });
+            return;
+        }
+        
+        // TXT и FB2 не используют возможностей HTML и показываются без WebView
+        String nativeFormat = getNativeFormat(fileUri);
+        nativeRendering = nativeFormat != null;
+        if (nativeRendering) {
+            setupNativeRenderer("fb2".equals(nativeFormat));
+        } else if (contentWebView == null) {
+            setupWebView();
+        }
+        
+        pageLayout = createPageLayout();
+        // Импорт новых книг заранее разбивает их под этот экран
+        pageLayout.remember(this);
+        pages = new PageStore();
+        if (nativePageAdapter != null) {
+            nativePageAdapter.setPages(pages);
+        }
+        bookFileUri = fileUri;
+        contentComplete = false;
+        initialPageShown = false;
+        searchIndex = null;
+        searchIndexUnavailable = false;
+        streamedTocItems = null;
+        if (resourceServer != null) {
+            resourceServer.close();
+        }
+        // Архив открывается при первом запросе ресурса, то есть только для EPUB
+        resourceServer = new EpubResourceServer(this, fileUri);
+        
+        BookFileReader.readBookContentStreaming(this, fileUri, pageLayout, new BookFileReader.BookContentStreamCallback() {
             @Override
-            public void onContentReady(List<String> loadedPages) {
+            public void onPagesAppended(int fromIndex, List<String> loadedPages) {
                 runOnUiThread(() -> {
-                    loadingProgressBar.setVisibility(View.GONE);
-                    contentWebView.setVisibility(View.VISIBLE);
+                    if (isFinishing() || isDestroyed()) {
+                        return;
+                    }
                     
-                    if (loadedPages != null && !loadedPages.isEmpty()) {
+                    if (!(loadedPages instanceof PageStore) && pages.isEmpty()) {
+                        // Страницы отображённого в память TXT читаются по требованию, не копируем их
                         pages = loadedPages;
-                        
-                        // Update page count in Supabase
-                        updatePageCountInSupabase(pages.size());
-                        
-                        // Настраиваем SeekBar
-                        pageProgressBar.setMax(pages.size() - 1);
-                        
-                        // Restore from saved position
-                        currentPage = (savedCurrentPage > 0 && savedCurrentPage < pages.size()) 
-                                     ? savedCurrentPage - 1 : 0;
-                        
-                        Log.d(TAG, "Setting initial page to: " + (currentPage + 1) + 
-                               " of " + pages.size() + " (saved: " + savedCurrentPage + ")");
-                        
-                        pageProgressBar.setProgress(currentPage);
-                        showPage(currentPage);
-                        
-                        // Теперь, когда контент загружен, генерируем оглавление
-                        generateTableOfContents(fileUri);
+                        if (nativePageAdapter != null) {
+                            nativePageAdapter.setPages(pages);
+                        }
                     } else {
+                        int appendedFrom = pages.size();
+                        pages.addAll(loadedPages);
+                        if (nativePageAdapter != null) {
+                            nativePageAdapter.notifyPagesAppended(appendedFrom, pages.size() - appendedFrom);
+                        }
+                    }
+                    pageProgressBar.setMax(pages.size() - 1);
+                    
+                    // Restore from saved position as soon as its page is available
+                    int initialPage = savedCurrentPage > 0 ? savedCurrentPage - 1 : 0;
+                    if (!initialPageShown && initialPage < pages.size()) {
+                        showInitialPage(initialPage);
+                    } else {
+                        updatePageIndicator();
+                    }
+                });
+            }
+
+            @Override
+            public void onTocReady(List<TocItem> items) {
+                runOnUiThread(() -> streamedTocItems = items);
+            }
+
+            @Override
+            public void onComplete(int totalPages) {
+                runOnUiThread(() -> {
+                    if (isFinishing() || isDestroyed()) {
+                        return;
+                    }
+                    
+                    contentComplete = true;
+                    if (pages instanceof PageStore) {
+                        ((PageStore) pages).trimToSize();
+                    }
+                    Log.d(TAG, "Book content fully loaded: " + totalPages + " pages");
+                    
+                    if (pages.isEmpty()) {
+                        loadingProgressBar.setVisibility(View.GONE);
                         Toast.makeText(BookReaderActivity.this, "Файл не содержит текста", Toast.LENGTH_LONG).show();
+                        return;
+                    }
+                    
+                    // Сохранённая страница оказалась за пределами книги
+                    if (!initialPageShown) {
+                        showInitialPage(0);
                     }
+                    
+                    // Update page count in Supabase
+                    updatePageCountInSupabase(pages.size());
+                    
+                    // Теперь, когда контент загружен, генерируем оглавление
+                    generateTableOfContents(fileUri);
                 });
             }
 
             @Override
             public void onError(String error) {
                 runOnUiThread(() -> {
+                    loadingProgressBar.setVisibility(View.GONE);
+                    
                     // More detailed error message
                     String detailedError = "Ошибка загрузки файла: " + error;
                     if (fileUri.getPath() == null) {
@@ -508,6 +590,160 @@ public class BookReaderActivity extends BaseActivity {
         });
     }
     
+    /**
+     * Создаёт WebView из ViewStub, настраивает его и загружает оболочку страниц.
+     * Вызывается только для книг, которым нужен HTML, чтобы остальные не платили за WebView.
+     */
+    private void setupWebView() {
+        contentWebView = (WebView) ((ViewStub) findViewById(R.id.contentWebViewStub)).inflate();
+        
+        // Configure WebView
+        WebSettings webSettings = contentWebView.getSettings();
+        webSettings.setJavaScriptEnabled(true);
+        webSettings.setDefaultFontSize(20);
+        webSettings.setSupportZoom(true);
+        webSettings.setBuiltInZoomControls(true);
+        webSettings.setDisplayZoomControls(false);
+        
+        // Disable text selection
+        webSettings.setJavaScriptEnabled(true);
+        contentWebView.setWebChromeClient(new android.webkit.WebChromeClient());
+        
+        // DISABLE text selection in WebView by setting this specific CSS
+        webSettings.setTextZoom(100);
+        contentWebView.setFocusable(true);
+        contentWebView.setFocusableInTouchMode(true);
+        
+        // Set scrollbars
+        contentWebView.setVerticalScrollBarEnabled(true);
+        contentWebView.setHorizontalScrollBarEnabled(true);
+
+        // Set up WebView client to handle page loading
+        contentWebView.setWebViewClient(new WebViewClient() {
+            @Override
+            public void onPageFinished(WebView view, String url) {
+                super.onPageFinished(view, url);
+                Log.d(TAG, "Page finished loading");
+                
+                if (!readerShellLoaded) {
+                    readerShellLoaded = true;
+                    if (pendingPage >= 0) {
+                        int page = pendingPage;
+                        pendingPage = -1;
+                        renderPage(page);
+                    }
+                }
+
+                // First delay is needed to ensure DOM is fully loaded
+                new Handler().postDelayed(() -> {
+                    // Inject JavaScript to disable text selection
+                    disableTextSelection();
+                    
+                    loadingProgressBar.setVisibility(View.GONE);
+                }, 100);
+            }
+
+            @Override
+            public boolean shouldOverrideUrlLoading(WebView view, WebResourceRequest request) {
+                // Переход по ссылке из книги заменил бы оболочку страниц
+                return true;
+            }
+
+            @Override
+            public WebResourceResponse shouldInterceptRequest(WebView view, WebResourceRequest request) {
+                // Ресурсы книги (epub://book/...) читаются прямо из архива
+                EpubResourceServer server = resourceServer;
+                if (server != null && EpubResourceServer.SCHEME.equals(request.getUrl().getScheme())) {
+                    return server.serve(request.getUrl());
+                }
+                return super.shouldInterceptRequest(view, request);
+            }
+
+            @Override
+            public void onReceivedError(WebView view, WebResourceRequest request, WebResourceError error) {
+                super.onReceivedError(view, request, error);
+                loadingProgressBar.setVisibility(View.GONE);
+                Toast.makeText(BookReaderActivity.this, "Ошибка загрузки страницы: " + error.getDescription(), Toast.LENGTH_SHORT).show();
+            }
+        });
+        loadReaderShell();
+    }
+    
+    /**
+     * Настраивает показ страниц в RecyclerView: одна страница на экран, листание сдвигом
+     * @param html true - страницы в HTML (FB2), false - простой текст (TXT)
+     */
+    private void setupNativeRenderer(boolean html) {
+        float density = getResources().getDisplayMetrics().density;
+        // Высота строки и отступы совпадают с теми, по которым измерен объём страницы
+        float lineHeight = html ? PageLayout.FB2_LINE_HEIGHT : PageLayout.READER_LINE_HEIGHT;
+        nativePageAdapter = new NativePageAdapter(html, READER_FONT_SIZE,
+                Math.round(READER_FONT_SIZE * lineHeight * density), Math.round(getReaderPaddingPx() * density));
+        
+        String[] colors = getThemeColors(getSharedPreferences(PREFS_NAME, MODE_PRIVATE).getString(KEY_THEME, "light"));
+        nativePageAdapter.setColors(Color.parseColor(colors[1]), Color.parseColor(colors[0]));
+        nativePageView.setBackgroundColor(Color.parseColor(colors[0]));
+        
+        nativePageView.setLayoutManager(new LinearLayoutManager(this, LinearLayoutManager.HORIZONTAL, false));
+        nativePageView.setItemAnimator(null);
+        nativePageView.setAdapter(nativePageAdapter);
+        new PagerSnapHelper().attachToRecyclerView(nativePageView);
+        
+        if (contentWebView != null) {
+            contentWebView.setVisibility(View.GONE);
+        }
+    }
+    
+    /**
+     * Формат книги, которую можно показать без WebView: "txt", "fb2" или null, если нужен HTML
+     */
+    private String getNativeFormat(Uri fileUri) {
+        String path = fileUri.getPath() != null ? fileUri.getPath().toLowerCase() : "";
+        String mimeType = "content".equals(fileUri.getScheme()) ? getContentResolver().getType(fileUri) : null;
+        if (path.endsWith(".txt") || "text/plain".equals(mimeType)) {
+            return "txt";
+        }
+        if (path.endsWith(".fb2") || "application/x-fictionbook+xml".equals(mimeType)) {
+            return "fb2";
+        }
+        return null;
+    }
+    
+    /**
+     * Параметры разбиения по текущему размеру области чтения и шрифту оболочки.
+     * Страница оболочки имеет ширину устройства, поэтому CSS-пиксели совпадают с dp.
+     */
+    private PageLayout createPageLayout() {
+        float density = getResources().getDisplayMetrics().density;
+        return PageLayout.measured(
+                Math.round(readerContainer.getWidth() / density),
+                Math.round(readerContainer.getHeight() / density),
+                READER_FONT_SIZE, getReaderPaddingPx());
+    }
+    
+    /**
+     * Отступ страницы в единицах, которые подставляются в CSS оболочки
+     */
+    private int getReaderPaddingPx() {
+        return (int) (READER_PADDING_DP * getResources().getDisplayMetrics().density);
+    }
+    
+    /**
+     * Показывает первую страницу после открытия книги
+     */
+    private void showInitialPage(int page) {
+        initialPageShown = true;
+        loadingProgressBar.setVisibility(View.GONE);
+        (nativeRendering ? nativePageView : contentWebView).setVisibility(View.VISIBLE);
+        
+        currentPage = page;
+        Log.d(TAG, "Setting initial page to: " + (currentPage + 1) + 
+               " of " + pages.size() + " (saved: " + savedCurrentPage + ")");
+        
+        pageProgressBar.setProgress(currentPage);
+        showPage(currentPage);
+    }
+    
     /**
      * Генерирует оглавление книги
      */
@@ -529,8 +765,7 @@ public class BookReaderActivity extends BaseActivity {
             tocProgressBar.setVisibility(View.VISIBLE);
         }
         
-        // Вызываем метод извлечения оглавления
-        BookFileReader.generateTableOfContents(this, fileUri, new BookFileReader.TocCallback() {
+        BookFileReader.TocCallback callback = new BookFileReader.TocCallback() {
             @Override
             public void onTocReady(List<TocItem> items) {
                 runOnUiThread(() -> {
@@ -725,7 +960,15 @@ public class BookReaderActivity extends BaseActivity {
                     Log.d(TAG, "Создан альтернативный вариант оглавления с " + tocItems.size() + " элементами");
                 });
             }
-        });
+        };
+        
+        if (streamedTocItems != null) {
+            // Оглавление пришло вместе со страницами, файл повторно не читаем
+            callback.onTocReady(streamedTocItems);
+        } else {
+            // Вызываем метод извлечения оглавления
+            BookFileReader.generateTableOfContents(this, fileUri, pageLayout, callback);
+        }
     }
 
     private void updatePageCountInSupabase(int pageCount) {
@@ -744,108 +987,15 @@ public class BookReaderActivity extends BaseActivity {
         });
     }
     
-    private void syncCurrentPageToSupabase() {
-        if (bookId == null) {
-            Log.e(TAG, "syncCurrentPageToSupabase: bookId is null");
-            return;
-        }
-
-        // Прекращаем все предыдущие отложенные синхронизации
-        if (pendingProgressSync != null) {
-            progressHandler.removeCallbacks(pendingProgressSync);
-            pendingProgressSync = null;
-        }
-
-        // Проверяем, что книга действительно открыта
-        if (currentPage < 0 || pages == null || pages.isEmpty()) {
-            Log.e(TAG, "syncCurrentPageToSupabase: Invalid state - currentPage=" + currentPage + ", pages size=" + (pages != null ? pages.size() : "null"));
+    /**
+     * Записывает текущую страницу в очередь синхронизации; в базу она уйдёт вместе с последующими перелистываниями
+     */
+    private void recordReadingProgress() {
+        // До показа сохранённой страницы currentPage ещё не отражает позицию читателя
+        if (bookId == null || !initialPageShown || pages == null || pages.isEmpty() || currentPage < 0) {
             return;
         }
-
-        // Сохраняем текущие значения для потока
-        final int pageToSync = currentPage + 1; // Преобразуем из 0-based в 1-based
-        final String bookIdToSync = bookId;
-
-        // Немедленно запускаем синхронизацию в отдельном потоке
-        new Thread(() -> {
-            try {
-                Log.d(TAG, "⏱️ Синхронизация страницы " + pageToSync + " с Supabase...");
-                SupabaseService service = new SupabaseService(BookReaderActivity.this);
-                service.forceUpdateBookPage(bookIdToSync, pageToSync);
-                Log.d(TAG, "✅ Страница " + pageToSync + " успешно синхронизирована");
-            } catch (Exception e) {
-                Log.e(TAG, "❌ Ошибка при синхронизации страницы " + pageToSync + ": " + e.getMessage());
-                
-                // Планируем повторную попытку через 3 секунды
-                progressHandler.postDelayed(() -> {
-                    try {
-                        Log.d(TAG, "🔄 Повторная попытка синхронизации страницы " + pageToSync);
-                        SupabaseService service = new SupabaseService(BookReaderActivity.this);
-                        service.forceUpdateBookPage(bookIdToSync, pageToSync);
-                        Log.d(TAG, "✅ Страница " + pageToSync + " успешно синхронизирована со второй попытки");
-                    } catch (Exception retryEx) {
-                        Log.e(TAG, "❌❌ Критическая ошибка при повторной синхронизации: " + retryEx.getMessage());
-                    }
-                }, 3000);
-            }
-        }).start();
-    }
-
-    // Проверяет соответствие текущей страницы в Supabase
-    private void verifyPageUpdateInSupabase() {
-        if (bookId == null) return;
-        
-        final int expectedPage = currentPage + 1;
-        
-        Log.d(TAG, "🔍 Проверка обновления страницы в Supabase: ожидается " + expectedPage);
-        
-        supabaseService.getBookById(bookId, new SupabaseService.BookCallback() {
-            @Override
-            public void onSuccess(Book book) {
-                if (book.getCurrentPage() != expectedPage) {
-                    Log.w(TAG, "⚠️ Проверка не удалась: страница в БД (" + book.getCurrentPage() + 
-                            ") не соответствует ожидаемой (" + expectedPage + ")");
-                    
-                    // Повторная синхронизация только если это все еще текущая страница
-                    if (currentPage + 1 == expectedPage) {
-                        synchronized (syncLock) {
-                            if (!syncInProgress) {
-                                Log.d(TAG, "🔄 Принудительное обновление страницы " + expectedPage);
-                                
-                                syncInProgress = true;
-                                
-                                supabaseService.updateBookProgress(bookId, expectedPage, new SupabaseService.BookProgressCallback() {
-                                    @Override
-                                    public void onSuccess() {
-                                        Log.d(TAG, "✓ Принудительное обновление страницы успешно");
-                                        synchronized (syncLock) {
-                                            syncInProgress = false;
-                                        }
-                }
-
-                @Override
-                public void onError(String error) {
-                                        Log.e(TAG, "❌ Ошибка принудительного обновления: " + error);
-                                        synchronized (syncLock) {
-                                            syncInProgress = false;
-                                        }
-                                    }
-                                });
-                            }
-                        }
-                    } else {
-                        Log.d(TAG, "Пропуск повторной синхронизации, т.к. пользователь перешел на другую страницу");
-                    }
-                } else {
-                    Log.d(TAG, "✓ Подтверждено: страница " + expectedPage + " корректно сохранена в Supabase");
-                }
-            }
-            
-            @Override
-            public void onError(String error) {
-                Log.e(TAG, "Ошибка проверки обновления страницы: " + error);
-            }
-        });
+        progressSync.recordPage(bookId, currentPage + 1); // Преобразуем из 0-based в 1-based
     }
 
     private void showPage(int pageNumber) {
@@ -857,63 +1007,54 @@ public class BookReaderActivity extends BaseActivity {
         currentPage = pageNumber;
         
         // Проверяем, достигли ли мы конца книги
-        if (currentPage == pages.size() - 1) {
+        if (contentComplete && currentPage == pages.size() - 1) {
             showBookFinishedPrompt();
         }
         
-        String content = pages.get(pageNumber);
+        renderPage(pageNumber);
+        updatePageIndicator();
         
-        // Если у нас есть активный поиск, подсвечиваем результаты
-        if (!lastSearchQuery.isEmpty()) {
-            content = BookFileReader.highlightSearchResults(content, lastSearchQuery);
-        }
-
+        // Update the SeekBar position
+        pageProgressBar.setProgress(currentPage);
+        
+        Log.d(TAG, "📖 Changed to page " + (currentPage + 1));
+        recordReadingProgress();
+    }
+    
+    /**
+     * Загружает документ-оболочку читалки: стили с CSS-переменными темы и контейнер страницы.
+     * Загружается один раз; при смене страницы меняется только содержимое контейнера.
+     */
+    private void loadReaderShell() {
         // Set WebView scale to ensure content fits properly
         contentWebView.setInitialScale(100);
         
         // Calculate content padding
-        int paddingDp = 8; // reduced from 16dp
-        int paddingPx = (int) (paddingDp * getResources().getDisplayMetrics().density);
-        
-        // Get current theme
-        SharedPreferences preferences = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
-        String currentTheme = preferences.getString(KEY_THEME, "light");
+        int paddingPx = getReaderPaddingPx();
         
-        // Set theme colors based on preference
-        String backgroundColor = "#FFFFFF"; // Default light
-        String textColor = "#333333";
+        String[] colors = getThemeColors(getSharedPreferences(PREFS_NAME, MODE_PRIVATE).getString(KEY_THEME, "light"));
         
-        switch (currentTheme) {
-            case "dark":
-                backgroundColor = "#1E1E1E";
-                textColor = "#E0E0E0";
-                break;
-            case "sepia":
-                backgroundColor = "#F5E6D3";
-                textColor = "#4A3C2C";
-                break;
-            case "light":
-            default:
-                backgroundColor = "#FFFFFF";
-                textColor = "#333333";
-                break;
-        }
-
-        String htmlContent = "<html><head>" +
+        String shell = "<html><head>" +
             "<meta name=\"viewport\" content=\"width=device-width, initial-scale=1.0, maximum-scale=3.0, user-scalable=1\">" +
             "<style>" +
+            ":root { " +
+            "   --reader-background: " + colors[0] + "; " +
+            "   --reader-text: " + colors[1] + "; " +
+            "   --reader-font-size: " + READER_FONT_SIZE + "px; " +
+            "   --reader-padding: " + paddingPx + "px; " +
+            "}" +
             "body { " +
             "   font-family: sans-serif; " +
-            "   font-size: 40px; " +
+            "   font-size: var(--reader-font-size); " +
             "   line-height: 1.6; " +
-            "   padding: " + paddingPx + "px; " +
+            "   padding: var(--reader-padding); " +
             "   margin: 0; " +
             "   text-align: justify; " +
             "   hyphens: auto; " +
             "   word-wrap: break-word; " +
             "   max-width: 100%; " +
-            "   background-color: " + backgroundColor + "; " +
-            "   color: " + textColor + "; " +
+            "   background-color: var(--reader-background); " +
+            "   color: var(--reader-text); " +
             "   -webkit-user-select: text !important; " +
             "   user-select: text !important; " +
             "   -webkit-touch-callout: default !important; " +
@@ -926,39 +1067,246 @@ public class BookReaderActivity extends BaseActivity {
             "h1, h2, h3 { " +
             "   text-align: center; " +
             "   margin: 12px 0; " +
-            "   font-size: 40px; " +
-            "   color: " + textColor + "; " +
+            "   font-size: var(--reader-font-size); " +
+            "   color: var(--reader-text); " +
             "}" +
             "p { " +
             "   margin: 8px 0; " +
             "   text-align: justify; " +
             "   text-justify: inter-word; " +
             "   max-width: 100%; " +
-            "   font-size: 40px; " +
-            "   color: " + textColor + "; " +
+            "   font-size: var(--reader-font-size); " +
+            "   color: var(--reader-text); " +
             "}" +
             "img { max-width: 100%; height: auto; }" +
             "span.highlight { background-color: yellow; color: black; }" +
+            // Скрытый буфер свёрстан с той же шириной, что и страница, но не виден и не прокручивается
+            ".reader-buffer { " +
+            "   position: absolute; left: 0; right: 0; top: 0; " +
+            "   padding: 0 var(--reader-padding); " +
+            "   height: 0; overflow: hidden; visibility: hidden; pointer-events: none; " +
+            "}" +
             "</style>" +
-            "</head><body>" + content + "</body></html>";
-
-        contentWebView.loadDataWithBaseURL(null, htmlContent, "text/html", "UTF-8", null);
-        updatePageIndicator();
+            "<script>" +
+            "var current = null, currentIndex = -1, buffers = {};" +
+            "function createPage() {" +
+            "   var el = document.createElement('div');" +
+            "   el.className = 'reader-buffer';" +
+            "   document.body.appendChild(el);" +
+            "   return el;" +
+            "}" +
+            // Показанная страница становится видимой, прежняя уходит в буфер
+            "function activate(el, index) {" +
+            "   if (current && current !== el) {" +
+            "       current.removeAttribute('id');" +
+            "       current.className = 'reader-buffer';" +
+            "       if (buffers[currentIndex] && buffers[currentIndex] !== current) buffers[currentIndex].remove();" +
+            "       buffers[currentIndex] = current;" +
+            "   }" +
+            "   delete buffers[index];" +
+            "   el.className = '';" +
+            "   el.id = 'page';" +
+            "   current = el;" +
+            "   currentIndex = index;" +
+            "   window.scrollTo(0, 0);" +
+            "}" +
+            "function showPageContent(html, index) {" +
+            "   if (current && index === currentIndex) {" +
+            "       current.innerHTML = html;" +
+            "       window.scrollTo(0, 0);" +
+            "       return;" +
+            "   }" +
+            "   var el = buffers[index] || createPage();" +
+            "   el.innerHTML = html;" +
+            "   activate(el, index);" +
+            "}" +
+            "function showBufferedPage(index) {" +
+            "   if (buffers[index]) activate(buffers[index], index);" +
+            "}" +
+            "function prefetchPage(index, html) {" +
+            "   if (index === currentIndex) return;" +
+            "   var el = buffers[index] || createPage();" +
+            "   el.innerHTML = html;" +
+            "   buffers[index] = el;" +
+            "}" +
+            "function trimBuffers(from, to) {" +
+            "   for (var key in buffers) {" +
+            "       if (+key < from || +key > to) { buffers[key].remove(); delete buffers[key]; }" +
+            "   }" +
+            "}" +
+            "function setReaderStyle(name, value) {" +
+            "   document.documentElement.style.setProperty(name, value);" +
+            "}" +
+            "</script>" +
+            "</head><body></body></html>";
         
-        // Apply text selection settings with a delay
-        new Handler().postDelayed(() -> {
-            // Disable text selection on this page
-            disableTextSelection();
-        }, 500);
+        readerShellLoaded = false;
+        contentWebView.loadDataWithBaseURL(EpubResourceServer.BASE_URL, shell, "text/html", "UTF-8", null);
+    }
+    
+    /**
+     * Показывает страницу в оболочке без перезагрузки документа.
+     * Заранее подготовленная страница просто делается видимой, остальные подставляются из HTML.
+     */
+    private void renderPage(int page) {
+        if (nativeRendering) {
+            showNativePage(page);
+            return;
+        }
+        if (!readerShellLoaded) {
+            pendingPage = page;
+            return;
+        }
         
-        // Update the SeekBar position
-        pageProgressBar.setProgress(currentPage);
+        if (page != displayedPage && bufferedPages.remove(page)) {
+            contentWebView.evaluateJavascript("showBufferedPage(" + page + ");", null);
+        } else {
+            String content = highlightPage(pages.get(page), page, searchHits, lastSearchQuery);
+            contentWebView.evaluateJavascript("showPageContent(" + JSONObject.quote(content) + ", " + page + ");", null);
+        }
         
-        // Log the page change before Supabase update
-        Log.d(TAG, "📖 Changed to page " + (currentPage + 1) + " - updating Supabase...");
+        // Прежняя страница остаётся в буфере оболочки и пригодится при возврате
+        if (displayedPage >= 0 && displayedPage != page && !displayedPageStale) {
+            bufferedPages.add(displayedPage);
+        }
+        displayedPage = page;
+        displayedPageStale = false;
+        schedulePrefetch(page);
+    }
+    
+    /**
+     * Показывает страницу в RecyclerView: соседняя страница въезжает сдвигом, дальняя - сразу
+     */
+    private void showNativePage(int page) {
+        if (displayedPage >= 0 && Math.abs(page - displayedPage) == 1) {
+            nativePageView.smoothScrollToPosition(page);
+        } else {
+            nativePageView.scrollToPosition(page);
+        }
+        displayedPage = page;
+        nativePageAdapter.prebuildAround(page, prefetchDepth, getPrefetchExecutor());
+    }
+    
+    /**
+     * Готовит соседние страницы в скрытых буферах оболочки.
+     * Тексты страниц берутся в главном потоке (PageStore дополняется в нём же),
+     * подсветка поиска и экранирование для JavaScript выполняются в фоне.
+     */
+    private void schedulePrefetch(int center) {
+        int from = Math.max(0, center - prefetchDepth);
+        int to = Math.min(pages.size() - 1, center + prefetchDepth);
+        
+        // Буферы вне окна вокруг текущей страницы больше не нужны
+        Iterator<Integer> iterator = bufferedPages.iterator();
+        while (iterator.hasNext()) {
+            int page = iterator.next();
+            if (page < from || page > to) {
+                iterator.remove();
+            }
+        }
+        contentWebView.evaluateJavascript("trimBuffers(" + from + ", " + to + ");", null);
+        
+        // Сначала следующая страница, затем предыдущая и так далее
+        List<Integer> targets = new ArrayList<>();
+        List<String> contents = new ArrayList<>();
+        List<List<SearchIndex.Hit>> targetHits = new ArrayList<>();
+        for (int distance = 1; distance <= prefetchDepth; distance++) {
+            for (int page : new int[] {center + distance, center - distance}) {
+                if (page >= from && page <= to && !bufferedPages.contains(page)) {
+                    targets.add(page);
+                    contents.add(pages.get(page));
+                    targetHits.add(getHitsOnPage(page));
+                }
+            }
+        }
+        if (targets.isEmpty()) {
+            return;
+        }
         
-        // Update page progress in Supabase - do this immediately
-        syncCurrentPageToSupabase();
+        // Подсветка по запросу нужна только для поиска без индекса (как в renderPage)
+        String query = searchHits.isEmpty() ? lastSearchQuery : "";
+        int generation = ++prefetchGeneration;
+        getPrefetchExecutor().execute(() -> {
+            for (int i = 0; i < targets.size(); i++) {
+                if (generation != prefetchGeneration) {
+                    return; // Пользователь уже перелистнул дальше
+                }
+                int page = targets.get(i);
+                String script = "prefetchPage(" + page + ", " + JSONObject.quote(
+                        highlightPage(contents.get(i), page, targetHits.get(i), query)) + ");";
+                runOnUiThread(() -> {
+                    if (generation != prefetchGeneration || isDestroyed() || page == displayedPage ||
+                            bufferedPages.contains(page)) {
+                        return;
+                    }
+                    contentWebView.evaluateJavascript(script, null);
+                    bufferedPages.add(page);
+                });
+            }
+        });
+    }
+    
+    /**
+     * Сбрасывает подготовленные страницы после изменения подсветки поиска
+     */
+    private void invalidatePrefetch() {
+        if (nativePageAdapter != null) {
+            nativePageAdapter.setHighlightQuery(lastSearchQuery);
+        }
+        prefetchGeneration++;
+        bufferedPages.clear();
+        displayedPageStale = true;
+        if (readerShellLoaded) {
+            contentWebView.evaluateJavascript("trimBuffers(1, 0);", null);
+        }
+    }
+    
+    private synchronized ExecutorService getPrefetchExecutor() {
+        if (prefetchExecutor == null) {
+            prefetchExecutor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "ReaderPrefetch");
+                thread.setPriority(Thread.NORM_PRIORITY - 1); // Не мешать показу текущей страницы
+                return thread;
+            });
+        }
+        return prefetchExecutor;
+    }
+    
+    private List<SearchIndex.Hit> getHitsOnPage(int page) {
+        List<SearchIndex.Hit> hits = new ArrayList<>();
+        for (SearchIndex.Hit hit : searchHits) {
+            if (hit.page == page) {
+                hits.add(hit);
+            }
+        }
+        return hits;
+    }
+    
+    /**
+     * Подсвечивает результаты поиска на странице: по вхождениям из индекса, а без них - по запросу
+     */
+    private static String highlightPage(String content, int page, List<SearchIndex.Hit> hits, String query) {
+        if (!hits.isEmpty()) {
+            return BookFileReader.highlightSearchHits(content, page, hits);
+        } else if (!query.isEmpty()) {
+            return BookFileReader.highlightSearchResults(content, query);
+        }
+        return content;
+    }
+    
+    /**
+     * Цвета фона и текста для темы читалки
+     */
+    private static String[] getThemeColors(String theme) {
+        switch (theme) {
+            case "dark":
+                return new String[] {"#1E1E1E", "#E0E0E0"};
+            case "sepia":
+                return new String[] {"#F5E6D3", "#4A3C2C"};
+            case "light":
+            default:
+                return new String[] {"#FFFFFF", "#333333"};
+        }
     }
     
     /**
@@ -978,20 +1326,92 @@ public class BookReaderActivity extends BaseActivity {
         }
         
         lastSearchQuery = query;
-        searchResults = BookFileReader.searchInBook(pages, query);
+        
+        // Новый запрос сразу останавливает предыдущий поиск
+        if (activeSearch != null) {
+            activeSearch.cancel();
+        }
+        
+        // Индекс строится один раз после полной загрузки книги, до этого страницы просматриваются по очереди
+        if (searchIndex == null && contentComplete && !searchIndexUnavailable) {
+            loadSearchIndex();
+        }
+        
+        searchResults = new ArrayList<>();
+        searchHits = new ArrayList<>();
+        invalidatePrefetch();
         currentSearchIndex = -1;
+        btnPrevResult.setEnabled(false);
+        btnNextResult.setEnabled(false);
+        searchResultsCount.setText(searchIndexLoading ? "Индексация книги..." : "Поиск...");
         
-        if (searchResults.isEmpty()) {
-            searchResultsCount.setText("Совпадений не найдено");
-            btnPrevResult.setEnabled(false);
-            btnNextResult.setEnabled(false);
-        } else {
-            searchResultsCount.setText("Найдено: " + searchResults.size());
-            btnPrevResult.setEnabled(true);
-            btnNextResult.setEnabled(true);
-            // Переходим к первому результату
-            navigateToNextSearchResult();
+        activeSearch = BookFileReader.searchInBookAsync(pages, searchIndex, currentPage, query,
+                new BookFileReader.SearchCallback() {
+            @Override
+            public void onResults(List<Integer> foundPages, List<SearchIndex.Hit> hits) {
+                if (isFinishing() || isDestroyed()) {
+                    return;
+                }
+                boolean first = searchResults.isEmpty();
+                searchResults.addAll(foundPages);
+                searchHits.addAll(hits);
+                invalidatePrefetch();
+                btnPrevResult.setEnabled(true);
+                btnNextResult.setEnabled(true);
+                
+                if (first) {
+                    // Переходим к первому результату, не дожидаясь конца поиска
+                    navigateToNextSearchResult();
+                } else {
+                    searchResultsCount.setText("Результат " + (currentSearchIndex + 1) + " из " + searchResults.size());
+                }
+            }
+
+            @Override
+            public void onComplete(int totalPages) {
+                if (isFinishing() || isDestroyed()) {
+                    return;
+                }
+                if (searchResults.isEmpty()) {
+                    searchResultsCount.setText("Совпадений не найдено");
+                } else if (currentSearchIndex < 0) {
+                    searchResultsCount.setText("Найдено: " + searchResults.size());
+                }
+            }
+        });
+    }
+    
+    /**
+     * Загружает или строит поисковый индекс книги в фоне и повторяет последний поиск по индексу
+     */
+    private void loadSearchIndex() {
+        if (searchIndexLoading || bookFileUri == null) {
+            return;
         }
+        searchIndexLoading = true;
+        
+        BookFileReader.loadSearchIndex(this, bookFileUri, pageLayout, pages, new BookFileReader.SearchIndexCallback() {
+            @Override
+            public void onIndexReady(SearchIndex index) {
+                runOnUiThread(() -> {
+                    searchIndexLoading = false;
+                    searchIndex = index;
+                    if (!isFinishing() && !isDestroyed() && !lastSearchQuery.isEmpty()) {
+                        performSearch(lastSearchQuery);
+                    }
+                });
+            }
+
+            @Override
+            public void onError(String error) {
+                runOnUiThread(() -> {
+                    Log.w(TAG, "Search index unavailable: " + error);
+                    searchIndexLoading = false;
+                    searchIndexUnavailable = true;
+                    // Текущий поиск уже идёт по страницам, повторять его не нужно
+                });
+            }
+        });
     }
     
     /**
@@ -999,7 +1419,13 @@ public class BookReaderActivity extends BaseActivity {
      */
     private void clearSearch() {
         lastSearchQuery = "";
+        if (activeSearch != null) {
+            activeSearch.cancel();
+            activeSearch = null;
+        }
         searchResults.clear();
+        searchHits = new ArrayList<>();
+        invalidatePrefetch();
         currentSearchIndex = -1;
         searchResultsCount.setText("Совпадений не найдено");
         btnPrevResult.setEnabled(false);
@@ -1157,7 +1583,15 @@ public class BookReaderActivity extends BaseActivity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        saveFinalPageState();
+        if (activeSearch != null) {
+            activeSearch.cancel();
+        }
+        if (resourceServer != null) {
+            resourceServer.close();
+        }
+        if (prefetchExecutor != null) {
+            prefetchExecutor.shutdownNow();
+        }
     }
 
     @Override
@@ -1191,79 +1625,24 @@ public class BookReaderActivity extends BaseActivity {
             return;
         }
         
-        // Иначе закрываем активность
-        saveFinalPageState();
-            finish();
+        // Иначе закрываем активность (прогресс отправит onPause)
+        finish();
     }
 
     @Override
     protected void onPause() {
         super.onPause();
-        saveFinalPageState();
+        // Уходя с экрана, сразу отправляем последнюю страницу, не дожидаясь таймера
+        recordReadingProgress();
+        progressSync.flush();
     }
-    
-    /**
-     * Ensures the current page is saved to Supabase when leaving the activity
-     */
-    private void saveFinalPageState() {
-        if (bookId == null) {
-            Log.e(TAG, "Cannot save final state: bookId is null");
-            return;
-        }
 
-        // Получаем актуальные значения
-        int finalCurrentPage = currentPage + 1; // Преобразуем из 0-based в 1-based
-        int finalPageCount = pages.size();
-        
-        if (finalCurrentPage <= 0 || finalPageCount <= 0) {
-            Log.e(TAG, "Invalid page values: current=" + finalCurrentPage + ", total=" + finalPageCount);
-            return;
-        }
-
-        Log.d(TAG, "Saving final page state: current=" + finalCurrentPage + ", total=" + finalPageCount);
-        
-        // Используем принудительную синхронизацию
-        SupabaseService supabaseService = new SupabaseService(this);
-        
-        // Синхронизируем данные в отдельном потоке
-        new Thread(() -> {
-            try {
-                // Принудительно обновляем текущую страницу
-                supabaseService.forceUpdateBookPage(bookId, finalCurrentPage);
-                
-                // Затем обновляем общее количество страниц (если оно изменилось)
-                if (pages.size() != finalPageCount) {
-                    supabaseService.updateBookPageCount(bookId, finalPageCount, null);
-                }
-                
-                Log.d(TAG, "✅ Финальное состояние успешно сохранено: страница " + finalCurrentPage);
-            } catch (Exception e) {
-                Log.e(TAG, "❌ Ошибка при сохранении финального состояния: " + e.getMessage(), e);
-            }
-        }).start();
-    }
-
-    @Override
-    protected void onStop() {
-        super.onStop();
-        // Добавляем сохранение состояния при onStop для большей надежности
-        saveFinalPageState();
-    }
-    
-    // Верифицируем при загрузке
     @Override
     protected void onResume() {
         super.onResume();
         
         // Apply theme to UI components
         applyThemeToUI();
-        
-
-        
-        // Проверяем, соответствует ли текущая страница сохраненной в базе
-        if (bookId != null && currentPage > 0) {
-            supabaseService.verifyAndUpdateBookData(bookId, currentPage);
-        }
     }
 
     @Override
@@ -1285,13 +1664,20 @@ public class BookReaderActivity extends BaseActivity {
                 .apply();
         
         applyBookTheme(theme);
-        recreate();
     }
     
     private void applyBookTheme(String theme) {
-        // Apply theme to WebView content
-        if (contentWebView != null && pages != null && currentPage >= 0 && currentPage < pages.size()) {
-            showPage(currentPage);
+        if (nativePageAdapter != null) {
+            String[] colors = getThemeColors(theme);
+            nativePageAdapter.setColors(Color.parseColor(colors[1]), Color.parseColor(colors[0]));
+            nativePageView.setBackgroundColor(Color.parseColor(colors[0]));
+        }
+        // Меняем CSS-переменные оболочки, страница при этом не перезагружается
+        if (contentWebView != null && readerShellLoaded) {
+            String[] colors = getThemeColors(theme);
+            contentWebView.evaluateJavascript(
+                    "setReaderStyle('--reader-background', '" + colors[0] + "');" +
+                    "setReaderStyle('--reader-text', '" + colors[1] + "');", null);
         }
     }
 
@@ -1358,8 +1744,10 @@ public class BookReaderActivity extends BaseActivity {
      * Clears the text selection in the WebView
      */
     private void clearTextSelection() {
-        String js = "window.getSelection().removeAllRanges();";
-        contentWebView.evaluateJavascript(js, null);
+        if (contentWebView != null) {
+            String js = "window.getSelection().removeAllRanges();";
+            contentWebView.evaluateJavascript(js, null);
+        }
         isTextSelected = false;
         selectedText = "";
     }
@@ -1494,7 +1882,7 @@ public class BookReaderActivity extends BaseActivity {
      * Adds JavaScript to highlight the saved quote in the text
      */
     private void highlightQuote(String quoteText) {
-        if (quoteText == null || quoteText.isEmpty()) return;
+        if (quoteText == null || quoteText.isEmpty() || contentWebView == null) return;
 
         try {
             // Escape special characters for JavaScript
@@ -1509,12 +1897,13 @@ public class BookReaderActivity extends BaseActivity {
             // More robust highlighting script
             String js =
                     "function highlightText(text) {" +
-                            "  var bodyHTML = document.body.innerHTML;" +
+                            "  var page = document.getElementById('page');" +
+                            "  var bodyHTML = page.innerHTML;" +
                             "  var regex = new RegExp(text.replace(/[.*+?^${}()|[\\]\\\\]/g, '\\\\$&'), 'gi');" +
                             "  var highlightedHTML = bodyHTML.replace(regex, function(match) {" +
                             "    return '<span class=\"highlight-quote\" style=\"background-color: yellow;\">' + match + '</span>';" +
                             "  });" +
-                            "  document.body.innerHTML = highlightedHTML;" +
+                            "  page.innerHTML = highlightedHTML;" +
                             "}" +
                             "highlightText('" + escapedText + "');";
 
@@ -1580,8 +1969,14 @@ public class BookReaderActivity extends BaseActivity {
         AlertDialog.Builder builder = new AlertDialog.Builder(this);
         builder.setTitle("Настройки чтения");
         
-        String[] themes = {"Светлая тема", "Темная тема", "Сепия"};
-        builder.setItems(themes, (dialog, which) -> {
+        String[] items = {"Светлая тема", "Темная тема", "Сепия",
+                "Подготовка страниц: " + getPrefetchDepthLabel(prefetchDepth)};
+        builder.setItems(items, (dialog, which) -> {
+            if (which == 3) {
+                dialog.dismiss();
+                showPrefetchDepthDialog();
+                return;
+            }
             String theme;
             switch (which) {
                 case 0:
@@ -1603,4 +1998,42 @@ public class BookReaderActivity extends BaseActivity {
         
         builder.show();
     }
+
+    /**
+     * Выбор числа соседних страниц, которые готовятся заранее (больше - плавнее листание, но больше памяти)
+     */
+    private void showPrefetchDepthDialog() {
+        String[] options = new String[MAX_PREFETCH_DEPTH + 1];
+        for (int depth = 0; depth <= MAX_PREFETCH_DEPTH; depth++) {
+            options[depth] = getPrefetchDepthLabel(depth);
+        }
+        new AlertDialog.Builder(this)
+                .setTitle("Подготовка страниц заранее")
+                .setSingleChoiceItems(options, prefetchDepth, (dialog, which) -> {
+                    setPrefetchDepth(which);
+                    dialog.dismiss();
+                })
+                .show();
+    }
+
+    private static String getPrefetchDepthLabel(int depth) {
+        return depth == 0 ? "выключена" : "по " + depth + " с каждой стороны";
+    }
+
+    private void setPrefetchDepth(int depth) {
+        prefetchDepth = depth;
+        getSharedPreferences(PREFS_NAME, MODE_PRIVATE).edit()
+                .putInt(KEY_PREFETCH_DEPTH, depth)
+                .apply();
+
+        // Окно подготовленных страниц пересчитывается сразу, лишние буферы освобождаются
+        if (!initialPageShown || pages == null || pages.isEmpty()) {
+            return;
+        }
+        if (nativeRendering) {
+            nativePageAdapter.prebuildAround(currentPage, prefetchDepth, getPrefetchExecutor());
+        } else if (readerShellLoaded) {
+            schedulePrefetch(currentPage);
+        }
+    }
 }
\ No newline at end of file
@@ -63,7 +63,7 @@ public class EditBookActivity extends AppCompatActivity {
         cancelButton = findViewById(R.id.cancelButton);
 
         // Initialize Supabase service
-        supabaseService = new SupabaseService(this);
+        supabaseService = SupabaseService.getInstance(this);
 
         // Initialize date formatters
         displayDateFormat = new SimpleDateFormat("dd.MM.yyyy", Locale.getDefault());
@@ -326,12 +326,4 @@ public class EditBookActivity extends AppCompatActivity {
             }
         });
     }
-
-    @Override
-    protected void onDestroy() {
-        super.onDestroy();
-        if (supabaseService != null) {
-            supabaseService.shutdown();
-        }
-    }
 } 
\ No newline at end of file
@@ -91,7 +91,7 @@ public class HomeFragment extends Fragment {
         chartViewPager = view.findViewById(R.id.chartViewPager);
         yearIndicatorContainer = view.findViewById(R.id.yearIndicatorContainer);
 
-        supabaseService = new SupabaseService(requireContext());
+        supabaseService = SupabaseService.getInstance(requireContext());
 
         // Инициализация ланчера для запроса разрешений
         permissionLauncher = registerForActivityResult(
@@ -529,18 +529,11 @@ public class HomeFragment extends Fragment {
             yearlyStatsText.setText("Загрузка статистики...");
         }
         
-        // Получаем все книги пользователя из Supabase и фильтруем по статусу "Прочитано"
-        supabaseService.getAllUserBooks(new SupabaseService.BooksLoadCallback() {
+        // Получаем из Supabase только книги со статусом "Прочитано" и только нужные статистике поля
+        supabaseService.getFinishedBooks(new SupabaseService.BooksLoadCallback() {
             @Override
-            public void onSuccess(List<Book> allBooks) {
-                // Фильтруем книги со статусом "Прочитано"
-                List<Book> finishedBooks = new ArrayList<>();
-                for (Book book : allBooks) {
-                    if ("Прочитано".equals(book.getStatus())) {
-                        finishedBooks.add(book);
-                    }
-                }
-                
+            public void onSuccess(List<Book> finishedBooks) {
+
                 Log.d(TAG, "Found " + finishedBooks.size() + " books with 'Прочитано' status from Supabase");
                 
                 // Создаем список доступных годов
@@ -4,8 +4,11 @@ import android.app.AlertDialog;
 import android.app.Activity;
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.text.Editable;
 import android.text.TextWatcher;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -14,6 +17,7 @@ import android.widget.EditText;
 import android.widget.FrameLayout;
 import android.widget.ImageView;
 import android.widget.LinearLayout;
+import android.widget.ProgressBar;
 import android.widget.TextView;
 import android.widget.Toast;
 
@@ -22,24 +26,88 @@ import androidx.fragment.app.Fragment;
 import androidx.recyclerview.widget.GridLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
+import com.example.bookworm.services.BookImportPipeline;
 import com.example.bookworm.services.SupabaseService;
 import com.squareup.picasso.Callback;
 import com.squareup.picasso.Picasso;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class LibraryFragment extends Fragment {
+    private static final String TAG = "LibraryFragment";
+    private static final int PAGE_SIZE = 60;
+    private static final int PREFETCH_ROWS = 4; // Следующая страница запрашивается за столько рядов до конца сетки
+    private static final int SPAN_COUNT = 3;
+    private static final long SEARCH_DELAY_MS = 300;
+    // После ошибки загрузки страница не запрашивается повторно раньше этой паузы (удваивается до максимума)
+    private static final long PAGE_RETRY_DELAY_MS = 2000;
+    private static final long MAX_PAGE_RETRY_DELAY_MS = 60000;
+
     private RecyclerView booksRecyclerView;
+    private View pageErrorBar;
+    private TextView pageErrorText;
     private BookAdapter bookAdapter;
     private SupabaseService supabaseService;
-    private List<Book> allBooks = new ArrayList<>();
     private EditText searchEditText;
     private String currentSortCriteria = "title";
     private boolean isAscending = true;
     private String selectedStatus = null;
+    private String searchQuery = "";
+    // Постраничная загрузка: курсор следующей страницы и номер запроса, чтобы отбросить ответы на старую сортировку
+    private SupabaseService.BookCursor nextCursor = null;
+    private boolean hasMorePages = false;
+    private boolean isLoadingPage = false;
+    private int queryGeneration = 0;
+    private long pageRetryDelay = 0; // 0 - ошибок не было
+    private long nextPageAttemptAt = 0;
+    private final Handler searchHandler = new Handler(Looper.getMainLooper());
+    private final Runnable searchRunnable = this::loadBooks;
+    // Импортируемая книга сразу появляется в сетке с ходом импорта на карточке
+    private final BookImportPipeline.ImportListener importListener = new BookImportPipeline.ImportListener() {
+        @Override
+        public void onStageCompleted(String bookId, int stage, int completed) {
+            if (!isAdded()) {
+                return;
+            }
+            BookImportPipeline.ImportProgress progress = completed < BookImportPipeline.STAGE_COUNT
+                    ? BookImportPipeline.getInstance(requireContext()).getImport(bookId) : null;
+            bookAdapter.setImportProgress(bookId, progress);
+            if (progress != null && !progress.isSaved() && isUnfiltered() && bookAdapter.indexOf(bookId) == -1) {
+                bookAdapter.insertBook(0, progress.book);
+            }
+            if (stage == BookImportPipeline.STAGE_SAVE) {
+                insertImportedBook(bookId);
+            }
+        }
+
+        @Override
+        public void onImportFailed(String bookId, String error, boolean willRetry) {
+            if (!isAdded()) {
+                return;
+            }
+            if (willRetry) {
+                // Импорт повторится сам, на карточке показывается ожидание
+                bookAdapter.setImportProgress(bookId,
+                        BookImportPipeline.getInstance(requireContext()).getImport(bookId));
+                return;
+            }
+            // Остановленный импорт остаётся в сетке: пользователь может повторить или удалить его
+            BookImportPipeline.ImportProgress progress =
+                    BookImportPipeline.getInstance(requireContext()).getImport(bookId);
+            bookAdapter.setImportProgress(bookId, progress);
+            if (progress != null && isUnfiltered() && bookAdapter.indexOf(bookId) == -1) {
+                bookAdapter.insertBook(0, progress.book);
+            }
+            if (error.contains("duplicate key value") && error.contains("unique_book_per_user")) {
+                Toast.makeText(requireContext(), "Книга уже добавлена в вашу библиотеку", Toast.LENGTH_LONG).show();
+            } else {
+                Toast.makeText(requireContext(), "Ошибка при добавлении книги: " + error, Toast.LENGTH_LONG).show();
+            }
+        }
+    };
 
     // Sort buttons
     private Button sortTitleBtn;
@@ -53,6 +121,9 @@ public class LibraryFragment extends Fragment {
         View view = inflater.inflate(R.layout.fragment_library_enhanced, container, false);
 
         booksRecyclerView = view.findViewById(R.id.books_recycler_view);
+        pageErrorBar = view.findViewById(R.id.page_error_bar);
+        pageErrorText = view.findViewById(R.id.page_error_text);
+        view.findViewById(R.id.page_retry_btn).setOnClickListener(v -> retryPage());
         searchEditText = view.findViewById(R.id.search_edit_text);
         sortTitleBtn = view.findViewById(R.id.sort_title_btn);
         sortAuthorBtn = view.findViewById(R.id.sort_author_btn);
@@ -63,7 +134,8 @@ public class LibraryFragment extends Fragment {
         setupSearch();
         setupSortButtons();
 
-        supabaseService = new SupabaseService(requireContext());
+        supabaseService = SupabaseService.getInstance(requireContext());
+        BookImportPipeline.getInstance(requireContext()).addListener(importListener);
         loadBooks();
 
         return view;
@@ -79,7 +151,7 @@ public class LibraryFragment extends Fragment {
             }
             selectedStatus = null;
             updateSortButtonStates();
-            sortBooks();
+            loadBooks();
         });
 
         sortAuthorBtn.setOnClickListener(v -> {
@@ -91,7 +163,7 @@ public class LibraryFragment extends Fragment {
             }
             selectedStatus = null;
             updateSortButtonStates();
-            sortBooks();
+            loadBooks();
         });
 
         sortStatusBtn.setOnClickListener(v -> {
@@ -102,13 +174,13 @@ public class LibraryFragment extends Fragment {
                     selectedStatus = statuses[which];
                     currentSortCriteria = "status";
                     updateSortButtonStates();
-                    sortBooks();
+                    loadBooks();
                 })
                 .setNegativeButton("Показать все", (dialog, which) -> {
                     selectedStatus = null;
                     currentSortCriteria = "title";
                     updateSortButtonStates();
-                    sortBooks();
+                    loadBooks();
                 })
                 .show();
         });
@@ -122,7 +194,7 @@ public class LibraryFragment extends Fragment {
             }
             selectedStatus = null;
             updateSortButtonStates();
-            sortBooks();
+            loadBooks();
         });
 
         updateSortButtonStates();
@@ -155,10 +227,19 @@ public class LibraryFragment extends Fragment {
     }
 
     private void setupRecyclerView() {
-        int spanCount = 3; // 3 columns in grid
-        booksRecyclerView.setLayoutManager(new GridLayoutManager(getContext(), spanCount));
+        GridLayoutManager layoutManager = new GridLayoutManager(getContext(), SPAN_COUNT);
+        booksRecyclerView.setLayoutManager(layoutManager);
         bookAdapter = new BookAdapter(new ArrayList<>());
         booksRecyclerView.setAdapter(bookAdapter);
+        booksRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                int lastVisible = layoutManager.findLastVisibleItemPosition();
+                if (lastVisible >= bookAdapter.getItemCount() - PREFETCH_ROWS * SPAN_COUNT) {
+                    loadNextPage();
+                }
+            }
+        });
     }
 
     private void setupSearch() {
@@ -176,87 +257,190 @@ public class LibraryFragment extends Fragment {
         });
     }
 
-    private void sortBooks() {
-        if (allBooks == null || allBooks.isEmpty()) return;
+    /**
+     * Загружает библиотеку заново с первой страницы: сортировка, фильтр по статусу
+     * и поиск выполняются на сервере
+     */
+    private void loadBooks() {
+        searchHandler.removeCallbacks(searchRunnable);
+        queryGeneration++;
+        nextCursor = null;
+        hasMorePages = true;
+        isLoadingPage = false;
+        pageRetryDelay = 0;
+        nextPageAttemptAt = 0;
+        pageErrorBar.setVisibility(View.GONE);
+
+        // Несохранённые и остановленные импорты идут первыми,
+        // сохранённые придут со страницами и покажут ход на карточке
+        BookImportPipeline pipeline = BookImportPipeline.getInstance(requireContext());
+        List<BookImportPipeline.ImportProgress> imports = pipeline.getActiveImports();
+        imports.addAll(0, pipeline.getFailedImports());
+        List<Book> books = new ArrayList<>();
+        if (isUnfiltered()) {
+            for (int i = imports.size() - 1; i >= 0; i--) {
+                if (!imports.get(i).isSaved()) {
+                    books.add(imports.get(i).book);
+                }
+            }
+        }
+        bookAdapter.setImports(imports);
+        bookAdapter.setBooks(books);
+        loadNextPage();
+    }
 
-        List<Book> sortedBooks = new ArrayList<>(allBooks);
+    private boolean isUnfiltered() {
+        return selectedStatus == null && searchQuery.isEmpty();
+    }
 
-        // First filter by status if selected
-        if (selectedStatus != null) {
-            sortedBooks.removeIf(book -> !selectedStatus.equals(book.getStatus()));
+    /**
+     * Проверяет книгу тем же фильтром, что сервер: статус и подстрока названия или автора
+     */
+    private boolean matchesFilter(Book book) {
+        if (selectedStatus != null && !selectedStatus.equals(book.getStatus())) {
+            return false;
         }
-
-        // Then sort by the selected criteria
-        switch (currentSortCriteria) {
-            case "title":
-                Collections.sort(sortedBooks, (b1, b2) -> {
-                    int compare = b1.getTitle().compareToIgnoreCase(b2.getTitle());
-                    return isAscending ? compare : -compare;
-                });
-                break;
-            case "author":
-                Collections.sort(sortedBooks, (b1, b2) -> {
-                    int compare = b1.getAuthor().compareToIgnoreCase(b2.getAuthor());
-                    return isAscending ? compare : -compare;
-                });
-                break;
-            case "rating":
-                Collections.sort(sortedBooks, (b1, b2) -> {
-                    // Handle rating comparison properly
-                    int rating1 = b1.getRating();
-                    int rating2 = b2.getRating();
-                    
-                    // For ascending: lower ratings first (including 0)
-                    // For descending: higher ratings first
-                    if (isAscending) {
-                        return Integer.compare(rating1, rating2);
-                    } else {
-                        return Integer.compare(rating2, rating1);
-                    }
-                });
-                break;
+        if (searchQuery.isEmpty()) {
+            return true;
         }
-
-        bookAdapter.setBooks(sortedBooks);
+        String query = searchQuery.toLowerCase();
+        return (book.getTitle() != null && book.getTitle().toLowerCase().contains(query))
+                || (book.getAuthor() != null && book.getAuthor().toLowerCase().contains(query));
     }
 
-    private void loadBooks() {
-        supabaseService.getAllUserBooks(new SupabaseService.BooksLoadCallback() {
+    private void loadNextPage() {
+        // После ошибки прокрутка не шлёт запрос на каждое событие, а ждёт паузу
+        if (isLoadingPage || !hasMorePages || System.currentTimeMillis() < nextPageAttemptAt) {
+            return;
+        }
+        isLoadingPage = true;
+        int generation = queryGeneration;
+        boolean firstPage = nextCursor == null;
+
+        supabaseService.getUserBooksPage(buildPageQuery(), nextCursor, new SupabaseService.BooksPageCallback() {
             @Override
-            public void onSuccess(List<Book> books) {
-                allBooks = books;
-                sortBooks();
+            public void onSuccess(List<Book> books, SupabaseService.BookCursor next) {
+                if (generation != queryGeneration || !isAdded()) {
+                    return;
+                }
+                isLoadingPage = false;
+                pageRetryDelay = 0;
+                nextPageAttemptAt = 0;
+                pageErrorBar.setVisibility(View.GONE);
+                nextCursor = next;
+                hasMorePages = next != null;
+                bookAdapter.appendBooks(books);
+
+                if (firstPage && books.isEmpty() && !searchQuery.isEmpty()) {
+                    Toast.makeText(getContext(), "Книги не найдены", Toast.LENGTH_SHORT).show();
+                }
+                // Если страница не заполнила экран, прокрутки не будет - следующая догружается сразу
+                booksRecyclerView.post(() -> {
+                    if (generation == queryGeneration && hasMorePages && !booksRecyclerView.canScrollVertically(1)) {
+                        loadNextPage();
+                    }
+                });
             }
 
             @Override
             public void onError(String error) {
-                Toast.makeText(getContext(), "Error loading books: " + error, Toast.LENGTH_SHORT).show();
+                if (generation != queryGeneration || !isAdded()) {
+                    return;
+                }
+                isLoadingPage = false;
+                // Ошибка показывается полосой с кнопкой повтора, а сама попытка повторяется с растущей паузой:
+                // пустая сетка не прокручивается, и ждать событий прокрутки нельзя
+                pageRetryDelay = pageRetryDelay == 0
+                        ? PAGE_RETRY_DELAY_MS : Math.min(pageRetryDelay * 2, MAX_PAGE_RETRY_DELAY_MS);
+                nextPageAttemptAt = System.currentTimeMillis() + pageRetryDelay;
+                pageErrorText.setText("Не удалось загрузить книги: " + error);
+                pageErrorBar.setVisibility(View.VISIBLE);
+                booksRecyclerView.postDelayed(() -> {
+                    if (generation == queryGeneration && isAdded() && !isLoadingPage) {
+                        nextPageAttemptAt = 0;
+                        loadNextPage();
+                    }
+                }, pageRetryDelay);
             }
         });
     }
 
-    private void filterBooks(String query) {
-        if (allBooks == null) return;
+    /**
+     * Повтор по кнопке: сразу и с начальной паузой для следующих ошибок
+     */
+    private void retryPage() {
+        pageRetryDelay = 0;
+        nextPageAttemptAt = 0;
+        pageErrorBar.setVisibility(View.GONE);
+        loadNextPage();
+    }
 
-        List<Book> filteredBooks = new ArrayList<>();
-        String lowerCaseQuery = query.toLowerCase();
+    /**
+     * Добавляет сохранённую импортом книгу в начало сетки, не перезагружая библиотеку
+     * и не сбрасывая прокрутку
+     */
+    private void insertImportedBook(String bookId) {
+        int generation = queryGeneration;
+        supabaseService.getBookById(bookId, new SupabaseService.BookCallback() {
+            @Override
+            public void onSuccess(Book book) {
+                if (generation != queryGeneration || !isAdded() || bookAdapter.indexOf(bookId) != -1) {
+                    return;
+                }
+                // Книгу, не подходящую под фильтр или поиск, в сетку не добавляем
+                if (!matchesFilter(book)) {
+                    return;
+                }
+                bookAdapter.insertBook(0, book);
+            }
 
-        for (Book book : allBooks) {
-            if (book.getTitle().toLowerCase().contains(lowerCaseQuery) ||
-                    (book.getAuthor() != null && book.getAuthor().toLowerCase().contains(lowerCaseQuery))) {
-                filteredBooks.add(book);
+            @Override
+            public void onError(String error) {
+                Log.w(TAG, "Could not load imported book " + bookId + ": " + error);
             }
-        }
+        });
+    }
 
-        bookAdapter.setBooks(filteredBooks);
+    private SupabaseService.BookPageQuery buildPageQuery() {
+        String sortColumn;
+        boolean ascending = isAscending;
+        switch (currentSortCriteria) {
+            case "author":
+                sortColumn = SupabaseService.BookPageQuery.SORT_AUTHOR;
+                break;
+            case "rating":
+                sortColumn = SupabaseService.BookPageQuery.SORT_RATING;
+                break;
+            case "status":
+                // Фильтр по статусу показывает книги по названию
+                sortColumn = SupabaseService.BookPageQuery.SORT_TITLE;
+                ascending = true;
+                break;
+            default:
+                sortColumn = SupabaseService.BookPageQuery.SORT_TITLE;
+                break;
+        }
+        return new SupabaseService.BookPageQuery(sortColumn, ascending, selectedStatus,
+                searchQuery.isEmpty() ? null : searchQuery, PAGE_SIZE);
+    }
 
-        if (filteredBooks.isEmpty() && !query.isEmpty()) {
-            Toast.makeText(getContext(), "Книги не найдены", Toast.LENGTH_SHORT).show();
+    /**
+     * Поиск выполняется на сервере, поэтому запрос отправляется после паузы в наборе
+     */
+    private void filterBooks(String query) {
+        String trimmed = query.trim();
+        if (trimmed.equals(searchQuery)) {
+            return;
         }
+        searchQuery = trimmed;
+        searchHandler.removeCallbacks(searchRunnable);
+        searchHandler.postDelayed(searchRunnable, SEARCH_DELAY_MS);
     }
 
     private static class BookAdapter extends RecyclerView.Adapter<BookAdapter.BookViewHolder> {
         private List<Book> books;
+        // Ход незавершённых импортов: id книги -> снимок
+        private final Map<String, BookImportPipeline.ImportProgress> imports = new HashMap<>();
 
         public BookAdapter(List<Book> books) {
             this.books = books;
@@ -267,6 +451,92 @@ public class LibraryFragment extends Fragment {
             notifyDataSetChanged();
         }
 
+        public void appendBooks(List<Book> page) {
+            // Книга, уже вставленная после импорта, может прийти и со страницей
+            List<Book> added = new ArrayList<>();
+            for (Book book : page) {
+                if (indexOf(book.getId()) == -1) {
+                    added.add(book);
+                }
+            }
+            int start = books.size();
+            books.addAll(added);
+            notifyItemRangeInserted(start, added.size());
+        }
+
+        public void insertBook(int position, Book book) {
+            books.add(position, book);
+            notifyItemInserted(position);
+        }
+
+        public void removeBook(String bookId) {
+            int position = indexOf(bookId);
+            if (position != -1) {
+                books.remove(position);
+                notifyItemRemoved(position);
+            }
+        }
+
+        public void setImports(List<BookImportPipeline.ImportProgress> progress) {
+            imports.clear();
+            for (BookImportPipeline.ImportProgress item : progress) {
+                imports.put(item.book.getId(), item);
+            }
+        }
+
+        public BookImportPipeline.ImportProgress getImportProgress(String bookId) {
+            return imports.get(bookId);
+        }
+
+        /**
+         * @param progress Новый ход импорта или null, если импорт закончен
+         */
+        public void setImportProgress(String bookId, BookImportPipeline.ImportProgress progress) {
+            if (progress != null) {
+                imports.put(bookId, progress);
+            } else if (imports.remove(bookId) == null) {
+                return;
+            }
+            int position = indexOf(bookId);
+            if (position != -1) {
+                notifyItemChanged(position);
+            }
+        }
+
+        /**
+         * Ошибка остановленного импорта с выбором: повторить импорт или удалить книгу
+         */
+        private void showFailedImportDialog(View anchor, String bookId, String error) {
+            BookImportPipeline pipeline = BookImportPipeline.getInstance(anchor.getContext());
+            AlertDialog.Builder builder = new AlertDialog.Builder(anchor.getContext())
+                    .setTitle("Книга не добавлена")
+                    .setMessage(error.contains("unique_book_per_user")
+                            ? "Книга уже добавлена в вашу библиотеку" : error)
+                    .setNegativeButton("Удалить", (dialog, which) -> {
+                        pipeline.dismissFailed(bookId);
+                        setImportProgress(bookId, null);
+                        removeBook(bookId);
+                    })
+                    .setNeutralButton("Отмена", null);
+            // Книгу, уже добавленную в библиотеку, повторять бесполезно
+            if (!error.contains("unique_book_per_user")) {
+                builder.setPositiveButton("Повторить", (dialog, which) -> {
+                    pipeline.retryFailed(bookId);
+                    setImportProgress(bookId, pipeline.getImport(bookId));
+                });
+            }
+            builder.show();
+        }
+
+        public int indexOf(String bookId) {
+            for (int i = 0; i < books.size(); i++) {
+                if (books.get(i).getId() != null && books.get(i).getId().equals(bookId)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
         @NonNull
         @Override
         public BookViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
@@ -277,7 +547,8 @@ public class LibraryFragment extends Fragment {
 
         @Override
         public void onBindViewHolder(@NonNull BookViewHolder holder, int position) {
-            holder.bind(books.get(position));
+            Book book = books.get(position);
+            holder.bind(book, imports.get(book.getId()));
         }
 
         @Override
@@ -290,6 +561,8 @@ public class LibraryFragment extends Fragment {
             private final TextView titleTextView;
             private final View statusIndicator;
             private final FrameLayout statusBadge;
+            private final ProgressBar importProgressBar;
+            private final TextView importStatusTextView;
             private final BookAdapter adapter;
 
             public BookViewHolder(@NonNull View itemView, BookAdapter adapter) {
@@ -299,12 +572,24 @@ public class LibraryFragment extends Fragment {
                 titleTextView = itemView.findViewById(R.id.book_title);
                 statusIndicator = itemView.findViewById(R.id.status_indicator);
                 statusBadge = itemView.findViewById(R.id.status_badge);
+                importProgressBar = itemView.findViewById(R.id.import_progress);
+                importStatusTextView = itemView.findViewById(R.id.import_status);
 
                 // Add click listener to the entire item view
                 itemView.setOnClickListener(v -> {
                     int position = getAdapterPosition();
                     if (position != RecyclerView.NO_POSITION) {
                         Book book = adapter.books.get(position);
+                        BookImportPipeline.ImportProgress progress = adapter.imports.get(book.getId());
+                        if (progress != null && progress.isFailed()) {
+                            adapter.showFailedImportDialog(v, book.getId(), progress.error);
+                            return;
+                        }
+                        if (progress != null && !progress.isSaved()) {
+                            // Записи книги ещё нет в базе, открывать нечего
+                            Toast.makeText(v.getContext(), "Книга ещё добавляется", Toast.LENGTH_SHORT).show();
+                            return;
+                        }
                         Intent intent = new Intent(v.getContext(), BookActivity.class);
                         intent.putExtra("id", book.getId());
                         intent.putExtra("title", book.getTitle());
@@ -329,7 +614,25 @@ public class LibraryFragment extends Fragment {
                 });
             }
 
-            public void bind(Book book) {
+            public void bind(Book book, BookImportPipeline.ImportProgress progress) {
+                if (progress != null && progress.isFailed()) {
+                    importProgressBar.setVisibility(View.GONE);
+                    importStatusTextView.setVisibility(View.VISIBLE);
+                    importStatusTextView.setText("Не добавлена");
+                } else if (progress != null) {
+                    importProgressBar.setVisibility(View.VISIBLE);
+                    importProgressBar.setMax(BookImportPipeline.STAGE_COUNT);
+                    importProgressBar.setProgress(progress.completed);
+                    importStatusTextView.setVisibility(View.VISIBLE);
+                    importStatusTextView.setText(progress.waitingForRetry
+                            ? "Ожидание повтора"
+                            : "Импорт " + progress.completed + "/" + BookImportPipeline.STAGE_COUNT);
+                } else {
+                    importProgressBar.setVisibility(View.GONE);
+                    importStatusTextView.setVisibility(View.GONE);
+                }
+
+
                 // Load cover image
                 if (book.getCoverPath() != null && !book.getCoverPath().isEmpty()) {
                     Picasso.get()
@@ -386,9 +689,9 @@ public class LibraryFragment extends Fragment {
     @Override
     public void onDestroyView() {
         super.onDestroyView();
-        if (supabaseService != null) {
-            supabaseService.shutdown();
-        }
+        BookImportPipeline.getInstance(requireContext()).removeListener(importListener);
+        searchHandler.removeCallbacks(searchRunnable);
+        queryGeneration++;
     }
 
     @Override
@@ -6,6 +6,8 @@ import android.util.Log;
 import com.google.android.material.bottomnavigation.BottomNavigationView;
 import androidx.fragment.app.Fragment;
 import androidx.fragment.app.FragmentTransaction;
+import com.example.bookworm.services.BookImportPipeline;
+import com.example.bookworm.services.ReadingProgressSync;
 import com.example.bookworm.services.SupabaseService;
 
 public class MainActivity extends BaseActivity {
@@ -29,7 +31,12 @@ public class MainActivity extends BaseActivity {
         }
 
         // Initialize Supabase service
-        supabaseService = new SupabaseService(this);
+        supabaseService = SupabaseService.getInstance(this);
+
+        // Продолжаем импорт книг, прерванный при прошлом запуске
+        BookImportPipeline.getInstance(this).resumePending();
+        // И отправляем прогресс чтения, не ушедший в базу до закрытия приложения
+        ReadingProgressSync.getInstance(this).flush();
 
         currentTheme = getCurrentTheme(); // Получаем текущую тему (например, из SharedPreferences)
         applyTheme();
@@ -73,13 +80,4 @@ public class MainActivity extends BaseActivity {
             recreate();
         }
     }
-
-    @Override
-    protected void onDestroy() {
-        super.onDestroy();
-        if (supabaseService != null) {
-            supabaseService.shutdown();
-            supabaseService = null;
-        }
-    }
 }
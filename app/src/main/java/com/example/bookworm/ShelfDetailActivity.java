@@ -23,7 +23,7 @@ import com.example.bookworm.services.SupabaseService;
 import com.google.android.material.snackbar.Snackbar;
 
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 
 public class ShelfDetailActivity extends BaseActivity implements ShelfBookAdapter.ShelfBookListener {
@@ -53,7 +53,7 @@ public class ShelfDetailActivity extends BaseActivity implements ShelfBookAdapte
         textViewShelfDescription = findViewById(R.id.textViewShelfDescription);
         progressBarLoading = findViewById(R.id.progressBarLoading);
         
-        supabaseService = new SupabaseService(this);
+        supabaseService = SupabaseService.getInstance(this);
         
         // Get shelf ID from intent
         String shelfId = getIntent().getStringExtra("SHELF_ID");
@@ -144,7 +144,7 @@ public class ShelfDetailActivity extends BaseActivity implements ShelfBookAdapte
             + ", book IDs count: " + bookIds.size());
         
         // Check for duplicate IDs in the bookIds list
-        List<String> uniqueBookIds = new ArrayList<>(new HashSet<>(bookIds));
+        List<String> uniqueBookIds = new ArrayList<>(new LinkedHashSet<>(bookIds));
         if (uniqueBookIds.size() < bookIds.size()) {
             android.util.Log.d("ShelfDetailActivity", "Found " + (bookIds.size() - uniqueBookIds.size()) + " duplicate book IDs in shelf");
             bookIds = uniqueBookIds;
@@ -185,15 +185,12 @@ public class ShelfDetailActivity extends BaseActivity implements ShelfBookAdapte
     }
     
     private void loadBooksFromIds(List<String> bookIds) {
-        final List<Book> loadedBooks = new ArrayList<>();
-        final int[] booksProcessed = {0};
-        
-        for (String bookId : bookIds) {
-            supabaseService.getBookById(bookId, new SupabaseService.BookCallback() {
-                @Override
-                public void onSuccess(Book book) {
-                    booksProcessed[0]++;
-                    
+        // Все книги полки приходят одним списком в порядке полки, список перерисовывается один раз
+        supabaseService.getBooksByIds(bookIds, new SupabaseService.BooksLoadCallback() {
+            @Override
+            public void onSuccess(List<Book> loadedBooks) {
+                List<Book> shelfBooks = new ArrayList<>();
+                for (Book book : loadedBooks) {
                     // Фильтрация: пропускаем аудиокниги
                     String fileFormat = book.getFileFormat();
                     if (fileFormat == null || 
@@ -205,60 +202,39 @@ public class ShelfDetailActivity extends BaseActivity implements ShelfBookAdapte
                           fileFormat.equalsIgnoreCase("WAV") || 
                           fileFormat.equalsIgnoreCase("FLAC") || 
                           fileFormat.equalsIgnoreCase("AUDIOBOOK"))) {
-                        loadedBooks.add(book);
-                        android.util.Log.d("ShelfDetailActivity", "Loaded book: " + book.getTitle());
+                        shelfBooks.add(book);
                     } else {
                         android.util.Log.d("ShelfDetailActivity", "Skipping audiobook: " + book.getTitle());
                     }
-                    
-                    // Check if all books have been processed
-                    if (booksProcessed[0] >= bookIds.size()) {
-                        runOnUiThread(() -> {
-                            progressBarLoading.setVisibility(View.GONE);
-                            
-                            if (loadedBooks.isEmpty()) {
-                                showNoBooks();
-                                android.util.Log.d("ShelfDetailActivity", "Showing no books UI");
-                            } else {
-                                books.addAll(loadedBooks);
-                                bookAdapter.notifyDataSetChanged();
-                                showBooks();
-                                android.util.Log.d("ShelfDetailActivity", "Showing books UI with " + books.size() + " books");
-                            }
-                            
-                            isLoadingBooks = false;
-                            initialLoadComplete = true;
-                        });
-                    }
                 }
-                
-                @Override
-                public void onError(String error) {
-                    booksProcessed[0]++;
-                    android.util.Log.d("ShelfDetailActivity", "Failed to load book with ID: " + bookId + " from Supabase: " + error);
-                    
-                    // Check if all books have been processed
-                    if (booksProcessed[0] >= bookIds.size()) {
-                        runOnUiThread(() -> {
-                            progressBarLoading.setVisibility(View.GONE);
-                            
-                            if (loadedBooks.isEmpty()) {
-                                showNoBooks();
-                                android.util.Log.d("ShelfDetailActivity", "Showing no books UI");
-                            } else {
-                                books.addAll(loadedBooks);
-                                bookAdapter.notifyDataSetChanged();
-                                showBooks();
-                                android.util.Log.d("ShelfDetailActivity", "Showing books UI with " + books.size() + " books");
-                            }
-                            
-                            isLoadingBooks = false;
-                            initialLoadComplete = true;
-                        });
-                    }
+
+                progressBarLoading.setVisibility(View.GONE);
+                if (shelfBooks.isEmpty()) {
+                    showNoBooks();
+                    android.util.Log.d("ShelfDetailActivity", "Showing no books UI");
+                } else {
+                    books.addAll(shelfBooks);
+                    bookAdapter.notifyDataSetChanged();
+                    showBooks();
+                    android.util.Log.d("ShelfDetailActivity", "Showing books UI with " + books.size() + " books");
                 }
-            });
-        }
+
+                isLoadingBooks = false;
+                initialLoadComplete = true;
+            }
+
+            @Override
+            public void onError(String error) {
+                android.util.Log.d("ShelfDetailActivity", "Failed to load shelf books from Supabase: " + error);
+                progressBarLoading.setVisibility(View.GONE);
+                if (books.isEmpty()) {
+                    showNoBooks();
+                }
+                Snackbar.make(findViewById(android.R.id.content), "Error loading books: " + error, Snackbar.LENGTH_SHORT).show();
+                isLoadingBooks = false;
+                initialLoadComplete = true;
+            }
+        });
     }
     
     private void showNoBooks() {
@@ -357,12 +333,4 @@ public class ShelfDetailActivity extends BaseActivity implements ShelfBookAdapte
             }
         });
     }
-
-    @Override
-    protected void onDestroy() {
-        super.onDestroy();
-        if (supabaseService != null) {
-            supabaseService.shutdown();
-        }
-    }
 } 
\ No newline at end of file
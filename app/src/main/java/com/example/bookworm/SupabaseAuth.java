@@ -14,6 +14,7 @@ import androidx.annotation.NonNull;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonObject;
+import com.example.bookworm.services.SupabaseService;
 import okhttp3.*;
 
 import java.io.IOException;
@@ -36,7 +37,7 @@ public class SupabaseAuth {
     private static final String KEY_USER_EMAIL = "user_email";
     private static final String KEY_USER_DISPLAY_NAME = "display_name";
 
-    private final OkHttpClient client = new OkHttpClient();
+    private final OkHttpClient client = SupabaseService.getHttpClient();
     private final Gson gson = new Gson();
     private final Context context;
     private final Handler mainHandler = new Handler(Looper.getMainLooper());
@@ -0,0 +1,220 @@
+package com.example.bookworm.adapters;
+
+import android.graphics.Color;
+import android.graphics.Typeface;
+import android.graphics.drawable.ColorDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.Html;
+import android.text.Layout;
+import android.text.Spannable;
+import android.text.SpannableString;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.BackgroundColorSpan;
+import android.text.style.ForegroundColorSpan;
+import android.text.style.RelativeSizeSpan;
+import android.util.LruCache;
+import android.util.TypedValue;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.RecyclerView;
+
+import com.example.bookworm.services.PageStore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+
+/**
+ * Страницы книги в RecyclerView без WebView: каждая страница - TextView со Spanned-текстом.
+ * Подходит для форматов, которым не нужны возможности HTML (TXT и FB2).
+ * Spanned соседних страниц собирается заранее в фоне и хранится в небольшом LRU-кэше,
+ * поэтому при перелистывании остаётся только привязать готовый текст к переработанному TextView.
+ */
+public class NativePageAdapter extends RecyclerView.Adapter<NativePageAdapter.PageViewHolder> {
+    private static final int CACHED_PAGES = 8;
+
+    // Изображения FB2 из бинарных секций не загружаются, вместо значка-заглушки ничего не рисуется
+    private static final Html.ImageGetter EMPTY_IMAGES = source -> {
+        Drawable drawable = new ColorDrawable(Color.TRANSPARENT);
+        drawable.setBounds(0, 0, 0, 0);
+        return drawable;
+    };
+
+    private final boolean html;
+    private final float textSizeDp;
+    private final int lineHeightPx;
+    private final int paddingPx;
+    private final LruCache<Integer, Spanned> builtPages = new LruCache<>(CACHED_PAGES);
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private List<String> pages = new ArrayList<>();
+    private int textColor = Color.BLACK;
+    private int backgroundColor = Color.WHITE;
+    private String highlightQuery = "";
+    private int generation = 0; // Меняется при смене текста или подсветки, устаревшие сборки отбрасываются
+
+    /**
+     * @param html true - страницы в HTML (FB2), false - простой текст (TXT)
+     * @param textSizeDp Размер шрифта
+     * @param lineHeightPx Высота строки
+     * @param paddingPx Отступ текста от краёв страницы
+     */
+    public NativePageAdapter(boolean html, float textSizeDp, int lineHeightPx, int paddingPx) {
+        this.html = html;
+        this.textSizeDp = textSizeDp;
+        this.lineHeightPx = lineHeightPx;
+        this.paddingPx = paddingPx;
+    }
+
+    static class PageViewHolder extends RecyclerView.ViewHolder {
+        final TextView textView;
+
+        PageViewHolder(TextView textView) {
+            super(textView);
+            this.textView = textView;
+        }
+    }
+
+    @NonNull
+    @Override
+    public PageViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        TextView textView = new TextView(parent.getContext());
+        textView.setLayoutParams(new RecyclerView.LayoutParams(
+                ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT));
+        textView.setTypeface(Typeface.SANS_SERIF);
+        textView.setTextSize(TypedValue.COMPLEX_UNIT_DIP, textSizeDp);
+        textView.setLineHeight(lineHeightPx);
+        textView.setPadding(paddingPx, paddingPx, paddingPx, paddingPx);
+        textView.setJustificationMode(Layout.JUSTIFICATION_MODE_INTER_WORD);
+        return new PageViewHolder(textView);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull PageViewHolder holder, int position) {
+        Spanned text = builtPages.get(position);
+        if (text == null) {
+            text = buildPage(getSource(position), highlightQuery);
+            builtPages.put(position, text);
+        }
+        holder.textView.setText(text);
+        holder.textView.setTextColor(textColor);
+        holder.textView.setBackgroundColor(backgroundColor);
+    }
+
+    @Override
+    public int getItemCount() {
+        return pages.size();
+    }
+
+    /**
+     * Задаёт страницы книги (список может дополняться, об этом сообщает notifyPagesAppended)
+     */
+    public void setPages(List<String> pages) {
+        this.pages = pages;
+        invalidate();
+        notifyDataSetChanged();
+    }
+
+    public void notifyPagesAppended(int fromIndex, int count) {
+        notifyItemRangeInserted(fromIndex, count);
+    }
+
+    public void setColors(int textColor, int backgroundColor) {
+        this.textColor = textColor;
+        this.backgroundColor = backgroundColor;
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Подсвечивает вхождения запроса на страницах (пустая строка снимает подсветку)
+     */
+    public void setHighlightQuery(String query) {
+        String newQuery = query != null ? query : "";
+        if (newQuery.equals(highlightQuery)) {
+            return;
+        }
+        highlightQuery = newQuery;
+        invalidate();
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Заранее собирает Spanned для страниц вокруг текущей.
+     * Исходный текст берётся в главном потоке (страницы дополняются в нём же),
+     * разбор HTML и подсветка выполняются в executor.
+     */
+    public void prebuildAround(int center, int depth, Executor executor) {
+        int currentGeneration = generation;
+        String query = highlightQuery;
+        for (int distance = 1; distance <= depth; distance++) {
+            for (int position : new int[] {center + distance, center - distance}) {
+                if (position < 0 || position >= pages.size() || builtPages.get(position) != null) {
+                    continue;
+                }
+                String source = getSource(position);
+                executor.execute(() -> {
+                    Spanned text = buildPage(source, query);
+                    mainHandler.post(() -> {
+                        if (currentGeneration == generation) {
+                            builtPages.put(position, text);
+                        }
+                    });
+                });
+            }
+        }
+    }
+
+    private void invalidate() {
+        generation++;
+        builtPages.evictAll();
+    }
+
+    /**
+     * Текст страницы без общего обрамления (стили FB2 в TextView не нужны)
+     */
+    private String getSource(int position) {
+        if (pages instanceof PageStore) {
+            return ((PageStore) pages).getPageBody(position).toString();
+        }
+        return pages.get(position);
+    }
+
+    private Spanned buildPage(String source, String query) {
+        Spannable text;
+        if (html) {
+            SpannableStringBuilder builder = new SpannableStringBuilder(
+                    Html.fromHtml(source, Html.FROM_HTML_MODE_COMPACT, EMPTY_IMAGES, null));
+            // Заголовки того же размера, что и текст, как в оболочке WebView: на это рассчитан объём страницы
+            for (RelativeSizeSpan span : builder.getSpans(0, builder.length(), RelativeSizeSpan.class)) {
+                builder.removeSpan(span);
+            }
+            int end = builder.length();
+            while (end > 0 && Character.isWhitespace(builder.charAt(end - 1))) {
+                end--;
+            }
+            text = builder.delete(end, builder.length());
+        } else {
+            // Переводы строк схлопываются так же, как при показе текста в WebView
+            text = new SpannableString(source.replaceAll("\\s+", " ").trim());
+        }
+
+        if (!query.isEmpty()) {
+            String lowercaseText = text.toString().toLowerCase(Locale.getDefault());
+            String lowercaseQuery = query.toLowerCase(Locale.getDefault());
+            int index = lowercaseText.indexOf(lowercaseQuery);
+            while (index != -1) {
+                int end = index + lowercaseQuery.length();
+                text.setSpan(new BackgroundColorSpan(Color.YELLOW), index, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                text.setSpan(new ForegroundColorSpan(Color.BLACK), index, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                index = lowercaseText.indexOf(lowercaseQuery, end);
+            }
+        }
+        return text;
+    }
+}
@@ -54,7 +54,7 @@ public class BookShelvesFragment extends BaseFragment implements ShelfAdapter.Sh
         recyclerViewShelves = view.findViewById(R.id.recyclerViewShelves);
         textViewNoShelves = view.findViewById(R.id.textViewNoShelves);
 
-        supabaseService = new SupabaseService(requireContext());
+        supabaseService = SupabaseService.getInstance(requireContext());
         
         // Get current user ID from Supabase
         SupabaseAuth supabaseAuth = new SupabaseAuth(requireContext());
@@ -323,12 +323,4 @@ public class BookShelvesFragment extends BaseFragment implements ShelfAdapter.Sh
         
         popupMenu.show();
     }
-    
-    @Override
-    public void onDestroyView() {
-        super.onDestroyView();
-        if (supabaseService != null) {
-            supabaseService.shutdown();
-        }
-    }
 } 
\ No newline at end of file
@@ -0,0 +1,395 @@
+package com.example.bookworm.services;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Дисковый кэш скачанных файлов книг.
+ * Файл хранится под хэшем URL хранилища вместе с ETag/Last-Modified ответа, поэтому
+ * повторное открытие книги обходится условным запросом (304 без тела). Прерванная загрузка
+ * остаётся в файле .part и продолжается запросом Range. Общий размер кэша ограничен,
+ * при превышении удаляются книги, которые дольше всего не открывались.
+ * Время последнего открытия хранится в .meta, а не во времени изменения файла книги:
+ * по нему PaginationCache запоминает хэш содержимого, и касание файла заставляло бы
+ * пересчитывать хэш при каждом открытии.
+ */
+public final class BookDownloadCache {
+    private static final String TAG = "BookDownloadCache";
+    private static final String CACHE_DIR = "book_downloads";
+    private static final String LEGACY_DIR = "temp_books"; // Прежние одноразовые загрузки
+    private static final String PART_SUFFIX = ".part";
+    private static final String META_SUFFIX = ".meta";
+    private static final long MAX_CACHE_SIZE = 512L * 1024 * 1024; // 512 МБ на все книги
+    private static final int CONNECT_TIMEOUT_MS = 15000;
+    private static final int READ_TIMEOUT_MS = 30000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // Блокировки по ключу: одну книгу не скачивают два потока одновременно
+    private static final Map<String, Object> locks = new HashMap<>();
+    private static boolean legacyCleaned = false;
+
+    private BookDownloadCache() {
+    }
+
+    /**
+     * Возвращает локальную копию файла по URL, скачивая или докачивая его при необходимости.
+     * Вызывать из фонового потока.
+     * @param context Контекст для доступа к файлам
+     * @param url Адрес файла книги в хранилище
+     * @return актуальный файл в кэше (при отсутствии сети - ранее скачанная копия)
+     */
+    public static File fetch(Context context, String url) throws IOException {
+        File directory = getCacheDirectory(context);
+        String key = LocalBookFiles.sha1Hex(url);
+
+        synchronized (lockFor(key)) {
+            File file = new File(directory, key + getExtension(url));
+            File partFile = new File(directory, file.getName() + PART_SUFFIX);
+            File metaFile = new File(directory, key + META_SUFFIX);
+            Properties meta = readMeta(metaFile);
+
+            try {
+                download(url, file, partFile, metaFile, meta);
+            } catch (IOException e) {
+                if (file.exists()) {
+                    // Без сети открываем уже скачанную версию
+                    Log.w(TAG, "Using cached copy of " + url + " after error: " + e.getMessage());
+                    markAccessed(metaFile);
+                    return file;
+                }
+                throw e;
+            }
+
+            markAccessed(metaFile);
+            trimToSize(directory, MAX_CACHE_SIZE, key);
+            return file;
+        }
+    }
+
+    /**
+     * Кладёт в кэш локальный файл, только что загруженный в хранилище по адресу url,
+     * чтобы первое открытие книги не скачивало его обратно. Валидаторы берутся запросом HEAD,
+     * поэтому следующая проверка обойдётся ответом 304. Вызывать из фонового потока.
+     * @param context Контекст для доступа к файлам
+     * @param url Адрес файла в хранилище
+     * @param source Локальная копия того же файла
+     */
+    public static void seed(Context context, String url, File source) throws IOException {
+        File directory = getCacheDirectory(context);
+        String key = LocalBookFiles.sha1Hex(url);
+
+        synchronized (lockFor(key)) {
+            File file = new File(directory, key + getExtension(url));
+            if (file.exists()) {
+                return;
+            }
+
+            Properties meta = new Properties();
+            meta.setProperty("url", url);
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            try {
+                connection.setRequestMethod("HEAD");
+                connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+                connection.setReadTimeout(READ_TIMEOUT_MS);
+                int responseCode = connection.getResponseCode();
+                if (responseCode != HttpURLConnection.HTTP_OK) {
+                    throw new IOException("Не удалось проверить файл, код ответа: " + responseCode);
+                }
+                long length = connection.getContentLengthLong();
+                if (length >= 0 && length != source.length()) {
+                    throw new IOException("Файл в хранилище отличается от локального");
+                }
+                if (connection.getHeaderField("ETag") != null) {
+                    meta.setProperty("etag", connection.getHeaderField("ETag"));
+                }
+                if (connection.getHeaderField("Last-Modified") != null) {
+                    meta.setProperty("lastModified", connection.getHeaderField("Last-Modified"));
+                }
+            } finally {
+                connection.disconnect();
+            }
+            if (meta.getProperty("etag") == null && meta.getProperty("lastModified") == null) {
+                // Без валидаторов копия всё равно была бы скачана заново при первом открытии
+                return;
+            }
+
+            meta.setProperty("accessed", String.valueOf(System.currentTimeMillis()));
+            File partFile = new File(directory, file.getName() + PART_SUFFIX);
+            try (InputStream inputStream = new FileInputStream(source);
+                 OutputStream outputStream = new FileOutputStream(partFile)) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int bytesRead;
+                while ((bytesRead = inputStream.read(buffer)) != -1) {
+                    outputStream.write(buffer, 0, bytesRead);
+                }
+            }
+            writeMeta(new File(directory, key + META_SUFFIX), meta);
+            if (!partFile.renameTo(file)) {
+                throw new IOException("Не удалось сохранить файл в кэше");
+            }
+            Log.d(TAG, "Seeded download cache with " + source.length() + " bytes for " + url);
+            trimToSize(directory, MAX_CACHE_SIZE, key);
+        }
+    }
+
+    private static void download(String url, File file, File partFile, File metaFile,
+                                 Properties meta) throws IOException {
+        String etag = meta.getProperty("etag");
+        String lastModified = meta.getProperty("lastModified");
+        boolean complete = file.exists();
+        long resumeFrom = !complete && partFile.exists() && (etag != null || lastModified != null)
+                ? partFile.length() : 0;
+
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            connection.setReadTimeout(READ_TIMEOUT_MS);
+            if (complete) {
+                // Проверяем, не изменился ли файл в хранилище
+                if (etag != null) {
+                    connection.setRequestProperty("If-None-Match", etag);
+                }
+                if (lastModified != null) {
+                    connection.setRequestProperty("If-Modified-Since", lastModified);
+                }
+            } else if (resumeFrom > 0) {
+                // Докачиваем, только если на сервере та же версия файла
+                connection.setRequestProperty("Range", "bytes=" + resumeFrom + "-");
+                connection.setRequestProperty("If-Range", etag != null ? etag : lastModified);
+            }
+
+            int responseCode = connection.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && complete) {
+                Log.d(TAG, "Cached book is up to date: " + file.getName());
+                return;
+            }
+
+            boolean append;
+            if (responseCode == HttpURLConnection.HTTP_PARTIAL && resumeFrom > 0) {
+                append = true;
+                Log.d(TAG, "Resuming download of " + url + " from byte " + resumeFrom);
+            } else if (responseCode == HttpURLConnection.HTTP_OK) {
+                append = false;
+                if (complete) {
+                    // Файл в хранилище изменился: старая копия больше не соответствует валидаторам
+                    file.delete();
+                }
+            } else {
+                if (responseCode == 416) {
+                    // Сохранённая часть не соответствует файлу на сервере - следующая попытка начнётся сначала
+                    partFile.delete();
+                }
+                throw new IOException("Не удалось скачать файл, код ответа: " + responseCode);
+            }
+
+            // Валидаторы записываем до загрузки, чтобы прерванную загрузку можно было продолжить
+            Properties newMeta = new Properties();
+            newMeta.setProperty("url", url);
+            String newEtag = connection.getHeaderField("ETag");
+            String newLastModified = connection.getHeaderField("Last-Modified");
+            if (append) {
+                newEtag = newEtag != null ? newEtag : etag;
+                newLastModified = newLastModified != null ? newLastModified : lastModified;
+            }
+            if (newEtag != null) {
+                newMeta.setProperty("etag", newEtag);
+            }
+            if (newLastModified != null) {
+                newMeta.setProperty("lastModified", newLastModified);
+            }
+            writeMeta(metaFile, newMeta);
+
+            long expectedLength = connection.getContentLengthLong();
+            if (expectedLength >= 0 && append) {
+                expectedLength += resumeFrom;
+            }
+
+            try (InputStream inputStream = connection.getInputStream();
+                 OutputStream outputStream = new FileOutputStream(partFile, append)) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int bytesRead;
+                while ((bytesRead = inputStream.read(buffer)) != -1) {
+                    outputStream.write(buffer, 0, bytesRead);
+                }
+            }
+
+            if (expectedLength >= 0 && partFile.length() != expectedLength) {
+                throw new IOException("Загрузка прервана: получено " + partFile.length() +
+                        " из " + expectedLength + " байт");
+            }
+            if (file.exists()) {
+                file.delete();
+            }
+            if (!partFile.renameTo(file)) {
+                throw new IOException("Не удалось сохранить скачанный файл");
+            }
+            Log.d(TAG, "Downloaded " + file.length() + " bytes from " + url);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Удаляет книги, которые дольше всего не открывались, пока общий размер превышает лимит.
+     * Файлы книги с ключом keepKey (только что запрошенной) не удаляются.
+     */
+    private static void trimToSize(File directory, long maxSize, String keepKey) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        long totalSize = 0;
+        final Map<File, Long> accessed = new HashMap<>();
+        for (File cacheFile : files) {
+            totalSize += cacheFile.length();
+            if (!cacheFile.getName().endsWith(META_SUFFIX)) {
+                accessed.put(cacheFile, lastAccess(directory, cacheFile));
+            }
+        }
+        if (totalSize <= maxSize) {
+            return;
+        }
+
+        File[] entries = accessed.keySet().toArray(new File[0]);
+        Arrays.sort(entries, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(accessed.get(a), accessed.get(b));
+            }
+        });
+
+        for (File cacheFile : entries) {
+            if (totalSize <= maxSize) {
+                break;
+            }
+            String name = cacheFile.getName();
+            if (name.startsWith(keepKey)) {
+                continue;
+            }
+            long length = cacheFile.length();
+            if (cacheFile.delete()) {
+                totalSize -= length;
+                // Валидаторы без файла не нужны
+                File metaFile = new File(directory, keyOf(name) + META_SUFFIX);
+                totalSize -= metaFile.length();
+                metaFile.delete();
+                Log.d(TAG, "Evicted downloaded book: " + name);
+            }
+        }
+    }
+
+    /**
+     * Время последнего открытия книги из .meta; для записей без него - время изменения файла
+     */
+    private static long lastAccess(File directory, File cacheFile) {
+        String value = readMeta(new File(directory, keyOf(cacheFile.getName()) + META_SUFFIX))
+                .getProperty("accessed");
+        if (value != null) {
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Invalid access time for " + cacheFile.getName());
+            }
+        }
+        return cacheFile.lastModified();
+    }
+
+    private static String keyOf(String fileName) {
+        int dot = fileName.indexOf('.');
+        return dot != -1 ? fileName.substring(0, dot) : fileName;
+    }
+
+    /**
+     * Запоминает время открытия книги в .meta, не трогая сам файл
+     */
+    private static void markAccessed(File metaFile) {
+        Properties meta = readMeta(metaFile);
+        meta.setProperty("accessed", String.valueOf(System.currentTimeMillis()));
+        try {
+            writeMeta(metaFile, meta);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not record access time: " + e.getMessage());
+        }
+    }
+
+    private static synchronized File getCacheDirectory(Context context) {
+        File directory = new File(context.getFilesDir(), CACHE_DIR);
+        if (!directory.exists()) {
+            directory.mkdirs();
+        }
+
+        // Одноразовые загрузки прежних версий больше не используются
+        if (!legacyCleaned) {
+            legacyCleaned = true;
+            File[] legacyFiles = new File(context.getFilesDir(), LEGACY_DIR).listFiles();
+            if (legacyFiles != null) {
+                for (File legacyFile : legacyFiles) {
+                    legacyFile.delete();
+                }
+            }
+        }
+        return directory;
+    }
+
+    private static Object lockFor(String key) {
+        synchronized (locks) {
+            Object lock = locks.get(key);
+            if (lock == null) {
+                lock = new Object();
+                locks.put(key, lock);
+            }
+            return lock;
+        }
+    }
+
+    /**
+     * Расширение файла из пути URL (нужно для определения формата книги)
+     */
+    private static String getExtension(String url) {
+        String path = url;
+        int query = path.indexOf('?');
+        if (query != -1) {
+            path = path.substring(0, query);
+        }
+        int slash = path.lastIndexOf('/');
+        int dot = path.lastIndexOf('.');
+        if (dot > slash && path.length() - dot <= 6) {
+            return path.substring(dot).toLowerCase(Locale.ROOT);
+        }
+        return "";
+    }
+
+    private static Properties readMeta(File metaFile) {
+        Properties meta = new Properties();
+        if (metaFile.exists()) {
+            try (InputStream inputStream = new FileInputStream(metaFile)) {
+                meta.load(inputStream);
+            } catch (IOException e) {
+                Log.w(TAG, "Could not read download metadata: " + e.getMessage());
+            }
+        }
+        return meta;
+    }
+
+    private static void writeMeta(File metaFile, Properties meta) throws IOException {
+        try (OutputStream outputStream = new FileOutputStream(metaFile)) {
+            meta.store(outputStream, null);
+        }
+    }
+}
@@ -2,29 +2,31 @@ package com.example.bookworm.services;
 
 import android.content.Context;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserFactory;
 
-import java.io.BufferedReader;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.io.IOException;
-import android.content.ContentResolver;
-import java.nio.charset.StandardCharsets;
 import java.util.Stack;
 import java.io.StringReader;
 import java.util.Map;
 import java.util.HashMap;
 import com.example.bookworm.models.TocItem;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import android.util.Pair;
 import java.util.Collections;
 import java.util.Comparator;
@@ -32,13 +34,125 @@ import java.util.Comparator;
 public class BookFileReader {
     private static final String TAG = "BookFileReader";
     private static final int CHARS_PER_PAGE = 800; // Количество символов на страницу внутри главы
+    private static final int EPUB_CHARS_PER_PAGE = 2000; // Максимальное количество символов на страницу EPUB
+    private static final int PARSER_VERSION = 5; // Увеличивать при любом изменении разбора или разбиения на страницы
+    private static final String EPUB_PAGE_START = "<div class='page'>";
+    private static final String EPUB_PAGE_END = "</div>";
+    // Базовые стили FB2, хранятся один раз на книгу как обрамление страниц
+    private static final String FB2_PAGE_STYLE = "<style>" +
+            "body { font-family: sans-serif; line-height: 3; }" +
+            "h2 { text-align: center; margin: 10px 0; }" +
+            "p { margin: 5px 0; text-indent: 20px; }" +
+            "em { font-style: italic; }" +
+            "strong { font-weight: bold; }" +
+            "img { max-width: 100%; height: auto; display: block; margin: 10px auto; }" +
+            "</style>";
     private static final int LINES_PER_PAGE = 15; // Примерное количество строк на экране
+    private static final int MAX_CHAPTER_THREADS = 4; // Верхняя граница потоков для разбора глав EPUB
+    private static final int MAX_TXT_TOC_ITEMS = 50; // Не больше стольких заголовков в оглавлении TXT
+    private static final String FB2_TOC_ANCHOR = "toc-"; // Префикс id заголовков секций FB2
+    private static final int MAX_COMPILED_RESOURCE_SIZE = 8 * 1024 * 1024; // Более крупные ресурсы читаются из архива
+    // Разбиение с постоянным объёмом страниц, когда размер экрана неизвестен
+    private static final PageLayout FIXED_LAYOUT = PageLayout.fixed(CHARS_PER_PAGE, EPUB_CHARS_PER_PAGE);
+
+    // Пул для параллельного разбора глав EPUB, создаётся при первом использовании
+    private static ExecutorService chapterPool;
+    // Разбирать главы последовательно (для сравнения с параллельным режимом)
+    private static volatile boolean serialChapterProcessing = false;
+
+    private static final long SEARCH_PUBLISH_INTERVAL_MS = 100; // Как часто передавать найденные страницы
+    // Один поток для поиска: новый поиск встаёт в очередь за отменённым и начинается сразу после него
+    private static ExecutorService searchExecutor;
+    private static Handler mainHandler;
 
     public interface BookContentCallback {
         void onContentReady(List<String> pages);
         void onError(String error);
     }
 
+    /**
+     * Интерфейс для постепенного получения страниц книги.
+     * Страницы приходят порциями по мере разбора (глава EPUB, секция FB2, блок TXT),
+     * поэтому первые страницы можно показать до окончания разбора всей книги.
+     */
+    public interface BookContentStreamCallback {
+        /**
+         * @param fromIndex Индекс первой страницы порции в книге (с 0)
+         * @param pages Новые страницы в порядке следования
+         */
+        void onPagesAppended(int fromIndex, List<String> pages);
+        /**
+         * Оглавление, построенное в том же проходе, что и страницы (FB2, TXT или из кэша).
+         * Вызывается перед onComplete; если не вызван, оглавление нужно строить отдельно.
+         */
+        void onTocReady(List<TocItem> tocItems);
+        void onComplete(int totalPages);
+        void onError(String error);
+    }
+
+    /**
+     * Получатель разобранных глав EPUB, вызывается в порядке spine
+     */
+    private interface ChapterConsumer {
+        void onChapter(ParsedChapter chapter) throws IOException;
+    }
+
+    /**
+     * Глава EPUB после разбора: нормализованный HTML, её таблицы стилей и страницы
+     */
+    private static class ParsedChapter {
+        final String href;
+        final String html; // null, если главы нет в архиве
+        final String stylesheets;
+        final List<String> pages;
+
+        ParsedChapter(String href, String html, String stylesheets, List<String> pages) {
+            this.href = href;
+            this.html = html;
+            this.stylesheets = stylesheets;
+            this.pages = pages;
+        }
+    }
+
+    /**
+     * Интерфейс для получения поискового индекса книги
+     */
+    public interface SearchIndexCallback {
+        void onIndexReady(SearchIndex index);
+        void onError(String error);
+    }
+
+    /**
+     * Интерфейс для постепенного получения результатов поиска.
+     * Методы вызываются в главном потоке и только пока поиск не отменён.
+     */
+    public interface SearchCallback {
+        /**
+         * @param pages Новые страницы с совпадениями в порядке обхода
+         * @param hits Вхождения на этих страницах (пусто, если поиск идёт без индекса)
+         */
+        void onResults(List<Integer> pages, List<SearchIndex.Hit> hits);
+        void onComplete(int totalPages);
+    }
+
+    /**
+     * Дескриптор запущенного поиска
+     */
+    public static class SearchHandle {
+        private volatile boolean cancelled;
+
+        /**
+         * Останавливает поиск; результаты после отмены не передаются
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
     /**
      * Интерфейс для получения оглавления книги
      */
@@ -51,369 +165,259 @@ public class BookFileReader {
      * Читает EPUB-файл и возвращает его содержимое
      * Извлекает все HTML/XHTML файлы из EPUB и форматирует их для отображения
      */
-    private static void readEpub(Context context, Uri fileUri, BookContentCallback callback) {
+    private static void readEpub(Context context, Uri fileUri, PageStream pages) {
         Log.d(TAG, "Reading EPUB file: " + fileUri);
+        pages.setPageTemplate(EPUB_PAGE_START, EPUB_PAGE_END);
         
-        try {
-            InputStream inputStream = null;
-            
-            // Проверяем схему URI и выбираем подходящий способ открытия файла
-            String scheme = fileUri.getScheme();
-            if ("content".equals(scheme)) {
-                // Для URI с content:// схемой используем ContentResolver
-                inputStream = context.getContentResolver().openInputStream(fileUri);
-            } else if ("file".equals(scheme) || scheme == null) {
-                // Для URI с file:// схемой или локального пути файла используем прямое открытие
-                String path = fileUri.getPath();
-                if (path != null) {
-                    inputStream = new java.io.FileInputStream(new java.io.File(path));
-                }
-            } else {
-                Log.e(TAG, "Unsupported URI scheme: " + scheme);
-                callback.onError("Неподдерживаемая схема URI: " + scheme);
-                return;
-            }
-            
-            if (inputStream == null) {
-                Log.e(TAG, "Failed to open stream for: " + fileUri);
-                callback.onError("Не удалось открыть файл: " + fileUri);
-                return;
-            }
-
-            List<String> pages = new ArrayList<>();
-            
-            // Обрабатываем EPUB как ZIP-архив
-            ZipInputStream zipInputStream = new ZipInputStream(inputStream);
-            ZipEntry zipEntry;
-            
-            // Ищем OPF-файл
-            String opfFilePath = null;
-            byte[] buffer = new byte[4096];
-            
-            // Сначала ищем container.xml, чтобы найти путь к OPF-файлу
-            while ((zipEntry = zipInputStream.getNextEntry()) != null) {
-                if ("META-INF/container.xml".equals(zipEntry.getName())) {
-                    StringBuilder content = new StringBuilder();
-                    int len;
-                    while ((len = zipInputStream.read(buffer)) > 0) {
-                        content.append(new String(buffer, 0, len));
-                    }
-                    
-                    opfFilePath = extractOpfPathFromContainer(content.toString());
-                    break;
-                }
-            }
+        try (EpubContainer epub = EpubContainer.open(context, fileUri)) {
+            // Путь к OPF-файлу берём из container.xml
+            String opfFilePath = epub.getOpfPath();
+            String opfDir = epub.getOpfDirectory();
+            String opfContent = null;
+            List<String> contentFiles;
             
             // Если OPF-файл не найден, попробуем найти любой HTML/XHTML-файл
-            if (opfFilePath == null) {
+            if (opfFilePath == null || !epub.hasEntry(opfFilePath)) {
                 Log.d(TAG, "OPF file not found, searching for HTML/XHTML files directly");
-                inputStream.close();
-                
-                // Повторно открываем ZIP-файл
-                if ("content".equals(scheme)) {
-                    inputStream = context.getContentResolver().openInputStream(fileUri);
-                } else {
-                    String path = fileUri.getPath();
-                    if (path != null) {
-                        inputStream = new java.io.FileInputStream(new java.io.File(path));
-                    }
-                }
-                
-                if (inputStream == null) {
-                    Log.e(TAG, "Failed to reopen stream for: " + fileUri);
-                    callback.onError("Не удалось повторно открыть файл: " + fileUri);
-                    return;
-                }
                 
-                zipInputStream = new ZipInputStream(inputStream);
-                
-                // Собираем все HTML/XHTML-файлы
-                List<String> htmlFiles = new ArrayList<>();
-                while ((zipEntry = zipInputStream.getNextEntry()) != null) {
-                    String name = zipEntry.getName().toLowerCase();
+                // Собираем все HTML/XHTML-файлы в порядке архива
+                contentFiles = new ArrayList<>();
+                for (String entryName : epub.getEntryNames()) {
+                    String name = entryName.toLowerCase();
                     if (name.endsWith(".html") || name.endsWith(".xhtml") || name.endsWith(".htm")) {
-                        StringBuilder content = new StringBuilder();
-                        int len;
-                        while ((len = zipInputStream.read(buffer)) > 0) {
-                            content.append(new String(buffer, 0, len));
-                        }
-                        
-                        String processedContent = fixUnclosedTags(content.toString());
-                        pages.addAll(splitContentIntoPages(processedContent));
-                        htmlFiles.add(name);
+                        contentFiles.add(entryName);
                     }
                 }
                 
-                if (htmlFiles.isEmpty()) {
+                if (contentFiles.isEmpty()) {
                     Log.e(TAG, "No HTML/XHTML files found in EPUB");
-                    callback.onError("В EPUB не найдены HTML/XHTML файлы");
+                    pages.error("В EPUB не найдены HTML/XHTML файлы");
                     return;
                 }
-                
-                Log.d(TAG, "Processed " + htmlFiles.size() + " HTML files");
             } else {
-                // Закрываем входной поток
-                inputStream.close();
-                
-                // Повторно открываем ZIP-файл
-                if ("content".equals(scheme)) {
-                    inputStream = context.getContentResolver().openInputStream(fileUri);
-                } else {
-                    String path = fileUri.getPath();
-                    if (path != null) {
-                        inputStream = new java.io.FileInputStream(new java.io.File(path));
-                    }
-                }
-                
-                if (inputStream == null) {
-                    Log.e(TAG, "Failed to reopen stream for: " + fileUri);
-                    callback.onError("Не удалось повторно открыть файл: " + fileUri);
-                    return;
-                }
-                
-                zipInputStream = new ZipInputStream(inputStream);
-                
                 // Обрабатываем OPF-файл, чтобы получить упорядоченный список файлов контента
-                String opfDir = "";
-                int lastSlash = opfFilePath.lastIndexOf('/');
-                if (lastSlash != -1) {
-                    opfDir = opfFilePath.substring(0, lastSlash + 1);
-                }
-                
-                List<String> contentFiles = new ArrayList<>();
-                
-                while ((zipEntry = zipInputStream.getNextEntry()) != null) {
-                    if (zipEntry.getName().equals(opfFilePath)) {
-                        StringBuilder content = new StringBuilder();
-                        int len;
-                        while ((len = zipInputStream.read(buffer)) > 0) {
-                            content.append(new String(buffer, 0, len));
-                        }
-                        
-                        contentFiles = extractFilesFromOpf(content.toString(), opfDir);
-                        break;
-                    }
-                }
-                
-                // Закрываем входной поток
-                inputStream.close();
-                
-                // Повторно открываем ZIP-файл для чтения контента
-                if ("content".equals(scheme)) {
-                    inputStream = context.getContentResolver().openInputStream(fileUri);
-                } else {
-                    String path = fileUri.getPath();
-                    if (path != null) {
-                        inputStream = new java.io.FileInputStream(new java.io.File(path));
-                    }
-                }
-                
-                if (inputStream == null) {
-                    Log.e(TAG, "Failed to reopen stream for: " + fileUri);
-                    callback.onError("Не удалось повторно открыть файл: " + fileUri);
-                    return;
-                }
-                
-                zipInputStream = new ZipInputStream(inputStream);
-                
-                // Читаем контент из файлов
-                for (String contentFile : contentFiles) {
-                    final String entryName = contentFile;
-                    boolean found = false;
-                    
-                    // Сбрасываем входной поток для поиска конкретной записи
-                    inputStream.close();
-                    if ("content".equals(scheme)) {
-                        inputStream = context.getContentResolver().openInputStream(fileUri);
-                    } else {
-                        String path = fileUri.getPath();
-                        if (path != null) {
-                            inputStream = new java.io.FileInputStream(new java.io.File(path));
-                        }
-                    }
-                    
-                    if (inputStream == null) {
-                        Log.e(TAG, "Failed to reopen stream for: " + fileUri);
-                        continue;
-                    }
-                    
-                    zipInputStream = new ZipInputStream(inputStream);
-                    
-                    while ((zipEntry = zipInputStream.getNextEntry()) != null) {
-                        if (zipEntry.getName().equals(entryName)) {
-                            found = true;
-            StringBuilder content = new StringBuilder();
-                            int len;
-                            while ((len = zipInputStream.read(buffer)) > 0) {
-                                content.append(new String(buffer, 0, len));
-                            }
-                            
-                            String processedContent = fixUnclosedTags(content.toString());
-                            pages.addAll(splitContentIntoPages(processedContent));
-                            break;
-                        }
-                    }
-                    
-                    if (!found) {
-                        Log.w(TAG, "Content file not found: " + entryName);
-                    }
-                }
+                opfContent = epub.readEntryAsString(opfFilePath);
+                contentFiles = extractFilesFromOpf(opfContent, opfDir);
             }
             
-            // Закрываем входной поток
-            zipInputStream.close();
-            
-            // Проверяем, что у нас есть хотя бы одна страница
-            if (pages.isEmpty()) {
-                Log.w(TAG, "No content extracted from EPUB");
-                pages.add("<p>В книге не найден текстовый контент</p>");
+            // Отдаём страницы каждой главы сразу, не дожидаясь остальных
+            List<Callable<ParsedChapter>> chapters = new ArrayList<>();
+            for (String contentFile : contentFiles) {
+                chapters.add(() -> parseChapter(epub, contentFile, pages.getLayout()));
             }
+            HashMap<String, Integer> fileToPage = new HashMap<>();
+            paginateChapters(chapters, chapter -> appendEpubChapter(chapter, pages, fileToPage));
+            Log.d(TAG, "Processed " + contentFiles.size() + " HTML files");
             
-            Log.d(TAG, "EPUB processed successfully. Total pages: " + pages.size());
-            callback.onContentReady(pages);
+            // Оглавление NCX строим в том же проходе: первые страницы глав уже известны
+            List<TocItem> ncxItems = opfContent != null ? readNcxToc(epub, opfContent, opfDir) : null;
+            if (pages.isCompiling()) {
+                compileEpubResources(epub, pages);
+                pages.compileToc(ncxItems, opfDir);
+            }
+            if (ncxItems != null) {
+                pages.setTocItems(resolveEpubToc(ncxItems, contentFiles, fileToPage, opfDir));
+            }
             
+            completeEpub(pages);
         } catch (Exception e) {
             Log.e(TAG, "Error reading EPUB file: " + e.getMessage(), e);
-            callback.onError("Ошибка при чтении файла: " + e.getMessage());
+            pages.error("Ошибка при чтении файла: " + e.getMessage());
         }
     }
     
     /**
-     * Исправляет незакрытые HTML-теги в документе
-     * @param html HTML-контент для исправления
-     * @return исправленный HTML
+     * Передаёт страницы главы и запоминает, с какой страницы она начинается
      */
-    private static String fixUnclosedTags(String html) {
-        if (html == null || html.isEmpty()) {
-            return html;
+    private static void appendEpubChapter(ParsedChapter chapter, PageStream pages,
+                                          Map<String, Integer> fileToPage) {
+        fileToPage.put(chapter.href, pages.getPageCount() + 1);
+        pages.startChapter(chapter.href);
+        pages.compileBlock(chapter.href, chapter.html, chapter.stylesheets, null);
+        pages.append(chapter.pages);
+    }
+    
+    private static void completeEpub(PageStream pages) {
+        // Проверяем, что у нас есть хотя бы одна страница
+        if (pages.getPageCount() == 0) {
+            Log.w(TAG, "No content extracted from EPUB");
+            pages.append(Collections.singletonList("<p>В книге не найден текстовый контент</p>"));
         }
         
-        Log.d(TAG, "Fixing unclosed tags in HTML content");
-        
-        // Создаем стек для отслеживания открытых тегов
-        Stack<String> openTags = new Stack<>();
-        StringBuilder result = new StringBuilder();
+        Log.d(TAG, "EPUB processed successfully. Total pages: " + pages.getPageCount());
+        pages.complete();
+    }
+    
+    /**
+     * Сохраняет ресурсы EPUB (изображения, стили, шрифты) в скомпилированную книгу,
+     * чтобы EpubResourceServer отдавал их без открытия архива
+     */
+    private static void compileEpubResources(EpubContainer epub, PageStream pages) throws IOException {
+        for (String entryName : epub.getEntryNames()) {
+            String name = entryName.toLowerCase();
+            if (name.endsWith("/") || name.equals("mimetype") || name.endsWith(".html") ||
+                    name.endsWith(".xhtml") || name.endsWith(".htm") || name.endsWith(".opf") ||
+                    name.endsWith(".ncx") || name.endsWith(".xml")) {
+                continue;
+            }
+            byte[] data = epub.readEntryBytes(entryName);
+            if (data != null && data.length <= MAX_COMPILED_RESOURCE_SIZE) {
+                pages.compileResource(entryName, data);
+            }
+        }
+    }
+    
+    /**
+     * Разбирает главы EPUB и передаёт их получателю строго в порядке spine.
+     * Главы разбираются параллельно в ограниченном пуле; одновременно в работе находится
+     * не больше двух глав на поток, чтобы не держать в памяти всю книгу сразу.
+     */
+    private static void paginateChapters(List<Callable<ParsedChapter>> chapters,
+                                         ChapterConsumer consumer) throws Exception {
+        long start = System.currentTimeMillis();
         
-        Pattern tagPattern = Pattern.compile("<(/?)([a-zA-Z][a-zA-Z0-9:_-]*)([^>]*)(/?)>");
-        Matcher matcher = tagPattern.matcher(html);
+        if (serialChapterProcessing || chapters.size() < 2) {
+            for (Callable<ParsedChapter> chapter : chapters) {
+                consumer.onChapter(chapter.call());
+            }
+            Log.d(TAG, "Paginated " + chapters.size() + " chapters serially in " +
+                    (System.currentTimeMillis() - start) + " ms");
+            return;
+        }
         
-        int lastEnd = 0;
+        ExecutorService pool = getChapterPool();
+        int window = getChapterThreadCount() * 2;
+        Deque<Future<ParsedChapter>> pending = new ArrayDeque<>();
+        int nextToSubmit = 0;
         
-        while (matcher.find()) {
-            // Добавляем текст между тегами
-            result.append(html.substring(lastEnd, matcher.start()));
-            
-            boolean isClosingTag = !matcher.group(1).isEmpty();
-            boolean isSelfClosingTag = !matcher.group(4).isEmpty();
-            String tagName = matcher.group(2).toLowerCase();
-            
-            // Добавляем тег в результат
-            result.append(matcher.group(0));
-            
-            // Обрабатываем открывающие и закрывающие теги
-            if (!isSelfClosingTag) {
-                if (isClosingTag) {
-                    // Это закрывающий тег
-                    if (!openTags.isEmpty()) {
-                        String lastOpenTag = openTags.peek();
-                        
-                        if (lastOpenTag.equals(tagName)) {
-                            // Правильное закрытие, удаляем тег из стека
-                            openTags.pop();
-                        } else {
-                            // Тег не соответствует последнему открытому
-                            boolean foundInStack = false;
-                            
-                            // Проверяем, есть ли этот тег глубже в стеке
-                            for (int i = openTags.size() - 1; i >= 0; i--) {
-                                if (openTags.get(i).equals(tagName)) {
-                                    foundInStack = true;
-                                    
-                                    // Закрываем все промежуточные теги
-                                    for (int j = openTags.size() - 1; j >= i; j--) {
-                                        String intermediate = openTags.pop();
-                                        if (j > i) {
-                                            // Добавляем закрывающий тег для промежуточного тега
-                                            result.append("</").append(intermediate).append(">");
-                                            Log.d(TAG, "Added missing closing tag: " + intermediate);
-                                        }
-                                    }
-                                    break;
-                                }
-                            }
-                            
-                            if (!foundInStack) {
-                                // Закрывающий тег, для которого нет открывающего - игнорируем
-                                Log.d(TAG, "Ignoring closing tag without matching opening tag: " + tagName);
-                            }
-                        }
-                    }
-                } else if (!isVoidElement(tagName)) {
-                    // Это открывающий тег для элемента, который должен иметь закрывающий тег
-                    openTags.push(tagName);
+        try {
+            for (int i = 0; i < chapters.size(); i++) {
+                // Поддерживаем окно задач впереди текущей главы
+                while (nextToSubmit < chapters.size() && nextToSubmit - i < window) {
+                    pending.addLast(pool.submit(chapters.get(nextToSubmit++)));
                 }
+                
+                consumer.onChapter(pending.removeFirst().get());
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            throw cause instanceof Exception ? (Exception) cause : new Exception(cause);
+        } finally {
+            for (Future<ParsedChapter> future : pending) {
+                future.cancel(true);
             }
-            
-            lastEnd = matcher.end();
         }
         
-        // Добавляем оставшийся текст
-        result.append(html.substring(lastEnd));
-        
-        // Закрываем все оставшиеся открытые теги
-        while (!openTags.isEmpty()) {
-            String tagName = openTags.pop();
-            result.append("</").append(tagName).append(">");
-            Log.d(TAG, "Added closing tag for unclosed tag: " + tagName);
+        Log.d(TAG, "Paginated " + chapters.size() + " chapters on " + getChapterThreadCount() +
+                " threads in " + (System.currentTimeMillis() - start) + " ms");
+    }
+    
+    /**
+     * Читает одну главу и разбивает её на страницы (без страниц, если главы нет в архиве)
+     * @param layout Параметры разбиения или null, если глава только компилируется
+     */
+    private static ParsedChapter parseChapter(EpubContainer epub, String contentFile,
+                                              PageLayout layout) throws IOException {
+        String content = epub.readEntryAsString(contentFile);
+        if (content == null) {
+            Log.w(TAG, "Content file not found: " + contentFile);
+            return new ParsedChapter(contentFile, null, "", Collections.<String>emptyList());
         }
         
-        // Проверяем наличие обязательных тегов html, head и body
-        String resultString = result.toString();
-        
-        if (!resultString.contains("<html")) {
-            resultString = "<html>" + resultString + "</html>";
-        }
-        if (!resultString.contains("<head")) {
-            resultString = resultString.replace("<html>", "<html><head></head>");
+        // Изображения и стили загружаются из архива через EpubResourceServer;
+        // таблицы стилей из head главы повторяются в начале каждой её страницы
+        content = EpubResourceServer.rewriteResourceUrls(content, contentFile);
+        String stylesheets = EpubResourceServer.extractStylesheetLinks(content);
+        List<String> pages = layout != null ? paginateEpubHtml(content, stylesheets, layout)
+                : Collections.<String>emptyList();
+        return new ParsedChapter(contentFile, content, stylesheets, pages);
+    }
+    
+    /**
+     * Разбивает нормализованный HTML главы на страницы
+     */
+    private static List<String> paginateEpubHtml(String content, String stylesheets, PageLayout layout) {
+        // Обрамление страницы добавляет PageStore, поэтому размер считается без него
+        int pageSize = layout.countsEpubMarkup()
+                ? layout.getEpubCharsPerPage() - EPUB_PAGE_START.length() - EPUB_PAGE_END.length()
+                : layout.getEpubCharsPerPage();
+        List<String> pages = HtmlPaginator.paginate(content, pageSize, layout.countsEpubMarkup(), stylesheets, "");
+        if (pages.isEmpty()) {
+            // Глава без видимого содержимого всё равно занимает страницу
+            pages.add("<p>Пустая страница</p>");
         }
-        if (!resultString.contains("<body")) {
-            int headEndIndex = resultString.indexOf("</head>");
-            if (headEndIndex != -1) {
-                resultString = resultString.substring(0, headEndIndex + 7) + "<body>" + 
-                       resultString.substring(headEndIndex + 7);
+        return pages;
+    }
+    
+    /**
+     * Разбивает на страницы скомпилированную книгу. Блоки уже нормализованы,
+     * поэтому архив и XML не разбираются, остаётся только разбиение по размеру страницы.
+     */
+    private static void readCompiled(CompiledBook book, PageStream pages) {
+        Log.d(TAG, "Reading compiled " + book.getKind() + " book");
+        try {
+            if (CompiledBook.KIND_EPUB.equals(book.getKind())) {
+                pages.setPageTemplate(EPUB_PAGE_START, EPUB_PAGE_END);
+                List<String> contentFiles = new ArrayList<>();
+                List<Callable<ParsedChapter>> chapters = new ArrayList<>();
+                for (CompiledBook.Block block : book.getBlocks()) {
+                    contentFiles.add(block.href);
+                    chapters.add(() -> {
+                        String content = book.readContent(block);
+                        // Пустой блок - глава, которой не было в архиве: страниц у неё нет
+                        List<String> chapterPages = content.isEmpty() ? Collections.<String>emptyList()
+                                : paginateEpubHtml(content, block.stylesheets, pages.getLayout());
+                        return new ParsedChapter(block.href, content, block.stylesheets, chapterPages);
+                    });
+                }
+                HashMap<String, Integer> fileToPage = new HashMap<>();
+                paginateChapters(chapters, chapter -> appendEpubChapter(chapter, pages, fileToPage));
+                
+                List<TocItem> ncxItems = book.getToc();
+                if (ncxItems != null) {
+                    pages.setTocItems(resolveEpubToc(ncxItems, contentFiles, fileToPage, book.getBaseDirectory()));
+                }
+                completeEpub(pages);
             } else {
-                resultString = resultString.replace("</head>", "</head><body>");
+                pages.setPageTemplate(FB2_PAGE_STYLE, "");
+                List<TocItem> tocItems = new ArrayList<>();
+                for (CompiledBook.Block block : book.getBlocks()) {
+                    appendFb2Pages(book.readContent(block), pages, new ArrayList<>(block.anchors), tocItems);
+                }
+                pages.setTocItems(tocItems.isEmpty() ? buildPageNavigation(pages.getPageCount()) : tocItems);
+                
+                Log.d(TAG, "FB2 processed successfully, pages: " + pages.getPageCount());
+                pages.complete();
             }
+        } catch (Exception e) {
+            Log.e(TAG, "Error reading compiled book: " + e.getMessage(), e);
+            pages.error("Ошибка при чтении файла: " + e.getMessage());
         }
-        if (!resultString.contains("</body>")) {
-            resultString = resultString.replace("</html>", "</body></html>");
+    }
+    
+    private static synchronized ExecutorService getChapterPool() {
+        if (chapterPool == null) {
+            chapterPool = new ForkJoinPool(getChapterThreadCount());
         }
-        
-        return resultString;
+        return chapterPool;
+    }
+    
+    private static int getChapterThreadCount() {
+        return Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), MAX_CHAPTER_THREADS));
     }
     
     /**
-     * Проверяет, является ли HTML-элемент пустым (void element)
-     * Пустые элементы - это теги, которые не требуют закрывающего тега
+     * Включает или отключает параллельный разбор глав EPUB
+     * @param serial true - разбирать главы последовательно в текущем потоке
      */
-    private static boolean isVoidElement(String tagName) {
-        String[] voidElements = {
-            "area", "base", "br", "col", "embed", "hr", "img", "input", 
-            "link", "meta", "param", "source", "track", "wbr"
-        };
-        
-        for (String element : voidElements) {
-            if (element.equals(tagName)) {
-                return true;
-            }
-        }
-        
-        return false;
+    public static void setSerialChapterProcessing(boolean serial) {
+        serialChapterProcessing = serial;
     }
-
-    private static void readFb2(Context context, Uri fileUri, BookContentCallback callback) {
+    
+    private static void readFb2(Context context, Uri fileUri, PageStream pages) {
         try {
             Log.d(TAG, "Opening FB2 file: " + fileUri);
+            pages.setPageTemplate(FB2_PAGE_STYLE, "");
             InputStream inputStream = null;
             
             // Открываем поток согласно схеме URI
@@ -429,7 +433,7 @@ public class BookFileReader {
             
             if (inputStream == null) {
                 Log.e(TAG, "Failed to open input stream");
-                callback.onError("Не удалось открыть файл");
+                pages.error("Не удалось открыть файл");
                 return;
             }
 
@@ -438,7 +442,6 @@ public class BookFileReader {
             XmlPullParser parser = factory.newPullParser();
             parser.setInput(inputStream, null);
 
-            List<String> pages = new ArrayList<>();
             StringBuilder currentChapter = new StringBuilder();
             StringBuilder currentContent = new StringBuilder();
             String title = "";
@@ -451,6 +454,14 @@ public class BookFileReader {
             int depth = 0;
             int sectionDepth = -1;
             int paraCount = 0;
+            // Оглавление: уровень вложенности секций, текст текущего заголовка
+            // и заголовки, ещё не привязанные к страницам
+            boolean inNotes = false;
+            int sectionLevel = 0;
+            StringBuilder titleText = new StringBuilder();
+            int titleCount = 0;
+            List<TocItem> pendingToc = new ArrayList<>();
+            List<TocItem> tocItems = new ArrayList<>();
 
             int eventType = parser.getEventType();
             while (eventType != XmlPullParser.END_DOCUMENT) {
@@ -461,24 +472,37 @@ public class BookFileReader {
                         
                         if (tagName.equals("body")) {
                     inBody = true;
+                            // Примечания (body name="notes") в оглавление не попадают
+                            inNotes = "notes".equals(parser.getAttributeValue(null, "name"));
                         } else if (inBody && tagName.equals("section")) {
                             inSection = true;
+                            sectionLevel++;
                             if (sectionDepth == -1) {
                                 sectionDepth = depth;
                             }
                             
                             // Если это новая секция того же уровня, обрабатываем предыдущую
                             if (depth == sectionDepth && currentChapter.length() > 0) {
-                                splitHtmlIntoPages(currentChapter.toString(), pages);
+                                appendFb2Pages(currentChapter.toString(), pages, pendingToc, tocItems);
                                 currentChapter = new StringBuilder();
                             }
                         } else if (inBody && inSection && tagName.equals("title")) {
                             inTitle = true;
-                            currentContent.append("<h2>");
+                            titleText.setLength(0);
+                            if (inNotes) {
+                                currentContent.append("<h2>");
+                            } else {
+                                // id заголовка позволяет найти его страницу после разбиения главы
+                                currentContent.append("<h2 id=\"").append(FB2_TOC_ANCHOR)
+                                        .append(titleCount).append("\">");
+                            }
                         } else if (inBody && inSection && tagName.equals("p")) {
                             inParagraph = true;
                             currentContent.append("<p>");
                             paraCount++;
+                            if (inTitle && titleText.length() > 0) {
+                                titleText.append(' '); // Строки заголовка разделяем пробелом
+                            }
                         } else if (inBody && inSection && tagName.equals("emphasis")) {
                             inEmphasis = true;
                             currentContent.append("<em>");
@@ -511,6 +535,9 @@ public class BookFileReader {
                             String text = parser.getText().trim();
                             if (!text.isEmpty()) {
                                 currentContent.append(text);
+                                if (inTitle) {
+                                    titleText.append(text);
+                                }
                             }
                         }
                         break;
@@ -521,7 +548,9 @@ public class BookFileReader {
                         
                         if (endTagName.equals("body")) {
                             inBody = false;
+                            inNotes = false;
                         } else if (endTagName.equals("section")) {
+                            sectionLevel = Math.max(0, sectionLevel - 1);
                             if (depth < sectionDepth) {
                                 inSection = false;
                                 sectionDepth = -1;
@@ -534,14 +563,24 @@ public class BookFileReader {
                             }
                             
                             // Если накопилось много параграфов, разбиваем на страницы
+                            // Границы частей не зависят от размера страницы: части сохраняются в скомпилированной книге
                             if (paraCount > 20 || currentChapter.length() > CHARS_PER_PAGE * 2) {
-                                splitHtmlIntoPages(currentChapter.toString(), pages);
+                                appendFb2Pages(currentChapter.toString(), pages, pendingToc, tocItems);
                                 currentChapter = new StringBuilder();
                                 paraCount = 0;
                             }
-                        } else if (endTagName.equals("title")) {
+                        } else if (endTagName.equals("title") && inTitle) {
                             inTitle = false;
                             currentContent.append("</h2>");
+                            if (!inNotes) {
+                                // Страница станет известна, когда глава будет разбита на страницы
+                                String tocTitle = titleText.toString().trim();
+                                if (!tocTitle.isEmpty()) {
+                                    pendingToc.add(new TocItem(tocTitle, 0, Math.max(1, sectionLevel),
+                                            "#" + FB2_TOC_ANCHOR + titleCount));
+                                }
+                                titleCount++;
+                            }
                         } else if (endTagName.equals("p")) {
                             inParagraph = false;
                             if (inTitle) {
@@ -568,103 +607,126 @@ public class BookFileReader {
             
             // Обрабатываем последнюю главу, если она не пуста
             if (currentChapter.length() > 0) {
-                splitHtmlIntoPages(currentChapter.toString(), pages);
+                appendFb2Pages(currentChapter.toString(), pages, pendingToc, tocItems);
             }
 
             inputStream.close();
             
-            // Добавляем базовые стили для FB2
-            List<String> styledPages = new ArrayList<>();
-            for (String pageContent : pages) {
-                styledPages.add("<style>" + 
-                    "body { font-family: sans-serif; line-height: 3; }" +
-                    "h2 { text-align: center; margin: 10px 0; }" +
-                    "p { margin: 5px 0; text-indent: 20px; }" +
-                    "em { font-style: italic; }" +
-                    "strong { font-weight: bold; }" +
-                    "img { max-width: 100%; height: auto; display: block; margin: 10px auto; }" +
-                    "</style>" + pageContent);
-            }
+            // Книга без заголовков секций получает простую навигацию по страницам
+            pages.setTocItems(tocItems.isEmpty() ? buildPageNavigation(pages.getPageCount()) : tocItems);
             
-            Log.d(TAG, "FB2 processed successfully, pages: " + styledPages.size());
-            callback.onContentReady(styledPages);
+            Log.d(TAG, "FB2 processed successfully, pages: " + pages.getPageCount());
+            pages.complete();
         } catch (Exception e) {
             Log.e(TAG, "Error reading FB2", e);
-            callback.onError("Ошибка при чтении FB2 файла: " + e.getMessage());
+            pages.error("Ошибка при чтении FB2 файла: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Разбивает накопленную главу FB2 на страницы и передаёт их дальше
+     * (базовые стили добавляются обрамлением страниц).
+     * Заголовкам из pendingToc назначаются страницы, на которых оказались их якоря.
+     */
+    private static void appendFb2Pages(String chapterHtml, PageStream pages,
+                                       List<TocItem> pendingToc, List<TocItem> tocItems) {
+        pages.compileBlock(null, chapterHtml, null, pendingToc);
+        if (pages.getLayout() == null) {
+            // Книга только компилируется, страницы не нужны
+            tocItems.addAll(pendingToc);
+            pendingToc.clear();
+            return;
+        }
+        
+        List<String> chapterPages = HtmlPaginator.paginate(chapterHtml,
+                pages.getLayout().getFb2CharsPerPage(), false, "", "");
+        int fromIndex = pages.getPageCount();
+        int page = 0;
+        for (TocItem item : pendingToc) {
+            String anchor = "id=\"" + item.getContentRef().substring(1) + "\"";
+            while (page < chapterPages.size() - 1 && !chapterPages.get(page).contains(anchor)) {
+                page++;
+            }
+            item.setPageNumber(fromIndex + page + 1);
+            tocItems.add(item);
         }
+        pendingToc.clear();
+        pages.append(chapterPages);
     }
 
-    private static void readTxt(Context context, Uri fileUri, BookContentCallback callback) {
+    /**
+     * Простая навигация для книги без заголовков: начало, равномерные точки и конец книги
+     */
+    private static List<TocItem> buildPageNavigation(int totalPages) {
+        totalPages = Math.max(totalPages, 1);
+        List<TocItem> tocItems = new ArrayList<>();
+        tocItems.add(new TocItem("Start of the book", 1, 1));
+        
+        // ~10 точек или через каждые 5 страниц
+        int step = Math.max(totalPages / 10, 5);
+        for (int page = step; page < totalPages; page += step) {
+            int percentage = Math.round((float) page / totalPages * 100);
+            tocItems.add(new TocItem("Page " + page + " (" + percentage + "%)", page, 1));
+        }
+        
+        tocItems.add(new TocItem("End of the book", totalPages, 1));
+        return tocItems;
+    }
+
+    /**
+     * Читает TXT-файл через отображение в память.
+     * Строится только индекс смещений страниц, текст страницы декодируется при показе,
+     * поэтому файл не копируется в память целиком.
+     */
+    private static void readTxt(Context context, Uri fileUri, PageStream pages) {
         try {
             Log.d(TAG, "Opening TXT file: " + fileUri);
-            InputStream inputStream = null;
-            
-            // Открываем поток согласно схеме URI
-            String scheme = fileUri.getScheme();
-            String path = fileUri.getPath();
-            
-            if ("content".equals(scheme)) {
-                inputStream = context.getContentResolver().openInputStream(fileUri);
-            } else if ("file".equals(scheme) || scheme == null) {
-                // Для прямого файлового пути
-                inputStream = new java.io.FileInputStream(path);
+            MappedTextPages textPages = MappedTextPages.open(context, fileUri, pages.getLayout().getTextCharsPerPage());
+            pages.appendLazy(textPages);
+            pages.setTocItems(buildTxtToc(textPages));
+
+            Log.d(TAG, "TXT processed successfully, pages: " + pages.getPageCount());
+            pages.complete();
+        } catch (Exception e) {
+            Log.e(TAG, "Error reading TXT", e);
+            pages.error("Ошибка при чтении TXT файла: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Оглавление TXT из заголовков, найденных при построении индекса страниц
+     */
+    private static List<TocItem> buildTxtToc(MappedTextPages textPages) {
+        List<TocItem> tocItems = new ArrayList<>();
+        tocItems.add(new TocItem("Start of the book", 1, 1));
+        
+        int chapterCount = 0;
+        int lastPage = 1;
+        for (MappedTextPages.Heading heading : textPages.getHeadings()) {
+            if (chapterCount >= MAX_TXT_TOC_ITEMS) {
+                break;
             }
             
-            if (inputStream == null) {
-                Log.e(TAG, "Failed to open input stream");
-                callback.onError("Не удалось открыть файл");
-                return;
-            }
-
-            BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
-            StringBuilder content = new StringBuilder();
-            String line;
-            while ((line = reader.readLine()) != null) {
-                content.append(line).append("\n");
-            }
-            reader.close();
-
-            // Разбиваем текст на страницы
-            List<String> pages = new ArrayList<>();
-            String[] paragraphs = content.toString().split("\n\n");
-            StringBuilder currentPage = new StringBuilder();
-            int charCount = 0;
-
-            for (String paragraph : paragraphs) {
-                // Если параграф слишком длинный, разбиваем его
-                if (paragraph.length() > CHARS_PER_PAGE) {
-                    String[] parts = paragraph.split("\\. ");
-                    for (String part : parts) {
-                        if (charCount + part.length() + 2 > CHARS_PER_PAGE) {
-                            pages.add(currentPage.toString());
-                            currentPage = new StringBuilder();
-                            charCount = 0;
-                        }
-                        currentPage.append(part).append(". ");
-                        charCount += part.length() + 2;
-                    }
-                } else {
-                    if (charCount + paragraph.length() + 2 > CHARS_PER_PAGE) {
-                        pages.add(currentPage.toString());
-                        currentPage = new StringBuilder();
-                        charCount = 0;
-                    }
-                    currentPage.append(paragraph).append("\n\n");
-                    charCount += paragraph.length() + 2;
+            // Избегаем дублирования близких страниц
+            int page = heading.page + 1;
+            if (page - lastPage >= 2 || tocItems.size() <= 1) {
+                String title = heading.title;
+                if (title.length() > 80) {
+                    title = title.substring(0, 77) + "...";
                 }
+                tocItems.add(new TocItem(title, page, 1));
+                chapterCount++;
+                lastPage = page;
             }
-
-            // Добавляем последнюю страницу, если она не пуста
-            if (currentPage.length() > 0) {
-                pages.add(currentPage.toString());
-            }
-
-            Log.d(TAG, "TXT processed successfully, pages: " + pages.size());
-            callback.onContentReady(pages);
-        } catch (Exception e) {
-            Log.e(TAG, "Error reading TXT", e);
-            callback.onError("Ошибка при чтении TXT файла: " + e.getMessage());
         }
+        
+        // Если заголовков мало, это скорее случайные совпадения - даём простую навигацию
+        if (chapterCount < 3) {
+            Log.d(TAG, "Not enough headings found in TXT, creating simple navigation");
+            return buildPageNavigation(textPages.size());
+        }
+        Log.d(TAG, "TXT TOC ready: " + tocItems.size() + " items");
+        return tocItems;
     }
 
     private static void splitChapterIntoPages(String chapterContent, List<String> pages) {
@@ -756,276 +818,6 @@ public class BookFileReader {
         }
     }
 
-    /**
-     * Разделяет HTML-контент на страницы, сохраняя структуру HTML
-     * @param htmlContent HTML-контент для разделения
-     * @param pages список, в который будут добавлены страницы
-     */
-    private static void splitHtmlIntoPages(String htmlContent, List<String> pages) {
-        if (htmlContent == null || htmlContent.isEmpty()) {
-            return;
-        }
-        
-        Log.d(TAG, "Splitting HTML content of length " + htmlContent.length() + " into pages");
-        
-        // Максимальное количество символов на странице (примерное)
-        final int MAX_PAGE_SIZE = CHARS_PER_PAGE;
-        
-        // Pattern для поиска HTML-элементов (тегов и их содержимого)
-        // Это регулярное выражение ищет:
-        // 1. HTML-теги с их атрибутами
-        // 2. Текстовые узлы между тегами
-        Pattern pattern = Pattern.compile("<[^>]+>|[^<]+");
-        Matcher matcher = pattern.matcher(htmlContent);
-        
-        StringBuilder currentPage = new StringBuilder();
-        int currentPageSize = 0;
-        boolean isInHeadSection = false;
-        boolean hasAddedHeadSection = false;
-        boolean isInBodySection = false;
-        
-        // Храним открытые теги для закрытия страницы
-        List<String> openTags = new ArrayList<>();
-        
-        while (matcher.find()) {
-            String element = matcher.group();
-            
-            // Проверяем, является ли элемент тегом
-            if (element.startsWith("<")) {
-                // Проверим, открывающий или закрывающий тег
-                boolean isStartTag = !element.startsWith("</") && !element.endsWith("/>");
-                
-                // Отслеживаем секции head и body
-                if (element.contains("<head")) {
-                    isInHeadSection = true;
-                } else if (element.contains("</head>")) {
-                    isInHeadSection = false;
-                    hasAddedHeadSection = true;
-                } else if (element.contains("<body")) {
-                    isInBodySection = true;
-                } else if (element.contains("</body>")) {
-                    isInBodySection = false;
-                }
-                
-                // Для открывающих тегов (не самозакрывающихся) добавляем их в стек
-                if (isStartTag) {
-                    String tagName = element.substring(1, element.contains(" ") ? 
-                                    element.indexOf(" ") : element.indexOf(">"));
-                    
-                    // Добавляем только значимые структурные теги
-                    if (!tagName.equals("br") && !tagName.equals("img") && 
-                        !tagName.equals("input") && !tagName.equals("hr")) {
-                        openTags.add(tagName);
-                    }
-                } 
-                // Для закрывающих тегов удаляем из стека
-                else if (element.startsWith("</")) {
-                    String tagName = element.substring(2, element.indexOf(">"));
-                    
-                    // Удаляем тег из списка открытых
-                    if (!openTags.isEmpty() && openTags.get(openTags.size() - 1).equals(tagName)) {
-                        openTags.remove(openTags.size() - 1);
-                    }
-                }
-                
-                // HTML теги всегда добавляем к текущей странице
-                currentPage.append(element);
-            } 
-            // Текстовый узел (не тег)
-            else {
-                // Игнорируем текст в секции head
-                if (isInHeadSection) {
-                    currentPage.append(element);
-                    continue;
-                }
-                
-                // Если текстовый элемент слишком большой, разделим его
-                if (element.length() > MAX_PAGE_SIZE && isInBodySection) {
-                    splitLargeElement(element, openTags, currentPage, pages, MAX_PAGE_SIZE);
-                    currentPageSize = 0; // Начинаем новую страницу
-                    currentPage = new StringBuilder();
-                    
-                    // Добавляем базовую HTML структуру
-                    addHtmlStructure(currentPage, hasAddedHeadSection);
-                    
-                    // Открываем все незакрытые теги на новой странице
-                    for (String tag : openTags) {
-                        currentPage.append("<").append(tag).append(">");
-                    }
-                } 
-                // Если текущая страница становится слишком большой, создаем новую
-                else if (currentPageSize + element.length() > MAX_PAGE_SIZE && isInBodySection) {
-                    // Закрываем все открытые теги перед завершением страницы
-                    for (int i = openTags.size() - 1; i >= 0; i--) {
-                        currentPage.append("</").append(openTags.get(i)).append(">");
-                    }
-                    
-                    // Закрываем HTML-структуру
-                    if (isInBodySection) {
-                        currentPage.append("</body></html>");
-                    }
-                    
-                    // Добавляем страницу
-                    pages.add(currentPage.toString());
-                    
-                    // Начинаем новую страницу
-                    currentPage = new StringBuilder();
-                    currentPageSize = element.length();
-                    
-                    // Добавляем базовую HTML структуру
-                    addHtmlStructure(currentPage, hasAddedHeadSection);
-                    
-                    // Открываем все теги на новой странице
-                    for (String tag : openTags) {
-                        currentPage.append("<").append(tag).append(">");
-                    }
-                    
-                    // Добавляем текущий элемент
-                    currentPage.append(element);
-                } 
-                else {
-                    // Просто добавляем элемент к текущей странице
-                    currentPage.append(element);
-                    currentPageSize += element.length();
-                }
-            }
-        }
-        
-        // Добавляем последнюю страницу, если она не пуста
-        if (currentPage.length() > 0) {
-            // Закрываем все незакрытые теги
-            for (int i = openTags.size() - 1; i >= 0; i--) {
-                currentPage.append("</").append(openTags.get(i)).append(">");
-            }
-            
-            // Закрываем HTML-структуру
-            if (!currentPage.toString().contains("</body>")) {
-                currentPage.append("</body></html>");
-            }
-            
-            pages.add(currentPage.toString());
-        }
-        
-        Log.d(TAG, "HTML content split into " + pages.size() + " pages");
-    }
-    
-    /**
-     * Разделяет большой текстовый элемент на несколько страниц
-     */
-    private static void splitLargeElement(String element, List<String> openTags, 
-                                         StringBuilder currentPage, List<String> pages, 
-                                         int maxPageSize) {
-        // Закрываем все открытые теги перед завершением страницы
-        for (int i = openTags.size() - 1; i >= 0; i--) {
-            currentPage.append("</").append(openTags.get(i)).append(">");
-        }
-        
-        // Закрываем HTML-структуру
-        currentPage.append("</body></html>");
-        
-        // Добавляем текущую страницу
-        pages.add(currentPage.toString());
-        
-        // Разделяем большой элемент на части
-        int remaining = element.length();
-        int offset = 0;
-        
-        while (remaining > 0) {
-            // Создаем новую страницу
-            StringBuilder newPage = new StringBuilder();
-            
-            // Добавляем базовую HTML структуру
-            addHtmlStructure(newPage, true);
-            
-            // Открываем все теги
-            for (String tag : openTags) {
-                newPage.append("<").append(tag).append(">");
-            }
-            
-            // Определяем размер части
-            int partSize = Math.min(remaining, maxPageSize);
-            
-            // Пытаемся найти подходящую точку для разделения (конец предложения или пробел)
-            if (partSize < remaining) {
-                int lastPeriod = element.substring(offset, offset + partSize).lastIndexOf(". ");
-                int lastSpace = element.substring(offset, offset + partSize).lastIndexOf(" ");
-                
-                if (lastPeriod > 0 && lastPeriod > partSize - 100) {
-                    partSize = lastPeriod + 2; // +2 чтобы включить точку и пробел
-                } else if (lastSpace > 0 && lastSpace > partSize - 50) {
-                    partSize = lastSpace + 1; // +1 чтобы включить пробел
-                }
-            }
-            
-            // Добавляем часть элемента
-            newPage.append(element.substring(offset, offset + partSize));
-            
-            // Закрываем все теги
-            for (int i = openTags.size() - 1; i >= 0; i--) {
-                newPage.append("</").append(openTags.get(i)).append(">");
-            }
-            
-            // Закрываем HTML-структуру
-            newPage.append("</body></html>");
-            
-            // Добавляем страницу
-            pages.add(newPage.toString());
-            
-            // Обновляем счетчики
-            offset += partSize;
-            remaining -= partSize;
-        }
-    }
-    
-    /**
-     * Добавляет базовую HTML структуру к странице
-     */
-    private static void addHtmlStructure(StringBuilder page, boolean hasStyle) {
-        page.append("<!DOCTYPE html><html><head>");
-        
-        // Добавляем стили, если нужно
-        if (!hasStyle) {
-            page.append("<style>")
-                .append("body { font-family: 'sans-serif'; line-height: 1.5; margin: 8px; }")
-                .append("h1, h2, h3, h4, h5, h6 { text-align: center; margin: 12px 0; }")
-                .append("p { text-indent: 1.5em; margin: 0.5em 0; text-align: justify; }")
-                .append("img { max-width: 100%; height: auto; display: block; margin: 1em auto; }")
-                .append("</style>");
-        }
-        
-        page.append("</head><body>");
-    }
-
-    /**
-     * Извлекает путь к OPF файлу из container.xml
-     */
-    private static String extractOpfPathFromContainer(String containerXml) {
-        try {
-            XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
-            XmlPullParser parser = factory.newPullParser();
-            parser.setInput(new StringReader(containerXml));
-            
-            int eventType = parser.getEventType();
-            while (eventType != XmlPullParser.END_DOCUMENT) {
-                if (eventType == XmlPullParser.START_TAG && "rootfile".equals(parser.getName())) {
-                    for (int i = 0; i < parser.getAttributeCount(); i++) {
-                        if ("full-path".equals(parser.getAttributeName(i))) {
-                            String opfPath = parser.getAttributeValue(i);
-                            Log.d(TAG, "Found OPF path: " + opfPath);
-                            return opfPath;
-                        }
-                    }
-                }
-                eventType = parser.next();
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "Error parsing container.xml: " + e.getMessage(), e);
-        }
-        
-        Log.w(TAG, "No OPF path found in container.xml");
-        return null;
-    }
-    
     /**
      * Извлекает список файлов контента из OPF файла
      */
@@ -1121,211 +913,270 @@ public class BookFileReader {
     }
 
     /**
-     * Разбивает HTML-контент на страницы
+     * Выполняет поиск по тексту книги
+     * @param pages Страницы книги
+     * @param query Поисковый запрос
+     * @return Список индексов страниц, содержащих запрос
      */
-    private static List<String> splitContentIntoPages(String content) {
-        List<String> pages = new ArrayList<>();
+    public static List<Integer> searchInBook(List<String> pages, String query) {
+        List<Integer> results = new ArrayList<>();
         
-        // Максимальное количество символов на страницу
-        final int CHARS_PER_PAGE = 2000;
+        if (pages == null || query == null || query.isEmpty()) {
+            return results;
+        }
         
-        // Простейший HTML-парсер для обнаружения заголовков и разделов
-        int contentLength = content.length();
-        int currentPosition = 0;
-        StringBuilder currentPage = new StringBuilder();
+        // Компактное хранилище ищет прямо по общему буферу, не собирая строки страниц
+        if (pages instanceof PageStore) {
+            return ((PageStore) pages).findPages(query);
+        }
         
-        // Добавляем начальный тег страницы
-        currentPage.append("<div class='page'>");
+        String lowercaseQuery = query.toLowerCase();
         
-        while (currentPosition < contentLength) {
-            // Ищем позицию следующего заголовка или абзаца
-            int nextHeaderPos = findNextTag(content, currentPosition, "h1", "h2", "h3", "h4", "h5", "h6");
-            int nextParagraphPos = findNextTag(content, currentPosition, "p");
-            int nextDivPos = findNextTag(content, currentPosition, "div");
+        for (int i = 0; i < pages.size(); i++) {
+            String pageContent = pages.get(i);
             
-            // Находим ближайший следующий элемент
-            int nextElementPos = Math.min(
-                nextHeaderPos == -1 ? Integer.MAX_VALUE : nextHeaderPos,
-                Math.min(
-                    nextParagraphPos == -1 ? Integer.MAX_VALUE : nextParagraphPos,
-                    nextDivPos == -1 ? Integer.MAX_VALUE : nextDivPos
-                )
-            );
+            // Удаляем HTML-теги для более точного поиска
+            String plainText = pageContent.replaceAll("<[^>]*>", "");
             
-            // Если следующий элемент не найден, берем весь оставшийся контент
-            if (nextElementPos == Integer.MAX_VALUE) {
-                if (currentPosition < contentLength) {
-                    // Добавляем оставшийся контент к текущей странице
-                    currentPage.append(content.substring(currentPosition));
+            if (plainText.toLowerCase().contains(lowercaseQuery)) {
+                results.add(i);
+            }
+        }
+        
+        return results;
+    }
+    
+    /**
+     * Загружает поисковый индекс книги из кэша или строит его по страницам.
+     * Работа выполняется в фоновом потоке, колбэк вызывается из него же.
+     * @param context Контекст для доступа к файлам
+     * @param fileUri URI файла книги (ключ кэша)
+     * @param layout Параметры, с которыми книга разбита на страницы
+     * @param pages Полностью загруженные страницы книги
+     * @param callback Колбэк для возврата индекса
+     */
+    public static void loadSearchIndex(Context context, Uri fileUri, PageLayout layout, List<String> pages,
+                                       SearchIndexCallback callback) {
+        Context appContext = context.getApplicationContext();
+        new Thread(() -> {
+            try {
+                SearchIndex index = getOrBuildSearchIndex(appContext, fileUri, layout, pages);
+                if (index == null) {
+                    callback.onError("Книга слишком большая для поискового индекса");
+                    return;
                 }
-                break;
+                callback.onIndexReady(index);
+            } catch (Exception e) {
+                Log.e(TAG, "Error building search index: " + e.getMessage(), e);
+                callback.onError("Ошибка при построении поискового индекса: " + e.getMessage());
             }
-            
-            // Находим конец текущего элемента
-            int elementEndPos;
-            if (nextHeaderPos == nextElementPos) {
-                elementEndPos = findTagEnd(content, nextElementPos, "h");
-            } else if (nextParagraphPos == nextElementPos) {
-                elementEndPos = findTagEnd(content, nextElementPos, "p");
-            } else {
-                elementEndPos = findTagEnd(content, nextElementPos, "div");
+        }, "SearchIndexer").start();
+    }
+
+    /**
+     * Читает поисковый индекс из кэша или строит и сохраняет его
+     * @return индекс или null, если книга слишком большая для индекса
+     */
+    private static SearchIndex getOrBuildSearchIndex(Context context, Uri fileUri, PageLayout layout,
+                                                     List<String> pages) {
+        String cacheKey = PaginationCache.keyFor(context, fileUri, getLayoutSignature(layout));
+        java.io.File indexFile = cacheKey != null ? PaginationCache.getIndexFile(context, cacheKey) : null;
+
+        SearchIndex index = indexFile != null ? SearchIndex.readFrom(indexFile) : null;
+        if (index != null && index.getPageCount() == pages.size()) {
+            Log.d(TAG, "Using cached search index for: " + fileUri);
+            return index;
+        }
+
+        index = SearchIndex.build(pages);
+        if (index != null && indexFile != null) {
+            try {
+                index.writeTo(indexFile);
+                PaginationCache.trim(context);
+            } catch (IOException e) {
+                Log.e(TAG, "Error saving search index: " + e.getMessage(), e);
             }
-            
-            if (elementEndPos == -1) {
-                // Если конец тега не найден, берем следующие 100 символов или до конца
-                elementEndPos = Math.min(nextElementPos + 100, contentLength);
+        }
+        return index;
+    }
+
+    /**
+     * Запускает поиск в фоне, начиная с указанной страницы и продолжая с начала книги.
+     * Найденные страницы передаются порциями по мере обхода.
+     * @param pages Страницы книги (просматриваются страницы, загруженные к началу поиска).
+     *              Вызывать в потоке, который дописывает страницы: поиск идёт по снимку PageStore.
+     * @param index Поисковый индекс или null, тогда страницы просматриваются по очереди
+     * @param startPage Страница, с которой начинается поиск
+     * @param query Поисковый запрос
+     * @param callback Колбэк для результатов (в главном потоке)
+     * @return дескриптор для отмены поиска
+     */
+    public static SearchHandle searchInBookAsync(List<String> pages, SearchIndex index, int startPage,
+                                                 String query, SearchCallback callback) {
+        SearchHandle handle = new SearchHandle();
+        // Читалка продолжает дописывать страницы в главном потоке, поэтому поиск читает неизменяемый снимок
+        List<String> searchedPages = pages instanceof PageStore ? ((PageStore) pages).snapshot() : pages;
+        int pageCount = searchedPages.size();
+        int firstPage = pageCount > 0 ? Math.max(0, Math.min(startPage, pageCount - 1)) : 0;
+
+        getSearchExecutor().execute(() -> {
+            if (handle.isCancelled()) {
+                return;
             }
-            
-            String element = content.substring(nextElementPos, elementEndPos);
-            
-            // Проверяем, не превысит ли длину страницы добавление этого элемента
-            if (currentPage.length() + element.length() > CHARS_PER_PAGE) {
-                // Если элемент - заголовок, начинаем новую страницу и добавляем заголовок к ней
-                if (nextHeaderPos == nextElementPos) {
-                    // Завершаем текущую страницу
-                    currentPage.append("</div>");
-                    pages.add(currentPage.toString());
-                    
-                    // Начинаем новую страницу с заголовком
-                    currentPage = new StringBuilder("<div class='page'>");
-                    currentPage.append(element);
-                    
-                    // Обновляем текущую позицию
-                    currentPosition = elementEndPos;
-                } else {
-                    // Если это абзац, разделяем его
-                    // Завершаем текущую страницу
-                    currentPage.append("</div>");
-                    pages.add(currentPage.toString());
-                    
-                    // Начинаем новую страницу
-                    currentPage = new StringBuilder("<div class='page'>");
-                    currentPage.append(element);
-                    
-                    // Обновляем текущую позицию
-                    currentPosition = elementEndPos;
-                }
+            long start = System.currentTimeMillis();
+            int found;
+            if (index != null) {
+                found = searchWithIndex(index, firstPage, query, handle, callback);
             } else {
-                // Добавляем элемент к текущей странице
-                currentPage.append(element);
-                currentPosition = elementEndPos;
+                found = scanPages(searchedPages, pageCount, firstPage, query, handle, callback);
             }
-            
-            // Если текущая страница достаточно большая, завершаем ее
-            if (currentPage.length() >= CHARS_PER_PAGE) {
-                currentPage.append("</div>");
-                pages.add(currentPage.toString());
-                currentPage = new StringBuilder("<div class='page'>");
+            if (found < 0) {
+                Log.d(TAG, "Search cancelled: " + query);
+                return;
             }
+
+            Log.d(TAG, "Search for '" + query + "' found " + found + " pages in " +
+                    (System.currentTimeMillis() - start) + " ms");
+            final int totalFound = found;
+            postSearchResult(handle, () -> callback.onComplete(totalFound));
+        });
+        return handle;
+    }
+
+    /**
+     * Поиск по индексу: вхождения переупорядочиваются так, чтобы обход начинался со startPage
+     * @return количество найденных страниц или -1, если поиск отменён
+     */
+    private static int searchWithIndex(SearchIndex index, int startPage, String query,
+                                       SearchHandle handle, SearchCallback callback) {
+        List<SearchIndex.Hit> hits = index.search(query);
+        int split = 0;
+        while (split < hits.size() && hits.get(split).page < startPage) {
+            split++;
         }
-        
-        // Добавляем последнюю страницу, если она не пуста
-        if (currentPage.length() > "<div class='page'>".length()) {
-            currentPage.append("</div>");
-            pages.add(currentPage.toString());
+        List<SearchIndex.Hit> ordered = new ArrayList<>(hits.subList(split, hits.size()));
+        ordered.addAll(hits.subList(0, split));
+
+        List<Integer> resultPages = new ArrayList<>();
+        for (SearchIndex.Hit hit : ordered) {
+            if (resultPages.isEmpty() || resultPages.get(resultPages.size() - 1) != hit.page) {
+                resultPages.add(hit.page);
+            }
         }
-        
-        // Если нет страниц (например, из-за пустого контента), добавляем пустую страницу
-        if (pages.isEmpty()) {
-            pages.add("<div class='page'><p>Пустая страница</p></div>");
+        if (handle.isCancelled()) {
+            return -1;
         }
-        
-        Log.d(TAG, "Split content into " + pages.size() + " pages");
-        return pages;
+        if (!resultPages.isEmpty()) {
+            postSearchResult(handle, () -> callback.onResults(resultPages, ordered));
+        }
+        return resultPages.size();
     }
-    
+
     /**
-     * Находит позицию следующего тега из списка
+     * Поиск без индекса: страницы просматриваются по одной с проверкой отмены между ними
+     * @return количество найденных страниц или -1, если поиск отменён
      */
-    private static int findNextTag(String content, int startPos, String... tagNames) {
-        int minPos = -1;
-        
-        for (String tagName : tagNames) {
-            String openTag = "<" + tagName;
-            int pos = content.indexOf(openTag, startPos);
-            
-            if (pos != -1 && (minPos == -1 || pos < minPos)) {
-                // Проверяем, что это действительно начало тега (за ним следует пробел или >)
-                if (pos + openTag.length() < content.length()) {
-                    char nextChar = content.charAt(pos + openTag.length());
-                    if (nextChar == ' ' || nextChar == '>' || nextChar == '\n' || nextChar == '\r' || nextChar == '\t') {
-                        minPos = pos;
-                    }
-                }
+    private static int scanPages(List<String> pages, int pageCount, int startPage, String query,
+                                 SearchHandle handle, SearchCallback callback) {
+        String lowercaseQuery = query.toLowerCase();
+        StringBuilder plainText = new StringBuilder();
+        List<Integer> batch = new ArrayList<>();
+        long lastPublish = System.currentTimeMillis();
+        int found = 0;
+
+        for (int i = 0; i < pageCount; i++) {
+            if (handle.isCancelled()) {
+                return -1;
+            }
+            int page = (startPage + i) % pageCount;
+            if (pageContains(pages, page, lowercaseQuery, plainText)) {
+                batch.add(page);
+                found++;
+            }
+
+            long now = System.currentTimeMillis();
+            if (!batch.isEmpty() && now - lastPublish >= SEARCH_PUBLISH_INTERVAL_MS) {
+                List<Integer> published = batch;
+                postSearchResult(handle, () -> callback.onResults(published, Collections.emptyList()));
+                batch = new ArrayList<>();
+                lastPublish = now;
             }
         }
-        
-        return minPos;
+
+        if (!batch.isEmpty()) {
+            List<Integer> published = batch;
+            postSearchResult(handle, () -> callback.onResults(published, Collections.emptyList()));
+        }
+        return found;
     }
-    
+
     /**
-     * Находит конец тега
+     * Проверяет, содержит ли текст страницы (без HTML-тегов) запрос в нижнем регистре
      */
-    private static int findTagEnd(String content, int tagStartPos, String tagNamePrefix) {
-        // Находим открывающую скобку
-        int openTagStartPos = content.indexOf("<", tagStartPos);
-        if (openTagStartPos == -1) return -1;
-        
-        // Находим закрывающую скобку открывающего тега
-        int openTagEndPos = content.indexOf(">", openTagStartPos);
-        if (openTagEndPos == -1) return -1;
-        
-        // Проверяем, это самозакрывающийся тег?
-        if (content.charAt(openTagEndPos - 1) == '/') {
-            return openTagEndPos + 1; // Самозакрывающийся тег
+    private static boolean pageContains(List<String> pages, int page, String lowercaseQuery, StringBuilder plainText) {
+        if (pages instanceof PageStore) {
+            return ((PageStore) pages).pageContains(page, lowercaseQuery, plainText);
         }
-        
-        // Извлекаем имя тега
-        String tagContent = content.substring(openTagStartPos + 1, openTagEndPos);
-        String tagName = tagContent.split("\\s")[0]; // Берем только имя тега, без атрибутов
-        
-        // Проверяем, начинается ли тег с указанного префикса
-        if (!tagName.startsWith(tagNamePrefix)) {
-            return openTagEndPos + 1; // Не наш тег, возвращаем конец открывающего тега
+        String plain = pages.get(page).replaceAll("<[^>]*>", "");
+        return plain.toLowerCase().contains(lowercaseQuery);
+    }
+
+    private static void postSearchResult(SearchHandle handle, Runnable result) {
+        getMainHandler().post(() -> {
+            if (!handle.isCancelled()) {
+                result.run();
+            }
+        });
+    }
+
+    private static synchronized ExecutorService getSearchExecutor() {
+        if (searchExecutor == null) {
+            searchExecutor = java.util.concurrent.Executors.newSingleThreadExecutor(
+                    runnable -> new Thread(runnable, "BookSearch"));
         }
-        
-        // Находим закрывающий тег
-        String closeTag = "</" + tagName + ">";
-        int closeTagPos = content.indexOf(closeTag, openTagEndPos);
-        
-        if (closeTagPos == -1) {
-            // Закрывающий тег не найден, возвращаем конец открывающего тега
-            return openTagEndPos + 1;
+        return searchExecutor;
+    }
+
+    private static synchronized Handler getMainHandler() {
+        if (mainHandler == null) {
+            mainHandler = new Handler(Looper.getMainLooper());
         }
-        
-        // Возвращаем позицию конца закрывающего тега
-        return closeTagPos + closeTag.length();
+        return mainHandler;
     }
 
     /**
-     * Выполняет поиск по тексту книги
-     * @param pages Страницы книги
-     * @param query Поисковый запрос
-     * @return Список индексов страниц, содержащих запрос
+     * Подсвечивает вхождения из поискового индекса на странице
+     * @param pageContent HTML страницы
+     * @param page Номер страницы
+     * @param hits Вхождения запроса в порядке следования
+     * @return Содержимое с подсвеченным текстом
      */
-    public static List<Integer> searchInBook(List<String> pages, String query) {
-        List<Integer> results = new ArrayList<>();
-        
-        if (pages == null || query == null || query.isEmpty()) {
-            return results;
+    public static String highlightSearchHits(String pageContent, int page, List<SearchIndex.Hit> hits) {
+        if (pageContent == null || hits == null || hits.isEmpty()) {
+            return pageContent;
         }
-        
-        String lowercaseQuery = query.toLowerCase();
-        
-        for (int i = 0; i < pages.size(); i++) {
-            String pageContent = pages.get(i);
-            
-            // Удаляем HTML-теги для более точного поиска
-            String plainText = pageContent.replaceAll("<[^>]*>", "");
-            
-            if (plainText.toLowerCase().contains(lowercaseQuery)) {
-                results.add(i);
+
+        StringBuilder result = null;
+        int copied = 0;
+        for (SearchIndex.Hit hit : hits) {
+            if (hit.page != page || hit.offset < copied || hit.offset + hit.length > pageContent.length()) {
+                continue;
             }
+            if (result == null) {
+                result = new StringBuilder(pageContent.length() + 64);
+            }
+            result.append(pageContent, copied, hit.offset)
+                  .append("<span style='background-color:yellow;'>")
+                  .append(pageContent, hit.offset, hit.offset + hit.length)
+                  .append("</span>");
+            copied = hit.offset + hit.length;
         }
-        
-        return results;
+        if (result == null) {
+            return pageContent;
+        }
+        return result.append(pageContent, copied, pageContent.length()).toString();
     }
-    
+
     /**
      * Подсвечивает найденный текст на странице
      * @param pageContent Исходное содержимое страницы
@@ -1350,53 +1201,78 @@ public class BookFileReader {
         String scheme = fileUri.getScheme();
         if ("https".equals(scheme) || "http".equals(scheme)) {
             // Run download in background thread
-            new Thread(() -> {
-                try {
-                    // Download the file (existing download code)
-                    java.io.File tempDir = new java.io.File(context.getFilesDir(), "temp_books");
-                    if (!tempDir.exists()) {
-                        tempDir.mkdirs();
-                    }
-
-                    String fileName = "temp_" + System.currentTimeMillis();
-                    String fileExtension = getFileExtension(fileUri.toString());
-                    if (fileExtension != null && !fileExtension.isEmpty()) {
-                        fileName += "." + fileExtension;
-                    }
-
-                    java.io.File tempFile = new java.io.File(tempDir, fileName);
-
-                    java.net.URL url = new java.net.URL(fileUri.toString());
-                    java.net.HttpURLConnection connection = (java.net.HttpURLConnection) url.openConnection();
-
-                    if (connection.getResponseCode() == java.net.HttpURLConnection.HTTP_OK) {
-                        try (java.io.InputStream inputStream = connection.getInputStream();
-                             java.io.FileOutputStream outputStream = new java.io.FileOutputStream(tempFile)) {
-                            byte[] buffer = new byte[4096];
-                            int bytesRead;
-                            while ((bytesRead = inputStream.read(buffer)) != -1) {
-                                outputStream.write(buffer, 0, bytesRead);
-                            }
-                        }
-
-                        // Process the downloaded file on main thread
-                        Uri localUri = android.net.Uri.fromFile(tempFile);
-                        processLocalFile(context, localUri, callback);
-                    } else {
-                        callback.onError("Failed to download file: " + connection.getResponseCode());
-                    }
-                } catch (Exception e) {
-                    callback.onError("Error downloading file: " + e.getMessage());
-                }
-            }).start();
+            new Thread(() -> loadBookContent(context, fileUri, FIXED_LAYOUT, collectPages(callback))).start();
         } else {
             // Local file - process directly
-            processLocalFile(context, fileUri, callback);
+            loadBookContent(context, fileUri, FIXED_LAYOUT, collectPages(callback));
         }
     }
 
-    private static void processLocalFile(Context context, Uri fileUri, BookContentCallback callback) {
-        String mimeType = null;
+    /**
+     * Читает книгу в фоновом потоке и передаёт страницы по мере разбора.
+     * Колбэк вызывается из фонового потока.
+     * @param context Контекст для доступа к файлам
+     * @param fileUri URI к файлу книги (локальный или http/https)
+     * @param layout Параметры разбиения на страницы (объём страницы измеряется в этом же потоке)
+     * @param callback Колбэк для получения порций страниц
+     */
+    public static void readBookContentStreaming(Context context, Uri fileUri, PageLayout layout,
+                                                BookContentStreamCallback callback) {
+        new Thread(() -> loadBookContent(context, fileUri, layout, callback), "BookContentReader").start();
+    }
+
+    private static void loadBookContent(Context context, Uri fileUri, PageLayout layout,
+                                        BookContentStreamCallback callback) {
+        String scheme = fileUri.getScheme();
+        if (!"https".equals(scheme) && !"http".equals(scheme)) {
+            processLocalFile(context, fileUri, layout, callback);
+            return;
+        }
+
+        try {
+            // Скачанная книга берётся из кэша загрузок и проверяется условным запросом
+            java.io.File bookFile = BookDownloadCache.fetch(context, fileUri.toString());
+            processLocalFile(context, Uri.fromFile(bookFile), layout, callback);
+        } catch (Exception e) {
+            callback.onError("Error downloading file: " + e.getMessage());
+        }
+    }
+
+    private static void processLocalFile(Context context, Uri fileUri, PageLayout layout,
+                                         BookContentStreamCallback callback) {
+        String mimeType = getMimeType(context, fileUri);
+
+        try {
+            if (mimeType == null) {
+                callback.onError("Could not determine file type");
+                return;
+            }
+
+            switch (mimeType) {
+                case "application/epub+zip":
+                case "application/x-fictionbook+xml":
+                    readWithCache(context, fileUri, mimeType, layout, callback);
+                    break;
+                case "text/plain":
+                    // Индекс страниц TXT строится быстрее, чем читается кэш, поэтому кэш не используется
+                    readTxt(context, fileUri, new PageStream(callback, layout));
+                    break;
+                case "application/pdf":
+                    callback.onError("PDF reading not supported yet");
+                    break;
+                default:
+                    callback.onError("Unsupported file type: " + mimeType);
+            }
+        } catch (Exception e) {
+            callback.onError("Error reading file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Определяет MIME-тип книги по content-провайдеру или расширению файла
+     */
+    private static String getMimeType(Context context, Uri fileUri) {
+        String mimeType = null;
 
         // Get MIME type based on URI scheme
         String scheme = fileUri.getScheme();
@@ -1421,51 +1297,199 @@ public class BookFileReader {
                 }
             }
         }
+        return mimeType;
+    }
 
-        try {
-            if (mimeType == null) {
-                callback.onError("Could not determine file type");
-                return;
+    /**
+     * Отдаёт страницы из кэша разбиения, а при его отсутствии разбирает книгу и сохраняет результат
+     */
+    private static void readWithCache(Context context, Uri fileUri, String mimeType, PageLayout layout,
+                                      BookContentStreamCallback callback) {
+        String cacheKey = PaginationCache.keyFor(context, fileUri, getLayoutSignature(layout));
+        PaginationCache.Entry cached = cacheKey != null ? PaginationCache.load(context, cacheKey) : null;
+        if (cached != null) {
+            Log.d(TAG, "Using cached pagination for: " + fileUri);
+            callback.onPagesAppended(0, cached.pages);
+            if (cached.tocItems != null) {
+                callback.onTocReady(cached.tocItems);
+            }
+            callback.onComplete(cached.pages.size());
+            return;
+        }
+
+        PageStream pages = new PageStream(callback, layout);
+        if (cacheKey != null) {
+            pages.recordTo(context, cacheKey);
+        }
+
+        // Скомпилированная книга разбивается на страницы без повторного разбора исходного файла
+        String kind = getCompiledKind(mimeType);
+        File compiledFile = CompiledBook.getFile(context, fileUri, PARSER_VERSION);
+        CompiledBook compiled = CompiledBook.open(compiledFile, PARSER_VERSION);
+        if (compiled != null && compiled.getKind().equals(kind)) {
+            readCompiled(compiled, pages);
+            return;
+        }
+        if (compiledFile != null) {
+            pages.compileTo(openCompiler(compiledFile, kind));
+        }
+
+        switch (mimeType) {
+            case "application/epub+zip":
+                readEpub(context, fileUri, pages);
+                break;
+            case "application/x-fictionbook+xml":
+                readFb2(context, fileUri, pages);
+                break;
+            default:
+                readTxt(context, fileUri, pages);
+                break;
+        }
+    }
+
+    /**
+     * Компилирует книгу в вызывающем потоке, чтобы первое открытие не разбирало исходный файл.
+     * Вызывается при импорте; TXT не компилируется, его страницы и так читаются
+     * из отображённого в память файла.
+     * @param context Контекст для доступа к файлам
+     * @param fileUri URI к локальному файлу книги
+     */
+    static void compileBook(Context context, Uri fileUri) {
+        String kind = getCompiledKind(getMimeType(context, fileUri));
+        if (kind == null) {
+            return;
+        }
+        File compiledFile = CompiledBook.getFile(context, fileUri, PARSER_VERSION);
+        if (compiledFile == null || compiledFile.exists()) {
+            return;
+        }
+        CompiledBook.Writer writer = openCompiler(compiledFile, kind);
+        if (writer == null) {
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        PageStream pages = new PageStream(new BookContentStreamCallback() {
+            @Override
+            public void onPagesAppended(int fromIndex, List<String> pages) {
             }
 
-            switch (mimeType) {
-                case "application/epub+zip":
-                    readEpub(context, fileUri, callback);
-                    break;
-                case "application/x-fictionbook+xml":
-                    readFb2(context, fileUri, callback);
-                    break;
-                case "text/plain":
-                    readTxt(context, fileUri, callback);
-                    break;
-                case "application/pdf":
-                    callback.onError("PDF reading not supported yet");
-                    break;
-                default:
-                    callback.onError("Unsupported file type: " + mimeType);
+            @Override
+            public void onTocReady(List<TocItem> tocItems) {
             }
-        } catch (Exception e) {
-            callback.onError("Error reading file: " + e.getMessage());
+
+            @Override
+            public void onComplete(int totalPages) {
+                Log.d(TAG, "Compiled book " + fileUri + " in " + (System.currentTimeMillis() - start) + " ms");
+            }
+
+            @Override
+            public void onError(String error) {
+                Log.e(TAG, "Error compiling book " + fileUri + ": " + error);
+            }
+        }, null);
+        pages.compileTo(writer);
+        if (CompiledBook.KIND_EPUB.equals(kind)) {
+            readEpub(context, fileUri, pages);
+        } else {
+            readFb2(context, fileUri, pages);
         }
     }
+
     /**
-     * Генерирует оглавление для книжного файла
+     * Заранее разбивает книгу на страницы и строит поисковый индекс для заданных параметров,
+     * чтобы первое открытие взяло готовый результат из кэша. Выполняется в вызывающем потоке.
+     */
+    static void prepareBook(Context context, Uri fileUri, PageLayout layout) throws IOException {
+        List<List<String>> result = new ArrayList<>();
+        String[] error = new String[1];
+        loadBookContent(context, fileUri, layout, collectPages(new BookContentCallback() {
+            @Override
+            public void onContentReady(List<String> pages) {
+                result.add(pages);
+            }
+
+            @Override
+            public void onError(String message) {
+                error[0] = message;
+            }
+        }));
+        if (result.isEmpty()) {
+            throw new IOException(error[0] != null ? error[0] : "Книга не разобрана");
+        }
+        if (getOrBuildSearchIndex(context, fileUri, layout, result.get(0)) == null) {
+            Log.w(TAG, "Book is too large for a search index: " + fileUri);
+        }
+    }
+
+    /**
+     * Открывает скомпилированную книгу EPUB для чтения ресурсов или возвращает null
+     */
+    static CompiledBook openCompiledBook(Context context, Uri fileUri) {
+        CompiledBook book = CompiledBook.open(CompiledBook.getFile(context, fileUri, PARSER_VERSION), PARSER_VERSION);
+        return book != null && CompiledBook.KIND_EPUB.equals(book.getKind()) ? book : null;
+    }
+
+    private static String getCompiledKind(String mimeType) {
+        if ("application/epub+zip".equals(mimeType)) {
+            return CompiledBook.KIND_EPUB;
+        } else if ("application/x-fictionbook+xml".equals(mimeType)) {
+            return CompiledBook.KIND_FB2;
+        }
+        return null;
+    }
+
+    private static CompiledBook.Writer openCompiler(File compiledFile, String kind) {
+        try {
+            return new CompiledBook.Writer(compiledFile, kind, PARSER_VERSION);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot create compiled book: " + e.getMessage(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Строка с версией парсера и параметрами разбиения, входящая в ключ кэша
+     */
+    private static String getLayoutSignature(PageLayout layout) {
+        return "parser=" + PARSER_VERSION + ";" + layout.getSignature();
+    }
+
+    /**
+     * Генерирует оглавление для книжного файла.
+     * Работа выполняется в фоновом потоке, колбэк вызывается из него же.
      * @param context Контекст для доступа к файлам
      * @param fileUri URI к файлу книги
+     * @param layout Параметры, с которыми книга разбита на страницы (от них зависят номера страниц)
      * @param callback Колбэк для возврата оглавления
      */
-    public static void generateTableOfContents(Context context, Uri fileUri, TocCallback callback) {
+    public static void generateTableOfContents(Context context, Uri fileUri, PageLayout layout, TocCallback callback) {
+        new Thread(() -> extractTableOfContents(context, fileUri, layout, callback), "TocReader").start();
+    }
+
+    private static void extractTableOfContents(Context context, Uri fileUri, PageLayout layout, TocCallback callback) {
         Log.d(TAG, "Generating table of contents for: " + fileUri);
         
         String fileExtension = getFileExtension(fileUri.toString()).toLowerCase();
         
+        // Оглавление и таблица глав могут быть уже в кэше разбиения (TXT в кэш не попадает)
+        String cacheKey = fileExtension.equals("txt") ? null :
+                PaginationCache.keyFor(context, fileUri, getLayoutSignature(layout));
+        PaginationCache.Entry cached = cacheKey != null ? PaginationCache.load(context, cacheKey) : null;
+        if (cached != null && cached.tocItems != null) {
+            Log.d(TAG, "Using cached TOC for: " + fileUri);
+            callback.onTocReady(cached.tocItems);
+            return;
+        }
+        if (cached != null) {
+            callback = storeTocInCache(context, cacheKey, cached, callback);
+        }
+        
         try {
             if (fileExtension.equals("epub")) {
-                extractTocFromEpub(context, fileUri, callback);
-            } else if (fileExtension.equals("fb2")) {
-                extractTocFromFb2(context, fileUri, callback);
-            } else if (fileExtension.equals("txt")) {
-                extractTocFromTxt(context, fileUri, callback);
+                extractTocFromEpub(context, fileUri, layout, cached != null ? cached.chapters : null, callback);
+            } else if (fileExtension.equals("fb2") || fileExtension.equals("txt")) {
+                readTocWithPages(context, fileUri, fileExtension, layout, cached == null ? cacheKey : null, callback);
             } else {
                 callback.onError("Неподдерживаемый формат файла для извлечения оглавления: " + fileExtension);
             }
@@ -1475,425 +1499,288 @@ public class BookFileReader {
         }
     }
     
+    /**
+     * Дополняет запись кэша построенным оглавлением перед передачей его получателю
+     */
+    private static TocCallback storeTocInCache(Context context, String cacheKey,
+                                               PaginationCache.Entry cached, TocCallback callback) {
+        return new TocCallback() {
+            @Override
+            public void onTocReady(List<TocItem> tocItems) {
+                cached.tocItems = tocItems;
+                PaginationCache.store(context, cacheKey, cached);
+                callback.onTocReady(tocItems);
+            }
+
+            @Override
+            public void onError(String error) {
+                callback.onError(error);
+            }
+        };
+    }
+    
     /**
      * Извлекает оглавление из EPUB-файла
+     * @param chapters Таблица глав из кэша разбиения или null, если главы нужно пересчитать
      */
-    private static void extractTocFromEpub(Context context, Uri fileUri, TocCallback callback) {
+    private static void extractTocFromEpub(Context context, Uri fileUri, PageLayout layout,
+                                           List<PaginationCache.Chapter> chapters, TocCallback callback) {
         Log.d(TAG, "Extracting TOC from EPUB: " + fileUri);
         
-        try {
-            InputStream inputStream = null;
+        try (EpubContainer epub = EpubContainer.open(context, fileUri)) {
+            // Сначала найдем OPF-файл через container.xml
+            String opfFilePath = epub.getOpfPath();
+            String opfContent = opfFilePath != null ? epub.readEntryAsString(opfFilePath) : null;
             
-            // Проверяем схему URI и выбираем подходящий способ открытия файла
-            String scheme = fileUri.getScheme();
-            if ("content".equals(scheme)) {
-                inputStream = context.getContentResolver().openInputStream(fileUri);
-            } else if ("file".equals(scheme) || scheme == null) {
-                String path = fileUri.getPath();
-                if (path != null) {
-                    inputStream = new java.io.FileInputStream(new java.io.File(path));
-                }
-            } else {
-                Log.e(TAG, "Unsupported URI scheme: " + scheme);
-                callback.onError("Неподдерживаемая схема URI: " + scheme);
+            if (opfContent == null) {
+                Log.e(TAG, "OPF file not found in EPUB for TOC extraction");
+                callback.onError("OPF-файл не найден в EPUB для извлечения оглавления");
                 return;
             }
             
-            if (inputStream == null) {
-                Log.e(TAG, "Failed to open stream for TOC extraction: " + fileUri);
-                callback.onError("Не удалось открыть файл для извлечения оглавления: " + fileUri);
+            String opfDir = epub.getOpfDirectory();
+            List<TocItem> ncxItems = readNcxToc(epub, opfContent, opfDir);
+            if (ncxItems == null) {
+                Log.e(TAG, "TOC file (NCX) not found in EPUB");
+                callback.onError("Файл оглавления (NCX) не найден в EPUB");
                 return;
             }
-
-            ZipInputStream zipInputStream = new ZipInputStream(inputStream);
-            ZipEntry zipEntry;
             
-            // Сначала найдем OPF-файл через container.xml
-            String opfFilePath = null;
-            byte[] buffer = new byte[4096];
-            
-            while ((zipEntry = zipInputStream.getNextEntry()) != null) {
-                if ("META-INF/container.xml".equals(zipEntry.getName())) {
-            StringBuilder content = new StringBuilder();
-                    int len;
-                    while ((len = zipInputStream.read(buffer)) > 0) {
-                        content.append(new String(buffer, 0, len));
-                    }
-                    
-                    opfFilePath = extractOpfPathFromContainer(content.toString());
-                    break;
-                }
-            }
+            // Получаем список HTML файлов в правильном порядке для расчета номеров страниц
+            List<String> orderedContentFiles = extractFilesFromOpf(opfContent, opfDir);
             
-            if (opfFilePath == null) {
-                Log.e(TAG, "OPF file not found in EPUB for TOC extraction");
-                callback.onError("OPF-файл не найден в EPUB для извлечения оглавления");
-                return;
-            }
+            // Строим карту соответствия файлов и номеров страниц
+            HashMap<String, Integer> fileToPage = new HashMap<>();
             
-            // Перезапускаем поток для чтения OPF
-            inputStream.close();
-            if ("content".equals(scheme)) {
-                inputStream = context.getContentResolver().openInputStream(fileUri);
+            if (chapters != null) {
+                // Первые страницы глав уже известны из кэша разбиения
+                for (PaginationCache.Chapter chapter : chapters) {
+                    fileToPage.put(chapter.href, chapter.firstPage + 1);
+                }
             } else {
-                String path = fileUri.getPath();
-                if (path != null) {
-                    inputStream = new java.io.FileInputStream(new java.io.File(path));
+                int[] currentPage = {1};  // Страницы начинаются с 1
+                
+                // Обработка контента и подсчет страниц
+                List<Callable<ParsedChapter>> tasks = new ArrayList<>();
+                for (String contentFile : orderedContentFiles) {
+                    tasks.add(() -> parseChapter(epub, contentFile, layout));
                 }
+                paginateChapters(tasks, chapter -> {
+                    fileToPage.put(chapter.href, currentPage[0]);
+                    currentPage[0] += chapter.pages.size();
+                });
             }
             
-            if (inputStream == null) {
-                Log.e(TAG, "Failed to reopen stream for OPF reading: " + fileUri);
-                callback.onError("Не удалось повторно открыть файл для чтения OPF: " + fileUri);
-                return;
-            }
+            List<TocItem> tocItems = resolveEpubToc(ncxItems, orderedContentFiles, fileToPage, opfDir);
             
-            zipInputStream = new ZipInputStream(inputStream);
+            Log.d(TAG, "TOC extraction complete. Found " + tocItems.size() + " items");
+            callback.onTocReady(tocItems);
             
-            // Обрабатываем OPF-файл для получения пути к TOC
-            String tocPath = null;
-            String opfDir = "";
-            int lastSlash = opfFilePath.lastIndexOf('/');
-            if (lastSlash != -1) {
-                opfDir = opfFilePath.substring(0, lastSlash + 1);
-            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error extracting TOC from EPUB: " + e.getMessage(), e);
+            callback.onError("Ошибка при извлечении оглавления из EPUB: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Читает оглавление NCX, путь к которому указан в OPF. Страницы элементам не назначаются.
+     * @return элементы оглавления или null, если в OPF нет ссылки на NCX
+     */
+    private static List<TocItem> readNcxToc(EpubContainer epub, String opfContent, String opfDir) throws IOException {
+        // Обрабатываем OPF-файл для получения пути к TOC
+        String tocPath = null;
+        HashMap<String, String> idToHref = new HashMap<>();
+        
+        // Ищем ncx-файл в opf
+        try {
+            XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
+            XmlPullParser parser = factory.newPullParser();
+            parser.setInput(new StringReader(opfContent));
             
-            HashMap<String, String> idToHref = new HashMap<>();
+            String tocId = null;
             
-            while ((zipEntry = zipInputStream.getNextEntry()) != null) {
-                if (zipEntry.getName().equals(opfFilePath)) {
-                    StringBuilder content = new StringBuilder();
-                    int len;
-                    while ((len = zipInputStream.read(buffer)) > 0) {
-                        content.append(new String(buffer, 0, len));
-                    }
+            int eventType = parser.getEventType();
+            while (eventType != XmlPullParser.END_DOCUMENT) {
+                if (eventType == XmlPullParser.START_TAG) {
+                    String name = parser.getName();
                     
-                    // Ищем ncx-файл в opf
-                    try {
-                        XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
-                        XmlPullParser parser = factory.newPullParser();
-                        parser.setInput(new StringReader(content.toString()));
-                        
-                        String tocId = null;
-                        
-                        int eventType = parser.getEventType();
-                        while (eventType != XmlPullParser.END_DOCUMENT) {
-                            if (eventType == XmlPullParser.START_TAG) {
-                                String name = parser.getName();
-                                
-                                // Ищем spine с toc атрибутом
-                                if ("spine".equals(name)) {
-                                    for (int i = 0; i < parser.getAttributeCount(); i++) {
-                                        if ("toc".equals(parser.getAttributeName(i))) {
-                                            tocId = parser.getAttributeValue(i);
-                                            break;
-                                        }
-                                    }
-                                }
-                                
-                                // Собираем все item из manifest для последующего поиска
-                                if ("item".equals(name)) {
-                                    String id = null;
-                                    String href = null;
-                                    
-                                    for (int i = 0; i < parser.getAttributeCount(); i++) {
-                                        if ("id".equals(parser.getAttributeName(i))) {
-                                            id = parser.getAttributeValue(i);
-                                        } else if ("href".equals(parser.getAttributeName(i))) {
-                                            href = parser.getAttributeValue(i);
-                                        }
-                                    }
-                                    
-                                    if (id != null && href != null) {
-                                        idToHref.put(id, href);
-                                    }
-                                }
+                    // Ищем spine с toc атрибутом
+                    if ("spine".equals(name)) {
+                        for (int i = 0; i < parser.getAttributeCount(); i++) {
+                            if ("toc".equals(parser.getAttributeName(i))) {
+                                tocId = parser.getAttributeValue(i);
+                                break;
                             }
-                            eventType = parser.next();
                         }
+                    }
+                    
+                    // Собираем все item из manifest для последующего поиска
+                    if ("item".equals(name)) {
+                        String id = null;
+                        String href = null;
                         
-                        // Если нашли tocId, получаем путь к NCX-файлу
-                        if (tocId != null && idToHref.containsKey(tocId)) {
-                            tocPath = opfDir + idToHref.get(tocId);
-                            Log.d(TAG, "Found TOC path from spine: " + tocPath);
+                        for (int i = 0; i < parser.getAttributeCount(); i++) {
+                            if ("id".equals(parser.getAttributeName(i))) {
+                                id = parser.getAttributeValue(i);
+                            } else if ("href".equals(parser.getAttributeName(i))) {
+                                href = parser.getAttributeValue(i);
+                            }
                         }
                         
-                        // Если не нашли через spine, ищем напрямую NCX в manifest
-                        if (tocPath == null) {
-                            for (Map.Entry<String, String> entry : idToHref.entrySet()) {
-                                if (entry.getValue().toLowerCase().endsWith(".ncx")) {
-                                    tocPath = opfDir + entry.getValue();
-                                    Log.d(TAG, "Found TOC path by extension: " + tocPath);
-                                    break;
-                                }
-                            }
+                        if (id != null && href != null) {
+                            idToHref.put(id, href);
                         }
-                    } catch (Exception e) {
-                        Log.e(TAG, "Error parsing OPF for TOC: " + e.getMessage(), e);
                     }
-                    
-                    break;
                 }
+                eventType = parser.next();
             }
             
-            if (tocPath == null) {
-                Log.e(TAG, "TOC file (NCX) not found in EPUB");
-                callback.onError("Файл оглавления (NCX) не найден в EPUB");
-                return;
-            }
-            
-            // Перезапускаем поток для чтения NCX
-            inputStream.close();
-            if ("content".equals(scheme)) {
-                inputStream = context.getContentResolver().openInputStream(fileUri);
-            } else {
-                String path = fileUri.getPath();
-                if (path != null) {
-                    inputStream = new java.io.FileInputStream(new java.io.File(path));
-                }
-            }
-            
-            if (inputStream == null) {
-                Log.e(TAG, "Failed to reopen stream for NCX reading: " + fileUri);
-                callback.onError("Не удалось повторно открыть файл для чтения NCX: " + fileUri);
-                return;
-            }
-            
-            zipInputStream = new ZipInputStream(inputStream);
-            
-            // Получаем список HTML файлов в правильном порядке для расчета номеров страниц
-            List<String> orderedContentFiles = new ArrayList<>();
-            inputStream.close();
-            
-            if ("content".equals(scheme)) {
-                inputStream = context.getContentResolver().openInputStream(fileUri);
-            } else {
-                String path = fileUri.getPath();
-                if (path != null) {
-                    inputStream = new java.io.FileInputStream(new java.io.File(path));
-                }
+            // Если нашли tocId, получаем путь к NCX-файлу
+            if (tocId != null && idToHref.containsKey(tocId)) {
+                tocPath = opfDir + idToHref.get(tocId);
+                Log.d(TAG, "Found TOC path from spine: " + tocPath);
             }
             
-            zipInputStream = new ZipInputStream(inputStream);
-            
-            while ((zipEntry = zipInputStream.getNextEntry()) != null) {
-                if (zipEntry.getName().equals(opfFilePath)) {
-                    StringBuilder content = new StringBuilder();
-                    int len;
-                    while ((len = zipInputStream.read(buffer)) > 0) {
-                        content.append(new String(buffer, 0, len));
+            // Если не нашли через spine, ищем напрямую NCX в manifest
+            if (tocPath == null) {
+                for (Map.Entry<String, String> entry : idToHref.entrySet()) {
+                    if (entry.getValue().toLowerCase().endsWith(".ncx")) {
+                        tocPath = opfDir + entry.getValue();
+                        Log.d(TAG, "Found TOC path by extension: " + tocPath);
+                        break;
                     }
-                    
-                    orderedContentFiles = extractFilesFromOpf(content.toString(), opfDir);
-                    break;
                 }
             }
-            
-            // Заново открываем поток для чтения NCX
-            inputStream.close();
-            if ("content".equals(scheme)) {
-                inputStream = context.getContentResolver().openInputStream(fileUri);
-            } else {
-                String path = fileUri.getPath();
-                if (path != null) {
-                    inputStream = new java.io.FileInputStream(new java.io.File(path));
-                }
-            }
-            
-            zipInputStream = new ZipInputStream(inputStream);
-            
-            // Строим карту соответствия файлов и номеров страниц
-            HashMap<String, Integer> fileToPage = new HashMap<>();
-            int currentPage = 1;  // Страницы начинаются с 1
-            
-            for (String contentFile : orderedContentFiles) {
-                fileToPage.put(contentFile, currentPage);
+        } catch (Exception e) {
+            Log.e(TAG, "Error parsing OPF for TOC: " + e.getMessage(), e);
+        }
+        
+        if (tocPath == null) {
+            return null;
+        }
+        
+        // Читаем NCX-файл и создаем оглавление
+        List<TocItem> tocItems = new ArrayList<>();
+        String ncxContent = epub.readEntryAsString(tocPath);
+        
+        if (ncxContent != null) {
+            // Парсим NCX для извлечения элементов оглавления
+            try {
+                XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
+                XmlPullParser parser = factory.newPullParser();
+                parser.setInput(new StringReader(ncxContent));
                 
-                // Открываем новый поток для подсчета страниц в файле
-                InputStream pageCountStream = null;
-                if ("content".equals(scheme)) {
-                    pageCountStream = context.getContentResolver().openInputStream(fileUri);
-                } else {
-                    String path = fileUri.getPath();
-                    if (path != null) {
-                        pageCountStream = new java.io.FileInputStream(new java.io.File(path));
-                    }
-                }
+                Stack<Integer> depthStack = new Stack<>();
+                String currentText = null;
+                String currentContent = null;
+                int currentDepth = 0;
                 
-                if (pageCountStream != null) {
-                    ZipInputStream pageZip = new ZipInputStream(pageCountStream);
-                    ZipEntry pageEntry;
-                    
-                    while ((pageEntry = pageZip.getNextEntry()) != null) {
-                        if (pageEntry.getName().equals(contentFile)) {
-                            StringBuilder content = new StringBuilder();
-                            int len;
-                            while ((len = pageZip.read(buffer)) > 0) {
-                                content.append(new String(buffer, 0, len));
+                int eventType = parser.getEventType();
+                while (eventType != XmlPullParser.END_DOCUMENT) {
+                    switch (eventType) {
+                        case XmlPullParser.START_TAG:
+                            String tagName = parser.getName();
+                            
+                            if ("navPoint".equals(tagName)) {
+                                currentDepth++;
+                                depthStack.push(currentDepth);
+                            } else if ("text".equals(tagName)) {
+                                currentText = "";
+                            } else if ("content".equals(tagName)) {
+                                for (int i = 0; i < parser.getAttributeCount(); i++) {
+                                    if ("src".equals(parser.getAttributeName(i))) {
+                                        currentContent = parser.getAttributeValue(i);
+                                        break;
+                                    }
+                                }
                             }
+                            break;
                             
-                            // Обработка контента и подсчет страниц
-                            String processedContent = fixUnclosedTags(content.toString());
-                            List<String> pagesList = splitContentIntoPages(processedContent);
-                            currentPage += pagesList.size();
+                        case XmlPullParser.TEXT:
+                            if (currentText != null) {
+                                currentText += parser.getText();
+                            }
                             break;
-                        }
-                    }
-                    
-                    pageCountStream.close();
-                }
-            }
-            
-            // Теперь читаем NCX-файл и создаем оглавление
-            List<TocItem> tocItems = new ArrayList<>();
-            
-            while ((zipEntry = zipInputStream.getNextEntry()) != null) {
-                if (zipEntry.getName().equals(tocPath)) {
-                    StringBuilder content = new StringBuilder();
-                    int len;
-                    while ((len = zipInputStream.read(buffer)) > 0) {
-                        content.append(new String(buffer, 0, len));
-                    }
-                    
-                    // Парсим NCX для извлечения элементов оглавления
-                    try {
-                        XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
-                        XmlPullParser parser = factory.newPullParser();
-                        parser.setInput(new StringReader(content.toString()));
-                        
-                        Stack<Integer> depthStack = new Stack<>();
-                        String currentText = null;
-                        String currentContent = null;
-                        int currentDepth = 0;
-                        
-                        int eventType = parser.getEventType();
-                        while (eventType != XmlPullParser.END_DOCUMENT) {
-                            switch (eventType) {
-                                case XmlPullParser.START_TAG:
-                                    String tagName = parser.getName();
-                                    
-                                    if ("navPoint".equals(tagName)) {
-                                        currentDepth++;
-                                        depthStack.push(currentDepth);
-                                        
-                                        // Получаем id и playOrder, если они есть
-                                        String id = null;
-                                        int playOrder = 0;
-                                        
-                                        for (int i = 0; i < parser.getAttributeCount(); i++) {
-                                            if ("id".equals(parser.getAttributeName(i))) {
-                                                id = parser.getAttributeValue(i);
-                                            } else if ("playOrder".equals(parser.getAttributeName(i))) {
-                                                try {
-                                                    playOrder = Integer.parseInt(parser.getAttributeValue(i));
-                                                } catch (NumberFormatException e) {
-                                                    // Игнорируем, если playOrder не число
-                                                }
-                                            }
-                                        }
-                                    } else if ("text".equals(tagName)) {
-                                        currentText = "";
-                                    } else if ("content".equals(tagName)) {
-                                        for (int i = 0; i < parser.getAttributeCount(); i++) {
-                                            if ("src".equals(parser.getAttributeName(i))) {
-                                                currentContent = parser.getAttributeValue(i);
-                                                break;
-                                            }
-                                        }
-                                    }
-                                    break;
+                            
+                        case XmlPullParser.END_TAG:
+                            tagName = parser.getName();
+                            
+                            if ("navPoint".equals(tagName)) {
+                                // Проверяем, что у нас есть все необходимые данные
+                                if (currentText != null && currentContent != null) {
+                                    // Получаем уровень вложенности
+                                    int level = !depthStack.isEmpty() ? depthStack.peek() : 1;
                                     
-                                case XmlPullParser.TEXT:
-                                    if (currentText != null) {
-                                        currentText += parser.getText();
-                                    }
-                                    break;
+                                    // Создаем элемент оглавления с корректным уровнем вложенности
+                                    TocItem item = new TocItem(currentText.trim(), 0, level, currentContent);
+                                    tocItems.add(item);
                                     
-                                case XmlPullParser.END_TAG:
-                                    tagName = parser.getName();
+                                    Log.d(TAG, "Added TOC item: " + currentText + ", level: " + level);
                                     
-                                    if ("navPoint".equals(tagName)) {
-                                        // Проверяем, что у нас есть все необходимые данные
-                                        if (currentText != null && currentContent != null) {
-                                            // Вычисляем номер страницы
-                                            int pageNumber = calculatePageNumber(currentContent, fileToPage, opfDir);
-                                            
-                                            // Получаем уровень вложенности
-                                            int level = !depthStack.isEmpty() ? depthStack.peek() : 1;
-                                            
-                                            // Создаем элемент оглавления с корректным уровнем вложенности
-                                            TocItem item = new TocItem(currentText.trim(), pageNumber, level, currentContent);
-                                            tocItems.add(item);
-                                            
-                                            Log.d(TAG, "Added TOC item: " + currentText + ", page: " + pageNumber + ", level: " + level);
-                                            
-                                            // Сбрасываем текущие данные
-                                            currentText = null;
-                                            currentContent = null;
-                                        }
-                                        
-                                        // Уменьшаем глубину и удаляем из стека
-                                        if (!depthStack.isEmpty()) {
-                                            depthStack.pop();
-                                        }
-                                        currentDepth--;
-                                    } else if ("text".equals(tagName)) {
-                                        // Текст прочитан полностью, ничего не делаем
-                                    }
-                                    break;
+                                    // Сбрасываем текущие данные
+                                    currentText = null;
+                                    currentContent = null;
+                                }
+                                
+                                // Уменьшаем глубину и удаляем из стека
+                                if (!depthStack.isEmpty()) {
+                                    depthStack.pop();
+                                }
+                                currentDepth--;
                             }
-                            
-                            eventType = parser.next();
-                        }
-                    } catch (Exception e) {
-                        Log.e(TAG, "Error parsing NCX file: " + e.getMessage(), e);
+                            break;
                     }
                     
-                    break;
+                    eventType = parser.next();
                 }
+            } catch (Exception e) {
+                Log.e(TAG, "Error parsing NCX file: " + e.getMessage(), e);
             }
-            
-            // Если оглавление пустое, создаем простое оглавление на основе имен файлов
-            if (tocItems.isEmpty()) {
-                Log.d(TAG, "No TOC items found, creating simple TOC from file names");
-                int index = 1;
-                for (String contentFile : orderedContentFiles) {
-                    // Извлекаем имя файла из пути
-                    String fileName = contentFile.substring(contentFile.lastIndexOf('/') + 1);
-                    // Убираем расширение
-                    fileName = fileName.replaceAll("\\.[^.]*$", "");
-                    // Преобразуем в читаемый формат (например, chapter_1 -> Chapter 1)
-                    fileName = fileName.replace('_', ' ').replace('-', ' ');
-                    
-                    // Если имя начинается с цифры, добавляем "Глава"
-                    if (fileName.matches("^\\d.*")) {
-                        fileName = "Глава " + fileName;
-                    }
-                    
-                    // Первая буква заглавная, остальные строчные
-                    if (fileName.length() > 0) {
-                        fileName = fileName.substring(0, 1).toUpperCase() + fileName.substring(1).toLowerCase();
-                    }
-                    
-                    int pageNumber = 1;
-                    if (fileToPage.containsKey(contentFile)) {
-                        pageNumber = fileToPage.get(contentFile);
-                    }
-                    
-                    tocItems.add(new TocItem(fileName, pageNumber, 1, contentFile));
-                    index++;
+        }
+        return tocItems;
+    }
+    
+    /**
+     * Назначает элементам NCX страницы начала их глав.
+     * Если оглавление пустое, строит простое оглавление по именам файлов глав.
+     */
+    private static List<TocItem> resolveEpubToc(List<TocItem> ncxItems, List<String> orderedContentFiles,
+                                                HashMap<String, Integer> fileToPage, String opfDir) {
+        List<TocItem> tocItems = new ArrayList<>(ncxItems);
+        for (TocItem item : tocItems) {
+            item.setPageNumber(calculatePageNumber(item.getContentRef(), fileToPage, opfDir));
+        }
+        
+        // Если оглавление пустое, создаем простое оглавление на основе имен файлов
+        if (tocItems.isEmpty()) {
+            Log.d(TAG, "No TOC items found, creating simple TOC from file names");
+            for (String contentFile : orderedContentFiles) {
+                // Извлекаем имя файла из пути
+                String fileName = contentFile.substring(contentFile.lastIndexOf('/') + 1);
+                // Убираем расширение
+                fileName = fileName.replaceAll("\\.[^.]*$", "");
+                // Преобразуем в читаемый формат (например, chapter_1 -> Chapter 1)
+                fileName = fileName.replace('_', ' ').replace('-', ' ');
+                
+                // Если имя начинается с цифры, добавляем "Глава"
+                if (fileName.matches("^\\d.*")) {
+                    fileName = "Глава " + fileName;
+                }
+                
+                // Первая буква заглавная, остальные строчные
+                if (fileName.length() > 0) {
+                    fileName = fileName.substring(0, 1).toUpperCase() + fileName.substring(1).toLowerCase();
+                }
+                
+                int pageNumber = 1;
+                if (fileToPage.containsKey(contentFile)) {
+                    pageNumber = fileToPage.get(contentFile);
                 }
+                
+                tocItems.add(new TocItem(fileName, pageNumber, 1, contentFile));
             }
-
-            zipInputStream.close();
-            
-            Log.d(TAG, "TOC extraction complete. Found " + tocItems.size() + " items");
-            callback.onTocReady(tocItems);
-            
-        } catch (Exception e) {
-            Log.e(TAG, "Error extracting TOC from EPUB: " + e.getMessage(), e);
-            callback.onError("Ошибка при извлечении оглавления из EPUB: " + e.getMessage());
         }
+        return tocItems;
     }
     
     /**
@@ -1959,561 +1846,263 @@ public class BookFileReader {
     }
 
     /**
-     * Извлекает оглавление из FB2-файла
+     * Строит оглавление FB2 или TXT одним разбором книги: оглавление собирается вместе со страницами.
+     * Нужен, только если книга открыта без потокового чтения; при включённом кэше
+     * разбиение и оглавление заодно сохраняются для следующего открытия.
      */
-    private static void extractTocFromFb2(Context context, Uri fileUri, TocCallback callback) {
-        Log.d(TAG, "Extracting TOC from FB2: " + fileUri);
-        
-        try {
-            InputStream inputStream = null;
-            
-            // Проверяем схему URI и выбираем подходящий способ открытия файла
-            String scheme = fileUri.getScheme();
-            if ("content".equals(scheme)) {
-                inputStream = context.getContentResolver().openInputStream(fileUri);
-            } else if ("file".equals(scheme) || scheme == null) {
-                String path = fileUri.getPath();
-                if (path != null) {
-                    inputStream = new java.io.FileInputStream(new java.io.File(path));
-                }
-            } else {
-                Log.e(TAG, "Unsupported URI scheme: " + scheme);
-                callback.onError("Неподдерживаемая схема URI: " + scheme);
-                return;
+    private static void readTocWithPages(Context context, Uri fileUri, String fileExtension,
+                                         PageLayout layout, String cacheKey, TocCallback callback) {
+        boolean[] delivered = new boolean[1];
+        PageStream pages = new PageStream(new BookContentStreamCallback() {
+            @Override
+            public void onPagesAppended(int fromIndex, List<String> newPages) {
+                // Страницы здесь не нужны
             }
-            
-            if (inputStream == null) {
-                Log.e(TAG, "Failed to open stream for FB2 TOC extraction: " + fileUri);
-                callback.onError("Не удалось открыть файл для извлечения оглавления: " + fileUri);
-                return;
+
+            @Override
+            public void onTocReady(List<TocItem> tocItems) {
+                delivered[0] = true;
+                callback.onTocReady(tocItems);
             }
 
-            // Сначала получим содержимое файла для разбивки на страницы
-            List<String> allPages = new ArrayList<>();
-            CountDownLatch latch = new CountDownLatch(1);
-            
-            // Используем новый поток для чтения содержимого без блокировки
-            new Thread(() -> {
-                try {
-                    InputStream contentStream;
-                    if ("content".equals(scheme)) {
-                        contentStream = context.getContentResolver().openInputStream(fileUri);
-                    } else {
-                        String path = fileUri.getPath();
-                        contentStream = path != null
-                                ? new java.io.FileInputStream(new java.io.File(path))
-                                : null;
-                    }
-                    
-                    if (contentStream != null) {
-                        readFb2(context, fileUri, new BookContentCallback() {
-                            @Override
-                            public void onContentReady(List<String> pages) {
-                                allPages.addAll(pages);
-                                latch.countDown();
-                            }
-                            
-                            @Override
-                            public void onError(String error) {
-                                Log.e(TAG, "Error reading FB2 content: " + error);
-                                latch.countDown();
-                            }
-                        });
-                        contentStream.close();
-                    } else {
-                        latch.countDown();
-                    }
-                } catch (Exception e) {
-                    Log.e(TAG, "Error in FB2 content thread: " + e.getMessage());
-                    latch.countDown();
+            @Override
+            public void onComplete(int totalPages) {
+                if (!delivered[0]) {
+                    callback.onError("Оглавление не построено");
                 }
-            }).start();
-            
-            // Ждем максимум 5 секунд для получения страниц
+            }
+
+            @Override
+            public void onError(String error) {
+                callback.onError(error);
+            }
+        }, layout);
+        if (cacheKey != null) {
+            pages.recordTo(context, cacheKey);
+        }
+
+        if (fileExtension.equals("fb2")) {
+            readFb2(context, fileUri, pages);
+        } else {
+            readTxt(context, fileUri, pages);
+        }
+    }
+    
+    /**
+     * Передаёт страницы получателю порциями и ведёт общий счёт страниц.
+     * При включённой записи сохраняет результат в кэш разбиения по завершении.
+     */
+    private static class PageStream {
+        private final BookContentStreamCallback callback;
+        private final PageLayout layout;
+        private int pageCount = 0;
+        private String pagePrefix = "";
+        private String pageSuffix = "";
+        
+        // Запись для кэша разбиения (null, если кэширование не используется)
+        private Context cacheContext;
+        private String cacheKey;
+        private PageStore recordedPages;
+        private List<PaginationCache.Chapter> chapters;
+        // Оглавление, собранное при разборе (null, если формат его не даёт)
+        private List<TocItem> tocItems;
+        // Запись скомпилированной книги (null, если книга не компилируется)
+        private CompiledBook.Writer compiler;
+
+        PageStream(BookContentStreamCallback callback, PageLayout layout) {
+            this.callback = callback;
+            this.layout = layout;
+        }
+
+        /**
+         * Параметры разбиения, по которым считается объём страниц
+         */
+        PageLayout getLayout() {
+            return layout;
+        }
+
+        void recordTo(Context context, String key) {
+            cacheContext = context.getApplicationContext();
+            cacheKey = key;
+            recordedPages = new PageStore();
+            chapters = new ArrayList<>();
+        }
+
+        /**
+         * Включает запись разобранных блоков в скомпилированную книгу (writer может быть null)
+         */
+        void compileTo(CompiledBook.Writer writer) {
+            compiler = writer;
+        }
+
+        boolean isCompiling() {
+            return compiler != null;
+        }
+
+        /**
+         * Сохраняет нормализованный блок содержимого в скомпилированную книгу.
+         * Ошибка записи не прерывает чтение: книга просто останется нескомпилированной.
+         */
+        void compileBlock(String href, String html, String stylesheets, List<TocItem> anchors) {
+            if (compiler == null) {
+                return;
+            }
             try {
-                latch.await(5, TimeUnit.SECONDS);
-            } catch (InterruptedException e) {
-                Log.e(TAG, "Waiting for FB2 content was interrupted");
+                compiler.addBlock(href, stylesheets, html != null ? html : "", anchors);
+            } catch (IOException e) {
+                abandonCompilation(e);
+            }
+        }
+
+        void compileResource(String path, byte[] data) {
+            if (compiler == null) {
+                return;
             }
-            
-            int totalPages = allPages.size() > 0 ? allPages.size() : 50;
-            
-            // Прочитаем все главы из FB2 и сформируем оглавление
-            List<TocItem> tocItems = new ArrayList<>();
-            
             try {
-                XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
-                factory.setNamespaceAware(true);
-                XmlPullParser parser = factory.newPullParser();
-                parser.setInput(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
-                
-                Stack<Integer> depthStack = new Stack<>();
-                Stack<String> titleStack = new Stack<>();
-            boolean inBody = false;
-                boolean inSection = false;
-                boolean inTitle = false;
-                boolean inTitleP = false;
-                boolean inBookTitle = false;
-                StringBuilder titleText = new StringBuilder();
-                int sectionDepth = 0;
-                int currentPage = 1;
-                int titleCount = 0;
-                int sectionCount = 0;
-                
-                boolean hasTOC = false;
-                
-                int eventType = parser.getEventType();
-                while (eventType != XmlPullParser.END_DOCUMENT) {
-                    if (eventType == XmlPullParser.START_TAG) {
-                        String tagName = parser.getName();
-                        
-                        if ("body".equals(tagName)) {
-                    inBody = true;
-                            
-                            // Проверяем атрибут name="notes" в body - если есть, не считаем как основные главы
-                            boolean isNotes = false;
-                            for (int i = 0; i < parser.getAttributeCount(); i++) {
-                                if ("name".equals(parser.getAttributeName(i)) && 
-                                    "notes".equals(parser.getAttributeValue(i))) {
-                                    isNotes = true;
-                                    break;
-                                }
-                            }
-                            
-                            if (!isNotes) {
-                                depthStack.push(1);
-                                sectionDepth = 1;
-                            }
-                        } else if ("section".equals(tagName) && inBody) {
-                            inSection = true;
-                            sectionCount++;
-                            sectionDepth = depthStack.isEmpty() ? 1 : depthStack.peek() + 1;
-                            depthStack.push(sectionDepth);
-                        } else if ("title".equals(tagName)) {
-                            if (inBody || inSection) {
-                                inTitle = true;
-                                titleText = new StringBuilder();
-                                titleCount++;
-                            } else if (tagName.contains("book-title")) {
-                                inBookTitle = true;
-                            }
-                        } else if ("p".equals(tagName) && inTitle) {
-                            inTitleP = true;
-                            if (titleText.length() > 0) {
-                                titleText.append(" "); // Разделяем параграфы пробелами
-                            }
-                        }
-                    } else if (eventType == XmlPullParser.TEXT) {
-                        if (inTitleP || inTitle) {
-                            String text = parser.getText().trim();
-                            if (!text.isEmpty()) {
-                                titleText.append(text);
-                            }
-                        }
-                    } else if (eventType == XmlPullParser.END_TAG) {
-                        String tagName = parser.getName();
-                        
-                        if ("body".equals(tagName)) {
-                            inBody = false;
-                            if (!depthStack.isEmpty()) {
-                                depthStack.pop();
-                            }
-                        } else if ("section".equals(tagName) && inBody) {
-                            inSection = false;
-                            if (!depthStack.isEmpty()) {
-                                depthStack.pop();
-                                sectionDepth = depthStack.isEmpty() ? 1 : depthStack.peek();
-                            }
-                        } else if ("title".equals(tagName)) {
-                            if (inTitle) {
-                                inTitle = false;
-                                
-                                // Добавляем элемент оглавления, если заголовок не пустой
-                                String title = titleText.toString().trim();
-                                if (!title.isEmpty()) {
-                                    int level = depthStack.isEmpty() ? 1 : depthStack.peek();
-                                    
-                                    // Определяем номер страницы на основе закономерности распределения страниц
-                                    // и количества секций/заголовков
-                                    int pageEstimate = Math.min(
-                                        1 + (int)((double)titleCount / (sectionCount > 0 ? sectionCount : 1) * totalPages), 
-                                        totalPages);
-                                    
-                                    // Убедимся, что номера страниц увеличиваются последовательно
-                                    currentPage = Math.max(currentPage, pageEstimate);
-                                    
-                                    tocItems.add(new TocItem(title, currentPage, level));
-                                    hasTOC = true;
-                                    
-                                    Log.d(TAG, "Added FB2 TOC item: " + title + ", page " + currentPage + 
-                                        ", level " + level + ", depth stack: " + depthStack);
-                                    
-                                    // Увеличиваем номер страницы для следующей главы
-                                    currentPage += 2; // Примерно 2 страницы на раздел
-                                }
-                            } else if (inBookTitle) {
-                                inBookTitle = false;
-                            }
-                        } else if ("p".equals(tagName) && inTitleP) {
-                            inTitleP = false;
-                        }
-                    }
-                    
-                    eventType = parser.next();
-                }
-                
-                // Если оглавление пустое или содержит только один элемент, создаем простое оглавление
-                if (!hasTOC || tocItems.size() <= 1) {
-                    Log.d(TAG, "No meaningful FB2 TOC found, creating enhanced TOC. Original items: " + tocItems.size());
-                    
-                    // Попробуем проанализировать контент напрямую, чтобы найти заголовки
-                    boolean foundHeadings = false;
-                    
-                    // Получаем содержимое страниц книги и анализируем его
-                    if (allPages != null && !allPages.isEmpty()) {
-                        tocItems.clear();
-                        tocItems.add(new TocItem("Начало книги", 1, 1));
-                        
-                        // Анализируем больше страниц книги для поиска заголовков
-                        int pagesToCheck = Math.min(allPages.size(), 150);
-                        int chapterCount = 0;
-                        
-                        // Расширенные паттерны для определения заголовков в FB2
-                        Pattern chapterPattern = Pattern.compile(
-                            // HTML-заголовки
-                            "(?i)<h[1-6][^>]*>(.+?)</h[1-6]>|" + 
-                            // Жирный текст (часто используется для заголовков)
-                            "<(?:strong|b)[^>]*>([^<]{5,100})</(?:strong|b)>|" +
-                            // Выделенный текст (может быть заголовком)
-                            "<(?:emphasis|em)[^>]*>([^<]{5,100})</(?:emphasis|em)>|" +
-                            // Текст с классами заголовков
-                            "<p[^>]*class=[\"'](?:title|heading|chapter|header)[\"'][^>]*>([^<]+)</p>|" +
-                            // Заголовки глав
-                            "(?i)<p[^>]*>\\s*(?:<[^>]+>)*\\s*(?:глава|chapter|часть|part|раздел|section)\\s+(?:\\d+|[ivxlcdmIVXLCDM]+)\\s*[.:]?.*?</p>|" +
-                            // Subtitle элементы
-                            "<subtitle[^>]*>(.+?)</subtitle>|" +
-                            // Title элементы
-                            "<title[^>]*>(.+?)</title>|" +
-                            // Нумерованные заголовки
-                            "<p[^>]*>\\s*(?:<[^>]+>)*\\s*(?:\\d+|[ivxlcdmIVXLCDM]+)\\s*[.:]\\s+.+?</p>"
-                        );
-                        
-                        // Проходим по страницам
-                        int interval = 1;
-                        for (int i = 0; i < pagesToCheck; i += interval) {
-                            // Увеличиваем интервал проверки для страниц дальше начала книги
-                            if (i > 30) interval = 2;
-                            if (i > 60) interval = 3;
-                            if (i > 100) interval = 5;
-                            
-                            String content = allPages.get(i);
-                            Matcher matcher = chapterPattern.matcher(content);
-                            boolean foundOnThisPage = false;
-                            
-                            while (matcher.find()) {
-                                // Извлекаем заголовок из найденного совпадения
-                                String title = null;
-                                for (int g = 1; g <= matcher.groupCount(); g++) {
-                                    if (matcher.group(g) != null) {
-                                        title = matcher.group(g).trim();
-                                        break;
-                                    }
-                                }
-                                
-                                // Если группа не захватила текст, берем все совпадение и очищаем от HTML
-                                if (title == null || title.isEmpty()) {
-                                    title = matcher.group().replaceAll("<[^>]*>", " ").trim();
-                                }
-                                
-                                if (title != null && !title.isEmpty()) {
-                                    // Очищаем заголовок от оставшихся HTML-тегов и специальных символов
-                                    title = title.replaceAll("<[^>]*>", " ")
-                                               .replaceAll("&[^;]+;", " ")
-                                               .replaceAll("\\s+", " ")
-                                               .trim();
-                                    
-                                    // Проверяем длину заголовка после очистки
-                                    if (title.length() > 3 && title.length() < 100) {
-                                        // Если заголовок слишком длинный, обрезаем его
-                                        if (title.length() > 80) {
-                                            title = title.substring(0, 77) + "...";
-                                        }
-                                        
-                                        tocItems.add(new TocItem(title, i + 1, 1));
-                                        foundHeadings = true;
-                                        chapterCount++;
-                                        
-                                        Log.d(TAG, "FB2: Добавлен заголовок: '" + title + "' на стр. " + (i + 1));
-                                    }
-                                    
-                                    // Если уже нашли достаточно много заголовков, останавливаемся
-                                    if (chapterCount >= 50) break;
-                                }
-                            }
-                            
-                            // Пытаемся найти текстовые заголовки, если не нашли HTML заголовки
-                            if (!foundOnThisPage) {
-                                // Разбиваем страницу на параграфы и ищем короткие строки, которые могут быть заголовками
-                                String contentNoTags = content.replaceAll("<[^>]*>", " ")
-                                                             .replaceAll("&[^;]+;", " ")
-                                                             .replaceAll("\\s+", " ")
-                                                             .trim();
-                                
-                                String[] paragraphs = contentNoTags.split("\\.\\s+|\\n");
-                                
-                                for (String para : paragraphs) {
-                                    para = para.trim();
-                                    
-                                    // Пропускаем пустые или слишком длинные/короткие параграфы
-                                    if (para.isEmpty() || para.length() < 10 || para.length() > 100) {
-                    continue;
-                }
-                                    
-                                    // Проверяем на типичные паттерны заголовков
-                                    boolean isLikelyHeader = 
-                                        // Строка в верхнем регистре (для русских и английских текстов)
-                                        (para.equals(para.toUpperCase()) && para.length() < 60 && para.length() > 10) ||
-                                        // Строка начинается с типичных маркеров глав
-                                        para.matches("(?i)^\\s*(?:глава|chapter|часть|part|раздел|section)\\s+[\\dIVXLCDM]+.*") ||
-                                        // Строка начинается с цифры или римской цифры с точкой/двоеточием
-                                        para.matches("^\\s*[\\dIVXLCDM]+[.:]\\s+.*");
-                                    
-                                    if (isLikelyHeader) {
-                                        // Если заголовок слишком длинный, обрезаем его
-                                        if (para.length() > 80) {
-                                            para = para.substring(0, 77) + "...";
-                                        }
-                                        
-                                        // Проверяем на дубликаты
-                                        boolean isDuplicate = false;
-                                        for (TocItem existingItem : tocItems) {
-                                            if (existingItem.getTitle().equals(para) || 
-                                                Math.abs(existingItem.getPageNumber() - (i + 1)) < 2) {
-                                                isDuplicate = true;
-                    break;
-                }
-                                        }
-                                        
-                                        if (!isDuplicate) {
-                                            tocItems.add(new TocItem(para, i + 1, 1));
-                                            chapterCount++;
-                                            foundHeadings = true;
-                                            
-                                            Log.d(TAG, "Added FB2 text header: '" + para + "' on page " + (i + 1));
-                                            break;
-                                        }
-                                    }
-                                }
-                            }
-                            
-                            // Ограничиваем количество заголовков
-                            if (chapterCount >= 50) break;
-                        }
-                        
-                        // Если обнаружили хотя бы несколько заголовков, считаем анализ успешным
-                        if (chapterCount >= 3) {
-                            Log.d(TAG, "Found " + chapterCount + " chapter headings in FB2");
-                        } else {
-                            // Если не нашли достаточно заголовков, создаем базовую навигацию
-                            tocItems.clear();
-                            tocItems.add(new TocItem("Start of the book", 1, 1));
-                            
-                            // Добавляем равномерно распределенные точки навигации
-                            int step = Math.max(totalPages / 10, 5); // ~10 точек или через каждые 5 страниц
-                            for (int page = step; page < totalPages; page += step) {
-                                int percentage = Math.round((float)page / totalPages * 100);
-                                tocItems.add(new TocItem("Page " + page + " (" + percentage + "%)", page, 1));
-                            }
-                            
-                            tocItems.add(new TocItem("End of the book", totalPages, 1));
-                            
-                            Log.d(TAG, "No headings found in FB2, added navigation points");
-                        }
-                    }
-                }
-                
-                // Возвращаем оглавление
-                callback.onTocReady(tocItems);
-                
-        } catch (Exception e) {
-                Log.e(TAG, "Error parsing FB2 for TOC: " + e.getMessage(), e);
-                callback.onError("Error extracting TOC from FB2: " + e.getMessage());
-            } finally {
+                compiler.addResource(path, data);
+            } catch (IOException e) {
+                abandonCompilation(e);
+            }
+        }
+
+        void compileToc(List<TocItem> items, String baseDirectory) {
+            if (compiler != null) {
+                compiler.setToc(items, baseDirectory);
+            }
+        }
+
+        private void abandonCompilation(IOException e) {
+            Log.e(TAG, "Error writing compiled book: " + e.getMessage(), e);
+            compiler.close();
+            compiler = null;
+        }
+
+        /**
+         * Задаёт общее обрамление страниц книги (до добавления первой страницы)
+         */
+        void setPageTemplate(String prefix, String suffix) {
+            pagePrefix = prefix;
+            pageSuffix = suffix;
+        }
+
+        void startChapter(String href) {
+            if (chapters != null) {
+                chapters.add(new PaginationCache.Chapter(href, pageCount));
+            }
+        }
+
+        /**
+         * Передаёт порцию страниц, заданных содержимым без обрамления
+         */
+        void append(List<String> pageBodies) {
+            if (pageBodies.isEmpty()) {
+                return;
+            }
+            PageStore chunk = new PageStore(pagePrefix, pageSuffix);
+            for (String body : pageBodies) {
+                chunk.appendPage(body);
+            }
+            if (recordedPages != null) {
+                recordedPages.appendPages(chunk);
+            }
+            int fromIndex = pageCount;
+            pageCount += chunk.size();
+            callback.onPagesAppended(fromIndex, chunk);
+        }
+
+        /**
+         * Передаёт страницы, которые формируются по требованию (отображённый в память TXT).
+         * Такие страницы не копируются и не записываются в кэш разбиения.
+         */
+        void appendLazy(List<String> lazyPages) {
+            recordedPages = null;
+            cacheKey = null;
+            if (lazyPages.isEmpty()) {
+                return;
+            }
+            int fromIndex = pageCount;
+            pageCount += lazyPages.size();
+            callback.onPagesAppended(fromIndex, lazyPages);
+        }
+
+        int getPageCount() {
+            return pageCount;
+        }
+
+        /**
+         * Задаёт оглавление, собранное вместе со страницами (до вызова complete)
+         */
+        void setTocItems(List<TocItem> items) {
+            tocItems = items;
+        }
+
+        void complete() {
+            if (compiler != null) {
                 try {
-                    inputStream.close();
+                    compiler.commit();
                 } catch (IOException e) {
-                    Log.e(TAG, "Error closing FB2 stream: " + e.getMessage(), e);
+                    Log.e(TAG, "Error saving compiled book: " + e.getMessage(), e);
+                } finally {
+                    compiler.close();
+                    compiler = null;
                 }
             }
-        } catch (Exception e) {
-            Log.e(TAG, "Error extracting TOC from FB2: " + e.getMessage(), e);
-            callback.onError("Error extracting TOC from FB2: " + e.getMessage());
+            if (cacheKey != null) {
+                recordedPages.trimToSize();
+                PaginationCache.store(cacheContext, cacheKey,
+                        new PaginationCache.Entry(recordedPages, chapters, tocItems));
+            }
+            if (tocItems != null) {
+                callback.onTocReady(tocItems);
+            }
+            callback.onComplete(pageCount);
+        }
+
+        void error(String error) {
+            if (compiler != null) {
+                compiler.close();
+                compiler = null;
+            }
+            callback.onError(error);
         }
     }
-    
+
     /**
-     * Извлекает простое оглавление из TXT-файла
+     * Собирает все страницы потока и отдаёт их разом в BookContentCallback
      */
-    private static void extractTocFromTxt(Context context, Uri fileUri, TocCallback callback) {
-        Log.d(TAG, "Creating TOC for TXT file: " + fileUri);
-        
-        try {
-            // Извлекаем сырой текст и анализируем его на наличие заголовков глав
-            final List<String> txtPages = new ArrayList<>();
-            final List<String> rawContent = new ArrayList<>();
-            final CountDownLatch latch = new CountDownLatch(1);
-            
-            // Читаем файл для получения сырого текста
-            new Thread(() -> {
-                try {
-                    // Получаем страницы через стандартный метод
-                    readTxt(context, fileUri, new BookContentCallback() {
-                        @Override
-                        public void onContentReady(List<String> pages) {
-                            txtPages.addAll(pages);
-                            
-                            // Получаем оригинальный текст
-                            InputStream contentStream = null;
-                            String scheme = fileUri.getScheme();
-                            
-                            try {
-                                if ("content".equals(scheme)) {
-                                    contentStream = context.getContentResolver().openInputStream(fileUri);
-                                } else {
-                                    String path = fileUri.getPath();
-                                    if (path != null) {
-                                        contentStream = new java.io.FileInputStream(new java.io.File(path));
-                                    }
-                                }
-                                
-                                if (contentStream != null) {
-                                    BufferedReader reader = new BufferedReader(new InputStreamReader(contentStream, StandardCharsets.UTF_8));
-            String line;
-            while ((line = reader.readLine()) != null) {
-                                        rawContent.add(line);
-                                    }
-                                    contentStream.close();
-                                }
-                            } catch (Exception e) {
-                                Log.e(TAG, "Error reading raw TXT: " + e.getMessage(), e);
-                            }
-                            
-                            latch.countDown();
-                        }
-                        
-                        @Override
-                        public void onError(String error) {
-                            Log.e(TAG, "Error reading TXT pages: " + error);
-                            latch.countDown();
-                        }
-                    });
-        } catch (Exception e) {
-                    Log.e(TAG, "Error in TXT reading thread: " + e.getMessage(), e);
-                    latch.countDown();
+    private static BookContentStreamCallback collectPages(BookContentCallback callback) {
+        PageStore pages = new PageStore();
+        List<List<String>> lazyPages = new ArrayList<>();
+        return new BookContentStreamCallback() {
+            @Override
+            public void onPagesAppended(int fromIndex, List<String> newPages) {
+                if (newPages instanceof PageStore) {
+                    pages.addAll(newPages);
+                } else if (lazyPages.isEmpty() && pages.isEmpty()) {
+                    // Ленивые страницы отдаём как есть, не собирая их текст
+                    lazyPages.add(newPages);
+                } else {
+                    pages.addAll(newPages);
                 }
-            }).start();
-            
-            // Ждем максимум 5 секунд
-            try {
-                latch.await(5, TimeUnit.SECONDS);
-            } catch (InterruptedException e) {
-                Log.e(TAG, "Waiting for TXT reading was interrupted", e);
             }
-            
-            // Создаем элементы оглавления
-            List<TocItem> tocItems = new ArrayList<>();
-            int totalPages = Math.max(txtPages.size(), 1);
-            
-            // Анализируем текст и ищем потенциальные заголовки
-            Log.d(TAG, "Starting to analyze TXT content for headings");
-            
-            if (!rawContent.isEmpty()) {
-                // Добавляем начало книги
-                tocItems.add(new TocItem("Start of the book", 1, 1));
-                
-                // Улучшенные паттерны для определения заголовков
-                Pattern chapterPattern = Pattern.compile(
-                    // Типичные обозначения глав
-                    "(?i)^\\s*(chapter|part|section)\\s+([\\dIVXLCDM]+|[a-zA-Z]+).*" + 
-                    // Пронумерованные заголовки
-                    "|^\\s*([\\dIVXLCDM]+)[.:]\\s+.*"
-                );
-                
-                int chapterCount = 0;
-                int lastPage = 1;
-                
-                // Анализируем содержимое для поиска заголовков
-                for (int i = 0; i < rawContent.size() && chapterCount < 50; i++) {
-                    String line = rawContent.get(i).trim();
-                    
-                    // Пропускаем пустые строки
-                    if (line.isEmpty() || line.length() < 5) {
-                        continue;
-                    }
-                    
-                    // Проверяем паттерны заголовков
-                    boolean isPotentialHeader = 
-                        // Паттерн совпадает с известными форматами заголовков
-                        chapterPattern.matcher(line).find() ||
-                        // Или короткая строка в верхнем регистре
-                        (line.equals(line.toUpperCase()) && line.length() > 10 && line.length() < 60) ||
-                        // Короткая строка с пустыми строками до и после
-                        (line.length() < 80 && i > 0 && i < rawContent.size() - 1 && 
-                         rawContent.get(i-1).trim().isEmpty() && 
-                         rawContent.get(i+1).trim().isEmpty());
-                    
-                    if (isPotentialHeader) {
-                        // Обрезаем слишком длинные заголовки
-                        String title = line;
-                        if (title.length() > 80) {
-                            title = title.substring(0, 77) + "...";
-                        }
-                        
-                        // Вычисляем примерную страницу
-                        int page = 1 + (int)((double)i / rawContent.size() * totalPages);
-                        
-                        // Избегаем дублирования близких страниц
-                        if (page - lastPage >= 2 || tocItems.size() <= 1) {
-                            tocItems.add(new TocItem(title, page, 1));
-                            chapterCount++;
-                            lastPage = page;
-                            
-                            Log.d(TAG, "Added TXT heading: '" + title + "' on page " + page);
-                        }
-                    }
-                }
-                
-                // Если заголовки не найдены, создаем простую навигацию
-                if (chapterCount < 3) {
-                    Log.d(TAG, "Not enough headings found in TXT, creating simple navigation");
-                    
-                    tocItems.clear();
-                    tocItems.add(new TocItem("Start of the book", 1, 1));
-                    
-                    // Добавляем равномерно распределенные точки навигации
-                    int step = Math.max(totalPages / 10, 5);
-                    for (int page = step; page < totalPages; page += step) {
-                        int percentage = Math.round((float)page / totalPages * 100);
-                        tocItems.add(new TocItem("Page " + page + " (" + percentage + "%)", page, 1));
-                    }
-                    
-                    tocItems.add(new TocItem("End of the book", totalPages, 1));
-                }
-            } else {
-                // Если текст пустой, добавляем хотя бы базовые элементы
-                tocItems.add(new TocItem("Start of the book", 1, 1));
-                tocItems.add(new TocItem("End of the book", totalPages, 1));
+
+            @Override
+            public void onTocReady(List<TocItem> tocItems) {
+                // BookContentCallback получает только страницы
             }
-            
-            Log.d(TAG, "TXT TOC ready: " + tocItems.size() + " items");
-            callback.onTocReady(tocItems);
-            
-        } catch (Exception e) {
-            Log.e(TAG, "Error creating TOC for TXT: " + e.getMessage(), e);
-            callback.onError("Error creating TOC for TXT: " + e.getMessage());
-        }
+
+            @Override
+            public void onComplete(int totalPages) {
+                callback.onContentReady(lazyPages.size() == 1 && pages.isEmpty() ? lazyPages.get(0) : pages);
+            }
+
+            @Override
+            public void onError(String error) {
+                callback.onError(error);
+            }
+        };
     }
-    
+
     // Вспомогательный класс для хранения пары значений
     private static class Pair<F, S> {
         public final F first;
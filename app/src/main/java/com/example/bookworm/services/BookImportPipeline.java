@@ -0,0 +1,725 @@
+package com.example.bookworm.services;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.example.bookworm.Book;
+import com.google.gson.Gson;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Фоновый импорт добавленной книги.
+ * Экран добавления только ставит книгу в очередь, а подготовка идёт по этапам: метаданные,
+ * миниатюра обложки, загрузка файла и обложки, сохранение записи,
+ * компиляция и поисковый индекс. Загрузка идёт раньше локальной подготовки,
+ * чтобы книга быстрее появилась в библиотеке.
+ *
+ * Состояние импорта записывается в файл после каждого этапа, поэтому прерванный импорт
+ * (закрытие приложения) продолжается с незавершённого этапа при следующем запуске.
+ * Временная ошибка (нет сети, тайм-аут, ошибка сервера) повторяется в том же процессе с растущей паузой
+ * или сразу при появлении сети, состояние при этом сохраняется. Импорт прекращается только
+ * при постоянной ошибке (отказ 4xx, книга уже в библиотеке, файл недоступен): его состояние
+ * остаётся в файле .failed, и библиотека показывает книгу с возможностью повторить или удалить.
+ * Локальные этапы только ускоряют первое открытие, их ошибки не останавливают импорт.
+ */
+public final class BookImportPipeline {
+    private static final String TAG = "BookImportPipeline";
+    private static final String STATE_DIR = "imports";
+    private static final String STATE_SUFFIX = ".json";
+    private static final String FAILED_SUFFIX = ".failed";
+    // Пауза перед повтором: RETRY_DELAY_MS после первой неудачи, дальше удваивается до MAX_RETRY_DELAY_MS
+    private static final long RETRY_DELAY_MS = 30000;
+    private static final long MAX_RETRY_DELAY_MS = 15 * 60000;
+    private static final int THUMBNAIL_SIZE = 600; // Наибольшая сторона миниатюры обложки, px
+    private static final int THUMBNAIL_QUALITY = 85;
+    private static final long NETWORK_TIMEOUT_MINUTES = 10;
+    // Код ответа в ошибках SupabaseService: "Upload failed: 413", "Save failed: 400 - ..."
+    private static final Pattern HTTP_STATUS = Pattern.compile("failed: (\\d{3})");
+
+    public static final int STAGE_METADATA = 0;
+    public static final int STAGE_COVER = 1;
+    public static final int STAGE_UPLOAD_FILE = 2;
+    public static final int STAGE_UPLOAD_COVER = 3;
+    public static final int STAGE_SAVE = 4;
+    // Компиляция сама считает хэш содержимого для ключа кэша, индекс получает его из памяти процесса
+    public static final int STAGE_COMPILE = 5;
+    public static final int STAGE_SEARCH_INDEX = 6;
+    public static final int STAGE_COUNT = 7;
+    private static final String[] STAGE_NAMES = {
+            "metadata", "cover", "upload file", "upload cover", "save", "compile", "search index"
+    };
+
+    private static BookImportPipeline instance;
+
+    private final Context context;
+    private final SupabaseService supabaseService;
+    private final Gson gson = new Gson();
+    // Один поток: книги импортируются по очереди, этапы одной книги - последовательно
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "BookImport");
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        return thread;
+    });
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final List<ImportListener> listeners = new CopyOnWriteArrayList<>();
+    // Импорты в очереди, в работе или в ожидании повтора: id книги -> состояние
+    private final Map<String, ImportState> active = new LinkedHashMap<>();
+    // Отложенные повторы, только в главном потоке: id книги -> запуск
+    private final Map<String, Runnable> retries = new HashMap<>();
+    private boolean resumed = false;
+
+    /**
+     * Получатель хода импорта, методы вызываются в главном потоке
+     */
+    public interface ImportListener {
+        /**
+         * @param stage Завершённый (или пропущенный) этап, одна из констант STAGE_*
+         * @param completed Сколько этапов из STAGE_COUNT уже завершено
+         */
+        void onStageCompleted(String bookId, int stage, int completed);
+
+        /**
+         * @param willRetry Импорт будет повторён позже; false - импорт остановлен постоянной ошибкой
+         * и ждёт решения пользователя (retryFailed или dismissFailed)
+         */
+        void onImportFailed(String bookId, String error, boolean willRetry);
+    }
+
+    /**
+     * Снимок хода импорта для показа в библиотеке
+     */
+    public static final class ImportProgress {
+        public final Book book;
+        public final int completed; // Сколько этапов из STAGE_COUNT завершено
+        public final boolean waitingForRetry;
+        public final String error; // Постоянная ошибка остановленного импорта или null
+
+        ImportProgress(Book book, int completed, boolean waitingForRetry, String error) {
+            this.book = book;
+            this.completed = completed;
+            this.waitingForRetry = waitingForRetry;
+            this.error = error;
+        }
+
+        public boolean isFailed() {
+            return error != null;
+        }
+
+        /**
+         * Запись книги уже есть в базе, и её можно открыть
+         */
+        public boolean isSaved() {
+            return completed > STAGE_SAVE;
+        }
+    }
+
+    /**
+     * Сохраняемое состояние импорта одной книги
+     */
+    private static class ImportState {
+        Book book;
+        String sourceUri; // Локальный файл книги (путь в book заменяется адресом в хранилище)
+        String thumbnailPath;
+        volatile int nextStage; // Читается и главным потоком для показа хода импорта
+        int attempts; // Неудачи подряд, задают паузу перед повтором
+        String error;
+        transient boolean waitingForRetry;
+    }
+
+    private BookImportPipeline(Context context) {
+        this.context = context.getApplicationContext();
+        this.supabaseService = SupabaseService.getInstance(this.context);
+
+        // При появлении сети ожидающие импорты повторяются сразу, не дожидаясь паузы
+        ConnectivityManager connectivityManager = this.context.getSystemService(ConnectivityManager.class);
+        if (connectivityManager != null) {
+            connectivityManager.registerDefaultNetworkCallback(new ConnectivityManager.NetworkCallback() {
+                @Override
+                public void onAvailable(Network network) {
+                    mainHandler.post(() -> retryWaiting());
+                }
+            });
+        }
+    }
+
+    public static synchronized BookImportPipeline getInstance(Context context) {
+        if (instance == null) {
+            instance = new BookImportPipeline(context);
+        }
+        return instance;
+    }
+
+    public void addListener(ImportListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(ImportListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Ставит новую книгу в очередь импорта
+     * @param book Книга с локальным путём к файлу и, возможно, к обложке
+     */
+    public void enqueue(Book book) {
+        ImportState state = new ImportState();
+        state.book = book;
+        state.sourceUri = book.getFilePath();
+        try {
+            writeState(state);
+        } catch (IOException e) {
+            // Без файла состояния импорт всё равно выполняется, но не переживёт перезапуск
+            Log.e(TAG, "Could not save import state: " + e.getMessage(), e);
+        }
+        submit(book.getId(), state);
+    }
+
+    /**
+     * Ход незавершённых импортов в порядке постановки в очередь
+     */
+    public List<ImportProgress> getActiveImports() {
+        List<ImportProgress> imports = new ArrayList<>();
+        synchronized (active) {
+            for (ImportState state : active.values()) {
+                imports.add(progressOf(state));
+            }
+        }
+        return imports;
+    }
+
+    /**
+     * Импорты, остановленные постоянной ошибкой. Они хранятся, пока пользователь
+     * не повторит или не удалит их.
+     */
+    public List<ImportProgress> getFailedImports() {
+        List<ImportProgress> imports = new ArrayList<>();
+        File[] failedFiles = getStateDirectory().listFiles((dir, name) -> name.endsWith(FAILED_SUFFIX));
+        if (failedFiles == null) {
+            return imports;
+        }
+        for (File failedFile : failedFiles) {
+            ImportState state = readState(failedFile);
+            if (state != null && state.book != null) {
+                imports.add(progressOf(state));
+            }
+        }
+        return imports;
+    }
+
+    /**
+     * Ход импорта книги (идущего или остановленного) или null, если книга не импортируется
+     */
+    public ImportProgress getImport(String bookId) {
+        synchronized (active) {
+            ImportState state = active.get(bookId);
+            if (state != null) {
+                return progressOf(state);
+            }
+        }
+        File failedFile = getFailedFile(bookId);
+        ImportState failed = failedFile.exists() ? readState(failedFile) : null;
+        return failed != null && failed.book != null ? progressOf(failed) : null;
+    }
+
+    /**
+     * Запускает остановленный импорт заново с незавершённого этапа
+     */
+    public void retryFailed(String bookId) {
+        File failedFile = getFailedFile(bookId);
+        if (!failedFile.exists()) {
+            return;
+        }
+        ImportState state = readState(failedFile);
+        if (state == null || state.book == null) {
+            failedFile.delete();
+            return;
+        }
+        state.error = null;
+        state.attempts = 0;
+        try {
+            writeState(state);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not save import state: " + e.getMessage(), e);
+        }
+        failedFile.delete();
+        submit(bookId, state);
+    }
+
+    /**
+     * Удаляет остановленный импорт вместе с миниатюрой обложки
+     */
+    public void dismissFailed(String bookId) {
+        File failedFile = getFailedFile(bookId);
+        if (!failedFile.exists()) {
+            return;
+        }
+        ImportState state = readState(failedFile);
+        if (state != null && state.thumbnailPath != null) {
+            new File(state.thumbnailPath).delete();
+        }
+        failedFile.delete();
+    }
+
+    private ImportProgress progressOf(ImportState state) {
+        return new ImportProgress(state.book, state.nextStage, state.waitingForRetry, state.error);
+    }
+
+    /**
+     * Продолжает импорты, прерванные в прошлых запусках приложения.
+     * Выполняется один раз за процесс: пересоздание экрана не запускает импорт повторно.
+     */
+    public void resumePending() {
+        synchronized (this) {
+            if (resumed) {
+                return;
+            }
+            resumed = true;
+        }
+        File[] stateFiles = getStateDirectory().listFiles((dir, name) -> name.endsWith(STATE_SUFFIX));
+        if (stateFiles == null) {
+            return;
+        }
+        for (File stateFile : stateFiles) {
+            ImportState state = readState(stateFile);
+            if (state == null || state.book == null || state.nextStage >= STAGE_COUNT) {
+                stateFile.delete();
+                continue;
+            }
+            Log.d(TAG, "Resuming import of " + state.book.getId() + " at stage " + STAGE_NAMES[state.nextStage]);
+            submit(state.book.getId(), state);
+        }
+    }
+
+    private void submit(String bookId, ImportState state) {
+        synchronized (active) {
+            if (active.containsKey(bookId)) {
+                return;
+            }
+            active.put(bookId, state);
+        }
+        executor.execute(() -> runImport(state));
+    }
+
+    /**
+     * Откладывает повтор неудавшегося импорта. Вызывается в главном потоке.
+     */
+    private void scheduleRetry(ImportState state) {
+        String bookId = state.book.getId();
+        long delay = Math.min(RETRY_DELAY_MS << Math.min(state.attempts - 1, 10), MAX_RETRY_DELAY_MS);
+        Runnable retry = () -> {
+            retries.remove(bookId);
+            retry(state);
+        };
+        retries.put(bookId, retry);
+        mainHandler.postDelayed(retry, delay);
+        Log.d(TAG, "Import " + bookId + " will be retried in " + delay + " ms");
+    }
+
+    /**
+     * Повторяет все ожидающие импорты сейчас. Вызывается в главном потоке.
+     */
+    private void retryWaiting() {
+        if (retries.isEmpty()) {
+            return;
+        }
+        Log.d(TAG, "Network available, retrying " + retries.size() + " imports");
+        for (Runnable retry : new ArrayList<>(retries.values())) {
+            mainHandler.removeCallbacks(retry);
+            retry.run();
+        }
+    }
+
+    private void retry(ImportState state) {
+        synchronized (active) {
+            state.waitingForRetry = false;
+        }
+        executor.execute(() -> runImport(state));
+    }
+
+    private void runImport(ImportState state) {
+        String bookId = state.book.getId();
+        try {
+            while (state.nextStage < STAGE_COUNT) {
+                int stage = state.nextStage;
+                long start = System.currentTimeMillis();
+                runStage(state, stage);
+                state.nextStage++;
+                writeState(state);
+                Log.d(TAG, "Import " + bookId + ": " + STAGE_NAMES[stage] + " done in " +
+                        (System.currentTimeMillis() - start) + " ms");
+                int completed = state.nextStage;
+                mainHandler.post(() -> {
+                    for (ImportListener listener : listeners) {
+                        listener.onStageCompleted(bookId, stage, completed);
+                    }
+                });
+            }
+            finish(state);
+        } catch (Exception e) {
+            Log.e(TAG, "Import " + bookId + " failed at stage " + state.nextStage + ": " + e.getMessage(), e);
+            String error = e.getMessage() != null ? e.getMessage() : e.toString();
+            // Временные ошибки повторяются без ограничения числа попыток, книга не теряется
+            boolean willRetry = !isPermanentError(error);
+            if (willRetry) {
+                state.attempts++;
+                synchronized (active) {
+                    state.waitingForRetry = true;
+                }
+                try {
+                    writeState(state);
+                } catch (IOException writeError) {
+                    Log.e(TAG, "Could not save import state: " + writeError.getMessage(), writeError);
+                }
+            } else {
+                Log.w(TAG, "Stopping import of " + bookId + ": " + error);
+                fail(state, error);
+            }
+            mainHandler.post(() -> {
+                if (willRetry) {
+                    scheduleRetry(state);
+                }
+                for (ImportListener listener : listeners) {
+                    listener.onImportFailed(bookId, error, willRetry);
+                }
+            });
+        }
+    }
+
+    private void runStage(ImportState state, int stage) throws Exception {
+        switch (stage) {
+            case STAGE_METADATA:
+                readMissingMetadata(state);
+                break;
+            case STAGE_COVER:
+                createThumbnail(state);
+                break;
+            case STAGE_UPLOAD_FILE:
+                uploadBookFile(state);
+                break;
+            case STAGE_UPLOAD_COVER:
+                uploadCover(state);
+                break;
+            case STAGE_SAVE:
+                saveBook(state.book);
+                break;
+            case STAGE_COMPILE:
+                if (isLocal(state.sourceUri)) {
+                    BookFileReader.compileBook(context, Uri.parse(state.sourceUri));
+                }
+                break;
+            case STAGE_SEARCH_INDEX:
+                buildSearchIndex(state);
+                break;
+        }
+    }
+
+    /**
+     * Дополняет книгу метаданными из файла, если пользователь их не указал
+     */
+    private void readMissingMetadata(ImportState state) {
+        Book book = state.book;
+        boolean missingDescription = book.getDescription() == null || book.getDescription().isEmpty();
+        if (!isLocal(state.sourceUri) || (book.getTotalPages() > 0 && !missingDescription)) {
+            return;
+        }
+
+        // Метаданные читаются в вызывающем потоке
+        BookMetadataReader.readMetadata(context, Uri.parse(state.sourceUri), new BookMetadataReader.MetadataCallback() {
+            @Override
+            public void onMetadataReady(Map<String, String> metadata) {
+                if (book.getTotalPages() <= 0 && metadata.containsKey("pages")) {
+                    try {
+                        book.setTotalPages(Integer.parseInt(metadata.get("pages")));
+                    } catch (NumberFormatException e) {
+                        Log.w(TAG, "Invalid page count in metadata: " + metadata.get("pages"));
+                    }
+                }
+                String description = metadata.get("description");
+                if ((book.getDescription() == null || book.getDescription().isEmpty()) &&
+                        description != null && !description.isEmpty()) {
+                    book.setDescription(description);
+                }
+            }
+
+            @Override
+            public void onError(String error) {
+                Log.w(TAG, "Metadata stage skipped: " + error);
+            }
+        });
+    }
+
+    /**
+     * Уменьшает обложку до миниатюры: она быстрее загружается и не пропадёт при очистке кэша
+     */
+    private void createThumbnail(ImportState state) {
+        String coverPath = state.book.getCoverPath();
+        if (coverPath == null || coverPath.isEmpty() || coverPath.startsWith("http")) {
+            return;
+        }
+
+        try {
+            Uri coverUri = Uri.parse(coverPath);
+            BitmapFactory.Options bounds = new BitmapFactory.Options();
+            bounds.inJustDecodeBounds = true;
+            try (InputStream inputStream = context.getContentResolver().openInputStream(coverUri)) {
+                BitmapFactory.decodeStream(inputStream, null, bounds);
+            }
+            if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+                Log.w(TAG, "Cover stage skipped: cannot decode " + coverPath);
+                return;
+            }
+
+            // Декодируем с прореживанием, близким к нужному размеру, а точно масштабируем ниже
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = 1;
+            while (Math.max(bounds.outWidth, bounds.outHeight) / (options.inSampleSize * 2) >= THUMBNAIL_SIZE) {
+                options.inSampleSize *= 2;
+            }
+            Bitmap bitmap;
+            try (InputStream inputStream = context.getContentResolver().openInputStream(coverUri)) {
+                bitmap = BitmapFactory.decodeStream(inputStream, null, options);
+            }
+            if (bitmap == null) {
+                return;
+            }
+            float scale = (float) THUMBNAIL_SIZE / Math.max(bitmap.getWidth(), bitmap.getHeight());
+            if (scale < 1) {
+                Bitmap scaled = Bitmap.createScaledBitmap(bitmap, Math.round(bitmap.getWidth() * scale),
+                        Math.round(bitmap.getHeight() * scale), true);
+                bitmap.recycle();
+                bitmap = scaled;
+            }
+
+            File thumbnail = new File(getStateDirectory(), state.book.getId() + "_cover.jpg");
+            try (OutputStream outputStream = new FileOutputStream(thumbnail)) {
+                bitmap.compress(Bitmap.CompressFormat.JPEG, THUMBNAIL_QUALITY, outputStream);
+            } finally {
+                bitmap.recycle();
+            }
+            state.thumbnailPath = thumbnail.getAbsolutePath();
+            state.book.setCoverPath(Uri.fromFile(thumbnail).toString());
+        } catch (Exception e) {
+            Log.w(TAG, "Cover stage skipped: " + e.getMessage());
+        }
+    }
+
+    private void uploadBookFile(ImportState state) throws Exception {
+        Book book = state.book;
+        if (book.getFilePath() == null || book.getFilePath().startsWith("http")) {
+            return;
+        }
+        Uri fileUri = Uri.parse(book.getFilePath());
+        String fileUrl = awaitUpload(book.getId(), fileUri, "books");
+        book.setFilePath(fileUrl);
+
+        // Первое открытие возьмёт локальную копию вместо повторного скачивания
+        try {
+            BookDownloadCache.seed(context, fileUrl, LocalBookFiles.resolve(context, fileUri));
+        } catch (IOException e) {
+            Log.w(TAG, "Could not seed download cache: " + e.getMessage());
+        }
+    }
+
+    private void uploadCover(ImportState state) throws Exception {
+        Book book = state.book;
+        if (book.getCoverPath() == null || book.getCoverPath().startsWith("http")) {
+            return;
+        }
+        try {
+            book.setCoverPath(awaitUpload(book.getId(), Uri.parse(book.getCoverPath()), "covers"));
+        } catch (IOException e) {
+            // Как и при обычном сохранении, книга добавляется без обложки
+            Log.e(TAG, "Failed to upload cover: " + e.getMessage() + ". Continuing without cover image.");
+            book.setCoverPath(null);
+        }
+    }
+
+    private String awaitUpload(String bookId, Uri fileUri, String bucket) throws Exception {
+        CountDownLatch done = new CountDownLatch(1);
+        String[] result = new String[2];
+        supabaseService.uploadBookFile(bookId, fileUri, bucket, new SupabaseService.FileUploadCallback() {
+            @Override
+            public void onSuccess(String fileUrl) {
+                result[0] = fileUrl;
+                done.countDown();
+            }
+
+            @Override
+            public void onError(String error) {
+                result[1] = error;
+                done.countDown();
+            }
+        });
+        if (!done.await(NETWORK_TIMEOUT_MINUTES, TimeUnit.MINUTES)) {
+            throw new IOException("Истекло время ожидания загрузки");
+        }
+        if (result[1] != null) {
+            throw new IOException(result[1]);
+        }
+        return result[0];
+    }
+
+    /**
+     * Сохраняет запись книги (файл и обложка к этому моменту уже в хранилище)
+     */
+    private void saveBook(Book book) throws Exception {
+        CountDownLatch done = new CountDownLatch(1);
+        String[] error = new String[1];
+        supabaseService.saveBook(book, new SupabaseService.BookSaveCallback() {
+            @Override
+            public void onSuccess() {
+                done.countDown();
+            }
+
+            @Override
+            public void onError(String message) {
+                error[0] = message;
+                done.countDown();
+            }
+        });
+        if (!done.await(NETWORK_TIMEOUT_MINUTES, TimeUnit.MINUTES)) {
+            throw new IOException("Истекло время ожидания сохранения");
+        }
+        if (error[0] != null) {
+            if (error[0].contains("duplicate key value") && error[0].contains(book.getId())) {
+                // Запись уже сохранена попыткой, прерванной до обновления состояния
+                Log.d(TAG, "Book " + book.getId() + " was already saved");
+                return;
+            }
+            throw new IOException(error[0]);
+        }
+    }
+
+    /**
+     * Разбивает книгу под последний размер страницы читалки и строит поисковый индекс
+     */
+    private void buildSearchIndex(ImportState state) {
+        PageLayout layout = PageLayout.lastMeasured(context);
+        if (layout == null || !isLocal(state.sourceUri)) {
+            // Читалка ещё не открывалась: размер страницы неизвестен
+            return;
+        }
+        try {
+            BookFileReader.prepareBook(context, Uri.parse(state.sourceUri), layout);
+        } catch (IOException e) {
+            Log.w(TAG, "Search index stage skipped: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Повтор не поможет: книга уже в библиотеке, исходный файл недоступен
+     * или сервер отклонил запрос (кроме отказа в доступе, тайм-аута и лимита запросов)
+     */
+    static boolean isPermanentError(String error) {
+        if (error.contains("duplicate key value") || error.contains("Permission denied")
+                || error.contains("File not found") || error.contains("Could not open file")) {
+            return true;
+        }
+        Matcher matcher = HTTP_STATUS.matcher(error);
+        if (matcher.find()) {
+            int code = Integer.parseInt(matcher.group(1));
+            return code >= 400 && code < 500 && code != 401 && code != 403 && code != 408 && code != 429;
+        }
+        return false;
+    }
+
+    /**
+     * Останавливает импорт, сохраняя его в файл .failed для показа в библиотеке
+     */
+    private void fail(ImportState state, String error) {
+        synchronized (active) {
+            active.remove(state.book.getId());
+        }
+        state.error = error;
+        try {
+            writeState(state, getFailedFile(state.book.getId()));
+        } catch (IOException e) {
+            Log.e(TAG, "Could not save failed import: " + e.getMessage(), e);
+        }
+        getStateFile(state.book.getId()).delete();
+    }
+
+    private void finish(ImportState state) {
+        synchronized (active) {
+            active.remove(state.book.getId());
+        }
+        getStateFile(state.book.getId()).delete();
+        if (state.thumbnailPath != null) {
+            new File(state.thumbnailPath).delete();
+        }
+    }
+
+    private static boolean isLocal(String uri) {
+        return uri != null && !uri.startsWith("http");
+    }
+
+    private File getStateDirectory() {
+        File directory = new File(context.getFilesDir(), STATE_DIR);
+        if (!directory.exists()) {
+            directory.mkdirs();
+        }
+        return directory;
+    }
+
+    private File getStateFile(String bookId) {
+        return new File(getStateDirectory(), bookId + STATE_SUFFIX);
+    }
+
+    private File getFailedFile(String bookId) {
+        return new File(getStateDirectory(), bookId + FAILED_SUFFIX);
+    }
+
+    private ImportState readState(File stateFile) {
+        try (Reader reader = new FileReader(stateFile)) {
+            return gson.fromJson(reader, ImportState.class);
+        } catch (Exception e) {
+            Log.w(TAG, "Corrupt import state " + stateFile.getName() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Записывает состояние через временный файл, чтобы обрыв записи не испортил прежнее
+     */
+    private void writeState(ImportState state) throws IOException {
+        writeState(state, getStateFile(state.book.getId()));
+    }
+
+    private void writeState(ImportState state, File stateFile) throws IOException {
+        File tempFile = new File(stateFile.getPath() + ".tmp");
+        try (Writer writer = new FileWriter(tempFile)) {
+            gson.toJson(state, writer);
+        }
+        if (!tempFile.renameTo(stateFile)) {
+            throw new IOException("Не удалось сохранить состояние импорта");
+        }
+    }
+}
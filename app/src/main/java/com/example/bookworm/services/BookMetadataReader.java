@@ -120,38 +120,20 @@ public class BookMetadataReader {
     }
 
     private static void readEpubMetadata(Context context, Uri fileUri, MetadataCallback callback) {
-        InputStream inputStream = null;
-        ZipInputStream zipInputStream = null;
-
-        try {
+        try (EpubContainer epub = EpubContainer.open(context, fileUri)) {
             Map<String, String> metadata = new HashMap<>();
-            inputStream = context.getContentResolver().openInputStream(fileUri);
-            if (inputStream == null) {
-                callback.onError("Не удалось открыть файл");
-                return;
-            }
-
-            zipInputStream = new ZipInputStream(inputStream);
-            ZipEntry entry;
-            String opfPath = findOpfPath(zipInputStream);
+            String opfPath = epub.getOpfPath();
 
             if (opfPath == null) {
                 callback.onError("Не удалось найти метаданные в EPUB файле");
                 return;
             }
 
-            // Теперь читаем OPF файл
-            closeQuietly(zipInputStream);
-            closeQuietly(inputStream);
-
-            inputStream = context.getContentResolver().openInputStream(fileUri);
-            zipInputStream = new ZipInputStream(inputStream);
-
+            // Читаем OPF файл напрямую из архива
             String coverPath = null;
-            while ((entry = zipInputStream.getNextEntry()) != null) {
-                if (entry.getName().equals(opfPath)) {
-                    coverPath = parseOpfFile(zipInputStream, metadata);
-                    break;
+            try (InputStream opfStream = epub.openEntry(opfPath)) {
+                if (opfStream != null) {
+                    coverPath = parseOpfFile(opfStream, metadata);
                 }
             }
 
@@ -162,38 +144,29 @@ public class BookMetadataReader {
 
             // Если нашли путь к обложке, читаем и сохраняем ее
             if (coverPath != null) {
-                closeQuietly(zipInputStream);
-                closeQuietly(inputStream);
-                
                 Log.d(TAG, "Found cover path: " + coverPath);
-                inputStream = context.getContentResolver().openInputStream(fileUri);
-                zipInputStream = new ZipInputStream(inputStream);
                 
-                String basePath = opfPath.substring(0, opfPath.lastIndexOf('/') + 1);
-                String fullCoverPath = coverPath.startsWith("/") ? coverPath.substring(1) : basePath + coverPath;
+                String fullCoverPath = coverPath.startsWith("/") ? coverPath.substring(1) : epub.getOpfDirectory() + coverPath;
                 Log.d(TAG, "Full cover path: " + fullCoverPath);
                 
-                while ((entry = zipInputStream.getNextEntry()) != null) {
-                    if (entry.getName().equals(fullCoverPath)) {
-                        // Извлекаем и сохраняем обложку
-                        Bitmap coverBitmap = BitmapFactory.decodeStream(zipInputStream);
-                        if (coverBitmap != null) {
-                            try {
-                                // Сохраняем обложку во временный файл
-                                File coverFile = File.createTempFile("cover", ".jpg", context.getCacheDir());
-                                FileOutputStream out = new FileOutputStream(coverFile);
-                                coverBitmap.compress(Bitmap.CompressFormat.JPEG, 100, out);
-                                out.flush();
-                                out.close();
-                                
-                                // Добавляем путь к обложке в метаданные
-                                metadata.put("coverPath", coverFile.getAbsolutePath());
-                                Log.d(TAG, "Cover saved to: " + coverFile.getAbsolutePath());
-                            } catch (Exception e) {
-                                Log.e(TAG, "Error saving cover image", e);
-                            }
+                try (InputStream coverStream = epub.openEntry(fullCoverPath)) {
+                    // Извлекаем и сохраняем обложку
+                    Bitmap coverBitmap = coverStream != null ? BitmapFactory.decodeStream(coverStream) : null;
+                    if (coverBitmap != null) {
+                        try {
+                            // Сохраняем обложку во временный файл
+                            File coverFile = File.createTempFile("cover", ".jpg", context.getCacheDir());
+                            FileOutputStream out = new FileOutputStream(coverFile);
+                            coverBitmap.compress(Bitmap.CompressFormat.JPEG, 100, out);
+                            out.flush();
+                            out.close();
+                            
+                            // Добавляем путь к обложке в метаданные
+                            metadata.put("coverPath", coverFile.getAbsolutePath());
+                            Log.d(TAG, "Cover saved to: " + coverFile.getAbsolutePath());
+                        } catch (Exception e) {
+                            Log.e(TAG, "Error saving cover image", e);
                         }
-                        break;
                     }
                 }
             }
@@ -202,36 +175,12 @@ public class BookMetadataReader {
         } catch (Exception e) {
             Log.e(TAG, "Error reading EPUB metadata", e);
             callback.onError("Ошибка при чтении метаданных EPUB: " + e.getMessage());
-        } finally {
-            closeQuietly(zipInputStream);
-            closeQuietly(inputStream);
-        }
-    }
-
-    private static String findOpfPath(ZipInputStream zipInputStream) throws Exception {
-        ZipEntry entry;
-        while ((entry = zipInputStream.getNextEntry()) != null) {
-            if (entry.getName().equals("META-INF/container.xml")) {
-                XmlPullParser parser = XmlPullParserFactory.newInstance().newPullParser();
-                parser.setInput(zipInputStream, "UTF-8");
-
-                int eventType = parser.getEventType();
-                while (eventType != XmlPullParser.END_DOCUMENT) {
-                    if (eventType == XmlPullParser.START_TAG &&
-                            "rootfile".equals(parser.getName())) {
-                        return parser.getAttributeValue(null, "full-path");
-                    }
-                    eventType = parser.next();
-                }
-                break;
-            }
         }
-        return null;
     }
 
-    private static String parseOpfFile(ZipInputStream zipInputStream, Map<String, String> metadata) throws Exception {
+    private static String parseOpfFile(InputStream opfStream, Map<String, String> metadata) throws Exception {
         XmlPullParser parser = XmlPullParserFactory.newInstance().newPullParser();
-        parser.setInput(zipInputStream, "UTF-8");
+        parser.setInput(opfStream, "UTF-8");
 
         int eventType = parser.getEventType();
         String currentTag = null;
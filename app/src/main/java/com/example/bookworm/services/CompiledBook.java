@@ -0,0 +1,452 @@
+package com.example.bookworm.services;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+import com.example.bookworm.models.TocItem;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Скомпилированная книга: результат разбора EPUB/FB2, сохранённый в компактном бинарном файле.
+ * Содержит нормализованные блоки HTML (главы EPUB с уже заменёнными ссылками на ресурсы,
+ * части FB2), таблицу блоков с якорями оглавления, оглавление NCX и ресурсы EPUB.
+ * Файл открывается отображением в память, поэтому при повторном открытии книги
+ * с другим размером страницы ZIP и XML заново не разбираются.
+ *
+ * Формат: заголовок (MAGIC, версия формата, версия парсера), затем содержимое блоков
+ * в UTF-8 и байты ресурсов подряд, затем таблица и в конце файла смещение таблицы и MAGIC.
+ * Исходный файл книги остаётся основным: компиляция повторяется при смене версии.
+ */
+public final class CompiledBook {
+    private static final String TAG = "CompiledBook";
+    private static final String CACHE_DIR = "compiled_books";
+    private static final String FILE_SUFFIX = ".book";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final long STALE_TEMP_AGE_MS = 24L * 60 * 60 * 1000; // Остатки прерванной компиляции
+    private static final int MAGIC = 0x42574B43; // "BWKC"
+    private static final int FORMAT_VERSION = 1;
+    private static final int TRAILER_SIZE = 12; // Смещение таблицы (long) и MAGIC
+    private static final long MAX_CACHE_SIZE = 256L * 1024 * 1024; // 256 МБ на все книги
+
+    public static final String KIND_EPUB = "epub";
+    public static final String KIND_FB2 = "fb2";
+
+    private final ByteBuffer mapped;
+    private final String kind;
+    private final String baseDirectory;
+    private final List<Block> blocks;
+    private final List<TocItem> toc;
+    private final Map<String, long[]> resources;
+
+    /**
+     * Блок содержимого: глава EPUB или часть FB2
+     */
+    public static class Block {
+        public final String href;
+        public final String stylesheets;
+        // Заголовки внутри блока со ссылками на их якоря (страница назначается при разбиении)
+        public final List<TocItem> anchors;
+        final long offset;
+        final int length;
+
+        Block(String href, String stylesheets, List<TocItem> anchors, long offset, int length) {
+            this.href = href;
+            this.stylesheets = stylesheets;
+            this.anchors = anchors;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private CompiledBook(ByteBuffer mapped, String kind, String baseDirectory, List<Block> blocks,
+                         List<TocItem> toc, Map<String, long[]> resources) {
+        this.mapped = mapped;
+        this.kind = kind;
+        this.baseDirectory = baseDirectory;
+        this.blocks = blocks;
+        this.toc = toc;
+        this.resources = resources;
+    }
+
+    /**
+     * Файл скомпилированной книги для URI. Ключ включает хэш содержимого исходного файла
+     * и версии формата и парсера, поэтому их изменение приводит к повторной компиляции.
+     * @return файл (возможно, ещё не существующий) или null, если исходный файл не прочитать
+     */
+    static File getFile(Context context, Uri fileUri, int parserVersion) {
+        String key = PaginationCache.keyFor(context, fileUri,
+                "compiled=" + FORMAT_VERSION + ";parser=" + parserVersion);
+        if (key == null) {
+            return null;
+        }
+        File directory = new File(context.getFilesDir(), CACHE_DIR);
+        if (!directory.exists()) {
+            directory.mkdirs();
+        }
+        return new File(directory, key + FILE_SUFFIX);
+    }
+
+    /**
+     * Открывает скомпилированную книгу или возвращает null, если файла нет или он не подходит
+     */
+    static CompiledBook open(File file, int parserVersion) {
+        if (file == null || !file.exists()) {
+            return null;
+        }
+
+        long start = System.currentTimeMillis();
+        try {
+            MappedByteBuffer mapped;
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+                 FileChannel channel = randomAccessFile.getChannel()) {
+                if (channel.size() > Integer.MAX_VALUE || channel.size() < 12 + TRAILER_SIZE) {
+                    throw new IOException("Unexpected file size: " + channel.size());
+                }
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+
+            int end = mapped.limit();
+            if (mapped.getInt(0) != MAGIC || mapped.getInt(4) != FORMAT_VERSION ||
+                    mapped.getInt(8) != parserVersion || mapped.getInt(end - 4) != MAGIC) {
+                Log.w(TAG, "Discarding compiled book with another version: " + file.getName());
+                file.delete();
+                return null;
+            }
+
+            long tableOffset = mapped.getLong(end - TRAILER_SIZE);
+            if (tableOffset < 12 || tableOffset > end - TRAILER_SIZE) {
+                throw new IOException("Corrupt table offset");
+            }
+            byte[] table = new byte[(int) (end - TRAILER_SIZE - tableOffset)];
+            ByteBuffer view = mapped.duplicate();
+            view.position((int) tableOffset);
+            view.get(table);
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(table));
+            String kind = readString(in);
+            String baseDirectory = readString(in);
+
+            int blockCount = in.readInt();
+            List<Block> blocks = new ArrayList<>(blockCount);
+            for (int i = 0; i < blockCount; i++) {
+                String href = readString(in);
+                String stylesheets = readString(in);
+                long offset = in.readLong();
+                int length = in.readInt();
+                if (offset < 12 || offset + length > tableOffset) {
+                    throw new IOException("Corrupt block table");
+                }
+                blocks.add(new Block(href, stylesheets, readTocItems(in), offset, length));
+            }
+
+            List<TocItem> toc = in.readBoolean() ? readTocItems(in) : null;
+
+            int resourceCount = in.readInt();
+            Map<String, long[]> resources = new HashMap<>();
+            for (int i = 0; i < resourceCount; i++) {
+                String path = readString(in);
+                long offset = in.readLong();
+                long length = in.readInt();
+                if (offset < 12 || offset + length > tableOffset) {
+                    throw new IOException("Corrupt resource table");
+                }
+                resources.put(path, new long[] {offset, length});
+            }
+
+            // Отмечаем книгу как недавно использованную для вытеснения
+            file.setLastModified(System.currentTimeMillis());
+            Log.d(TAG, "Opened compiled book with " + blocks.size() + " blocks and " + resources.size() +
+                    " resources in " + (System.currentTimeMillis() - start) + " ms");
+            return new CompiledBook(mapped, kind, baseDirectory, Collections.unmodifiableList(blocks), toc, resources);
+        } catch (Exception e) {
+            Log.e(TAG, "Error opening compiled book " + file.getName() + ": " + e.getMessage(), e);
+            file.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Формат исходной книги: KIND_EPUB или KIND_FB2
+     */
+    public String getKind() {
+        return kind;
+    }
+
+    /**
+     * Каталог, относительно которого заданы ссылки оглавления (каталог OPF для EPUB)
+     */
+    public String getBaseDirectory() {
+        return baseDirectory;
+    }
+
+    public List<Block> getBlocks() {
+        return blocks;
+    }
+
+    /**
+     * Оглавление из NCX (страницы не назначены) или null, если в книге его нет
+     */
+    public List<TocItem> getToc() {
+        if (toc == null) {
+            return null;
+        }
+        // Элементы оглавления изменяются при назначении страниц, поэтому отдаём копии
+        return copyTocItems(toc);
+    }
+
+    /**
+     * Декодирует HTML блока из отображённого файла (можно вызывать из разных потоков)
+     */
+    public String readContent(Block block) {
+        return new String(readBytes(block.offset, block.length), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Байты ресурса EPUB по пути в архиве или null, если ресурс не сохранён
+     */
+    public byte[] readResource(String path) {
+        long[] location = resources.get(path);
+        return location != null ? readBytes(location[0], (int) location[1]) : null;
+    }
+
+    private byte[] readBytes(long offset, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer view = mapped.duplicate();
+        view.position((int) offset);
+        view.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Пишет скомпилированную книгу: содержимое блоков и ресурсов по мере разбора,
+     * таблицу - в commit(). До commit() данные лежат во временном файле.
+     */
+    static class Writer implements Closeable {
+        private final File target;
+        private final File tempFile;
+        private final String kind;
+        private final int parserVersion;
+        private final DataOutputStream out;
+        private final List<Block> blocks = new ArrayList<>();
+        private final List<String> resourcePaths = new ArrayList<>();
+        private final List<long[]> resourceLocations = new ArrayList<>();
+        private List<TocItem> toc;
+        private String baseDirectory = "";
+        private long position;
+        private boolean committed;
+
+        Writer(File target, String kind, int parserVersion) throws IOException {
+            this.target = target;
+            // Свой временный файл у каждой компиляции: книгу могут компилировать импорт и читалка сразу
+            this.tempFile = File.createTempFile(target.getName(), TEMP_SUFFIX, target.getParentFile());
+            this.kind = kind;
+            this.parserVersion = parserVersion;
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 64 * 1024));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(parserVersion);
+            position = 12;
+        }
+
+        /**
+         * Добавляет блок содержимого в порядке чтения книги
+         * @param anchors Заголовки блока со ссылками на якоря или null
+         */
+        void addBlock(String href, String stylesheets, String html, List<TocItem> anchors) throws IOException {
+            byte[] bytes = html.getBytes(StandardCharsets.UTF_8);
+            out.write(bytes);
+            blocks.add(new Block(href != null ? href : "", stylesheets != null ? stylesheets : "",
+                    anchors != null ? copyTocItems(anchors) : Collections.<TocItem>emptyList(),
+                    position, bytes.length));
+            position += bytes.length;
+        }
+
+        void addResource(String path, byte[] data) throws IOException {
+            out.write(data);
+            resourcePaths.add(path);
+            resourceLocations.add(new long[] {position, data.length});
+            position += data.length;
+        }
+
+        /**
+         * Задаёт оглавление NCX
+         * @param tocItems Элементы оглавления или null, если в книге его нет
+         * @param baseDirectory Каталог, относительно которого заданы ссылки элементов
+         */
+        void setToc(List<TocItem> tocItems, String baseDirectory) {
+            toc = tocItems != null ? copyTocItems(tocItems) : null;
+            this.baseDirectory = baseDirectory != null ? baseDirectory : "";
+        }
+
+        /**
+         * Дописывает таблицу и переносит файл на место
+         */
+        void commit() throws IOException {
+            long tableOffset = position;
+            writeString(out, kind);
+            writeString(out, baseDirectory);
+
+            out.writeInt(blocks.size());
+            for (Block block : blocks) {
+                writeString(out, block.href);
+                writeString(out, block.stylesheets);
+                out.writeLong(block.offset);
+                out.writeInt(block.length);
+                writeTocItems(out, block.anchors);
+            }
+
+            out.writeBoolean(toc != null);
+            if (toc != null) {
+                writeTocItems(out, toc);
+            }
+
+            out.writeInt(resourcePaths.size());
+            for (int i = 0; i < resourcePaths.size(); i++) {
+                writeString(out, resourcePaths.get(i));
+                out.writeLong(resourceLocations.get(i)[0]);
+                out.writeInt((int) resourceLocations.get(i)[1]);
+            }
+
+            out.writeLong(tableOffset);
+            out.writeInt(MAGIC);
+            out.close();
+
+            if (target.exists()) {
+                target.delete();
+            }
+            if (!tempFile.renameTo(target)) {
+                throw new IOException("Не удалось сохранить скомпилированную книгу");
+            }
+            committed = true;
+            Log.d(TAG, "Compiled " + kind + " book: " + blocks.size() + " blocks, " + resourcePaths.size() +
+                    " resources, " + target.length() + " bytes");
+            trimToSize(target.getParentFile(), MAX_CACHE_SIZE, target);
+        }
+
+        /**
+         * Закрывает файл; незавершённая компиляция удаляется
+         */
+        @Override
+        public void close() {
+            if (committed) {
+                return;
+            }
+            try {
+                out.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Error closing compiled book: " + e.getMessage());
+            }
+            tempFile.delete();
+        }
+    }
+
+    /**
+     * Удаляет книги, которые дольше всего не открывались, пока общий размер превышает лимит
+     */
+    private static synchronized void trimToSize(File directory, long maxSize, File keep) {
+        File[] tempFiles = directory.listFiles((dir, name) -> name.endsWith(TEMP_SUFFIX));
+        if (tempFiles != null) {
+            for (File tempFile : tempFiles) {
+                if (System.currentTimeMillis() - tempFile.lastModified() > STALE_TEMP_AGE_MS) {
+                    tempFile.delete();
+                }
+            }
+        }
+
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(FILE_SUFFIX));
+        if (files == null) {
+            return;
+        }
+
+        long totalSize = 0;
+        for (File file : files) {
+            totalSize += file.length();
+        }
+        if (totalSize <= maxSize) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+
+        for (File file : files) {
+            if (totalSize <= maxSize) {
+                break;
+            }
+            long length = file.length();
+            if (!file.equals(keep) && file.delete()) {
+                totalSize -= length;
+                Log.d(TAG, "Evicted compiled book: " + file.getName());
+            }
+        }
+    }
+
+    private static List<TocItem> copyTocItems(List<TocItem> items) {
+        List<TocItem> copy = new ArrayList<>(items.size());
+        for (TocItem item : items) {
+            copy.add(new TocItem(item.getTitle(), item.getPageNumber(), item.getLevel(), item.getContentRef()));
+        }
+        return copy;
+    }
+
+    private static void writeTocItems(DataOutputStream out, List<TocItem> items) throws IOException {
+        out.writeInt(items.size());
+        for (TocItem item : items) {
+            writeString(out, item.getTitle() != null ? item.getTitle() : "");
+            out.writeInt(item.getLevel());
+            out.writeBoolean(item.getContentRef() != null);
+            if (item.getContentRef() != null) {
+                writeString(out, item.getContentRef());
+            }
+        }
+    }
+
+    private static List<TocItem> readTocItems(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<TocItem> items = new ArrayList<>(Math.max(0, count));
+        for (int i = 0; i < count; i++) {
+            String title = readString(in);
+            int level = in.readInt();
+            String contentRef = in.readBoolean() ? readString(in) : null;
+            items.add(new TocItem(title, 0, level, contentRef));
+        }
+        return items;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
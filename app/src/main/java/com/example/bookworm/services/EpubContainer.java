@@ -0,0 +1,187 @@
+package com.example.bookworm.services;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Открытый EPUB-архив с произвольным доступом к записям.
+ * Центральный каталог ZIP читается один раз при открытии, после чего любая глава,
+ * OPF или NCX извлекается по имени без повторного сканирования архива.
+ */
+public class EpubContainer implements Closeable {
+    private static final String TAG = "EpubContainer";
+    private static final String CONTAINER_PATH = "META-INF/container.xml";
+
+    private final ZipFile zipFile;
+    private String opfPath;
+    private boolean opfPathResolved;
+
+    private EpubContainer(ZipFile zipFile) {
+        this.zipFile = zipFile;
+    }
+
+    /**
+     * Открывает EPUB-файл по URI
+     * @param context Контекст для доступа к файлам
+     * @param fileUri URI файла книги
+     */
+    public static EpubContainer open(Context context, Uri fileUri) throws IOException {
+        File file = LocalBookFiles.resolve(context, fileUri);
+        return new EpubContainer(new ZipFile(file));
+    }
+
+    /**
+     * Проверяет наличие записи в архиве
+     */
+    public boolean hasEntry(String name) {
+        return findEntry(name) != null;
+    }
+
+    /**
+     * Открывает поток для чтения записи или возвращает null, если её нет
+     */
+    public InputStream openEntry(String name) throws IOException {
+        ZipEntry entry = findEntry(name);
+        if (entry == null) {
+            return null;
+        }
+        return zipFile.getInputStream(entry);
+    }
+
+    /**
+     * Читает запись целиком в массив байт или возвращает null, если её нет
+     */
+    public byte[] readEntryBytes(String name) throws IOException {
+        ZipEntry entry = findEntry(name);
+        if (entry == null) {
+            return null;
+        }
+
+        int initialSize = entry.getSize() > 0 ? (int) entry.getSize() : 8192;
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(initialSize);
+        try (InputStream inputStream = zipFile.getInputStream(entry)) {
+            byte[] buffer = new byte[8192];
+            int len;
+            while ((len = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, len);
+            }
+        }
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * Читает запись как текст в UTF-8 или возвращает null, если её нет
+     */
+    public String readEntryAsString(String name) throws IOException {
+        byte[] bytes = readEntryBytes(name);
+        return bytes != null ? new String(bytes, StandardCharsets.UTF_8) : null;
+    }
+
+    /**
+     * Возвращает имена всех записей в порядке центрального каталога
+     */
+    public List<String> getEntryNames() {
+        List<String> names = new ArrayList<>();
+        Enumeration<? extends ZipEntry> entries = zipFile.entries();
+        while (entries.hasMoreElements()) {
+            names.add(entries.nextElement().getName());
+        }
+        return names;
+    }
+
+    /**
+     * Возвращает путь к OPF-файлу из META-INF/container.xml или null, если его нет
+     */
+    public synchronized String getOpfPath() {
+        if (!opfPathResolved) {
+            opfPathResolved = true;
+            try {
+                String containerXml = readEntryAsString(CONTAINER_PATH);
+                if (containerXml != null) {
+                    opfPath = parseOpfPath(containerXml);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Error reading container.xml: " + e.getMessage(), e);
+            }
+        }
+        return opfPath;
+    }
+
+    /**
+     * Возвращает каталог OPF-файла с завершающим слешем (или пустую строку)
+     */
+    public String getOpfDirectory() {
+        String path = getOpfPath();
+        if (path == null) {
+            return "";
+        }
+        int lastSlash = path.lastIndexOf('/');
+        return lastSlash != -1 ? path.substring(0, lastSlash + 1) : "";
+    }
+
+    @Override
+    public void close() throws IOException {
+        zipFile.close();
+    }
+
+    private ZipEntry findEntry(String name) {
+        if (name == null) {
+            return null;
+        }
+
+        ZipEntry entry = zipFile.getEntry(name);
+        if (entry == null && name.indexOf('%') != -1) {
+            // Ссылки в OPF могут быть закодированы (например, пробелы как %20)
+            try {
+                entry = zipFile.getEntry(URLDecoder.decode(name, "UTF-8"));
+            } catch (Exception e) {
+                Log.w(TAG, "Could not decode entry name: " + name);
+            }
+        }
+        return entry;
+    }
+
+    private static String parseOpfPath(String containerXml) {
+        try {
+            XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
+            XmlPullParser parser = factory.newPullParser();
+            parser.setInput(new StringReader(containerXml));
+
+            int eventType = parser.getEventType();
+            while (eventType != XmlPullParser.END_DOCUMENT) {
+                if (eventType == XmlPullParser.START_TAG && "rootfile".equals(parser.getName())) {
+                    for (int i = 0; i < parser.getAttributeCount(); i++) {
+                        if ("full-path".equals(parser.getAttributeName(i))) {
+                            String path = parser.getAttributeValue(i);
+                            Log.d(TAG, "Found OPF path: " + path);
+                            return path;
+                        }
+                    }
+                }
+                eventType = parser.next();
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error parsing container.xml: " + e.getMessage(), e);
+        }
+
+        Log.w(TAG, "No OPF path found in container.xml");
+        return null;
+    }
+}
@@ -0,0 +1,262 @@
+package com.example.bookworm.services;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+import android.util.LruCache;
+import android.webkit.WebResourceResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Отдаёт WebView читалки ресурсы EPUB (изображения, стили, шрифты) прямо из архива.
+ * Ссылки на ресурсы в страницах заменяются при разбиении на адреса epub://book/путь,
+ * а запросы к ним перехватываются в WebViewClient.shouldInterceptRequest().
+ * Запись читается по центральному каталогу ZIP без распаковки на диск, прочитанные
+ * ресурсы держатся в ограниченном по объёму LRU-кэше в памяти.
+ */
+public class EpubResourceServer implements Closeable {
+    private static final String TAG = "EpubResourceServer";
+    public static final String SCHEME = "epub";
+    public static final String HOST = "book";
+    public static final String BASE_URL = SCHEME + "://" + HOST + "/";
+    private static final int MAX_CACHE_BYTES = 16 * 1024 * 1024;
+
+    // Атрибут со ссылкой на ресурс в тегах, которые загружают внешние файлы
+    private static final Pattern RESOURCE_ATTRIBUTE = Pattern.compile(
+            "(<(?:img|image|link|source|video|audio|object|embed)\\b[^>]*?\\s(?:src|href|xlink:href|data)\\s*=\\s*)" +
+            "([\"'])([^\"']*)\\2",
+            Pattern.CASE_INSENSITIVE);
+    private static final Pattern STYLESHEET_LINK = Pattern.compile(
+            "<link\\b[^>]*\\brel\\s*=\\s*[\"']?stylesheet[^>]*>", Pattern.CASE_INSENSITIVE);
+
+    private final Context context;
+    private final Uri fileUri;
+    private final LruCache<String, byte[]> cache;
+    private EpubContainer epub;
+    private boolean openFailed;
+    // Скомпилированная книга с ресурсами, ищется при первом запросе
+    private CompiledBook compiled;
+    private boolean compiledChecked;
+
+    /**
+     * @param context Контекст для доступа к файлам
+     * @param fileUri URI файла книги (архив открывается при первом запросе)
+     */
+    public EpubResourceServer(Context context, Uri fileUri) {
+        this.context = context.getApplicationContext();
+        this.fileUri = fileUri;
+        int cacheBytes = (int) Math.min(MAX_CACHE_BYTES, Runtime.getRuntime().maxMemory() / 16);
+        this.cache = new LruCache<String, byte[]>(cacheBytes) {
+            @Override
+            protected int sizeOf(String key, byte[] value) {
+                return value.length;
+            }
+        };
+    }
+
+    /**
+     * Отвечает на запрос WebView.
+     * Вызывается из потока WebView, поэтому чтение архива синхронизировано.
+     * @return ответ с содержимым записи или null, если адрес не относится к книге
+     */
+    public WebResourceResponse serve(Uri url) {
+        if (!SCHEME.equals(url.getScheme()) || !HOST.equals(url.getHost()) || url.getPath() == null) {
+            return null;
+        }
+
+        String path = url.getPath().startsWith("/") ? url.getPath().substring(1) : url.getPath();
+        byte[] data = cache.get(path);
+        if (data == null) {
+            data = readEntry(path);
+            if (data == null) {
+                Log.w(TAG, "Resource not found in EPUB: " + path);
+                return new WebResourceResponse("text/plain", "UTF-8", 404, "Not Found",
+                        null, new ByteArrayInputStream(new byte[0]));
+            }
+            // Очень крупные записи не вытесняют из кэша всё остальное
+            if (data.length <= cache.maxSize() / 4) {
+                cache.put(path, data);
+            }
+        }
+
+        String mimeType = getMimeType(path);
+        String encoding = mimeType.startsWith("text/") || mimeType.endsWith("xml") ? "UTF-8" : null;
+        return new WebResourceResponse(mimeType, encoding, new ByteArrayInputStream(data));
+    }
+
+    @Override
+    public synchronized void close() {
+        cache.evictAll();
+        if (epub != null) {
+            try {
+                epub.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Error closing EPUB: " + e.getMessage());
+            }
+            epub = null;
+        }
+        compiled = null;
+        openFailed = true; // Закрытый сервер больше не открывает архив
+    }
+
+    private synchronized byte[] readEntry(String path) {
+        // Ресурсы скомпилированной книги читаются из отображённого файла без открытия архива
+        if (!compiledChecked && !openFailed) {
+            compiledChecked = true;
+            compiled = BookFileReader.openCompiledBook(context, fileUri);
+        }
+        if (compiled != null) {
+            byte[] data = compiled.readResource(path);
+            if (data != null) {
+                return data;
+            }
+        }
+
+        if (epub == null && !openFailed) {
+            try {
+                epub = EpubContainer.open(context, fileUri);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not open EPUB for resources: " + e.getMessage(), e);
+                openFailed = true;
+            }
+        }
+        if (epub == null) {
+            return null;
+        }
+
+        try {
+            return epub.readEntryBytes(path);
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading resource " + path + ": " + e.getMessage(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Заменяет относительные ссылки на изображения, стили и медиа адресами epub://book/
+     * @param html HTML главы
+     * @param documentPath Путь главы в архиве, относительно которого заданы ссылки
+     */
+    static String rewriteResourceUrls(String html, String documentPath) {
+        Matcher matcher = RESOURCE_ATTRIBUTE.matcher(html);
+        if (!matcher.find()) {
+            return html;
+        }
+
+        String directory = documentPath.lastIndexOf('/') != -1
+                ? documentPath.substring(0, documentPath.lastIndexOf('/') + 1) : "";
+        StringBuilder result = new StringBuilder(html.length() + 256);
+        int last = 0;
+        do {
+            String reference = matcher.group(3).trim();
+            if (isRelative(reference)) {
+                result.append(html, last, matcher.start(3))
+                        .append(BASE_URL).append(resolvePath(directory, reference));
+                last = matcher.end(3);
+            }
+        } while (matcher.find());
+        return result.append(html, last, html.length()).toString();
+    }
+
+    /**
+     * Теги подключения таблиц стилей главы (их нужно повторять на каждой странице,
+     * потому что head главы на страницы не попадает)
+     */
+    static String extractStylesheetLinks(String html) {
+        int headEnd = html.toLowerCase(Locale.ROOT).indexOf("</head");
+        Matcher matcher = STYLESHEET_LINK.matcher(html);
+        if (headEnd != -1) {
+            matcher.region(0, headEnd);
+        }
+        StringBuilder links = new StringBuilder();
+        while (matcher.find()) {
+            links.append(matcher.group());
+        }
+        return links.toString();
+    }
+
+    private static boolean isRelative(String reference) {
+        if (reference.isEmpty() || reference.startsWith("#") || reference.startsWith("/")) {
+            return false;
+        }
+        // Абсолютный адрес со схемой (http:, data:, epub: и т.д.)
+        int colon = reference.indexOf(':');
+        int slash = reference.indexOf('/');
+        return colon == -1 || (slash != -1 && slash < colon);
+    }
+
+    /**
+     * Путь записи в архиве: каталог документа плюс относительная ссылка без "." и ".."
+     */
+    private static String resolvePath(String directory, String reference) {
+        int cut = reference.length();
+        int hash = reference.indexOf('#');
+        int query = reference.indexOf('?');
+        if (hash != -1) {
+            cut = hash;
+        }
+        if (query != -1 && query < cut) {
+            cut = query;
+        }
+
+        List<String> segments = new ArrayList<>();
+        for (String segment : (directory + reference.substring(0, cut)).split("/")) {
+            if (segment.isEmpty() || ".".equals(segment)) {
+                continue;
+            }
+            if ("..".equals(segment)) {
+                if (!segments.isEmpty()) {
+                    segments.remove(segments.size() - 1);
+                }
+            } else {
+                segments.add(segment);
+            }
+        }
+        return String.join("/", segments);
+    }
+
+    private static String getMimeType(String path) {
+        String extension = path.substring(path.lastIndexOf('.') + 1).toLowerCase(Locale.ROOT);
+        switch (extension) {
+            case "jpg":
+            case "jpeg":
+                return "image/jpeg";
+            case "png":
+                return "image/png";
+            case "gif":
+                return "image/gif";
+            case "webp":
+                return "image/webp";
+            case "svg":
+                return "image/svg+xml";
+            case "css":
+                return "text/css";
+            case "xhtml":
+            case "html":
+            case "htm":
+                return "text/html";
+            case "ttf":
+                return "font/ttf";
+            case "otf":
+                return "font/otf";
+            case "woff":
+                return "font/woff";
+            case "woff2":
+                return "font/woff2";
+            case "mp3":
+                return "audio/mpeg";
+            case "mp4":
+                return "video/mp4";
+            default:
+                return "application/octet-stream";
+        }
+    }
+}
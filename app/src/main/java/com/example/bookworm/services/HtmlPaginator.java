@@ -0,0 +1,295 @@
+package com.example.bookworm.services;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Разбивает HTML главы на страницы за один проход HtmlTokenizer.
+ * Страница набирается из блочных элементов (абзацы, заголовки, div, списки и т.д.);
+ * граница страницы ставится только между блоками, а слишком длинный блок делится по пробелам.
+ * Стек открытых элементов ведётся по ходу разбора: незакрытые теги закрываются неявно,
+ * а на границе страницы открытые элементы закрываются и заново открываются на следующей
+ * странице с исходными атрибутами, поэтому каждая страница - корректный фрагмент HTML.
+ */
+public class HtmlPaginator {
+    // Элементы, между которыми можно переносить страницу
+    private static final Set<String> BLOCK_TAGS = new HashSet<>(Arrays.asList(
+            "p", "h1", "h2", "h3", "h4", "h5", "h6", "div", "section", "article", "aside",
+            "header", "footer", "nav", "main", "blockquote", "pre", "ul", "ol", "li", "dl", "dt", "dd",
+            "table", "figure", "figcaption", "hr", "center", "address"));
+    // Элементы, содержимое которых не попадает на страницы
+    private static final Set<String> SKIPPED_TAGS = new HashSet<>(Arrays.asList(
+            "head", "title", "script", "style", "template"));
+    // Элементы, которые сами по себе видны на странице, даже без текста
+    private static final Set<String> CONTENT_TAGS = new HashSet<>(Arrays.asList(
+            "img", "image", "svg", "hr", "video", "audio", "object", "embed"));
+
+    private final int maxPageSize;
+    private final boolean countMarkup;
+    private final String pagePrefix;
+    private final String pageSuffix;
+
+    private final List<String> pages = new ArrayList<>();
+    private final List<OpenElement> openElements = new ArrayList<>();
+    // Открытые элементы на последней границе блоков, с которой начинается pending
+    private List<OpenElement> boundaryElements = new ArrayList<>();
+
+    private final StringBuilder page = new StringBuilder();
+    private int pageSize;
+    private boolean pageHasContent;
+
+    // Содержимое после последней границы блоков, ещё не помещённое на страницу
+    private final StringBuilder pending = new StringBuilder();
+    private int pendingSize;
+    private boolean pendingHasContent;
+
+    /**
+     * Открытый элемент: имя для закрывающего тега и исходный открывающий тег для повторного открытия
+     */
+    private static class OpenElement {
+        final String name;
+        final String startTag;
+
+        OpenElement(String name, String startTag) {
+            this.name = name;
+            this.startTag = startTag;
+        }
+    }
+
+    private HtmlPaginator(int maxPageSize, boolean countMarkup, String pagePrefix, String pageSuffix) {
+        this.maxPageSize = maxPageSize;
+        this.countMarkup = countMarkup;
+        this.pagePrefix = pagePrefix;
+        this.pageSuffix = pageSuffix;
+    }
+
+    /**
+     * Разбивает HTML на страницы
+     * @param html HTML-документ или фрагмент (head, script и style пропускаются)
+     * @param maxPageSize Примерный размер страницы в символах
+     * @param countMarkup true - учитывать в размере страницы разметку, false - только текст
+     * @param pagePrefix Строка в начале каждой страницы
+     * @param pageSuffix Строка в конце каждой страницы
+     * @return список страниц (пустой, если в документе нет видимого содержимого)
+     */
+    public static List<String> paginate(String html, int maxPageSize, boolean countMarkup,
+                                        String pagePrefix, String pageSuffix) {
+        HtmlPaginator paginator = new HtmlPaginator(Math.max(1, maxPageSize), countMarkup,
+                pagePrefix, pageSuffix);
+        paginator.run(new HtmlTokenizer(html));
+        return paginator.pages;
+    }
+
+    private void run(HtmlTokenizer tokenizer) {
+        startPage(boundaryElements);
+        String skippedTag = null;
+
+        int type = tokenizer.next();
+        while (type != HtmlTokenizer.END_DOCUMENT) {
+            String name = tokenizer.getTagName();
+
+            if (skippedTag != null) {
+                // Пропускаем содержимое head/style/script; body закрывает незакрытый head
+                if ((type == HtmlTokenizer.END_TAG && skippedTag.equals(name)) ||
+                        (type == HtmlTokenizer.START_TAG && "body".equals(name))) {
+                    skippedTag = null;
+                }
+            } else if (type == HtmlTokenizer.START_TAG) {
+                if (SKIPPED_TAGS.contains(name)) {
+                    if (!tokenizer.isSelfClosing()) {
+                        skippedTag = name;
+                    }
+                } else if (!"html".equals(name) && !"body".equals(name)) {
+                    handleStartTag(tokenizer, name);
+                }
+            } else if (type == HtmlTokenizer.END_TAG) {
+                if (!"html".equals(name) && !"body".equals(name) && !HtmlTokenizer.isVoidElement(name)) {
+                    handleEndTag(tokenizer, name);
+                }
+            } else if (type == HtmlTokenizer.TEXT) {
+                handleText(tokenizer.getRawToken());
+            }
+
+            type = tokenizer.next();
+        }
+
+        // Закрываем всё, что осталось открытым к концу документа
+        closeElementsFrom(0);
+        commitPending(false);
+        finishPage(openElements);
+    }
+
+    private void handleStartTag(HtmlTokenizer tokenizer, String name) {
+        boolean block = BLOCK_TAGS.contains(name);
+        if (block) {
+            closeImplicitElements(name);
+            commitPending(false);
+        }
+
+        int before = pending.length();
+        tokenizer.appendRawToken(pending);
+        if (countMarkup) {
+            pendingSize += pending.length() - before;
+        }
+        if (CONTENT_TAGS.contains(name)) {
+            pendingHasContent = true;
+        }
+
+        if (!tokenizer.isSelfClosing() && !HtmlTokenizer.isVoidElement(name)) {
+            openElements.add(new OpenElement(name, pending.substring(before)));
+        }
+    }
+
+    private void handleEndTag(HtmlTokenizer tokenizer, String name) {
+        int index = findOpenElement(name);
+        if (index == -1) {
+            // Закрывающий тег без открывающего - пропускаем
+            return;
+        }
+
+        closeElementsFrom(index);
+        if (BLOCK_TAGS.contains(name)) {
+            commitPending(false);
+        }
+    }
+
+    private void handleText(String text) {
+        if (!pendingHasContent && text.trim().length() > 0) {
+            pendingHasContent = true;
+        }
+
+        // Блок длиннее страницы делим по пробелам, перенося остаток на следующие страницы
+        int offset = 0;
+        while (text.length() - offset > maxPageSize - pendingSize) {
+            int room = Math.max(1, maxPageSize - pendingSize);
+            int cut = findBreak(text, offset, Math.min(text.length(), offset + room));
+            appendPending(text, offset, cut);
+            offset = cut;
+            commitPending(true);
+            pendingHasContent = offset < text.length();
+        }
+        appendPending(text, offset, text.length());
+    }
+
+    private void appendPending(String text, int start, int end) {
+        pending.append(text, start, end);
+        pendingSize += end - start;
+    }
+
+    /**
+     * Новый абзац или блок неявно закрывает незакрытый p (и новый li - предыдущий li)
+     */
+    private void closeImplicitElements(String name) {
+        for (int i = openElements.size() - 1; i >= 0; i--) {
+            String openName = openElements.get(i).name;
+            if ("p".equals(openName) || ("li".equals(name) && "li".equals(openName))) {
+                closeElementsFrom(i);
+                return;
+            }
+            if (BLOCK_TAGS.contains(openName)) {
+                return;
+            }
+        }
+    }
+
+    private int findOpenElement(String name) {
+        for (int i = openElements.size() - 1; i >= 0; i--) {
+            if (openElements.get(i).name.equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Закрывает элемент с указанным индексом в стеке и все вложенные в него
+     */
+    private void closeElementsFrom(int index) {
+        for (int i = openElements.size() - 1; i >= index; i--) {
+            OpenElement element = openElements.remove(i);
+            int before = pending.length();
+            pending.append("</").append(element.name).append('>');
+            if (countMarkup) {
+                pendingSize += pending.length() - before;
+            }
+        }
+    }
+
+    /**
+     * Переносит накопленный блок на страницу.
+     * Если блок не помещается, текущая страница завершается и блок начинает новую.
+     * @param forceBreak завершить страницу после блока (блок длиннее страницы)
+     */
+    private void commitPending(boolean forceBreak) {
+        if (pending.length() > 0) {
+            if (pageHasContent && pageSize + pendingSize > maxPageSize) {
+                finishPage(boundaryElements);
+                startPage(boundaryElements);
+            }
+
+            page.append(pending);
+            pageSize += pendingSize;
+            pageHasContent |= pendingHasContent;
+            pending.setLength(0);
+            pendingSize = 0;
+            pendingHasContent = false;
+
+            if (forceBreak || pageSize >= maxPageSize) {
+                finishPage(openElements);
+                startPage(openElements);
+            }
+        }
+        boundaryElements = new ArrayList<>(openElements);
+    }
+
+    private void startPage(List<OpenElement> reopened) {
+        page.setLength(0);
+        page.append(pagePrefix);
+        for (OpenElement element : reopened) {
+            page.append(element.startTag);
+        }
+        pageSize = 0;
+        pageHasContent = false;
+    }
+
+    private void finishPage(List<OpenElement> open) {
+        if (!pageHasContent) {
+            return;
+        }
+        for (int i = open.size() - 1; i >= 0; i--) {
+            page.append("</").append(open.get(i).name).append('>');
+        }
+        page.append(pageSuffix);
+        pages.add(page.toString());
+        pageHasContent = false;
+    }
+
+    /**
+     * Ищет место разрыва текста не дальше limit: после последнего пробела,
+     * а если его нет - не разрывая символьную ссылку и суррогатную пару
+     */
+    private static int findBreak(String text, int start, int limit) {
+        if (limit >= text.length()) {
+            return text.length();
+        }
+
+        for (int i = limit; i > start + (limit - start) / 2; i--) {
+            if (Character.isWhitespace(text.charAt(i - 1))) {
+                return i;
+            }
+        }
+
+        int cut = limit;
+        int ampersand = text.lastIndexOf('&', cut - 1);
+        if (ampersand > start && cut - ampersand < 10 && text.indexOf(';', ampersand) >= cut) {
+            cut = ampersand;
+        }
+        if (cut > start + 1 && Character.isHighSurrogate(text.charAt(cut - 1))) {
+            cut--;
+        }
+        return cut;
+    }
+}
@@ -0,0 +1,206 @@
+package com.example.bookworm.services;
+
+import java.util.Locale;
+
+/**
+ * Потоковый токенизатор HTML/XHTML.
+ * Проходит документ один раз слева направо и по очереди возвращает открывающие и
+ * закрывающие теги, текст и прочие конструкции (комментарии, DOCTYPE, CDATA),
+ * не создавая промежуточных строк для всего документа.
+ * Константы событий повторяют XmlPullParser, чтобы код разбора выглядел одинаково.
+ */
+public class HtmlTokenizer {
+    public static final int END_DOCUMENT = 1;
+    public static final int START_TAG = 2;
+    public static final int END_TAG = 3;
+    public static final int TEXT = 4;
+    public static final int OTHER = 5; // Комментарии, DOCTYPE, инструкции обработки, CDATA
+
+    private final String html;
+    private final int length;
+
+    private int position;
+    private int type;
+    private int tokenStart;
+    private int tokenEnd;
+    private int nameStart;
+    private int nameEnd;
+    private boolean selfClosing;
+    private String tagName;
+
+    public HtmlTokenizer(String html) {
+        this.html = html != null ? html : "";
+        this.length = this.html.length();
+    }
+
+    /**
+     * Переходит к следующему токену
+     * @return тип токена (START_TAG, END_TAG, TEXT, OTHER или END_DOCUMENT)
+     */
+    public int next() {
+        tagName = null;
+        selfClosing = false;
+        nameStart = nameEnd = -1;
+
+        if (position >= length) {
+            tokenStart = tokenEnd = length;
+            type = END_DOCUMENT;
+            return type;
+        }
+
+        tokenStart = position;
+        if (html.charAt(position) != '<' || !readMarkup()) {
+            readText();
+        }
+        position = tokenEnd;
+        return type;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    /**
+     * Имя текущего тега в нижнем регистре (только для START_TAG и END_TAG)
+     */
+    public String getTagName() {
+        if (tagName == null && nameStart >= 0) {
+            tagName = html.substring(nameStart, nameEnd).toLowerCase(Locale.ROOT);
+        }
+        return tagName;
+    }
+
+    /**
+     * Открывающий тег записан как самозакрывающийся ({@code <br/>})
+     */
+    public boolean isSelfClosing() {
+        return selfClosing;
+    }
+
+    /**
+     * Исходный текст текущего токена без изменений
+     */
+    public String getRawToken() {
+        return html.substring(tokenStart, tokenEnd);
+    }
+
+    public int getTokenStart() {
+        return tokenStart;
+    }
+
+    public int getTokenEnd() {
+        return tokenEnd;
+    }
+
+    /**
+     * Копирует исходный текст текущего токена в builder без промежуточной строки
+     */
+    public void appendRawToken(StringBuilder builder) {
+        builder.append(html, tokenStart, tokenEnd);
+    }
+
+    /**
+     * Проверяет, является ли элемент пустым (не имеющим закрывающего тега)
+     */
+    public static boolean isVoidElement(String tagName) {
+        switch (tagName) {
+            case "area":
+            case "base":
+            case "br":
+            case "col":
+            case "embed":
+            case "hr":
+            case "img":
+            case "input":
+            case "link":
+            case "meta":
+            case "param":
+            case "source":
+            case "track":
+            case "wbr":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Разбирает конструкцию, начинающуюся с '<'.
+     * Возвращает false, если это не разметка, а обычный символ '<' в тексте.
+     */
+    private boolean readMarkup() {
+        int next = tokenStart + 1;
+        if (next >= length) {
+            return false;
+        }
+        char c = html.charAt(next);
+
+        if (c == '!') {
+            if (html.startsWith("<!--", tokenStart)) {
+                tokenEnd = indexAfter("-->", tokenStart + 4);
+            } else if (html.startsWith("<![CDATA[", tokenStart)) {
+                tokenEnd = indexAfter("]]>", tokenStart + 9);
+            } else {
+                tokenEnd = indexAfter(">", next);
+            }
+            type = OTHER;
+            return true;
+        }
+
+        if (c == '?') {
+            tokenEnd = indexAfter(">", next);
+            type = OTHER;
+            return true;
+        }
+
+        boolean closing = c == '/';
+        int nameFrom = closing ? next + 1 : next;
+        if (nameFrom >= length || !Character.isLetter(html.charAt(nameFrom))) {
+            return false;
+        }
+
+        int nameTo = nameFrom + 1;
+        while (nameTo < length && isNameChar(html.charAt(nameTo))) {
+            nameTo++;
+        }
+        nameStart = nameFrom;
+        nameEnd = nameTo;
+
+        // Ищем конец тега, пропуская '>' внутри значений атрибутов в кавычках
+        int i = nameTo;
+        char quote = 0;
+        while (i < length) {
+            char ch = html.charAt(i);
+            if (quote != 0) {
+                if (ch == quote) {
+                    quote = 0;
+                }
+            } else if (ch == '"' || ch == '\'') {
+                quote = ch;
+            } else if (ch == '>') {
+                break;
+            }
+            i++;
+        }
+
+        tokenEnd = i < length ? i + 1 : length;
+        type = closing ? END_TAG : START_TAG;
+        selfClosing = !closing && i < length && i > nameTo && html.charAt(i - 1) == '/';
+        return true;
+    }
+
+    private void readText() {
+        int next = html.indexOf('<', tokenStart + 1);
+        tokenEnd = next != -1 ? next : length;
+        type = TEXT;
+    }
+
+    private int indexAfter(String terminator, int from) {
+        int index = html.indexOf(terminator, from);
+        return index != -1 ? index + terminator.length() : length;
+    }
+
+    private static boolean isNameChar(char c) {
+        return Character.isLetterOrDigit(c) || c == ':' || c == '_' || c == '-' || c == '.';
+    }
+}
@@ -0,0 +1,277 @@
+package com.example.bookworm.services;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.DocumentsContract;
+import android.provider.OpenableColumns;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Предоставляет локальный файл для URI книги.
+ * Файлы с file:// открываются напрямую, а content:// один раз копируются в кэш приложения,
+ * чтобы к ним можно было обращаться с произвольным доступом (ZipFile, FileChannel).
+ *
+ * Рядом с копией хранится файл .meta с валидатором источника (размер и время изменения
+ * из провайдера) и временем последнего обращения. Копия используется повторно, пока валидатор
+ * не изменился; если провайдер не сообщает ни того, ни другого, копия живёт до конца сессии.
+ * Время изменения самой копии не трогается: по нему PaginationCache запоминает хэш содержимого.
+ */
+public final class LocalBookFiles {
+    private static final String TAG = "LocalBookFiles";
+    private static final String COPY_DIR = "book_copies";
+    private static final String COPY_PREFIX = "copy_";
+    private static final String META_SUFFIX = ".meta";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final long MAX_CACHE_SIZE = 256L * 1024 * 1024; // 256 МБ на все копии
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // Блокировки по URI: копирование одной книги не задерживает другие
+    private static final Map<String, Object> locks = new HashMap<>();
+    // Копии без валидатора, сделанные в этой сессии
+    private static final Set<String> sessionCopies = new HashSet<>();
+
+    private LocalBookFiles() {
+    }
+
+    /**
+     * Возвращает локальный файл с содержимым книги
+     * @param context Контекст для доступа к ContentResolver и кэшу
+     * @param fileUri URI файла книги (file:// или content://)
+     * @return файл, доступный для произвольного чтения
+     */
+    public static File resolve(Context context, Uri fileUri) throws IOException {
+        String scheme = fileUri.getScheme();
+
+        // Локальные файлы не копируются и не ждут чужих копирований
+        if ("file".equals(scheme) || scheme == null) {
+            String path = fileUri.getPath();
+            if (path == null) {
+                throw new FileNotFoundException("Не удалось открыть файл: " + fileUri);
+            }
+            return new File(path);
+        }
+
+        if (!"content".equals(scheme)) {
+            throw new IOException("Неподдерживаемая схема URI: " + scheme);
+        }
+
+        String key = sha1Hex(fileUri.toString());
+        File copyDir = getCopyDirectory(context);
+        File copy;
+        synchronized (lockFor(key)) {
+            copy = new File(copyDir, COPY_PREFIX + key);
+            File metaFile = new File(copyDir, COPY_PREFIX + key + META_SUFFIX);
+            String validator = queryValidator(context, fileUri);
+            Properties meta = readMeta(metaFile);
+
+            if (copy.exists() && isCopyCurrent(key, validator, meta)) {
+                meta.setProperty("accessed", String.valueOf(System.currentTimeMillis()));
+                writeMeta(metaFile, meta);
+                Log.d(TAG, "Reusing local copy for " + fileUri);
+                return copy;
+            }
+
+            File tempFile = new File(copyDir, copy.getName() + TEMP_SUFFIX);
+            try (InputStream inputStream = context.getContentResolver().openInputStream(fileUri);
+                 OutputStream outputStream = new FileOutputStream(tempFile)) {
+                if (inputStream == null) {
+                    throw new FileNotFoundException("Не удалось открыть файл: " + fileUri);
+                }
+
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int bytesRead;
+                while ((bytesRead = inputStream.read(buffer)) != -1) {
+                    outputStream.write(buffer, 0, bytesRead);
+                }
+            }
+
+            if (copy.exists()) {
+                copy.delete();
+            }
+            if (!tempFile.renameTo(copy)) {
+                throw new IOException("Не удалось сохранить локальную копию файла: " + fileUri);
+            }
+
+            Properties newMeta = new Properties();
+            if (validator != null) {
+                newMeta.setProperty("validator", validator);
+            } else {
+                synchronized (sessionCopies) {
+                    sessionCopies.add(key);
+                }
+            }
+            newMeta.setProperty("accessed", String.valueOf(System.currentTimeMillis()));
+            writeMeta(metaFile, newMeta);
+
+            Log.d(TAG, "Created local copy for " + fileUri + " (" + copy.length() + " bytes)");
+        }
+
+        // Вне блокировки книги: очистка по очереди берёт блокировки других копий
+        trimToSize(copyDir, MAX_CACHE_SIZE, copy.getName());
+        return copy;
+    }
+
+    private static boolean isCopyCurrent(String key, String validator, Properties meta) {
+        if (validator != null) {
+            return validator.equals(meta.getProperty("validator"));
+        }
+        synchronized (sessionCopies) {
+            return sessionCopies.contains(key);
+        }
+    }
+
+    /**
+     * Валидатор источника: размер и время изменения из провайдера,
+     * или null, если провайдер не сообщает ни того, ни другого
+     */
+    private static String queryValidator(Context context, Uri fileUri) {
+        long size = queryLong(context, fileUri, OpenableColumns.SIZE);
+        // COLUMN_LAST_MODIFIED есть только у документов DocumentsProvider
+        long lastModified = queryLong(context, fileUri, DocumentsContract.Document.COLUMN_LAST_MODIFIED);
+        if (size <= 0 && lastModified <= 0) {
+            return null;
+        }
+        return size + ":" + lastModified;
+    }
+
+    /**
+     * Получает числовой столбец из ContentResolver или -1, если он неизвестен
+     */
+    private static long queryLong(Context context, Uri fileUri, String column) {
+        try (Cursor cursor = context.getContentResolver().query(fileUri,
+                new String[]{column}, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst() && cursor.getColumnCount() > 0 && !cursor.isNull(0)) {
+                return cursor.getLong(0);
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Could not query " + column + ": " + e.getMessage());
+        }
+        return -1;
+    }
+
+    /**
+     * Удаляет копии, к которым дольше всего не обращались, пока общий размер превышает лимит.
+     * Копия keepName (только что запрошенная) не удаляется.
+     */
+    private static void trimToSize(File directory, long maxSize, String keepName) {
+        File[] copies = directory.listFiles((dir, name) ->
+                name.startsWith(COPY_PREFIX) && !name.endsWith(META_SUFFIX) && !name.endsWith(TEMP_SUFFIX));
+        if (copies == null) {
+            return;
+        }
+
+        long totalSize = 0;
+        final Map<File, Long> accessed = new HashMap<>();
+        for (File copy : copies) {
+            totalSize += copy.length();
+            String value = readMeta(new File(directory, copy.getName() + META_SUFFIX)).getProperty("accessed");
+            long accessTime;
+            try {
+                accessTime = value != null ? Long.parseLong(value) : 0;
+            } catch (NumberFormatException e) {
+                accessTime = 0;
+            }
+            accessed.put(copy, accessTime);
+        }
+        if (totalSize <= maxSize) {
+            return;
+        }
+
+        Arrays.sort(copies, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(accessed.get(a), accessed.get(b));
+            }
+        });
+
+        for (File copy : copies) {
+            if (totalSize <= maxSize) {
+                break;
+            }
+            if (copy.getName().equals(keepName)) {
+                continue;
+            }
+            long length = copy.length();
+            // Копию, которую сейчас делает или читает другой поток, не трогаем
+            String key = copy.getName().substring(COPY_PREFIX.length());
+            synchronized (lockFor(key)) {
+                if (copy.delete()) {
+                    totalSize -= length;
+                    new File(directory, copy.getName() + META_SUFFIX).delete();
+                    Log.d(TAG, "Evicted local copy: " + copy.getName());
+                }
+            }
+        }
+    }
+
+    private static File getCopyDirectory(Context context) {
+        File copyDir = new File(context.getCacheDir(), COPY_DIR);
+        if (!copyDir.exists()) {
+            copyDir.mkdirs();
+        }
+        return copyDir;
+    }
+
+    private static Object lockFor(String key) {
+        synchronized (locks) {
+            Object lock = locks.get(key);
+            if (lock == null) {
+                lock = new Object();
+                locks.put(key, lock);
+            }
+            return lock;
+        }
+    }
+
+    private static Properties readMeta(File metaFile) {
+        Properties meta = new Properties();
+        if (metaFile.exists()) {
+            try (InputStream inputStream = new FileInputStream(metaFile)) {
+                meta.load(inputStream);
+            } catch (IOException e) {
+                Log.w(TAG, "Could not read copy metadata: " + e.getMessage());
+            }
+        }
+        return meta;
+    }
+
+    private static void writeMeta(File metaFile, Properties meta) {
+        try (OutputStream outputStream = new FileOutputStream(metaFile)) {
+            meta.store(outputStream, null);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write copy metadata: " + e.getMessage());
+        }
+    }
+
+    static String sha1Hex(String value) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(value.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : hash) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (Exception e) {
+            return Integer.toHexString(value.hashCode());
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package com.example.bookworm.services;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.regex.Pattern;
+
+/**
+ * Страницы текстового файла, отображённого в память.
+ * При открытии файл проходится один раз и строится только индекс байтовых смещений страниц;
+ * текст страницы декодируется из отображения при обращении к ней. Расход памяти кучи
+ * не зависит от размера файла (4 байта на страницу), поэтому так можно читать TXT
+ * в сотни мегабайт. Ожидается кодировка UTF-8.
+ * В том же проходе короткие строки проверяются на сходство с заголовками глав для оглавления.
+ */
+public class MappedTextPages extends AbstractList<String> implements RandomAccess {
+    private static final String TAG = "MappedTextPages";
+    private static final int SCAN_CHUNK = 64 * 1024;
+    private static final int MAX_HEADING_CHARS = 80; // Более длинные строки не считаются заголовками
+    private static final int MIN_HEADING_CHARS = 5;
+    private static final int MAX_HEADINGS = 1000;
+    // Типичные обозначения глав и пронумерованные заголовки
+    private static final Pattern CHAPTER_PATTERN = Pattern.compile(
+            "(?i)^\\s*(chapter|part|section|глава|часть|раздел)\\s+([\\dIVXLCDM]+|[a-zA-Zа-яА-Я]+).*" +
+            "|^\\s*([\\dIVXLCDM]+)[.:]\\s+.*");
+
+    private final ByteBuffer mappedFile;
+    // pageStarts[i] - начало страницы i, pageStarts[pageCount] - конец последней страницы
+    private final int[] pageStarts;
+    private final int pageCount;
+    private final List<Heading> headings;
+
+    /**
+     * Строка, похожая на заголовок главы, и страница (с 0), на которой она начинается
+     */
+    public static class Heading {
+        public final String title;
+        public final int page;
+
+        Heading(String title, int page) {
+            this.title = title;
+            this.page = page;
+        }
+    }
+
+    private MappedTextPages(ByteBuffer mappedFile, int[] pageStarts, int pageCount, List<Heading> headings) {
+        this.mappedFile = mappedFile;
+        this.pageStarts = pageStarts;
+        this.pageCount = pageCount;
+        this.headings = headings;
+    }
+
+    /**
+     * Отображает файл в память и строит индекс страниц
+     * @param context Контекст для доступа к файлам
+     * @param fileUri URI текстового файла
+     * @param charsPerPage Примерное количество символов на странице
+     */
+    public static MappedTextPages open(Context context, Uri fileUri, int charsPerPage) throws IOException {
+        File file = LocalBookFiles.resolve(context, fileUri);
+        long start = System.currentTimeMillis();
+
+        MappedByteBuffer mapped;
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+             FileChannel channel = randomAccessFile.getChannel()) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Файл слишком большой: " + channel.size() + " байт");
+            }
+            // Отображение остаётся действительным и после закрытия канала
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        MappedTextPages pages = buildIndex(mapped, Math.max(1, charsPerPage));
+        Log.d(TAG, "Indexed " + pages.size() + " pages of " + file.length() + " bytes in " +
+                (System.currentTimeMillis() - start) + " ms");
+        return pages;
+    }
+
+    /**
+     * Декодирует текст страницы из отображённого файла
+     */
+    @Override
+    public String get(int index) {
+        if (index < 0 || index >= pageCount) {
+            throw new IndexOutOfBoundsException("Page " + index + " of " + pageCount);
+        }
+
+        int start = pageStarts[index];
+        byte[] bytes = new byte[pageStarts[index + 1] - start];
+        // duplicate() даёт собственную позицию, поэтому страницы можно читать из разных потоков
+        ByteBuffer view = mappedFile.duplicate();
+        view.position(start);
+        view.get(bytes);
+
+        String text = new String(bytes, StandardCharsets.UTF_8);
+        if (text.indexOf('\r') != -1) {
+            text = text.replace("\r\n", "\n").replace('\r', '\n');
+        }
+        return text.trim();
+    }
+
+    @Override
+    public int size() {
+        return pageCount;
+    }
+
+    /**
+     * Заголовки глав, найденные при построении индекса, в порядке следования
+     */
+    public List<Heading> getHeadings() {
+        return headings;
+    }
+
+    /**
+     * Один проход по байтам файла: символы UTF-8 считаются по ведущим байтам без декодирования.
+     * Страница завершается, когда набрано charsPerPage символов; разрыв переносится назад
+     * на границу абзаца (пустая строка), конец предложения или пробел, если они недалеко.
+     */
+    private static MappedTextPages buildIndex(ByteBuffer mapped, int charsPerPage) {
+        ByteBuffer scan = mapped.duplicate();
+        int end = scan.limit();
+        int position = 0;
+
+        // Пропускаем BOM UTF-8
+        if (end >= 3 && (scan.get(0) & 0xFF) == 0xEF && (scan.get(1) & 0xFF) == 0xBB &&
+                (scan.get(2) & 0xFF) == 0xBF) {
+            position = 3;
+        }
+        scan.position(position);
+
+        int[] pageStarts = new int[Math.max(16, end / (charsPerPage * 2) + 2)];
+        int pageCount = 0;
+        int pageStart = position;
+        pageStarts[0] = pageStart;
+
+        // Разбор строк для поиска заголовков: смещения строк-кандидатов и их текст
+        List<String> headingTitles = new ArrayList<>();
+        List<Integer> headingOffsets = new ArrayList<>();
+        int lineStart = position;
+        int lineChars = 0;
+        boolean lineVisible = false;
+        boolean previousLineBlank = false; // Первая строка не считается стоящей после пустой
+        String pendingHeading = null; // Короткая строка после пустой, ждёт пустую строку следом
+        int pendingHeadingOffset = -1;
+
+        int chars = 0;
+        int lastVisible = -1;
+        int previous = -1;
+        int paragraphBreak = -1, paragraphChars = 0;
+        int sentenceBreak = -1, sentenceChars = 0;
+        int spaceBreak = -1, spaceChars = 0;
+        boolean paragraphVisible = false, sentenceVisible = false, spaceVisible = false;
+
+        byte[] chunk = new byte[SCAN_CHUNK];
+        while (position < end) {
+            int count = Math.min(chunk.length, end - position);
+            scan.get(chunk, 0, count);
+
+            for (int i = 0; i < count; i++, position++) {
+                int b = chunk[i] & 0xFF;
+                if ((b & 0xC0) == 0x80 || b == '\r') {
+                    continue; // Продолжение многобайтового символа или CR
+                }
+
+                if (chars >= charsPerPage) {
+                    int breakAt;
+                    int breakChars;
+                    boolean visible;
+                    if (paragraphBreak > pageStart && paragraphChars >= charsPerPage / 4) {
+                        breakAt = paragraphBreak;
+                        breakChars = paragraphChars;
+                        visible = paragraphVisible;
+                    } else if (sentenceBreak > pageStart && sentenceChars >= charsPerPage / 2) {
+                        breakAt = sentenceBreak;
+                        breakChars = sentenceChars;
+                        visible = sentenceVisible;
+                    } else if (spaceBreak > pageStart && spaceChars >= charsPerPage / 2) {
+                        breakAt = spaceBreak;
+                        breakChars = spaceChars;
+                        visible = spaceVisible;
+                    } else {
+                        breakAt = position;
+                        breakChars = chars;
+                        visible = lastVisible >= pageStart;
+                    }
+
+                    // Страница из одних пробелов не добавляется, её начало просто сдвигается
+                    if (visible) {
+                        pageCount++;
+                        if (pageCount + 1 > pageStarts.length) {
+                            pageStarts = Arrays.copyOf(pageStarts, pageStarts.length * 2);
+                        }
+                    }
+                    pageStarts[pageCount] = breakAt;
+                    pageStart = breakAt;
+                    chars -= breakChars;
+                    paragraphBreak = sentenceBreak = spaceBreak = -1;
+                }
+
+                chars++;
+                if (b == '\n') {
+                    // Строка закончилась: проверяем её на сходство с заголовком
+                    if (!lineVisible) {
+                        if (pendingHeading != null) {
+                            addHeading(headingTitles, headingOffsets, pendingHeading, pendingHeadingOffset);
+                        }
+                        pendingHeading = null;
+                    } else {
+                        pendingHeading = null;
+                        if (lineChars <= MAX_HEADING_CHARS) {
+                            String line = decode(mapped, lineStart, position).trim();
+                            if (line.length() >= MIN_HEADING_CHARS) {
+                                if (isHeadingLine(line)) {
+                                    addHeading(headingTitles, headingOffsets, line, lineStart);
+                                } else if (previousLineBlank) {
+                                    pendingHeading = line;
+                                    pendingHeadingOffset = lineStart;
+                                }
+                            }
+                        }
+                    }
+                    previousLineBlank = !lineVisible;
+                    lineStart = position + 1;
+                    lineChars = 0;
+                    lineVisible = false;
+
+                    if (previous == '\n') {
+                        paragraphBreak = position + 1;
+                        paragraphChars = chars;
+                        paragraphVisible = lastVisible >= pageStart;
+                    }
+                    spaceBreak = position + 1;
+                    spaceChars = chars;
+                    spaceVisible = lastVisible >= pageStart;
+                } else if (b == ' ' || b == '\t') {
+                    if (previous == '.') {
+                        sentenceBreak = position + 1;
+                        sentenceChars = chars;
+                        sentenceVisible = lastVisible >= pageStart;
+                    }
+                    spaceBreak = position + 1;
+                    spaceChars = chars;
+                    spaceVisible = lastVisible >= pageStart;
+                } else {
+                    lastVisible = position;
+                    lineVisible = true;
+                }
+                if (b != '\n') {
+                    lineChars++;
+                }
+                previous = b;
+            }
+        }
+
+        // Последняя страница
+        if (lastVisible >= pageStart) {
+            pageCount++;
+            if (pageCount + 1 > pageStarts.length) {
+                pageStarts = Arrays.copyOf(pageStarts, pageCount + 1);
+            }
+        }
+        pageStarts[pageCount] = end;
+
+        // Последняя строка файла проверяется без условия о пустой строке после неё
+        if (lineVisible && lineChars <= MAX_HEADING_CHARS) {
+            String line = decode(mapped, lineStart, end).trim();
+            if (line.length() >= MIN_HEADING_CHARS && isHeadingLine(line)) {
+                addHeading(headingTitles, headingOffsets, line, lineStart);
+            }
+        }
+
+        int[] starts = Arrays.copyOf(pageStarts, pageCount + 1);
+        List<Heading> headings = new ArrayList<>(headingTitles.size());
+        for (int i = 0; i < headingTitles.size(); i++) {
+            headings.add(new Heading(headingTitles.get(i), pageForOffset(starts, pageCount, headingOffsets.get(i))));
+        }
+        return new MappedTextPages(mapped, starts, pageCount, Collections.unmodifiableList(headings));
+    }
+
+    /**
+     * Строка сама по себе похожа на заголовок: "Глава 1", "IV. Название" или короткий текст в верхнем регистре
+     */
+    private static boolean isHeadingLine(String line) {
+        return CHAPTER_PATTERN.matcher(line).find() ||
+                (line.equals(line.toUpperCase()) && line.length() > 10 && line.length() < 60);
+    }
+
+    private static void addHeading(List<String> titles, List<Integer> offsets, String title, int offset) {
+        if (titles.size() < MAX_HEADINGS) {
+            titles.add(title);
+            offsets.add(offset);
+        }
+    }
+
+    /**
+     * Номер страницы, содержащей байт с указанным смещением
+     */
+    private static int pageForOffset(int[] pageStarts, int pageCount, int offset) {
+        if (pageCount == 0) {
+            return 0;
+        }
+        int index = Arrays.binarySearch(pageStarts, 0, pageCount, offset);
+        if (index < 0) {
+            index = -index - 2;
+        }
+        return Math.max(0, Math.min(index, pageCount - 1));
+    }
+
+    private static String decode(ByteBuffer mapped, int start, int end) {
+        byte[] bytes = new byte[end - start];
+        ByteBuffer view = mapped.duplicate();
+        view.position(start);
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
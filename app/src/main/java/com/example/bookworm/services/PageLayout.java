@@ -0,0 +1,232 @@
+package com.example.bookworm.services;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Paint;
+import android.graphics.Typeface;
+import android.text.StaticLayout;
+import android.text.TextPaint;
+import android.util.Log;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Параметры разбиения книги на страницы.
+ * Для читалки объём страницы измеряется по метрикам шрифта: текст верстается через StaticLayout
+ * в области страницы WebView, и число поместившихся символов становится бюджетом разбиения.
+ * Измерение выполняется при первом обращении к бюджету, то есть в потоке разбора книги.
+ * Подпись параметров входит в ключ кэша разбиения, поэтому для каждой пары
+ * (размер шрифта, размер экрана) книга разбирается один раз, а поворот экрана
+ * или возврат к прежнему шрифту берёт готовые страницы из кэша.
+ */
+public final class PageLayout {
+    private static final String TAG = "PageLayout";
+    // Межстрочный интервал и отступы абзацев из стилей оболочки читалки и FB2
+    public static final float READER_LINE_HEIGHT = 1.6f;
+    private static final float READER_PARAGRAPH_SPACING = 8f;
+    public static final float FB2_LINE_HEIGHT = 3f;
+    private static final float FB2_PARAGRAPH_SPACING = 5f;
+    private static final int FB2_TEXT_INDENT = 20;
+    // Доля измеренного объёма: запас на заголовки, переносы и отличия движка WebView
+    private static final float FILL_RATIO = 0.9f;
+    private static final int MIN_CHARS_PER_PAGE = 100;
+    private static final int MAX_PARAGRAPHS = 200; // Защита от бесконечной страницы
+    // Последние параметры читалки, по ним импорт заранее разбивает новые книги
+    private static final String PREFS_NAME = "page_layout";
+
+    // Образцы текста на русском и английском; берётся меньший объём, чтобы страница не переполнялась
+    private static final String[] SAMPLES = {
+            "Утром над рекой стоял густой туман, и старый мост едва угадывался в белой пелене. " +
+            "Она медленно шла вдоль берега, прислушиваясь к далёким голосам рыбаков, и думала о том, " +
+            "что письмо, полученное накануне, всё же придётся показать отцу. Ветер переменился, " +
+            "с полей потянуло сыростью, а в деревне одна за другой загорались первые окна.",
+            "In the morning a thick mist lay over the river, and the old bridge could barely be made out " +
+            "through the white haze. She walked slowly along the bank, listening to the distant voices " +
+            "of the fishermen, and thought that the letter she had received the day before would have " +
+            "to be shown to her father after all. The wind had changed, and the first windows were lit."
+    };
+
+    // Измеренные объёмы страниц по подписи параметров, общие для всех книг процесса
+    private static final Map<String, Integer> measuredCapacity = new ConcurrentHashMap<>();
+
+    private final boolean measured;
+    private final int viewportWidth;
+    private final int viewportHeight;
+    private final float padding;
+    private final int fixedCharsPerPage;
+    private final int fixedEpubCharsPerPage;
+    private final float contentWidth;
+    private final float contentHeight;
+    private final float fontSize;
+    private final String signature;
+
+    private PageLayout(boolean measured, int viewportWidth, int viewportHeight, float padding,
+                       int fixedCharsPerPage, int fixedEpubCharsPerPage,
+                       float contentWidth, float contentHeight, float fontSize, String signature) {
+        this.measured = measured;
+        this.viewportWidth = viewportWidth;
+        this.viewportHeight = viewportHeight;
+        this.padding = padding;
+        this.fixedCharsPerPage = fixedCharsPerPage;
+        this.fixedEpubCharsPerPage = fixedEpubCharsPerPage;
+        this.contentWidth = contentWidth;
+        this.contentHeight = contentHeight;
+        this.fontSize = fontSize;
+        this.signature = signature;
+    }
+
+    /**
+     * Разбиение с постоянным числом символов на странице (без учёта экрана)
+     * @param charsPerPage Символов текста на страницу TXT и FB2
+     * @param epubCharsPerPage Символов вместе с разметкой на страницу EPUB
+     */
+    public static PageLayout fixed(int charsPerPage, int epubCharsPerPage) {
+        return new PageLayout(false, 0, 0, 0, charsPerPage, epubCharsPerPage, 0, 0, 0,
+                "chars=" + charsPerPage + ";epubChars=" + epubCharsPerPage);
+    }
+
+    /**
+     * Разбиение по размеру страницы читалки. Все размеры - в CSS-пикселях страницы WebView.
+     * @param viewportWidth Ширина области WebView
+     * @param viewportHeight Высота области WebView
+     * @param fontSize Размер шрифта текста
+     * @param padding Внутренний отступ страницы с каждой стороны
+     */
+    public static PageLayout measured(int viewportWidth, int viewportHeight, float fontSize, float padding) {
+        float width = Math.max(1, viewportWidth - 2 * padding);
+        float height = Math.max(1, viewportHeight - 2 * padding);
+        String signature = String.format(Locale.ROOT, "viewport=%dx%d;font=%.1f;padding=%.1f",
+                viewportWidth, viewportHeight, fontSize, padding);
+        return new PageLayout(true, viewportWidth, viewportHeight, padding, 0, 0, width, height, fontSize, signature);
+    }
+
+    /**
+     * Запоминает параметры читалки, чтобы новые книги можно было разбить на страницы
+     * до первого открытия (разбиение с постоянным объёмом не запоминается)
+     */
+    public void remember(Context context) {
+        if (!measured) {
+            return;
+        }
+        context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+                .putInt("viewportWidth", viewportWidth)
+                .putInt("viewportHeight", viewportHeight)
+                .putFloat("fontSize", fontSize)
+                .putFloat("padding", padding)
+                .apply();
+    }
+
+    /**
+     * Параметры, с которыми читалка открывала книгу в последний раз, или null, если она ещё не открывалась
+     */
+    public static PageLayout lastMeasured(Context context) {
+        SharedPreferences preferences = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        if (!preferences.contains("viewportWidth")) {
+            return null;
+        }
+        return measured(preferences.getInt("viewportWidth", 0), preferences.getInt("viewportHeight", 0),
+                preferences.getFloat("fontSize", 0), preferences.getFloat("padding", 0));
+    }
+
+    /**
+     * Строка параметров разбиения для ключа кэша
+     */
+    public String getSignature() {
+        return signature;
+    }
+
+    /**
+     * Бюджет страницы TXT: текст без разметки выводится одним блоком
+     */
+    int getTextCharsPerPage() {
+        return measured ? capacity("text", READER_LINE_HEIGHT, 0, 0, false) : fixedCharsPerPage;
+    }
+
+    /**
+     * Бюджет страницы FB2 (считается только текст, стили FB2 задают свой интервал)
+     */
+    int getFb2CharsPerPage() {
+        return measured ? capacity("fb2", FB2_LINE_HEIGHT, FB2_PARAGRAPH_SPACING, FB2_TEXT_INDENT, true)
+                : fixedCharsPerPage;
+    }
+
+    /**
+     * Бюджет страницы EPUB; при измеренном разбиении считается только текст
+     */
+    int getEpubCharsPerPage() {
+        return measured ? capacity("epub", READER_LINE_HEIGHT, READER_PARAGRAPH_SPACING, 0, true)
+                : fixedEpubCharsPerPage;
+    }
+
+    /**
+     * Учитывает ли бюджет EPUB разметку страницы
+     */
+    boolean countsEpubMarkup() {
+        return !measured;
+    }
+
+    private int capacity(String kind, float lineHeight, float paragraphSpacing, int textIndent,
+                         boolean paragraphs) {
+        String key = signature + ";" + kind;
+        Integer cached = measuredCapacity.get(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        long start = System.currentTimeMillis();
+        int chars = Integer.MAX_VALUE;
+        for (String sample : SAMPLES) {
+            chars = Math.min(chars, fillPage(sample, lineHeight, paragraphSpacing, textIndent, paragraphs));
+        }
+        chars = Math.max(MIN_CHARS_PER_PAGE, (int) (chars * FILL_RATIO));
+        measuredCapacity.put(key, chars);
+        Log.d(TAG, "Measured " + chars + " chars per " + kind + " page for " + signature + " in " +
+                (System.currentTimeMillis() - start) + " ms");
+        return chars;
+    }
+
+    /**
+     * Заполняет страницу абзацами образца и считает символы, поместившиеся до нижнего края.
+     * Высота строки задаётся как в CSS: line-height, умноженный на размер шрифта.
+     */
+    private int fillPage(String sample, float lineHeight, float paragraphSpacing, int textIndent,
+                         boolean paragraphs) {
+        TextPaint paint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
+        paint.setTypeface(Typeface.SANS_SERIF);
+        paint.setTextSize(fontSize);
+
+        float lineBox = fontSize * lineHeight;
+        int totalLines = (int) (contentHeight / lineBox);
+        int width = Math.max(1, (int) contentWidth);
+        // Без деления на абзацы страница - один сплошной блок текста
+        String text = sample;
+        if (!paragraphs) {
+            StringBuilder block = new StringBuilder(sample);
+            while (block.length() < totalLines * width / Math.max(1, fontSize / 2)) {
+                block.append(' ').append(sample);
+            }
+            text = block.toString();
+        }
+
+        int chars = 0;
+        float used = 0;
+        for (int i = 0; i < MAX_PARAGRAPHS; i++) {
+            StaticLayout layout = StaticLayout.Builder.obtain(text, 0, text.length(), paint, width)
+                    .setIncludePad(false)
+                    .setIndents(textIndent > 0 ? new int[] {textIndent, 0} : null, null)
+                    .build();
+            int linesLeft = (int) ((contentHeight - used) / lineBox);
+            if (layout.getLineCount() > linesLeft) {
+                if (linesLeft > 0) {
+                    chars += layout.getLineEnd(linesLeft - 1);
+                }
+                return chars;
+            }
+            chars += text.length() + 1;
+            used += layout.getLineCount() * lineBox + paragraphSpacing;
+        }
+        return chars;
+    }
+}
@@ -0,0 +1,354 @@
+package com.example.bookworm.services;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.RandomAccess;
+
+/**
+ * Компактное хранилище страниц книги.
+ * Текст всех страниц лежит в одном массиве символов, а границы страниц - в массиве смещений.
+ * Общее обрамление страниц (например, div страницы EPUB или стили FB2) хранится один раз
+ * и добавляется только при запросе страницы через get(), поэтому в памяти держится
+ * примерно один экземпляр текста книги вместо отдельной строки на каждую страницу.
+ */
+public class PageStore extends AbstractList<String> implements RandomAccess {
+    private static final int INITIAL_CAPACITY = 16 * 1024;
+    private static final int IO_CHUNK_CHARS = 8 * 1024;
+    // Пределы при чтении кэша: повреждённый счётчик отбрасывает запись, а не исчерпывает память
+    private static final int MAX_STORED_PAGES = 1 << 20;
+    private static final int MAX_STORED_CHARS = 1 << 26;
+
+    private String pagePrefix;
+    private String pageSuffix;
+
+    private char[] buffer;
+    private int length;
+    private int[] pageStarts;
+    private int pageCount;
+    private final boolean readOnly;
+
+    public PageStore() {
+        this("", "");
+    }
+
+    /**
+     * @param pagePrefix Строка, с которой начинается каждая страница
+     * @param pageSuffix Строка, которой заканчивается каждая страница
+     */
+    public PageStore(String pagePrefix, String pageSuffix) {
+        this.pagePrefix = pagePrefix != null ? pagePrefix : "";
+        this.pageSuffix = pageSuffix != null ? pageSuffix : "";
+        this.buffer = new char[INITIAL_CAPACITY];
+        this.pageStarts = new int[64];
+        this.readOnly = false;
+    }
+
+    private PageStore(PageStore source) {
+        this.pagePrefix = source.pagePrefix;
+        this.pageSuffix = source.pageSuffix;
+        this.buffer = source.buffer;
+        this.length = source.length;
+        this.pageStarts = source.pageStarts;
+        this.pageCount = source.pageCount;
+        this.readOnly = true;
+    }
+
+    /**
+     * Неизменяемый снимок уже добавленных страниц для чтения из другого потока (поиск).
+     * Массивы не копируются: хранилище дописывает их только за пределами снимка,
+     * а clear() и trimToSize() заменяют массивы новыми, не трогая прежние.
+     * Вызывать в потоке, который добавляет страницы; передавать снимок в другой поток
+     * нужно через Executor или другой механизм с барьером памяти.
+     */
+    public PageStore snapshot() {
+        return readOnly ? this : new PageStore(this);
+    }
+
+    /**
+     * Собирает HTML страницы целиком: обрамление и содержимое
+     */
+    @Override
+    public String get(int index) {
+        checkIndex(index);
+        int start = pageStarts[index];
+        int end = pageEnd(index);
+        StringBuilder page = new StringBuilder(pagePrefix.length() + (end - start) + pageSuffix.length());
+        return page.append(pagePrefix).append(buffer, start, end - start).append(pageSuffix).toString();
+    }
+
+    @Override
+    public int size() {
+        return pageCount;
+    }
+
+    /**
+     * Добавляет страницу целиком. Страница должна начинаться и заканчиваться обрамлением хранилища.
+     */
+    @Override
+    public boolean add(String page) {
+        if (!page.startsWith(pagePrefix) || !page.endsWith(pageSuffix) ||
+                page.length() < pagePrefix.length() + pageSuffix.length()) {
+            throw new IllegalArgumentException("Page does not match the store template");
+        }
+        appendPage(page, pagePrefix.length(), page.length() - pageSuffix.length());
+        return true;
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends String> pages) {
+        if (pages instanceof PageStore) {
+            return appendPages((PageStore) pages);
+        }
+        return super.addAll(pages);
+    }
+
+    @Override
+    public void clear() {
+        checkWritable();
+        // Новые массивы: прежние могут читать снимки
+        buffer = new char[INITIAL_CAPACITY];
+        pageStarts = new int[64];
+        length = 0;
+        pageCount = 0;
+        modCount++;
+    }
+
+    /**
+     * Добавляет страницу по её содержимому без обрамления
+     */
+    public void appendPage(CharSequence body) {
+        appendPage(body, 0, body.length());
+    }
+
+    /**
+     * Копирует все страницы другого хранилища без сборки строк.
+     * Пустое хранилище перенимает обрамление страниц другого хранилища.
+     */
+    public boolean appendPages(PageStore other) {
+        checkWritable();
+        if (other.pageCount == 0) {
+            return false;
+        }
+        if (pageCount == 0) {
+            pagePrefix = other.pagePrefix;
+            pageSuffix = other.pageSuffix;
+        } else if (!pagePrefix.equals(other.pagePrefix) || !pageSuffix.equals(other.pageSuffix)) {
+            return super.addAll(other);
+        }
+
+        ensureCapacity(length + other.length);
+        ensurePageCapacity(pageCount + other.pageCount);
+        System.arraycopy(other.buffer, 0, buffer, length, other.length);
+        for (int i = 0; i < other.pageCount; i++) {
+            pageStarts[pageCount + i] = length + other.pageStarts[i];
+        }
+        length += other.length;
+        pageCount += other.pageCount;
+        modCount++;
+        return true;
+    }
+
+    /**
+     * Содержимое страницы без обрамления и без копирования текста
+     */
+    public CharSequence getPageBody(int index) {
+        checkIndex(index);
+        int start = pageStarts[index];
+        return CharBuffer.wrap(buffer, start, pageEnd(index) - start);
+    }
+
+    /**
+     * Длина содержимого страницы без обрамления
+     */
+    public int getPageLength(int index) {
+        checkIndex(index);
+        return pageEnd(index) - pageStarts[index];
+    }
+
+    public String getPagePrefix() {
+        return pagePrefix;
+    }
+
+    public String getPageSuffix() {
+        return pageSuffix;
+    }
+
+    /**
+     * Ищет страницы, текст которых (без HTML-тегов) содержит запрос без учёта регистра
+     * @param query Поисковый запрос
+     * @return индексы найденных страниц по возрастанию
+     */
+    public List<Integer> findPages(String query) {
+        List<Integer> results = new ArrayList<>();
+        if (query == null || query.isEmpty()) {
+            return results;
+        }
+
+        String lowercaseQuery = query.toLowerCase(Locale.getDefault());
+        StringBuilder plainText = new StringBuilder();
+        for (int i = 0; i < pageCount; i++) {
+            if (pageContains(i, lowercaseQuery, plainText)) {
+                results.add(i);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Проверяет, содержит ли текст страницы (без HTML-тегов) запрос
+     * @param lowercaseQuery Запрос в нижнем регистре
+     * @param plainText Буфер для текста страницы, переиспользуется между вызовами
+     */
+    public boolean pageContains(int index, String lowercaseQuery, StringBuilder plainText) {
+        checkIndex(index);
+        plainText.setLength(0);
+        boolean inTag = false;
+        for (int pos = pageStarts[index], end = pageEnd(index); pos < end; pos++) {
+            char c = buffer[pos];
+            if (c == '<') {
+                inTag = true;
+            } else if (c == '>' && inTag) {
+                inTag = false;
+            } else if (!inTag) {
+                plainText.append(Character.toLowerCase(c));
+            }
+        }
+        return plainText.indexOf(lowercaseQuery) != -1;
+    }
+
+    /**
+     * Освобождает неиспользуемый запас в массивах после окончания разбора
+     */
+    public void trimToSize() {
+        if (readOnly) {
+            return;
+        }
+        if (buffer.length > length) {
+            buffer = Arrays.copyOf(buffer, length);
+        }
+        if (pageStarts.length > pageCount) {
+            pageStarts = Arrays.copyOf(pageStarts, pageCount);
+        }
+    }
+
+    /**
+     * Записывает хранилище в поток (используется кэшем разбиения)
+     */
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeUTF(pagePrefix);
+        out.writeUTF(pageSuffix);
+        out.writeInt(pageCount);
+        for (int i = 0; i < pageCount; i++) {
+            out.writeInt(pageStarts[i]);
+        }
+
+        // Символы пишутся как UTF-16, чтобы смещения страниц совпадали после чтения
+        out.writeInt(length);
+        byte[] bytes = new byte[IO_CHUNK_CHARS * 2];
+        for (int offset = 0; offset < length; offset += IO_CHUNK_CHARS) {
+            int count = Math.min(IO_CHUNK_CHARS, length - offset);
+            for (int i = 0; i < count; i++) {
+                char c = buffer[offset + i];
+                bytes[i * 2] = (byte) (c >> 8);
+                bytes[i * 2 + 1] = (byte) c;
+            }
+            out.write(bytes, 0, count * 2);
+        }
+    }
+
+    /**
+     * Читает хранилище, записанное writeTo()
+     */
+    static PageStore readFrom(DataInputStream in) throws IOException {
+        PageStore store = new PageStore(in.readUTF(), in.readUTF());
+
+        int pageCount = in.readInt();
+        if (pageCount < 0 || pageCount > MAX_STORED_PAGES) {
+            throw new IOException("Corrupt page count: " + pageCount);
+        }
+        // Массивы растут по мере чтения: обрезанная запись закончится EOFException до большого выделения
+        for (int i = 0; i < pageCount; i++) {
+            store.ensurePageCapacity(i + 1);
+            store.pageStarts[i] = in.readInt();
+        }
+
+        int length = in.readInt();
+        if (length < 0 || length > MAX_STORED_CHARS) {
+            throw new IOException("Corrupt page store length: " + length);
+        }
+        byte[] bytes = new byte[IO_CHUNK_CHARS * 2];
+        for (int offset = 0; offset < length; offset += IO_CHUNK_CHARS) {
+            int count = Math.min(IO_CHUNK_CHARS, length - offset);
+            in.readFully(bytes, 0, count * 2);
+            store.ensureCapacity(offset + count);
+            for (int i = 0; i < count; i++) {
+                store.buffer[offset + i] = (char) (((bytes[i * 2] & 0xFF) << 8) | (bytes[i * 2 + 1] & 0xFF));
+            }
+        }
+
+        store.length = length;
+        store.pageCount = pageCount;
+        for (int i = 0; i < pageCount; i++) {
+            if (store.pageStarts[i] < 0 || store.pageStarts[i] > length ||
+                    (i > 0 && store.pageStarts[i] < store.pageStarts[i - 1])) {
+                throw new IOException("Corrupt page offsets");
+            }
+        }
+        return store;
+    }
+
+    private void appendPage(CharSequence text, int start, int end) {
+        checkWritable();
+        int pageLength = end - start;
+        ensureCapacity(length + pageLength);
+        ensurePageCapacity(pageCount + 1);
+
+        if (text instanceof String) {
+            ((String) text).getChars(start, end, buffer, length);
+        } else {
+            for (int i = start; i < end; i++) {
+                buffer[length + i - start] = text.charAt(i);
+            }
+        }
+
+        pageStarts[pageCount++] = length;
+        length += pageLength;
+        modCount++;
+    }
+
+    private int pageEnd(int index) {
+        return index + 1 < pageCount ? pageStarts[index + 1] : length;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= pageCount) {
+            throw new IndexOutOfBoundsException("Page " + index + " of " + pageCount);
+        }
+    }
+
+    private void checkWritable() {
+        if (readOnly) {
+            throw new UnsupportedOperationException("Page store snapshot is read-only");
+        }
+    }
+
+    private void ensureCapacity(int required) {
+        if (required > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(required, buffer.length + (buffer.length >> 1)));
+        }
+    }
+
+    private void ensurePageCapacity(int required) {
+        if (required > pageStarts.length) {
+            pageStarts = Arrays.copyOf(pageStarts, Math.max(required, pageStarts.length * 2));
+        }
+    }
+}
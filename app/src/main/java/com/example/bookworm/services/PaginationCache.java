@@ -0,0 +1,301 @@
+package com.example.bookworm.services;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+import com.example.bookworm.models.TocItem;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Дисковый кэш результата разбиения книги на страницы.
+ * Хранит страницы, таблицу глав (файл главы и её первая страница) и оглавление
+ * в сжатом бинарном файле в getFilesDir(). Ключ включает хэш содержимого файла
+ * и параметры разбиения, поэтому изменение парсера автоматически делает кэш недействительным.
+ */
+public final class PaginationCache {
+    private static final String TAG = "PaginationCache";
+    private static final String CACHE_DIR = "pagination_cache";
+    private static final String FILE_SUFFIX = ".pages";
+    private static final String INDEX_SUFFIX = ".index";
+    private static final int MAGIC = 0x42574B50; // "BWKP"
+    private static final int FORMAT_VERSION = 2;
+    private static final long MAX_CACHE_SIZE = 64L * 1024 * 1024; // 64 МБ на все книги
+
+    // Хэш содержимого по пути, размеру и времени изменения файла, чтобы не читать файл повторно
+    private static final Map<String, String> contentHashes = new HashMap<>();
+
+    private PaginationCache() {
+    }
+
+    /**
+     * Глава книги и номер её первой страницы (с 0)
+     */
+    public static class Chapter {
+        public final String href;
+        public final int firstPage;
+
+        public Chapter(String href, int firstPage) {
+            this.href = href;
+            this.firstPage = firstPage;
+        }
+    }
+
+    /**
+     * Содержимое записи кэша
+     */
+    public static class Entry {
+        public final PageStore pages;
+        public final List<Chapter> chapters;
+        public List<TocItem> tocItems; // null, пока оглавление не построено
+
+        public Entry(PageStore pages, List<Chapter> chapters, List<TocItem> tocItems) {
+            this.pages = pages;
+            this.chapters = chapters;
+            this.tocItems = tocItems;
+        }
+    }
+
+    /**
+     * Вычисляет ключ кэша для книги
+     * @param context Контекст для доступа к файлам
+     * @param fileUri URI файла книги
+     * @param layoutSignature Версия парсера и параметры разбиения на страницы
+     * @return ключ или null, если файл не удалось прочитать
+     */
+    public static String keyFor(Context context, Uri fileUri, String layoutSignature) {
+        try {
+            File file = LocalBookFiles.resolve(context, fileUri);
+            String fileId = file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified();
+
+            String contentHash;
+            synchronized (contentHashes) {
+                contentHash = contentHashes.get(fileId);
+            }
+            if (contentHash == null) {
+                contentHash = sha256(file);
+                synchronized (contentHashes) {
+                    contentHashes.put(fileId, contentHash);
+                }
+            }
+
+            return LocalBookFiles.sha1Hex(contentHash + "|" + layoutSignature);
+        } catch (Exception e) {
+            Log.w(TAG, "Could not compute cache key for " + fileUri + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Читает запись кэша или возвращает null, если её нет или она повреждена
+     */
+    public static Entry load(Context context, String key) {
+        File file = getCacheFile(context, key);
+        if (!file.exists()) {
+            return null;
+        }
+
+        long start = System.currentTimeMillis();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new InflaterInputStream(new FileInputStream(file))))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                Log.w(TAG, "Discarding cache entry with unknown format: " + key);
+                file.delete();
+                return null;
+            }
+
+            PageStore pages = PageStore.readFrom(in);
+
+            int chapterCount = in.readInt();
+            List<Chapter> chapters = new ArrayList<>(chapterCount);
+            for (int i = 0; i < chapterCount; i++) {
+                String href = readString(in);
+                chapters.add(new Chapter(href, in.readInt()));
+            }
+
+            List<TocItem> tocItems = null;
+            int tocCount = in.readInt();
+            if (tocCount >= 0) {
+                tocItems = new ArrayList<>(tocCount);
+                for (int i = 0; i < tocCount; i++) {
+                    String title = readString(in);
+                    int pageNumber = in.readInt();
+                    int level = in.readInt();
+                    String contentRef = in.readBoolean() ? readString(in) : null;
+                    tocItems.add(new TocItem(title, pageNumber, level, contentRef));
+                }
+            }
+
+            // Отмечаем запись как недавно использованную для вытеснения
+            file.setLastModified(System.currentTimeMillis());
+
+            Log.d(TAG, "Loaded " + pages.size() + " pages from cache in " +
+                    (System.currentTimeMillis() - start) + " ms");
+            return new Entry(pages, chapters, tocItems);
+        } catch (Exception e) {
+            Log.e(TAG, "Error reading cache entry " + key + ": " + e.getMessage(), e);
+            file.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Сохраняет запись кэша и вытесняет давно не использованные книги при превышении лимита
+     */
+    public static synchronized void store(Context context, String key, Entry entry) {
+        File file = getCacheFile(context, key);
+        File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new DeflaterOutputStream(new FileOutputStream(tempFile))))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+
+            entry.pages.writeTo(out);
+
+            out.writeInt(entry.chapters.size());
+            for (Chapter chapter : entry.chapters) {
+                writeString(out, chapter.href);
+                out.writeInt(chapter.firstPage);
+            }
+
+            if (entry.tocItems == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(entry.tocItems.size());
+                for (TocItem item : entry.tocItems) {
+                    writeString(out, item.getTitle() != null ? item.getTitle() : "");
+                    out.writeInt(item.getPageNumber());
+                    out.writeInt(item.getLevel());
+                    out.writeBoolean(item.getContentRef() != null);
+                    if (item.getContentRef() != null) {
+                        writeString(out, item.getContentRef());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing cache entry " + key + ": " + e.getMessage(), e);
+            tempFile.delete();
+            return;
+        }
+
+        if (file.exists()) {
+            file.delete();
+        }
+        if (!tempFile.renameTo(file)) {
+            Log.e(TAG, "Could not move cache entry into place: " + key);
+            tempFile.delete();
+            return;
+        }
+
+        Log.d(TAG, "Stored " + entry.pages.size() + " pages in cache (" + file.length() + " bytes)");
+        trimToSize(file.getParentFile(), MAX_CACHE_SIZE);
+    }
+
+    /**
+     * Удаляет самые давно использованные записи, пока общий размер превышает лимит
+     */
+    private static void trimToSize(File directory, long maxSize) {
+        File[] files = directory.listFiles((dir, name) ->
+                name.endsWith(FILE_SUFFIX) || name.endsWith(INDEX_SUFFIX));
+        if (files == null) {
+            return;
+        }
+
+        long totalSize = 0;
+        for (File cacheFile : files) {
+            totalSize += cacheFile.length();
+        }
+        if (totalSize <= maxSize) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+
+        for (File cacheFile : files) {
+            if (totalSize <= maxSize) {
+                break;
+            }
+            long length = cacheFile.length();
+            if (cacheFile.delete()) {
+                totalSize -= length;
+                Log.d(TAG, "Evicted cache entry: " + cacheFile.getName());
+            }
+        }
+    }
+
+    /**
+     * Файл поискового индекса книги рядом с записью кэша разбиения
+     */
+    public static File getIndexFile(Context context, String key) {
+        return new File(getCacheFile(context, key).getParentFile(), key + INDEX_SUFFIX);
+    }
+
+    /**
+     * Вытесняет старые записи после добавления поискового индекса
+     */
+    public static synchronized void trim(Context context) {
+        trimToSize(new File(context.getFilesDir(), CACHE_DIR), MAX_CACHE_SIZE);
+    }
+
+    private static File getCacheFile(Context context, String key) {
+        File directory = new File(context.getFilesDir(), CACHE_DIR);
+        if (!directory.exists()) {
+            directory.mkdirs();
+        }
+        return new File(directory, key + FILE_SUFFIX);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String sha256(File file) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        try (InputStream inputStream = new FileInputStream(file)) {
+            byte[] buffer = new byte[64 * 1024];
+            int bytesRead;
+            while ((bytesRead = inputStream.read(buffer)) != -1) {
+                digest.update(buffer, 0, bytesRead);
+            }
+        }
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,168 @@
+package com.example.bookworm.services;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Синхронизация прогресса чтения с Supabase.
+ * Читалка только записывает последнюю страницу книги: позиция сразу сохраняется локально,
+ * а в базу уходит одним PATCH current_page по таймеру, при уходе с экрана или при появлении сети.
+ * Быстрые перелистывания сливаются в одно обновление, побеждает последняя страница.
+ *
+ * Неотправленные страницы хранятся в SharedPreferences отдельно для каждого пользователя
+ * и переживают перезапуск приложения. Запись в очереди снимается только после успешного ответа
+ * и только если страница с тех пор не менялась, поэтому проверочное чтение после записи не требуется.
+ * Без входа (или с отклонённым токеном) очередь не повторяется по таймеру, а ждёт следующей
+ * отправки после входа этого пользователя.
+ */
+public final class ReadingProgressSync {
+    private static final String TAG = "ReadingProgressSync";
+    private static final String PREFS_PREFIX = "reading_progress_sync_"; // + id пользователя
+    // Сколько ждать следующих перелистываний перед отправкой
+    private static final long FLUSH_DELAY_MS = 5000;
+    // Повтор после ошибки, если сеть не сообщит о себе раньше
+    private static final long RETRY_DELAY_MS = 60000;
+
+    private static ReadingProgressSync instance;
+
+    private final Context context;
+    private final SupabaseService supabaseService;
+    // Один поток: обновления уходят по порядку и не обгоняют друг друга
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(
+            runnable -> new Thread(runnable, "ProgressSync"));
+    private final Handler timerHandler = new Handler(Looper.getMainLooper());
+    private final Runnable flushRunnable = this::flush;
+
+    private ReadingProgressSync(Context context) {
+        this.context = context.getApplicationContext();
+        this.supabaseService = SupabaseService.getInstance(this.context);
+
+        // При появлении сети отправляем то, что не ушло без неё
+        ConnectivityManager connectivityManager = this.context.getSystemService(ConnectivityManager.class);
+        if (connectivityManager != null) {
+            connectivityManager.registerDefaultNetworkCallback(new ConnectivityManager.NetworkCallback() {
+                @Override
+                public void onAvailable(Network network) {
+                    SharedPreferences pending = pendingForCurrentUser();
+                    if (pending != null && !pending.getAll().isEmpty()) {
+                        Log.d(TAG, "Network available, flushing pending progress");
+                        flush();
+                    }
+                }
+            });
+        }
+    }
+
+    public static synchronized ReadingProgressSync getInstance(Context context) {
+        if (instance == null) {
+            instance = new ReadingProgressSync(context);
+        }
+        return instance;
+    }
+
+    /**
+     * Запоминает текущую страницу книги и откладывает отправку на FLUSH_DELAY_MS.
+     * Каждое новое перелистывание переносит отправку, в базу попадает только последняя страница.
+     * @param page Номер страницы, начиная с 1
+     */
+    public void recordPage(String bookId, int page) {
+        if (bookId == null || page <= 0) {
+            return;
+        }
+        SharedPreferences pending = pendingForCurrentUser();
+        if (pending == null) {
+            Log.w(TAG, "recordPage: user not authenticated, progress is not synced");
+            return;
+        }
+        synchronized (this) {
+            pending.edit().putInt(bookId, page).apply();
+        }
+        schedule(FLUSH_DELAY_MS);
+    }
+
+    /**
+     * Неотправленная страница книги или null, если всё уже в базе.
+     * Локальная позиция новее той, что пришла из базы, и открывать книгу нужно на ней.
+     */
+    public Integer getPendingPage(String bookId) {
+        SharedPreferences pending = pendingForCurrentUser();
+        if (bookId == null || pending == null || !pending.contains(bookId)) {
+            return null;
+        }
+        return pending.getInt(bookId, 0);
+    }
+
+    /**
+     * Отправляет все неотправленные страницы сейчас (уход с экрана, запуск приложения)
+     */
+    public void flush() {
+        timerHandler.removeCallbacks(flushRunnable);
+        executor.execute(this::sendPending);
+    }
+
+    private void schedule(long delayMs) {
+        timerHandler.removeCallbacks(flushRunnable);
+        timerHandler.postDelayed(flushRunnable, delayMs);
+    }
+
+    private void sendPending() {
+        SharedPreferences pending = pendingForCurrentUser();
+        if (pending == null) {
+            // Очередь другого пользователя не трогаем, она уйдёт после его входа
+            Log.d(TAG, "Not signed in, pending progress is parked");
+            return;
+        }
+        boolean failed = false;
+        for (Map.Entry<String, ?> entry : pending.getAll().entrySet()) {
+            if (!(entry.getValue() instanceof Integer)) {
+                pending.edit().remove(entry.getKey()).apply();
+                continue;
+            }
+            String bookId = entry.getKey();
+            int page = (Integer) entry.getValue();
+            int result = supabaseService.patchCurrentPage(bookId, page);
+            if (result == SupabaseService.PATCH_SENT) {
+                removeIfUnchanged(pending, bookId, page);
+            } else if (result == SupabaseService.PATCH_UNAUTHORIZED) {
+                // Повтор по таймеру не поможет: записи ждут следующей отправки после входа
+                Log.w(TAG, "Progress rejected as unauthorized, parking pending entries");
+                return;
+            } else {
+                failed = true;
+            }
+        }
+        if (failed) {
+            Log.w(TAG, "Some progress was not sent, retrying in " + RETRY_DELAY_MS + " ms");
+            timerHandler.post(() -> schedule(RETRY_DELAY_MS));
+        }
+    }
+
+    /**
+     * Снимает страницу с очереди, если за время запроса читалка не записала новую
+     */
+    private synchronized void removeIfUnchanged(SharedPreferences pending, String bookId, int sentPage) {
+        if (pending.getInt(bookId, 0) == sentPage) {
+            pending.edit().remove(bookId).apply();
+        }
+    }
+
+    /**
+     * Очередь вошедшего пользователя или null без входа
+     */
+    private SharedPreferences pendingForCurrentUser() {
+        String userId = supabaseService.getUserId();
+        if (userId == null) {
+            return null;
+        }
+        return context.getSharedPreferences(PREFS_PREFIX + userId, Context.MODE_PRIVATE);
+    }
+}
@@ -0,0 +1,430 @@
+package com.example.bookworm.services;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Полнотекстовый индекс книги для поиска.
+ * Текст страниц (без HTML-тегов, стилей и скриптов) разбивается на слова, приведённые
+ * к нижнему регистру; для каждого слова хранится список вхождений (страница и позиция
+ * в HTML страницы). Поиск по фразе и по началу последнего слова выполняется по спискам
+ * вхождений без повторного просмотра страниц, а позиции вхождений используются для подсветки.
+ */
+public class SearchIndex {
+    private static final String TAG = "SearchIndex";
+    private static final int MAGIC = 0x42574B49; // "BWKI"
+    private static final int FORMAT_VERSION = 1;
+    // Ограничение размера индекса: около 12 байт на слово в памяти
+    private static final int MAX_TOKENS = 3_000_000;
+
+    // Словарь в порядке сортировки: слова с общим началом идут подряд
+    private final String[] terms;
+    // Поток слов книги: номер слова в словаре и его позиция на странице
+    private final int[] tokenTerms;
+    private final int[] tokenOffsets;
+    // pageFirstToken[i] - первое слово страницы i, pageFirstToken[pageCount] - число слов
+    private final int[] pageFirstToken;
+    // Вхождения слов: postings[postingStarts[t]..postingStarts[t + 1]) - номера слов в потоке
+    private final int[] postingStarts;
+    private final int[] postings;
+
+    /**
+     * Найденное вхождение запроса
+     */
+    public static class Hit {
+        public final int page;
+        public final int offset; // Позиция в HTML страницы, как её возвращает список страниц
+        public final int length;
+
+        Hit(int page, int offset, int length) {
+            this.page = page;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private SearchIndex(String[] terms, int[] tokenTerms, int[] tokenOffsets, int[] pageFirstToken) {
+        this.terms = terms;
+        this.tokenTerms = tokenTerms;
+        this.tokenOffsets = tokenOffsets;
+        this.pageFirstToken = pageFirstToken;
+
+        // Списки вхождений восстанавливаются из потока слов подсчётом
+        postingStarts = new int[terms.length + 1];
+        for (int term : tokenTerms) {
+            postingStarts[term + 1]++;
+        }
+        for (int i = 0; i < terms.length; i++) {
+            postingStarts[i + 1] += postingStarts[i];
+        }
+        postings = new int[tokenTerms.length];
+        int[] fill = Arrays.copyOf(postingStarts, terms.length);
+        for (int token = 0; token < tokenTerms.length; token++) {
+            postings[fill[tokenTerms[token]]++] = token;
+        }
+    }
+
+    /**
+     * Строит индекс по страницам книги
+     * @param pages Страницы книги (HTML или простой текст)
+     * @return индекс или null, если книга слишком велика для индексирования
+     */
+    public static SearchIndex build(List<String> pages) {
+        long start = System.currentTimeMillis();
+        Map<String, Integer> termIds = new HashMap<>();
+        List<String> termList = new ArrayList<>();
+        int[] tokenTerms = new int[4096];
+        int[] tokenOffsets = new int[4096];
+        int tokenCount = 0;
+        int[] pageFirstToken = new int[pages.size() + 1];
+        StringBuilder word = new StringBuilder();
+
+        for (int page = 0; page < pages.size(); page++) {
+            if (Thread.currentThread().isInterrupted()) {
+                return null;
+            }
+            pageFirstToken[page] = tokenCount;
+            String content = pages.get(page);
+
+            int position = 0;
+            while ((position = nextWord(content, position, word)) != -1) {
+                if (tokenCount == MAX_TOKENS) {
+                    Log.w(TAG, "Book is too large to index: more than " + MAX_TOKENS + " words");
+                    return null;
+                }
+
+                String term = word.toString();
+                Integer id = termIds.get(term);
+                if (id == null) {
+                    id = termList.size();
+                    termIds.put(term, id);
+                    termList.add(term);
+                }
+
+                if (tokenCount == tokenTerms.length) {
+                    tokenTerms = Arrays.copyOf(tokenTerms, tokenCount * 2);
+                    tokenOffsets = Arrays.copyOf(tokenOffsets, tokenCount * 2);
+                }
+                tokenTerms[tokenCount] = id;
+                tokenOffsets[tokenCount] = position - term.length();
+                tokenCount++;
+            }
+        }
+        pageFirstToken[pages.size()] = tokenCount;
+
+        // Сортируем словарь и переводим номера слов в порядок сортировки
+        String[] terms = termList.toArray(new String[0]);
+        Integer[] order = new Integer[terms.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> terms[a].compareTo(terms[b]));
+        String[] sortedTerms = new String[terms.length];
+        int[] rank = new int[terms.length];
+        for (int i = 0; i < order.length; i++) {
+            sortedTerms[i] = terms[order[i]];
+            rank[order[i]] = i;
+        }
+        int[] rankedTokens = new int[tokenCount];
+        for (int i = 0; i < tokenCount; i++) {
+            rankedTokens[i] = rank[tokenTerms[i]];
+        }
+
+        SearchIndex index = new SearchIndex(sortedTerms, rankedTokens,
+                Arrays.copyOf(tokenOffsets, tokenCount), pageFirstToken);
+        Log.d(TAG, "Indexed " + tokenCount + " words (" + sortedTerms.length + " distinct) on " +
+                pages.size() + " pages in " + (System.currentTimeMillis() - start) + " ms");
+        return index;
+    }
+
+    /**
+     * Количество страниц, по которым построен индекс
+     */
+    public int getPageCount() {
+        return pageFirstToken.length - 1;
+    }
+
+    /**
+     * Ищет фразу. Последнее слово запроса сопоставляется по началу, если после него нет пробела,
+     * чтобы результаты появлялись по мере набора.
+     * @param query Поисковый запрос
+     * @return вхождения в порядке следования в книге
+     */
+    public List<Hit> search(String query) {
+        List<Hit> hits = new ArrayList<>();
+        List<String> queryTerms = new ArrayList<>();
+        StringBuilder word = new StringBuilder();
+        int position = 0;
+        while ((position = nextWord(query, position, word)) != -1) {
+            queryTerms.add(word.toString());
+        }
+        if (queryTerms.isEmpty()) {
+            return hits;
+        }
+
+        // Диапазоны номеров слов в словаре для каждого слова запроса
+        boolean lastIsPrefix = !Character.isWhitespace(query.charAt(query.length() - 1));
+        int[][] ranges = new int[queryTerms.size()][];
+        for (int i = 0; i < queryTerms.size(); i++) {
+            boolean prefix = lastIsPrefix && i == queryTerms.size() - 1;
+            ranges[i] = termRange(queryTerms.get(i), prefix);
+            if (ranges[i][0] >= ranges[i][1]) {
+                return hits;
+            }
+        }
+
+        int[] candidates = collectPostings(ranges[0][0], ranges[0][1]);
+        int page = 0;
+        for (int token : candidates) {
+            int last = token + queryTerms.size() - 1;
+            if (last >= tokenTerms.length) {
+                continue;
+            }
+            while (pageFirstToken[page + 1] <= token) {
+                page++;
+            }
+            // Фраза не переходит через границу страницы
+            if (last >= pageFirstToken[page + 1]) {
+                continue;
+            }
+
+            boolean matches = true;
+            for (int i = 1; i < queryTerms.size() && matches; i++) {
+                int term = tokenTerms[token + i];
+                matches = term >= ranges[i][0] && term < ranges[i][1];
+            }
+            if (matches) {
+                int end = tokenOffsets[last] + terms[tokenTerms[last]].length();
+                hits.add(new Hit(page, tokenOffsets[token], end - tokenOffsets[token]));
+            }
+        }
+        return hits;
+    }
+
+    /**
+     * Возвращает номера страниц с вхождениями запроса по возрастанию
+     */
+    public List<Integer> findPages(String query) {
+        List<Integer> pages = new ArrayList<>();
+        for (Hit hit : search(query)) {
+            if (pages.isEmpty() || pages.get(pages.size() - 1) != hit.page) {
+                pages.add(hit.page);
+            }
+        }
+        return pages;
+    }
+
+    /**
+     * Сохраняет индекс в файл (списки вхождений не пишутся, они восстанавливаются при чтении)
+     */
+    public void writeTo(File file) throws IOException {
+        File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new DeflaterOutputStream(new FileOutputStream(tempFile))))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(terms.length);
+            for (String term : terms) {
+                out.writeUTF(term);
+            }
+            writeInts(out, pageFirstToken);
+            writeInts(out, tokenTerms);
+            writeInts(out, tokenOffsets);
+        } catch (IOException e) {
+            tempFile.delete();
+            throw e;
+        }
+
+        if (file.exists()) {
+            file.delete();
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Не удалось сохранить поисковый индекс");
+        }
+    }
+
+    /**
+     * Читает индекс из файла или возвращает null, если файла нет или он повреждён
+     */
+    public static SearchIndex readFrom(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new InflaterInputStream(new FileInputStream(file))))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                file.delete();
+                return null;
+            }
+            String[] terms = new String[in.readInt()];
+            for (int i = 0; i < terms.length; i++) {
+                terms[i] = in.readUTF();
+            }
+            int[] pageFirstToken = readInts(in);
+            int[] tokenTerms = readInts(in);
+            int[] tokenOffsets = readInts(in);
+
+            for (int term : tokenTerms) {
+                if (term < 0 || term >= terms.length) {
+                    throw new IOException("Corrupt search index");
+                }
+            }
+            if (pageFirstToken.length == 0 || tokenOffsets.length != tokenTerms.length ||
+                    pageFirstToken[pageFirstToken.length - 1] != tokenTerms.length) {
+                throw new IOException("Corrupt search index");
+            }
+
+            file.setLastModified(System.currentTimeMillis());
+            return new SearchIndex(terms, tokenTerms, tokenOffsets, pageFirstToken);
+        } catch (Exception e) {
+            Log.e(TAG, "Error reading search index: " + e.getMessage(), e);
+            file.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Находит следующее слово в HTML или тексте начиная с position.
+     * Теги, содержимое style/script и символьные ссылки пропускаются.
+     * @param word Получает слово в нижнем регистре (той же длины, что и в исходном тексте)
+     * @return позиция после слова или -1, если слов больше нет
+     */
+    static int nextWord(String text, int position, StringBuilder word) {
+        word.setLength(0);
+        int length = text.length();
+        int i = position;
+
+        while (i < length) {
+            char c = text.charAt(i);
+            if (c == '<') {
+                if (word.length() > 0) {
+                    return i;
+                }
+                i = skipTag(text, i);
+            } else if (c == '&') {
+                if (word.length() > 0) {
+                    return i;
+                }
+                int semicolon = text.indexOf(';', i);
+                i = semicolon != -1 && semicolon - i <= 10 ? semicolon + 1 : i + 1;
+            } else if (Character.isLetterOrDigit(c)) {
+                word.append(normalize(c));
+                i++;
+            } else {
+                if (word.length() > 0) {
+                    return i;
+                }
+                i++;
+            }
+        }
+        return word.length() > 0 ? length : -1;
+    }
+
+    private static int skipTag(String text, int start) {
+        int end = text.indexOf('>', start);
+        if (end == -1) {
+            return text.length();
+        }
+        // Содержимое style и script не является текстом книги
+        if (text.regionMatches(true, start, "<style", 0, 6) || text.regionMatches(true, start, "<script", 0, 7)) {
+            String closing = text.regionMatches(true, start, "<style", 0, 6) ? "</style" : "</script";
+            int close = indexOfIgnoreCase(text, closing, end);
+            if (close == -1) {
+                return text.length();
+            }
+            int closeEnd = text.indexOf('>', close);
+            return closeEnd != -1 ? closeEnd + 1 : text.length();
+        }
+        return end + 1;
+    }
+
+    private static int indexOfIgnoreCase(String text, String needle, int from) {
+        for (int i = from; i <= text.length() - needle.length(); i++) {
+            if (text.regionMatches(true, i, needle, 0, needle.length())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static char normalize(char c) {
+        char lower = Character.toLowerCase(c);
+        return lower == 'ё' ? 'е' : lower;
+    }
+
+    /**
+     * Диапазон [from, to) номеров слов словаря, равных слову или начинающихся с него
+     */
+    private int[] termRange(String term, boolean prefix) {
+        int from = lowerBound(term);
+        if (!prefix) {
+            boolean found = from < terms.length && terms[from].equals(term);
+            return new int[]{from, found ? from + 1 : from};
+        }
+        int to = from;
+        while (to < terms.length && terms[to].startsWith(term)) {
+            to++;
+        }
+        return new int[]{from, to};
+    }
+
+    private int lowerBound(String term) {
+        int low = 0;
+        int high = terms.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (terms[middle].compareTo(term) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Объединяет списки вхождений слов словаря из диапазона в порядке следования в книге
+     */
+    private int[] collectPostings(int fromTerm, int toTerm) {
+        int[] result = Arrays.copyOfRange(postings, postingStarts[fromTerm], postingStarts[toTerm]);
+        if (toTerm - fromTerm > 1) {
+            Arrays.sort(result);
+        }
+        return result;
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    private static int[] readInts(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Corrupt search index");
+        }
+        int[] values = new int[length];
+        for (int i = 0; i < length; i++) {
+            values[i] = in.readInt();
+        }
+        return values;
+    }
+}
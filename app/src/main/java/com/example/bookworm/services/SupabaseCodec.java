@@ -0,0 +1,412 @@
+package com.example.bookworm.services;
+
+import android.util.Log;
+
+import com.example.bookworm.Book;
+import com.example.bookworm.Quote;
+import com.example.bookworm.models.Shelf;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Разбор ответов PostgREST прямо из потока ответа в модели приложения.
+ * Тело не собирается в строку и не превращается в JSONArray: каждая строка таблицы
+ * читается JsonReader поле за полем, поэтому в памяти одновременно находятся
+ * только готовые объекты. Здесь же единственное отображение строки books в Book.
+ */
+final class SupabaseCodec {
+    private static final String TAG = "SupabaseCodec";
+
+    /**
+     * Последняя строка страницы книг: id и исходное значение столбца сортировки для курсора
+     */
+    static final class LastRow {
+        String id;
+        String sortValue;
+    }
+
+    private SupabaseCodec() {
+    }
+
+    /**
+     * Массив строк books. Заполняются только пришедшие столбцы, остальные поля остаются по умолчанию.
+     */
+    static List<Book> readBooks(Reader reader) throws IOException {
+        return readBooks(reader, null, null);
+    }
+
+    /**
+     * @param cursorColumn Столбец сортировки, значение которого запоминается в lastRow, или null
+     * @param lastRow Куда записать id и значение cursorColumn последней строки
+     */
+    static List<Book> readBooks(Reader reader, String cursorColumn, LastRow lastRow) throws IOException {
+        List<Book> books = new ArrayList<>();
+        try (JsonReader in = new JsonReader(reader)) {
+            in.beginArray();
+            while (in.hasNext()) {
+                books.add(readBook(in, cursorColumn, lastRow));
+            }
+            in.endArray();
+        }
+        return books;
+    }
+
+    private static Book readBook(JsonReader in, String cursorColumn, LastRow lastRow) throws IOException {
+        Book book = new Book();
+        book.setTitle("");
+        book.setAuthor("");
+        book.setDescription("");
+        book.setStatus("В планах");
+        String cursorValue = null;
+
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            // Значение столбца сортировки берётся как есть: число или строка, null остаётся null
+            if (name.equals(cursorColumn)) {
+                cursorValue = nextStringOrNull(in);
+                applyBookField(book, name, cursorValue);
+                continue;
+            }
+            switch (name) {
+                case "page_count":
+                    book.setTotalPages(nextIntOrDefault(in, 0));
+                    break;
+                case "current_page":
+                    book.setCurrentPage(nextIntOrDefault(in, 0));
+                    break;
+                case "rating":
+                    book.setRating(nextIntOrDefault(in, 0));
+                    break;
+                default:
+                    if (in.peek() == JsonToken.BEGIN_ARRAY || in.peek() == JsonToken.BEGIN_OBJECT) {
+                        in.skipValue();
+                    } else {
+                        applyBookField(book, name, nextStringOrNull(in));
+                    }
+                    break;
+            }
+        }
+        in.endObject();
+
+        if (lastRow != null) {
+            lastRow.id = book.getId();
+            lastRow.sortValue = cursorValue;
+        }
+        return book;
+    }
+
+    private static void applyBookField(Book book, String name, String value) {
+        switch (name) {
+            case "id":
+                book.setId(value);
+                break;
+            case "title":
+                book.setTitle(value != null ? value : "");
+                break;
+            case "author":
+                book.setAuthor(value != null ? value : "");
+                break;
+            case "description":
+                book.setDescription(value != null ? value : "");
+                break;
+            case "status":
+                book.setStatus(value != null ? value : "В планах");
+                break;
+            case "cover_image_url":
+                book.setCoverPath(value);
+                break;
+            case "start_date":
+                book.setStartDate(value);
+                break;
+            case "finish_date":
+                book.setEndDate(value);
+                break;
+            case "review":
+                book.setReview(value);
+                break;
+            case "rating":
+                book.setRating(parseIntOrDefault(value, 0));
+                break;
+            case "file_url":
+                // Формат файла определяется по URL
+                if (value != null) {
+                    book.setFilePath(value);
+                    book.setFileFormat(fileFormatFromUrl(value));
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Полки со встроенными связями book_shelf(book_id).
+     * Если у строки нет встроенного массива, список книг полки остаётся null.
+     * @param defaultUserId Владелец для строк без user_id
+     */
+    static List<Shelf> readShelves(Reader reader, String defaultUserId) throws IOException {
+        List<Shelf> shelves = new ArrayList<>();
+        try (JsonReader in = new JsonReader(reader)) {
+            in.beginArray();
+            while (in.hasNext()) {
+                Shelf shelf = readShelf(in, defaultUserId);
+                if (shelf != null) {
+                    shelves.add(shelf);
+                }
+            }
+            in.endArray();
+        }
+        return shelves;
+    }
+
+    private static Shelf readShelf(JsonReader in, String defaultUserId) throws IOException {
+        // Столбцы могут называться как с префиксом shelf_, так и без него
+        String id = null;
+        String name = null;
+        String description = null;
+        String userId = null;
+        List<String> bookIds = null;
+
+        in.beginObject();
+        while (in.hasNext()) {
+            String field = in.nextName();
+            switch (field) {
+                case "id":
+                    id = nextStringOrNull(in);
+                    break;
+                case "shelf_id":
+                    String shelfId = nextStringOrNull(in);
+                    if (id == null) {
+                        id = shelfId;
+                    }
+                    break;
+                case "name":
+                    name = nextStringOrNull(in);
+                    break;
+                case "shelf_name":
+                    String shelfName = nextStringOrNull(in);
+                    if (name == null) {
+                        name = shelfName;
+                    }
+                    break;
+                case "description":
+                    description = nextStringOrNull(in);
+                    break;
+                case "shelf_description":
+                    String shelfDescription = nextStringOrNull(in);
+                    if (description == null) {
+                        description = shelfDescription;
+                    }
+                    break;
+                case "user_id":
+                    userId = nextStringOrNull(in);
+                    break;
+                case "book_shelf":
+                    if (in.peek() == JsonToken.BEGIN_ARRAY) {
+                        bookIds = readBookIdArray(in);
+                    } else {
+                        in.skipValue();
+                    }
+                    break;
+                default:
+                    in.skipValue();
+                    break;
+            }
+        }
+        in.endObject();
+
+        if (id == null) {
+            Log.e(TAG, "Missing ID field in shelf row, skipping it");
+            return null;
+        }
+        Shelf shelf = new Shelf();
+        shelf.setId(id);
+        shelf.setName(name != null ? name : "Unnamed Shelf");
+        shelf.setDescription(description != null ? description : "");
+        shelf.setUserId(userId != null ? userId : defaultUserId);
+        shelf.setBookIds(bookIds);
+        return shelf;
+    }
+
+    /**
+     * Строки book_shelf: id книг без повторов в порядке ответа
+     */
+    static List<String> readBookIds(Reader reader) throws IOException {
+        try (JsonReader in = new JsonReader(reader)) {
+            return readBookIdArray(in);
+        }
+    }
+
+    private static List<String> readBookIdArray(JsonReader in) throws IOException {
+        Set<String> bookIds = new LinkedHashSet<>();
+        in.beginArray();
+        while (in.hasNext()) {
+            in.beginObject();
+            while (in.hasNext()) {
+                if (in.nextName().equals("book_id")) {
+                    String bookId = nextStringOrNull(in);
+                    if (bookId != null) {
+                        bookIds.add(bookId);
+                    }
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+        }
+        in.endArray();
+        return new ArrayList<>(bookIds);
+    }
+
+    static List<Quote> readQuotes(Reader reader) throws IOException {
+        List<Quote> quotes = new ArrayList<>();
+        try (JsonReader in = new JsonReader(reader)) {
+            in.beginArray();
+            while (in.hasNext()) {
+                String id = null;
+                String bookId = null;
+                String userId = null;
+                String text = null;
+                int startPage = 0;
+                int endPage = 0;
+                long createdAt = 0;
+
+                in.beginObject();
+                while (in.hasNext()) {
+                    switch (in.nextName()) {
+                        case "id":
+                            id = nextStringOrNull(in);
+                            break;
+                        case "book_id":
+                            bookId = nextStringOrNull(in);
+                            break;
+                        case "user_id":
+                            userId = nextStringOrNull(in);
+                            break;
+                        case "text":
+                            text = nextStringOrNull(in);
+                            break;
+                        case "start_page":
+                            startPage = nextIntOrDefault(in, 0);
+                            break;
+                        case "end_page":
+                            endPage = nextIntOrDefault(in, 0);
+                            break;
+                        case "created_at":
+                            String value = nextStringOrNull(in);
+                            createdAt = value != null ? Long.parseLong(value) : 0;
+                            break;
+                        default:
+                            in.skipValue();
+                            break;
+                    }
+                }
+                in.endObject();
+                quotes.add(new Quote(id, bookId, userId, text, startPage, endPage, createdAt));
+            }
+            in.endArray();
+        }
+        return quotes;
+    }
+
+    /**
+     * current_page первой строки или null, если строк нет
+     */
+    static Integer readCurrentPage(Reader reader) throws IOException {
+        Integer currentPage = null;
+        try (JsonReader in = new JsonReader(reader)) {
+            in.beginArray();
+            while (in.hasNext()) {
+                in.beginObject();
+                while (in.hasNext()) {
+                    if (currentPage == null && in.nextName().equals("current_page")) {
+                        currentPage = nextIntOrDefault(in, -1);
+                    } else {
+                        in.skipValue();
+                    }
+                }
+                in.endObject();
+            }
+            in.endArray();
+        }
+        return currentPage;
+    }
+
+    /**
+     * Формат книги по расширению в URL файла; неизвестные расширения считаются EPUB
+     */
+    static String fileFormatFromUrl(String fileUrl) {
+        if (fileUrl == null) return "UNKNOWN";
+
+        int lastDot = fileUrl.lastIndexOf('.');
+        if (lastDot > 0) {
+            String ext = fileUrl.substring(lastDot + 1).toLowerCase();
+            switch (ext) {
+                case "pdf": return "PDF";
+                case "epub": return "EPUB";
+                case "fb2": return "FB2";
+                case "txt": return "TXT";
+                // Обрабатываем случаи, когда расширение не входит в список допустимых
+                default: {
+                    Log.w(TAG, "Non-standard file extension detected: " + ext);
+                    // Для FB2.ZIP файлов
+                    if (ext.equals("zip") && fileUrl.toLowerCase().contains("fb2")) {
+                        return "FB2";
+                    }
+                    // Возвращаем один из допустимых форматов, предпочтительно EPUB как наиболее распространенный
+                    return "EPUB";
+                }
+            }
+        }
+        // Возвращаем допустимое значение по умолчанию вместо UNKNOWN
+        Log.w(TAG, "Could not determine file format from URL: " + fileUrl);
+        return "EPUB";
+    }
+
+    /**
+     * Строка, число или логическое значение как текст; null для JSON null
+     */
+    private static String nextStringOrNull(JsonReader in) throws IOException {
+        JsonToken token = in.peek();
+        if (token == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        if (token == JsonToken.BOOLEAN) {
+            return String.valueOf(in.nextBoolean());
+        }
+        if (token == JsonToken.BEGIN_ARRAY || token == JsonToken.BEGIN_OBJECT) {
+            in.skipValue();
+            return null;
+        }
+        return in.nextString();
+    }
+
+    private static int nextIntOrDefault(JsonReader in, int defaultValue) throws IOException {
+        return parseIntOrDefault(nextStringOrNull(in), defaultValue);
+    }
+
+    private static int parseIntOrDefault(String value, int defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            // Числовые столбцы могут прийти как 3.0
+            try {
+                return (int) Double.parseDouble(value);
+            } catch (NumberFormatException ignored) {
+                return defaultValue;
+            }
+        }
+    }
+}
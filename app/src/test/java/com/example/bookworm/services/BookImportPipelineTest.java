@@ -0,0 +1,32 @@
+package com.example.bookworm.services;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BookImportPipelineTest {
+    @Test
+    public void networkAndTimeoutErrorsAreRetried() {
+        assertFalse(BookImportPipeline.isPermanentError("Network error: Unable to resolve host"));
+        assertFalse(BookImportPipeline.isPermanentError("Истекло время ожидания загрузки"));
+        assertFalse(BookImportPipeline.isPermanentError("Upload failed: 503"));
+        assertFalse(BookImportPipeline.isPermanentError("Save failed: 500 - internal error"));
+    }
+
+    @Test
+    public void authAndRateLimitErrorsAreRetried() {
+        assertFalse(BookImportPipeline.isPermanentError("User not authenticated"));
+        assertFalse(BookImportPipeline.isPermanentError("Upload failed: 401"));
+        assertFalse(BookImportPipeline.isPermanentError("Save failed: 403 - JWT expired"));
+        assertFalse(BookImportPipeline.isPermanentError("Upload failed: 429"));
+    }
+
+    @Test
+    public void rejectedRequestsStopImport() {
+        assertTrue(BookImportPipeline.isPermanentError("Upload failed: 413"));
+        assertTrue(BookImportPipeline.isPermanentError("Save failed: 400 - invalid input"));
+        assertTrue(BookImportPipeline.isPermanentError("Save failed: 409 - duplicate key value violates "
+                + "unique constraint \"unique_book_per_user\""));
+        assertTrue(BookImportPipeline.isPermanentError("File not found. It may have been moved or deleted."));
+    }
+}
@@ -0,0 +1,62 @@
+package com.example.bookworm.services;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HtmlPaginatorTest {
+    @Test
+    public void keepsSmallDocumentOnOnePage() {
+        List<String> pages = HtmlPaginator.paginate("<p>One</p><p>Two</p>", 100, false, "[", "]");
+
+        assertEquals(Arrays.asList("[<p>One</p><p>Two</p>]"), pages);
+    }
+
+    @Test
+    public void breaksPagesBetweenBlocks() {
+        List<String> pages = HtmlPaginator.paginate("<p>aaaa</p><p>bbbb</p><p>cccc</p>", 8, false, "", "");
+
+        assertEquals(Arrays.asList("<p>aaaa</p><p>bbbb</p>", "<p>cccc</p>"), pages);
+    }
+
+    @Test
+    public void reopensContainersOnNextPage() {
+        List<String> pages = HtmlPaginator.paginate(
+                "<div class=\"chapter\"><p>aaaa</p><p>bbbb</p></div>", 4, false, "", "");
+
+        assertEquals(Arrays.asList(
+                "<div class=\"chapter\"><p>aaaa</p></div>",
+                "<div class=\"chapter\"><p>bbbb</p></div>"), pages);
+    }
+
+    @Test
+    public void closesParagraphsAndListItemsImplicitly() {
+        List<String> pages = HtmlPaginator.paginate("<p>one<p>two<ul><li>a<li>b</ul>", 100, false, "", "");
+
+        assertEquals(Arrays.asList("<p>one</p><p>two</p><ul><li>a</li><li>b</li></ul>"), pages);
+    }
+
+    @Test
+    public void splitsBlockLongerThanPageAtSpaces() {
+        List<String> pages = HtmlPaginator.paginate("<p>aaa bbb ccc ddd</p>", 8, false, "", "");
+
+        assertEquals(Arrays.asList("<p>aaa bbb </p>", "<p>ccc ddd</p>"), pages);
+    }
+
+    @Test
+    public void skipsHeadAndScripts() {
+        List<String> pages = HtmlPaginator.paginate(
+                "<html><head><title>T</title><style>p{}</style></head><body><script>x()</script><p>Text</p></body></html>",
+                100, false, "", "");
+
+        assertEquals(Arrays.asList("<p>Text</p>"), pages);
+    }
+
+    @Test
+    public void returnsNoPagesWithoutVisibleContent() {
+        assertTrue(HtmlPaginator.paginate("<div>  </div>", 100, false, "", "").isEmpty());
+    }
+}
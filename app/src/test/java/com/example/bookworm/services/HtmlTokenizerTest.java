@@ -0,0 +1,50 @@
+package com.example.bookworm.services;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HtmlTokenizerTest {
+    @Test
+    public void readsTagsTextAndOtherTokens() {
+        HtmlTokenizer tokenizer = new HtmlTokenizer("<!DOCTYPE html><P class=\"a\">Text</P><!-- note --><br/>");
+
+        assertEquals(HtmlTokenizer.OTHER, tokenizer.next());
+        assertEquals(HtmlTokenizer.START_TAG, tokenizer.next());
+        assertEquals("p", tokenizer.getTagName());
+        assertEquals("<P class=\"a\">", tokenizer.getRawToken());
+        assertFalse(tokenizer.isSelfClosing());
+        assertEquals(HtmlTokenizer.TEXT, tokenizer.next());
+        assertEquals("Text", tokenizer.getRawToken());
+        assertEquals(HtmlTokenizer.END_TAG, tokenizer.next());
+        assertEquals("p", tokenizer.getTagName());
+        assertEquals(HtmlTokenizer.OTHER, tokenizer.next());
+        assertEquals("<!-- note -->", tokenizer.getRawToken());
+        assertEquals(HtmlTokenizer.START_TAG, tokenizer.next());
+        assertEquals("br", tokenizer.getTagName());
+        assertTrue(tokenizer.isSelfClosing());
+        assertEquals(HtmlTokenizer.END_DOCUMENT, tokenizer.next());
+    }
+
+    @Test
+    public void skipsGreaterThanInsideQuotedAttributes() {
+        HtmlTokenizer tokenizer = new HtmlTokenizer("<a title='x > y' href=\"b\">link</a>");
+
+        assertEquals(HtmlTokenizer.START_TAG, tokenizer.next());
+        assertEquals("<a title='x > y' href=\"b\">", tokenizer.getRawToken());
+        assertEquals(HtmlTokenizer.TEXT, tokenizer.next());
+        assertEquals("link", tokenizer.getRawToken());
+    }
+
+    @Test
+    public void treatsLoneLessThanAsText() {
+        HtmlTokenizer tokenizer = new HtmlTokenizer("1 < 2 <b>x</b>");
+
+        assertEquals(HtmlTokenizer.TEXT, tokenizer.next());
+        assertEquals("1 ", tokenizer.getRawToken());
+        assertEquals(HtmlTokenizer.TEXT, tokenizer.next());
+        assertEquals("< 2 ", tokenizer.getRawToken());
+        assertEquals(HtmlTokenizer.START_TAG, tokenizer.next());
+        assertEquals("b", tokenizer.getTagName());
+    }
+}
@@ -0,0 +1,46 @@
+package com.example.bookworm.services;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class KeysetConditionTest {
+    private static SupabaseService.BookPageQuery query(boolean ascending) {
+        return new SupabaseService.BookPageQuery(SupabaseService.BookPageQuery.SORT_RATING, ascending, null, null, 20);
+    }
+
+    @Test
+    public void ascendingAfterValue() {
+        String condition = SupabaseService.keysetCondition(query(true), new SupabaseService.BookCursor("4", "b1"));
+        assertEquals("or(rating.gt.\"4\",and(rating.eq.\"4\",id.gt.\"b1\"))", condition);
+    }
+
+    @Test
+    public void ascendingAfterNullSkipsToValues() {
+        // По возрастанию пустые значения идут первыми: дальше остальные пустые с большим id и все непустые
+        String condition = SupabaseService.keysetCondition(query(true), new SupabaseService.BookCursor(null, "b1"));
+        assertEquals("or(rating.not.is.null,and(rating.is.null,id.gt.\"b1\"))", condition);
+    }
+
+    @Test
+    public void descendingAfterValueKeepsNullsAtEnd() {
+        String condition = SupabaseService.keysetCondition(query(false), new SupabaseService.BookCursor("4", "b1"));
+        assertEquals("or(rating.lt.\"4\",rating.is.null,and(rating.eq.\"4\",id.lt.\"b1\"))", condition);
+    }
+
+    @Test
+    public void descendingAfterNullStaysInNulls() {
+        String condition = SupabaseService.keysetCondition(query(false), new SupabaseService.BookCursor(null, "b1"));
+        assertEquals("and(rating.is.null,id.lt.\"b1\")", condition);
+    }
+
+    @Test
+    public void quotesSpecialCharacters() {
+        SupabaseService.BookPageQuery byTitle = new SupabaseService.BookPageQuery(
+                SupabaseService.BookPageQuery.SORT_TITLE, true, null, null, 20);
+        String condition = SupabaseService.keysetCondition(byTitle,
+                new SupabaseService.BookCursor("Война и мир, \"том 1\" (1869)", "b1"));
+        assertEquals("or(title.gt.\"Война и мир, \\\"том 1\\\" (1869)\","
+                + "and(title.eq.\"Война и мир, \\\"том 1\\\" (1869)\",id.gt.\"b1\"))", condition);
+    }
+}
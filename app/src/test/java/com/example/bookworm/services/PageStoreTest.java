@@ -0,0 +1,154 @@
+package com.example.bookworm.services;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class PageStoreTest {
+    @Test
+    public void addsPagesAndRestoresFrame() {
+        PageStore store = new PageStore("<div>", "</div>");
+        store.add("<div>first</div>");
+        store.appendPage("second");
+
+        assertEquals(2, store.size());
+        assertEquals("<div>first</div>", store.get(0));
+        assertEquals("second", store.getPageBody(1).toString());
+        assertEquals(6, store.getPageLength(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsPageWithoutFrame() {
+        new PageStore("<div>", "</div>").add("first");
+    }
+
+    @Test
+    public void appendsAnotherStore() {
+        PageStore other = new PageStore("[", "]");
+        other.appendPage("b");
+        other.appendPage("c");
+        PageStore store = new PageStore();
+        store.addAll(other);
+        PageStore more = new PageStore("[", "]");
+        more.appendPage("d");
+        store.addAll(more);
+
+        assertEquals(Arrays.asList("[b]", "[c]", "[d]"), store);
+    }
+
+    @Test
+    public void findsPagesIgnoringMarkupAndCase() {
+        PageStore store = new PageStore();
+        store.appendPage("<p class=\"Moon\">Sun</p>");
+        store.appendPage("<p>Full <b>MOON</b></p>");
+
+        assertEquals(Collections.singletonList(1), store.findPages("moon"));
+    }
+
+    @Test
+    public void roundTripsThroughStream() throws IOException {
+        PageStore store = new PageStore("<section>", "</section>");
+        store.appendPage("Первая страница");
+        store.appendPage("");
+        store.appendPage("📖 third");
+
+        PageStore restored = PageStore.readFrom(new DataInputStream(new ByteArrayInputStream(write(store))));
+
+        assertEquals(store, restored);
+        assertEquals("<section>", restored.getPagePrefix());
+        assertEquals("</section>", restored.getPageSuffix());
+        assertEquals(0, restored.getPageLength(1));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOffsetsPastTheText() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF("");
+        out.writeUTF("");
+        out.writeInt(2);
+        out.writeInt(0);
+        out.writeInt(5); // Страница начинается за концом текста
+        out.writeInt(2);
+        out.writeChars("ab");
+
+        PageStore.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsDecreasingOffsets() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF("");
+        out.writeUTF("");
+        out.writeInt(2);
+        out.writeInt(2);
+        out.writeInt(1);
+        out.writeInt(3);
+        out.writeChars("abc");
+
+        PageStore.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsHugePageCountWithoutAllocating() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF("");
+        out.writeUTF("");
+        out.writeInt(Integer.MAX_VALUE - 8); // Повреждённый счётчик
+        out.writeInt(0);
+
+        PageStore.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsHugeLengthWithoutAllocating() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF("");
+        out.writeUTF("");
+        out.writeInt(1);
+        out.writeInt(0);
+        out.writeInt(Integer.MAX_VALUE - 8);
+        out.writeChars("ab"); // Обрезанная запись
+
+        PageStore.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    }
+
+    @Test
+    public void snapshotIgnoresLaterChanges() {
+        PageStore store = new PageStore();
+        store.appendPage("one");
+        PageStore snapshot = store.snapshot();
+        for (int i = 0; i < 10000; i++) {
+            store.appendPage("more");
+        }
+        store.trimToSize();
+        store.clear();
+        store.appendPage("two");
+
+        assertEquals(Collections.singletonList("one"), snapshot);
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void snapshotIsReadOnly() {
+        new PageStore().snapshot().appendPage("page");
+    }
+
+    private static byte[] write(PageStore store) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            store.writeTo(out);
+        }
+        return bytes.toByteArray();
+    }
+}